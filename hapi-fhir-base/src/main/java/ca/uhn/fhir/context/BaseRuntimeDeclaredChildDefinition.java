@@ -25,6 +25,7 @@ import static org.apache.commons.lang3.StringUtils.*;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -42,6 +43,7 @@ public abstract class BaseRuntimeDeclaredChildDefinition extends BaseRuntimeChil
 	private final IAccessor myAccessor;
 	private final String myElementName;
 	private final Field myField;
+	private IFieldAccessor myFieldAccessor;
 	private final String myFormalDefinition;
 	private final int myMax;
 	private final int myMin;
@@ -89,6 +91,7 @@ public abstract class BaseRuntimeDeclaredChildDefinition extends BaseRuntimeChil
 		}
 
 		if (ourUseMethodAccessors == false) {
+			myFieldAccessor = new ReflectionFieldAccessor();
 			if (List.class.equals(myField.getType())) {
 				// TODO: verify that generic type is IElement
 				myAccessor = new FieldListAccessor();
@@ -172,6 +175,52 @@ public abstract class BaseRuntimeDeclaredChildDefinition extends BaseRuntimeChil
 		return getChildByName(getValidChildNames().iterator().next());
 	}
 
+	/** For unit tests only */
+	boolean isUsingGeneratedFieldAccessor() {
+		return myFieldAccessor != null && !(myFieldAccessor instanceof ReflectionFieldAccessor);
+	}
+
+	/**
+	 * Switches this child from reflection to the accessor which the class declaring its field provides, if there is one
+	 * (see {@link IFieldAccessor}). Has no effect if the field can't be accessed directly.
+	 * 
+	 * @return Returns <code>true</code> if a generated accessor is now being used
+	 */
+	boolean useGeneratedFieldAccessor() {
+		if (myFieldAccessor == null) {
+			return false;
+		}
+		IFieldAccessor generated = findGeneratedFieldAccessor(myField);
+		if (generated == null) {
+			return false;
+		}
+		myFieldAccessor = generated;
+		return true;
+	}
+
+	private static IFieldAccessor findGeneratedFieldAccessor(Field theField) {
+		Method factory;
+		try {
+			factory = theField.getDeclaringClass().getDeclaredMethod(IFieldAccessor.FACTORY_METHOD_NAME, String.class);
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (SecurityException e) {
+			return null;
+		}
+		if (!Modifier.isStatic(factory.getModifiers()) || !IFieldAccessor.class.equals(factory.getReturnType())) {
+			return null;
+		}
+
+		try {
+			return (IFieldAccessor) factory.invoke(null, theField.getName());
+		} catch (IllegalAccessException e) {
+			ourLog.debug("Can not use the generated accessor for field {}, going to use reflection instead", theField);
+			return null;
+		} catch (InvocationTargetException e) {
+			throw new ConfigurationException("Failed to create the accessor for field " + theField, e);
+		}
+	}
+
 	private static Method findMutator(Class<?> theDeclaringClass, Class<?> theTargetReturnType, String theElementName) {
 		String methodName = "set" + WordUtils.capitalize(theElementName);
 		try {
@@ -186,50 +235,32 @@ public abstract class BaseRuntimeDeclaredChildDefinition extends BaseRuntimeChil
 	private final class FieldPlainMutator implements IMutator {
 		@Override
 		public void addValue(Object theTarget, IBase theValue) {
-			try {
-				myField.set(theTarget, theValue);
-			} catch (IllegalArgumentException e) {
-				throw new ConfigurationException("Failed to set value", e);
-			} catch (IllegalAccessException e) {
-				throw new ConfigurationException("Failed to set value", e);
-			}
+			myFieldAccessor.setValue(theTarget, theValue);
 		}
 	}
 
 	private final class FieldPlainAccessor implements IAccessor {
 		@Override
 		public List<IBase> getValues(Object theTarget) {
-			try {
-				Object values = myField.get(theTarget);
-				if (values == null) {
-					return Collections.emptyList();
-				}
-				List<IBase> retVal = Collections.singletonList((IBase)values);
-				return retVal;
-			} catch (IllegalArgumentException e) {
-				throw new ConfigurationException("Failed to get value", e);
-			} catch (IllegalAccessException e) {
-				throw new ConfigurationException("Failed to get value", e);
+			Object values = myFieldAccessor.getValue(theTarget);
+			if (values == null) {
+				return Collections.emptyList();
 			}
+			List<IBase> retVal = Collections.singletonList((IBase)values);
+			return retVal;
 		}
 	}
 
 	private final class FieldListMutator implements IMutator {
 		@Override
 		public void addValue(Object theTarget, IBase theValue) {
-			try {
-				@SuppressWarnings("unchecked")
-				List<IBase> existingList = (List<IBase>) myField.get(theTarget);
-				if (existingList == null) {
-					existingList = new ArrayList<IBase>(2);
-					myField.set(theTarget, existingList);
-				}
-				existingList.add(theValue);
-			} catch (IllegalArgumentException e) {
-				throw new ConfigurationException("Failed to set value", e);
-			} catch (IllegalAccessException e) {
-				throw new ConfigurationException("Failed to set value", e);
+			@SuppressWarnings("unchecked")
+			List<IBase> existingList = (List<IBase>) myFieldAccessor.getValue(theTarget);
+			if (existingList == null) {
+				existingList = new ArrayList<IBase>(2);
+				myFieldAccessor.setValue(theTarget, existingList);
 			}
+			existingList.add(theValue);
 		}
 	}
 
@@ -237,18 +268,35 @@ public abstract class BaseRuntimeDeclaredChildDefinition extends BaseRuntimeChil
 		@SuppressWarnings("unchecked")
 		@Override
 		public List<IBase> getValues(Object theTarget) {
-			List<IBase> retVal;
+			List<IBase> retVal = (List<IBase>) myFieldAccessor.getValue(theTarget);
+			if (retVal == null) {
+				retVal = Collections.emptyList();
+			}
+			return retVal;
+		}
+	}
+
+	private final class ReflectionFieldAccessor implements IFieldAccessor {
+		@Override
+		public Object getValue(Object theTarget) {
 			try {
-				retVal = (List<IBase>) myField.get(theTarget);
+				return myField.get(theTarget);
 			} catch (IllegalArgumentException e) {
 				throw new ConfigurationException("Failed to get value", e);
 			} catch (IllegalAccessException e) {
 				throw new ConfigurationException("Failed to get value", e);
 			}
-			if (retVal == null) {
-				retVal = Collections.emptyList();
+		}
+
+		@Override
+		public void setValue(Object theTarget, Object theValue) {
+			try {
+				myField.set(theTarget, theValue);
+			} catch (IllegalArgumentException e) {
+				throw new ConfigurationException("Failed to set value", e);
+			} catch (IllegalAccessException e) {
+				throw new ConfigurationException("Failed to set value", e);
 			}
-			return retVal;
 		}
 	}
 
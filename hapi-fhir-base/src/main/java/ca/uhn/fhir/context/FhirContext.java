@@ -82,6 +82,7 @@ public class FhirContext {
 	private volatile INarrativeGenerator myNarrativeGenerator;
 	private volatile IRestfulClientFactory myRestfulClientFactory;
 	private volatile RuntimeChildUndeclaredExtensionDefinition myRuntimeChildUndeclaredExtensionDefinition;
+	private boolean myUseGeneratedFieldAccessors = true;
 	private final IFhirVersion myVersion;
 
 	private Map<FhirVersionEnum, Map<String, Class<? extends IBaseResource>>> myVersionToNameToResourceType = Collections.emptyMap();
@@ -429,6 +430,13 @@ public class FhirContext {
 		return classToElementDefinition;
 	}
 
+	/**
+	 * See {@link #setUseGeneratedFieldAccessors(boolean)}
+	 */
+	public boolean isUseGeneratedFieldAccessors() {
+		return myUseGeneratedFieldAccessors;
+	}
+
 	/**
 	 * This feature is not yet in its final state and should be considered an internal part of HAPI for now - use with
 	 * caution
@@ -444,6 +452,19 @@ public class FhirContext {
 		myNarrativeGenerator = theNarrativeGenerator;
 	}
 
+	/**
+	 * If set to <code>true</code> (which is the default), the children of model classes which provide their own field
+	 * accessors (see {@link IFieldAccessor}), such as the generated structure classes, are read and written using those
+	 * accessors. Otherwise, and for any class which doesn't provide them, reflection is used.
+	 * <p>
+	 * This only affects types which are scanned after it is called, so it should be set before the context is first
+	 * used.
+	 * </p>
+	 */
+	public void setUseGeneratedFieldAccessors(boolean theUseGeneratedFieldAccessors) {
+		myUseGeneratedFieldAccessors = theUseGeneratedFieldAccessors;
+	}
+
 	@SuppressWarnings("unchecked")
 	private List<Class<? extends IElement>> toElementList(Collection<Class<? extends IBaseResource>> theResourceTypes) {
 		if (theResourceTypes == null) {
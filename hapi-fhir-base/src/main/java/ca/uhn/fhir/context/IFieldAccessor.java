@@ -0,0 +1,53 @@
+package ca.uhn.fhir.context;
+
+/*
+ * #%L
+ * HAPI FHIR - Core Library
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+/**
+ * Reads and writes a single child field of a model class without using reflection
+ * <p>
+ * Model classes may provide these for their own child fields by declaring a static method named
+ * {@link #FACTORY_METHOD_NAME} which takes the name of the field as its only argument and returns an accessor for it
+ * (or <code>null</code> if it has none for that field). The structure classes generated by HAPI do this. Because the
+ * accessor is compiled along with the model class it can read and write private fields directly, which the JIT can
+ * inline, unlike {@link java.lang.reflect.Field#get(Object)}. Any field without one falls back to reflection.
+ * </p>
+ * 
+ * @see FhirContext#setUseGeneratedFieldAccessors(boolean)
+ */
+public interface IFieldAccessor {
+
+	/**
+	 * The name of the static factory method which model classes declare in order to provide field accessors
+	 */
+	String FACTORY_METHOD_NAME = "getFieldAccessor";
+
+	/**
+	 * Returns the current value of the field (which may be <code>null</code>)
+	 */
+	Object getValue(Object theTarget);
+
+	/**
+	 * Replaces the value of the field
+	 */
+	void setValue(Object theTarget, Object theValue);
+
+}
@@ -605,6 +605,10 @@ class ModelScanner {
 				throw new ConfigurationException("Field '" + elementName + "' in type '" + theClass.getCanonicalName() + "' is not a valid child type: " + nextElementType);
 			}
 
+			if (myContext.isUseGeneratedFieldAccessors()) {
+				orderMap.get(order).useGeneratedFieldAccessor();
+			}
+
 			elementNames.add(elementName);
 		}
 	}
@@ -282,6 +282,33 @@ public abstract class ResourceMetadataKeyEnum<T> {
 
 	};
 
+	/**
+	 * If present, this value contains the JSON encoding of this resource as it was stored by the server which loaded it
+	 * (e.g. the JPA server). When a single resource is returned as JSON with no server-side changes to its content
+	 * (no pretty printing, narrative generation or interceptors), the server streams this text to the client in place of
+	 * encoding the resource again, replacing its <code>id</code> and <code>meta</code> elements with the current values
+	 * for the resource.
+	 * <p>
+	 * Values for this key are of type <b>{@link String}</b>
+	 * </p>
+	 * <p>
+	 * <b>Server Note</b>: Server code which modifies the contents of a resource loaded with this value must remove it,
+	 * or the modification will not be returned to the client. The JPA server only attaches it to resources which its
+	 * own read operation returns to the client directly.
+	 * </p>
+	 */
+	public static final ResourceMetadataKeyEnum<String> STORED_JSON = new ResourceMetadataKeyEnum<String>("STORED_JSON") {
+		@Override
+		public String get(IResource theResource) {
+			return getStringFromMetadataOrNullIfNone(theResource.getResourceMetadata(), STORED_JSON);
+		}
+
+		@Override
+		public void put(IResource theResource, String theObject) {
+			theResource.getResourceMetadata().put(STORED_JSON, theObject);
+		}
+	};
+
 	/**
 	 * The value for this key is the list of tags associated with this resource
 	 * <p>
@@ -384,11 +384,14 @@ public abstract class BaseParser implements IParser {
 	static class ContainedResources {
 		private long myNextContainedId = 1;
 
-		private List<IBaseResource> myResources = new ArrayList<IBaseResource>();
-		private IdentityHashMap<IBaseResource, IdDt> myResourceToId = new IdentityHashMap<IBaseResource, IdDt>();
+		/*
+		 * Most resources being encoded don't contain anything, so these are only created when needed
+		 */
+		private List<IBaseResource> myResources;
+		private IdentityHashMap<IBaseResource, IdDt> myResourceToId;
 
 		public void addContained(IBaseResource theResource) {
-			if (myResourceToId.containsKey(theResource)) {
+			if (myResourceToId != null && myResourceToId.containsKey(theResource)) {
 				return;
 			}
 
@@ -403,25 +406,34 @@ public abstract class BaseParser implements IParser {
 				newId = new IdDt(myNextContainedId++);
 			}
 
-			myResourceToId.put(theResource, newId);
-			myResources.add(theResource);
+			addContained(newId, theResource);
 		}
 
 		public void addContained(IdDt theId, IBaseResource theResource) {
+			if (myResourceToId == null) {
+				myResourceToId = new IdentityHashMap<IBaseResource, IdDt>();
+				myResources = new ArrayList<IBaseResource>();
+			}
 			myResourceToId.put(theResource, theId);
 			myResources.add(theResource);
 		}
 
 		public List<IBaseResource> getContainedResources() {
+			if (myResources == null) {
+				return Collections.emptyList();
+			}
 			return myResources;
 		}
 
 		public IdDt getResourceId(IBaseResource theNext) {
+			if (myResourceToId == null) {
+				return null;
+			}
 			return myResourceToId.get(theNext);
 		}
 
 		public boolean isEmpty() {
-			return myResourceToId.isEmpty();
+			return myResourceToId == null || myResourceToId.isEmpty();
 		}
 
 	}
@@ -25,6 +25,7 @@ import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.Writer;
 import java.util.ArrayList;
@@ -32,6 +33,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -39,14 +41,20 @@ import java.util.Set;
 
 import javax.json.Json;
 import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonBuilderFactory;
 import javax.json.JsonNumber;
 import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
 import javax.json.JsonReader;
+import javax.json.JsonReaderFactory;
 import javax.json.JsonString;
 import javax.json.JsonValue;
 import javax.json.JsonValue.ValueType;
 import javax.json.stream.JsonGenerator;
 import javax.json.stream.JsonGeneratorFactory;
+import javax.json.stream.JsonParser.Event;
+import javax.json.stream.JsonParserFactory;
 import javax.json.stream.JsonParsingException;
 
 import org.apache.commons.lang3.StringUtils;
@@ -101,6 +109,7 @@ import ca.uhn.fhir.model.primitive.StringDt;
 import ca.uhn.fhir.model.primitive.UriDt;
 import ca.uhn.fhir.model.primitive.XhtmlDt;
 import ca.uhn.fhir.narrative.INarrativeGenerator;
+import ca.uhn.fhir.rest.server.Constants;
 import ca.uhn.fhir.util.ElementUtil;
 import ca.uhn.fhir.util.UrlUtil;
 
@@ -113,6 +122,29 @@ public class JsonParser extends BaseParser implements IParser {
 	private static final Set<String> BUNDLE_TEXTNODE_CHILDREN_DSTU2;
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(JsonParser.HeldExtension.class);
 
+	/*
+	 * Each of the Json.createXXX methods looks up the JSON provider using a ServiceLoader, which is
+	 * expensive enough to show up when it happens on every parse and encode. The factories are
+	 * thread safe, so we create them once and share them.
+	 */
+	private static final JsonBuilderFactory ourBuilderFactory;
+	private static final JsonGeneratorFactory ourGeneratorFactory;
+	private static final JsonParserFactory ourParserFactory;
+	private static final JsonGeneratorFactory ourPrettyGeneratorFactory;
+	private static final JsonReaderFactory ourReaderFactory;
+
+	static {
+		Map<String, Object> properties = Collections.emptyMap();
+		ourBuilderFactory = Json.createBuilderFactory(properties);
+		ourGeneratorFactory = Json.createGeneratorFactory(properties);
+		ourParserFactory = Json.createParserFactory(properties);
+		ourReaderFactory = Json.createReaderFactory(properties);
+
+		Map<String, Object> prettyProperties = new HashMap<String, Object>(1);
+		prettyProperties.put(JsonGenerator.PRETTY_PRINTING, true);
+		ourPrettyGeneratorFactory = Json.createGeneratorFactory(prettyProperties);
+	}
+
 	static {
 		HashSet<String> hashSetDstu1 = new HashSet<String>();
 		hashSetDstu1.add("title");
@@ -130,6 +162,7 @@ public class JsonParser extends BaseParser implements IParser {
 
 	private FhirContext myContext;
 	private boolean myPrettyPrint;
+	private boolean myStreamingParse = true;
 
 	/**
 	 * Do not use this constructor, the recommended way to obtain a new instance of the JSON parser is to invoke {@link FhirContext#newJsonParser()}.
@@ -139,8 +172,18 @@ public class JsonParser extends BaseParser implements IParser {
 		myContext = theContext;
 	}
 
-	private void addToHeldExtensions(int valueIdx, List<? extends IBaseExtension<?>> ext, ArrayList<ArrayList<HeldExtension>> list, boolean theIsModifier) {
+	/**
+	 * @param list
+	 *           The list to add to, or <code>null</code> if none has been created yet (in which case one will only be
+	 *           created if there are any extensions to add)
+	 * @return The list, which will still be <code>null</code> if nothing was added to it
+	 */
+	private ArrayList<ArrayList<HeldExtension>> addToHeldExtensions(int valueIdx, List<? extends IBaseExtension<?>> ext, ArrayList<ArrayList<HeldExtension>> theList, boolean theIsModifier) {
+		ArrayList<ArrayList<HeldExtension>> list = theList;
 		if (ext.size() > 0) {
+			if (list == null) {
+				list = new ArrayList<ArrayList<HeldExtension>>(valueIdx + 1);
+			}
 			list.ensureCapacity(valueIdx);
 			while (list.size() <= valueIdx) {
 				list.add(null);
@@ -152,6 +195,7 @@ public class JsonParser extends BaseParser implements IParser {
 				list.get(valueIdx).add(new HeldExtension(next, theIsModifier));
 			}
 		}
+		return list;
 	}
 
 	private void assertObjectOfType(JsonValue theResourceTypeObj, ValueType theValueType, String thePosition) {
@@ -164,19 +208,32 @@ public class JsonParser extends BaseParser implements IParser {
 		}
 	}
 
+	private JsonGenerator createJsonGenerator(OutputStream theOutputStream) {
+		return getGeneratorFactory().createGenerator(theOutputStream, Constants.CHARSET_UTF8);
+	}
+
 	private JsonGenerator createJsonGenerator(Writer theWriter) {
-		Map<String, Object> properties = new HashMap<String, Object>(1);
-		if (myPrettyPrint) {
-			properties.put(JsonGenerator.PRETTY_PRINTING, myPrettyPrint);
-		}
-		JsonGeneratorFactory jgf = Json.createGeneratorFactory(properties);
-		JsonGenerator eventWriter = jgf.createGenerator(theWriter);
-		return eventWriter;
+		return getGeneratorFactory().createGenerator(theWriter);
+	}
+
+	private JsonGeneratorFactory getGeneratorFactory() {
+		return myPrettyPrint ? ourPrettyGeneratorFactory : ourGeneratorFactory;
 	}
 
 	@Override
 	public void encodeBundleToWriter(Bundle theBundle, Writer theWriter) throws IOException {
-		JsonGenerator eventWriter = createJsonGenerator(theWriter);
+		encodeBundle(theBundle, createJsonGenerator(theWriter));
+	}
+
+	/**
+	 * Encodes a bundle directly to the given stream as UTF-8 bytes. This avoids the overhead of wrapping the stream
+	 * in a {@link Writer} when the destination is a byte stream (e.g. a servlet response). The stream is not closed.
+	 */
+	public void encodeBundleToOutputStream(Bundle theBundle, OutputStream theOutputStream) throws IOException {
+		encodeBundle(theBundle, createJsonGenerator(theOutputStream));
+	}
+
+	private void encodeBundle(Bundle theBundle, JsonGenerator eventWriter) throws IOException {
 		if (myContext.getVersion().getVersion().isNewerThan(FhirVersionEnum.DSTU1)) {
 			encodeBundleToWriterInDstu2Format(theBundle, eventWriter);
 		} else {
@@ -497,8 +554,9 @@ public class JsonParser extends BaseParser implements IParser {
 			String currentChildName = null;
 			boolean inArray = false;
 
-			ArrayList<ArrayList<HeldExtension>> extensions = new ArrayList<ArrayList<HeldExtension>>(0);
-			ArrayList<ArrayList<HeldExtension>> modifierExtensions = new ArrayList<ArrayList<HeldExtension>>(0);
+			// Only created if any of the values actually have extensions, which most don't
+			ArrayList<ArrayList<HeldExtension>> extensions = null;
+			ArrayList<ArrayList<HeldExtension>> modifierExtensions = null;
 
 			int valueIdx = 0;
 			for (IBase nextValue : values) {
@@ -556,20 +614,20 @@ public class JsonParser extends BaseParser implements IParser {
 					if (primitive) {
 						if (nextValue instanceof ISupportsUndeclaredExtensions) {
 							List<ExtensionDt> ext = ((ISupportsUndeclaredExtensions) nextValue).getUndeclaredExtensions();
-							addToHeldExtensions(valueIdx, ext, extensions, false);
+							extensions = addToHeldExtensions(valueIdx, ext, extensions, false);
 
 							ext = ((ISupportsUndeclaredExtensions) nextValue).getUndeclaredModifierExtensions();
-							addToHeldExtensions(valueIdx, ext, modifierExtensions, true);
+							modifierExtensions = addToHeldExtensions(valueIdx, ext, modifierExtensions, true);
 						} else {
 							if (nextValue instanceof IBaseHasExtensions) {
 								IBaseHasExtensions element = (IBaseHasExtensions) nextValue;
 								List<? extends IBaseExtension<?>> ext = element.getExtension();
-								addToHeldExtensions(valueIdx, ext, extensions, false);
+								extensions = addToHeldExtensions(valueIdx, ext, extensions, false);
 							}
 							if (nextValue instanceof IBaseHasModifierExtensions) {
 								IBaseHasModifierExtensions element = (IBaseHasModifierExtensions) nextValue;
 								List<? extends IBaseExtension<?>> ext = element.getModifierExtension();
-								addToHeldExtensions(valueIdx, ext, extensions, true);
+								extensions = addToHeldExtensions(valueIdx, ext, extensions, true);
 							}
 						}
 					}
@@ -583,7 +641,7 @@ public class JsonParser extends BaseParser implements IParser {
 				theEventWriter.writeEnd();
 			}
 
-			if (extensions.size() > 0 || modifierExtensions.size() > 0) {
+			if (extensions != null || modifierExtensions != null) {
 				if (inArray) {
 					// If this is a repeatable field, the extensions go in an array too
 					theEventWriter.writeStartArray('_' + currentChildName);
@@ -596,12 +654,12 @@ public class JsonParser extends BaseParser implements IParser {
 
 					List<HeldExtension> heldExts = Collections.emptyList();
 					List<HeldExtension> heldModExts = Collections.emptyList();
-					if (extensions.size() > i && extensions.get(i) != null && extensions.get(i).isEmpty() == false) {
+					if (extensions != null && extensions.size() > i && extensions.get(i) != null && extensions.get(i).isEmpty() == false) {
 						haveContent = true;
 						heldExts = extensions.get(i);
 					}
 
-					if (modifierExtensions.size() > i && modifierExtensions.get(i) != null && modifierExtensions.get(i).isEmpty() == false) {
+					if (modifierExtensions != null && modifierExtensions.size() > i && modifierExtensions.get(i) != null && modifierExtensions.get(i).isEmpty() == false) {
 						haveContent = true;
 						heldModExts = modifierExtensions.get(i);
 					}
@@ -742,9 +800,19 @@ public class JsonParser extends BaseParser implements IParser {
 	@Override
 	public void encodeResourceToWriter(IBaseResource theResource, Writer theWriter) throws IOException {
 		Validate.notNull(theResource, "Resource can not be null");
+		encodeResource(theResource, createJsonGenerator(theWriter));
+	}
 
-		JsonGenerator eventWriter = createJsonGenerator(theWriter);
+	/**
+	 * Encodes a resource directly to the given stream as UTF-8 bytes. This avoids the overhead of wrapping the stream
+	 * in a {@link Writer} when the destination is a byte stream (e.g. a servlet response). The stream is not closed.
+	 */
+	public void encodeResourceToOutputStream(IBaseResource theResource, OutputStream theOutputStream) throws IOException {
+		Validate.notNull(theResource, "Resource can not be null");
+		encodeResource(theResource, createJsonGenerator(theOutputStream));
+	}
 
+	private void encodeResource(IBaseResource theResource, JsonGenerator eventWriter) throws IOException {
 		RuntimeResourceDefinition resDef = myContext.getResourceDefinition(theResource);
 		encodeResourceToJsonStreamWriter(resDef, theResource, eventWriter, null, false);
 		eventWriter.flush();
@@ -910,24 +978,50 @@ public class JsonParser extends BaseParser implements IParser {
 
 	@Override
 	public <T extends IBaseResource> Bundle parseBundle(Class<T> theResourceType, Reader theReader) {
-		JsonReader reader;
-		JsonObject object;
+		if (!myStreamingParse) {
+			return parseBundle(theResourceType, readObject(theReader));
+		}
 
+		javax.json.stream.JsonParser parser = ourParserFactory.createParser(theReader);
 		try {
-			reader = Json.createReader(theReader);
-			object = reader.readObject();
-		} catch (JsonParsingException e) {
-			if (e.getMessage().startsWith("Unexpected char 39")) {
-				throw new DataFormatException("Failed to parse JSON encoded FHIR content: " + e.getMessage()
-						+ " - This may indicate that single quotes are being used as JSON escapes where double quotes are required", e);
+			streamExpect(parser, parser.next(), Event.START_OBJECT, "Bundle");
+			Event event = parser.next();
+			if (!streamIsResourceTypeKey(parser, event)) {
+				/*
+				 * The resource type isn't the first property, so we can't know how to handle
+				 * anything before it. This is unusual, so just fall back to parsing a tree.
+				 */
+				return parseBundle(theResourceType, streamReadObject(parser, event));
 			}
-			throw new DataFormatException("Failed to parse JSON encoded FHIR content: " + e.getMessage(), e);
+
+			String resourceType = streamReadResourceTypeValue(parser);
+			ParserState<Bundle> state = enteringBundle(theResourceType, resourceType);
+			streamParseBundleChildren(parser, state);
+			state.endingElement();
+
+			return state.getObject();
+		} catch (JsonParsingException e) {
+			throw toDataFormatException(e);
+		} finally {
+			parser.close();
 		}
-		JsonValue resourceTypeObj = object.get("resourceType");
+	}
+
+	private <T extends IBaseResource> Bundle parseBundle(Class<T> theResourceType, JsonObject theObject) {
+		JsonValue resourceTypeObj = theObject.get("resourceType");
 		assertObjectOfType(resourceTypeObj, JsonValue.ValueType.STRING, "resourceType");
 		String resourceType = ((JsonString) resourceTypeObj).getString();
-		if (!"Bundle".equals(resourceType)) {
-			throw new DataFormatException("Trying to parse bundle but found resourceType other than 'Bundle'. Found: '" + resourceType + "'");
+
+		ParserState<Bundle> state = enteringBundle(theResourceType, resourceType);
+		parseBundleChildren(theObject, state);
+		state.endingElement();
+
+		return state.getObject();
+	}
+
+	private <T extends IBaseResource> ParserState<Bundle> enteringBundle(Class<T> theResourceType, String theFoundResourceType) {
+		if (!"Bundle".equals(theFoundResourceType)) {
+			throw new DataFormatException("Trying to parse bundle but found resourceType other than 'Bundle'. Found: '" + theFoundResourceType + "'");
 		}
 
 		ParserState<Bundle> state = ParserState.getPreAtomInstance(myContext, theResourceType, true);
@@ -936,14 +1030,7 @@ public class JsonParser extends BaseParser implements IParser {
 		} else {
 			state.enteringNewElement(null, "feed");
 		}
-
-		parseBundleChildren(object, state);
-
-		state.endingElement();
-
-		Bundle retVal = state.getObject();
-
-		return retVal;
+		return state;
 	}
 
 	private void parseBundleChildren(JsonObject theObject, ParserState<?> theState) {
@@ -958,66 +1045,68 @@ public class JsonParser extends BaseParser implements IParser {
 					theState.endingElement();
 				}
 				continue;
-			} else if (myContext.getVersion().getVersion() == FhirVersionEnum.DSTU1) {
-				if ("link".equals(nextName)) {
-					JsonArray entries = theObject.getJsonArray(nextName);
-					for (JsonValue jsonValue : entries) {
-						theState.enteringNewElement(null, "link");
-						JsonObject linkObj = (JsonObject) jsonValue;
-						String rel = linkObj.getString("rel", null);
-						String href = linkObj.getString("href", null);
-						theState.attributeValue("rel", rel);
-						theState.attributeValue("href", href);
-						theState.endingElement();
-					}
-					continue;
-				} else if (BUNDLE_TEXTNODE_CHILDREN_DSTU1.contains(nextName)) {
-					theState.enteringNewElement(null, nextName);
-					theState.string(theObject.getString(nextName, null));
-					theState.endingElement();
-					continue;
-				}
-			} else {
-				if ("link".equals(nextName)) {
-					JsonArray entries = theObject.getJsonArray(nextName);
-					for (JsonValue jsonValue : entries) {
-						theState.enteringNewElement(null, "link");
-						JsonObject linkObj = (JsonObject) jsonValue;
-						String rel = linkObj.getString("relation", null);
-						String href = linkObj.getString("url", null);
-						theState.enteringNewElement(null, "relation");
-						theState.attributeValue("value", rel);
-						theState.endingElement();
-						theState.enteringNewElement(null, "url");
-						theState.attributeValue("value", href);
-						theState.endingElement();
-						theState.endingElement();
-					}
-					continue;
-				} else if (BUNDLE_TEXTNODE_CHILDREN_DSTU2.contains(nextName)) {
-					theState.enteringNewElement(null, nextName);
-					// String obj = theObject.getString(nextName, null);
-
-					JsonValue obj = theObject.get(nextName);
-					if (obj == null) {
-						theState.attributeValue("value", null);
-					} else if (obj instanceof JsonString) {
-						theState.attributeValue("value", theObject.getString(nextName, null));
-					} else if (obj instanceof JsonNumber) {
-						theState.attributeValue("value", obj.toString());
-					} else {
-						throw new DataFormatException("Unexpected JSON object for entry '" + nextName + "'");
-					}
+			}
+
+			parseBundleChild(theState, nextName, theObject.get(nextName));
+		}
+	}
 
+	private void parseBundleChild(ParserState<?> theState, String theName, JsonValue theValue) {
+		if (myContext.getVersion().getVersion() == FhirVersionEnum.DSTU1) {
+			if ("link".equals(theName)) {
+				JsonArray entries = (JsonArray) theValue;
+				for (JsonValue jsonValue : entries) {
+					theState.enteringNewElement(null, "link");
+					JsonObject linkObj = (JsonObject) jsonValue;
+					String rel = linkObj.getString("rel", null);
+					String href = linkObj.getString("href", null);
+					theState.attributeValue("rel", rel);
+					theState.attributeValue("href", href);
 					theState.endingElement();
-					continue;
 				}
+				return;
+			} else if (BUNDLE_TEXTNODE_CHILDREN_DSTU1.contains(theName)) {
+				theState.enteringNewElement(null, theName);
+				theState.string(theValue instanceof JsonString ? ((JsonString) theValue).getString() : null);
+				theState.endingElement();
+				return;
 			}
+		} else {
+			if ("link".equals(theName)) {
+				JsonArray entries = (JsonArray) theValue;
+				for (JsonValue jsonValue : entries) {
+					theState.enteringNewElement(null, "link");
+					JsonObject linkObj = (JsonObject) jsonValue;
+					String rel = linkObj.getString("relation", null);
+					String href = linkObj.getString("url", null);
+					theState.enteringNewElement(null, "relation");
+					theState.attributeValue("value", rel);
+					theState.endingElement();
+					theState.enteringNewElement(null, "url");
+					theState.attributeValue("value", href);
+					theState.endingElement();
+					theState.endingElement();
+				}
+				return;
+			} else if (BUNDLE_TEXTNODE_CHILDREN_DSTU2.contains(theName)) {
+				theState.enteringNewElement(null, theName);
+
+				if (theValue == null) {
+					theState.attributeValue("value", null);
+				} else if (theValue instanceof JsonString) {
+					theState.attributeValue("value", ((JsonString) theValue).getString());
+				} else if (theValue instanceof JsonNumber) {
+					theState.attributeValue("value", theValue.toString());
+				} else {
+					throw new DataFormatException("Unexpected JSON object for entry '" + theName + "'");
+				}
 
-			JsonValue nextVal = theObject.get(nextName);
-			parseChildren(theState, nextName, nextVal, null, null);
-
+				theState.endingElement();
+				return;
+			}
 		}
+
+		parseChildren(theState, theName, theValue, null, null);
 	}
 
 	private void parseChildren(JsonObject theObject, ParserState<?> theState) {
@@ -1171,36 +1260,69 @@ public class JsonParser extends BaseParser implements IParser {
 
 	@Override
 	public <T extends IBaseResource> T doParseResource(Class<T> theResourceType, Reader theReader) {
-		JsonReader reader = Json.createReader(theReader);
-		JsonObject object = reader.readObject();
+		if (!myStreamingParse) {
+			return parseResource(theResourceType, readObject(theReader));
+		}
 
-		JsonValue resourceTypeObj = object.get("resourceType");
+		javax.json.stream.JsonParser parser = ourParserFactory.createParser(theReader);
+		try {
+			streamExpect(parser, parser.next(), Event.START_OBJECT, "resource");
+			Event event = parser.next();
+			if (!streamIsResourceTypeKey(parser, event)) {
+				/*
+				 * The resource type isn't the first property, so we can't know how to handle
+				 * anything before it. This is unusual, so just fall back to parsing a tree.
+				 */
+				return parseResource(theResourceType, streamReadObject(parser, event));
+			}
+
+			String resourceType = streamReadResourceTypeValue(parser);
+			ParserState<? extends IBaseResource> state = enteringResource(theResourceType, resourceType);
+			streamParseChildren(parser, state);
+			state.endingElement();
+
+			@SuppressWarnings("unchecked")
+			T retVal = (T) state.getObject();
+
+			return retVal;
+		} catch (JsonParsingException e) {
+			throw toDataFormatException(e);
+		} finally {
+			parser.close();
+		}
+	}
+
+	private <T extends IBaseResource> T parseResource(Class<T> theResourceType, JsonObject theObject) {
+		JsonValue resourceTypeObj = theObject.get("resourceType");
 		assertObjectOfType(resourceTypeObj, JsonValue.ValueType.STRING, "resourceType");
 		String resourceType = ((JsonString) resourceTypeObj).getString();
 
+		ParserState<? extends IBaseResource> state = enteringResource(theResourceType, resourceType);
+		parseChildren(theObject, state);
+		state.endingElement();
+
+		@SuppressWarnings("unchecked")
+		T retVal = (T) state.getObject();
+
+		return retVal;
+	}
+
+	private <T extends IBaseResource> ParserState<? extends IBaseResource> enteringResource(Class<T> theResourceType, String theFoundResourceType) {
 		RuntimeResourceDefinition def;
 		if (theResourceType != null) {
 			def = myContext.getResourceDefinition(theResourceType);
 		} else {
-			def = myContext.getResourceDefinition(resourceType);
+			def = myContext.getResourceDefinition(theFoundResourceType);
 		}
 
 		ParserState<? extends IBaseResource> state = ParserState.getPreResourceInstance(def.getImplementingClass(), myContext, true);
 		state.enteringNewElement(null, def.getName());
-
-		parseChildren(object, state);
-
-		state.endingElement();
-
-		@SuppressWarnings("unchecked")
-		T retVal = (T) state.getObject();
-
-		return retVal;
+		return state;
 	}
 
 	@Override
 	public TagList parseTagList(Reader theReader) {
-		JsonReader reader = Json.createReader(theReader);
+		JsonReader reader = ourReaderFactory.createReader(theReader);
 		JsonObject object = reader.readObject();
 
 		JsonValue resourceTypeObj = object.get("resourceType");
@@ -1217,12 +1339,333 @@ public class JsonParser extends BaseParser implements IParser {
 		return state.getObject();
 	}
 
+	private JsonObject readObject(Reader theReader) {
+		try {
+			JsonReader reader = ourReaderFactory.createReader(theReader);
+			return reader.readObject();
+		} catch (JsonParsingException e) {
+			throw toDataFormatException(e);
+		}
+	}
+
+	private static DataFormatException toDataFormatException(JsonParsingException theException) {
+		if (theException.getMessage() != null && theException.getMessage().startsWith("Unexpected char 39")) {
+			return new DataFormatException("Failed to parse JSON encoded FHIR content: " + theException.getMessage()
+					+ " - This may indicate that single quotes are being used as JSON escapes where double quotes are required", theException);
+		}
+		return new DataFormatException("Failed to parse JSON encoded FHIR content: " + theException.getMessage(), theException);
+	}
+
+	private static void streamExpect(javax.json.stream.JsonParser theParser, Event theEvent, Event theExpected, String thePosition) {
+		if (theEvent != theExpected) {
+			throw new DataFormatException("Invalid JSON content detected, expected " + theExpected + " but found " + theEvent + " for " + thePosition + " at "
+					+ theParser.getLocation());
+		}
+	}
+
+	private static boolean streamIsResourceTypeKey(javax.json.stream.JsonParser theParser, Event theEvent) {
+		return theEvent == Event.KEY_NAME && "resourceType".equals(theParser.getString());
+	}
+
+	private void streamParseBundleChildren(javax.json.stream.JsonParser theParser, ParserState<?> theState) {
+		for (Event event = theParser.next(); event != Event.END_OBJECT; event = theParser.next()) {
+			String nextName = theParser.getString();
+			Event valueEvent = theParser.next();
+
+			if ("resourceType".equals(nextName)) {
+				streamReadValue(theParser, valueEvent);
+			} else if ("entry".equals(nextName)) {
+				streamExpect(theParser, valueEvent, Event.START_ARRAY, nextName);
+				for (Event entryEvent = theParser.next(); entryEvent != Event.END_ARRAY; entryEvent = theParser.next()) {
+					streamExpect(theParser, entryEvent, Event.START_OBJECT, nextName);
+					theState.enteringNewElement(null, "entry");
+					streamParseBundleChildren(theParser, theState);
+					theState.endingElement();
+				}
+			} else if (valueEvent == Event.START_OBJECT) {
+				/*
+				 * Entry resources (and anything else which is a JSON object) are the bulk of a
+				 * bundle, so these are streamed
+				 */
+				streamParseObject(theParser, theState, nextName, null);
+			} else {
+				parseBundleChild(theState, nextName, streamReadValue(theParser, valueEvent));
+			}
+		}
+	}
+
+	/**
+	 * Streaming equivalent of {@link #parseChildren(JsonObject, ParserState)}. This is called after the opening brace
+	 * of the object has been consumed, and consumes everything up to and including the closing brace.
+	 * <p>
+	 * Primitive values are held until the end of the object, since their <code>_name</code> sibling (containing the
+	 * ID and extensions for the primitive) may appear either before or after them. Everything else is passed to the
+	 * parser state as soon as it is read.
+	 * </p>
+	 */
+	private void streamParseChildren(javax.json.stream.JsonParser theParser, ParserState<?> theState) {
+		String elementId = null;
+		Map<String, JsonValue> alternates = new HashMap<String, JsonValue>();
+		Map<String, List<HeldPrimitive>> primitives = new LinkedHashMap<String, List<HeldPrimitive>>();
+
+		for (Event event = theParser.next(); event != Event.END_OBJECT; event = theParser.next()) {
+			String nextName = theParser.getString();
+			Event valueEvent = theParser.next();
+
+			if ("resourceType".equals(nextName)) {
+				streamReadValue(theParser, valueEvent);
+				continue;
+			} else if ("id".equals(nextName)) {
+				elementId = valueEvent == Event.VALUE_STRING ? theParser.getString() : null;
+				if (myContext.getVersion().getVersion() == FhirVersionEnum.DSTU1) {
+					continue;
+				}
+			} else if ("_id".equals(nextName)) {
+				// _id is incorrect, but some early examples in the FHIR spec used it
+				elementId = valueEvent == Event.VALUE_STRING ? theParser.getString() : null;
+				continue;
+			} else if ("extension".equals(nextName)) {
+				parseExtension(theState, (JsonArray) streamReadValue(theParser, valueEvent), false);
+				continue;
+			} else if ("modifierExtension".equals(nextName)) {
+				parseExtension(theState, (JsonArray) streamReadValue(theParser, valueEvent), true);
+				continue;
+			} else if (nextName.charAt(0) == '_') {
+				alternates.put(nextName, streamReadValue(theParser, valueEvent));
+				continue;
+			}
+
+			streamParseValue(theParser, theState, nextName, valueEvent, -1, alternates, primitives);
+		}
+
+		for (Entry<String, List<HeldPrimitive>> nextEntry : primitives.entrySet()) {
+			String alternateName = '_' + nextEntry.getKey();
+			JsonValue alternateVal = alternates.get(alternateName);
+			for (HeldPrimitive next : nextEntry.getValue()) {
+				JsonValue nextAlternate = alternateVal;
+				if (next.myIndex != -1 && alternateVal instanceof JsonArray) {
+					JsonArray alternateArray = (JsonArray) alternateVal;
+					nextAlternate = next.myIndex < alternateArray.size() ? alternateArray.get(next.myIndex) : null;
+				}
+				theState.enteringNewElement(null, nextEntry.getKey());
+				theState.attributeValue("value", next.myValue);
+				parseAlternates(nextAlternate, theState, alternateName);
+				theState.endingElement();
+			}
+		}
+
+		if (elementId != null) {
+			IElement object = (IElement) theState.getObject();
+			if (object instanceof IIdentifiableElement) {
+				((IIdentifiableElement) object).setElementSpecificId(elementId);
+			} else if (object instanceof IResource) {
+				((IResource) object).setId(new IdDt(elementId));
+			}
+		}
+	}
+
+	/**
+	 * Streaming equivalent of the {@link ValueType#OBJECT} case in {@link #parseChildren(ParserState, String, JsonValue, JsonValue, String)}
+	 */
+	private void streamParseObject(javax.json.stream.JsonParser theParser, ParserState<?> theState, String theName, JsonValue theAlternateVal) {
+		theState.enteringNewElement(null, theName);
+		parseAlternates(theAlternateVal, theState, '_' + theName);
+
+		if (theState.isPreResource()) {
+			Event event = theParser.next();
+			if (streamIsResourceTypeKey(theParser, event)) {
+				theState.enteringNewElement(null, streamReadResourceTypeValue(theParser));
+				streamParseChildren(theParser, theState);
+			} else {
+				JsonObject nextObject = streamReadObject(theParser, event);
+				String resType = nextObject.getString("resourceType", null);
+				if (isBlank(resType)) {
+					throw new DataFormatException("Missing 'resourceType' from resource");
+				}
+				theState.enteringNewElement(null, resType);
+				parseChildren(nextObject, theState);
+			}
+			theState.endingElement();
+		} else {
+			streamParseChildren(theParser, theState);
+		}
+
+		theState.endingElement();
+	}
+
+	private void streamParseValue(javax.json.stream.JsonParser theParser, ParserState<?> theState, String theName, Event theEvent, int theIndex, Map<String, JsonValue> theAlternates,
+			Map<String, List<HeldPrimitive>> thePrimitives) {
+		switch (theEvent) {
+		case START_ARRAY: {
+			int index = 0;
+			for (Event event = theParser.next(); event != Event.END_ARRAY; event = theParser.next()) {
+				streamParseValue(theParser, theState, theName, event, index++, theAlternates, thePrimitives);
+			}
+			break;
+		}
+		case START_OBJECT: {
+			JsonValue alternateVal = theAlternates.get('_' + theName);
+			if (theIndex != -1 && alternateVal instanceof JsonArray) {
+				JsonArray alternateArray = (JsonArray) alternateVal;
+				alternateVal = theIndex < alternateArray.size() ? alternateArray.get(theIndex) : null;
+			}
+			streamParseObject(theParser, theState, theName, alternateVal);
+			break;
+		}
+		case VALUE_STRING:
+			holdPrimitive(thePrimitives, theName, theIndex, theParser.getString());
+			break;
+		case VALUE_NUMBER:
+			holdPrimitive(thePrimitives, theName, theIndex, theParser.getBigDecimal().toString());
+			break;
+		case VALUE_TRUE:
+			holdPrimitive(thePrimitives, theName, theIndex, "true");
+			break;
+		case VALUE_FALSE:
+			holdPrimitive(thePrimitives, theName, theIndex, "false");
+			break;
+		case VALUE_NULL:
+			break;
+		default:
+			throw new DataFormatException("Invalid JSON content detected, unexpected " + theEvent + " for element '" + theName + "' at " + theParser.getLocation());
+		}
+	}
+
+	private static void holdPrimitive(Map<String, List<HeldPrimitive>> thePrimitives, String theName, int theIndex, String theValue) {
+		List<HeldPrimitive> list = thePrimitives.get(theName);
+		if (list == null) {
+			list = new ArrayList<HeldPrimitive>();
+			thePrimitives.put(theName, list);
+		}
+		list.add(new HeldPrimitive(theIndex, theValue));
+	}
+
+	private static JsonArray streamReadArray(javax.json.stream.JsonParser theParser) {
+		JsonArrayBuilder builder = ourBuilderFactory.createArrayBuilder();
+		for (Event event = theParser.next(); event != Event.END_ARRAY; event = theParser.next()) {
+			switch (event) {
+			case START_OBJECT:
+				builder.add(streamReadObject(theParser, theParser.next()));
+				break;
+			case START_ARRAY:
+				builder.add(streamReadArray(theParser));
+				break;
+			case VALUE_STRING:
+				builder.add(theParser.getString());
+				break;
+			case VALUE_NUMBER:
+				builder.add(theParser.getBigDecimal());
+				break;
+			case VALUE_TRUE:
+				builder.add(true);
+				break;
+			case VALUE_FALSE:
+				builder.add(false);
+				break;
+			case VALUE_NULL:
+				builder.addNull();
+				break;
+			default:
+				throw new DataFormatException("Invalid JSON content detected, unexpected " + event + " at " + theParser.getLocation());
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Reads the remainder of a JSON object into a tree, starting with the given event (which must be the first
+	 * property name, or the end of the object)
+	 */
+	private static JsonObject streamReadObject(javax.json.stream.JsonParser theParser, Event theFirstEvent) {
+		JsonObjectBuilder builder = ourBuilderFactory.createObjectBuilder();
+		for (Event event = theFirstEvent; event != Event.END_OBJECT; event = theParser.next()) {
+			streamExpect(theParser, event, Event.KEY_NAME, "object");
+			String name = theParser.getString();
+			Event valueEvent = theParser.next();
+			switch (valueEvent) {
+			case START_OBJECT:
+				builder.add(name, streamReadObject(theParser, theParser.next()));
+				break;
+			case START_ARRAY:
+				builder.add(name, streamReadArray(theParser));
+				break;
+			case VALUE_STRING:
+				builder.add(name, theParser.getString());
+				break;
+			case VALUE_NUMBER:
+				builder.add(name, theParser.getBigDecimal());
+				break;
+			case VALUE_TRUE:
+				builder.add(name, true);
+				break;
+			case VALUE_FALSE:
+				builder.add(name, false);
+				break;
+			case VALUE_NULL:
+				builder.addNull(name);
+				break;
+			default:
+				throw new DataFormatException("Invalid JSON content detected, unexpected " + valueEvent + " for '" + name + "' at " + theParser.getLocation());
+			}
+		}
+		return builder.build();
+	}
+
+	private static String streamReadResourceTypeValue(javax.json.stream.JsonParser theParser) {
+		Event event = theParser.next();
+		if (event != Event.VALUE_STRING || isBlank(theParser.getString())) {
+			throw new DataFormatException("Invalid JSON content detected, missing required element: 'resourceType'");
+		}
+		return theParser.getString();
+	}
+
+	/**
+	 * Reads a single value (whose first event has already been read) into a tree
+	 */
+	private static JsonValue streamReadValue(javax.json.stream.JsonParser theParser, Event theEvent) {
+		switch (theEvent) {
+		case START_OBJECT:
+			return streamReadObject(theParser, theParser.next());
+		case START_ARRAY:
+			return streamReadArray(theParser);
+		case VALUE_NULL:
+			return JsonValue.NULL;
+		case VALUE_TRUE:
+			return JsonValue.TRUE;
+		case VALUE_FALSE:
+			return JsonValue.FALSE;
+		case VALUE_NUMBER:
+			return ourBuilderFactory.createArrayBuilder().add(theParser.getBigDecimal()).build().get(0);
+		case VALUE_STRING:
+			return ourBuilderFactory.createArrayBuilder().add(theParser.getString()).build().get(0);
+		default:
+			throw new DataFormatException("Invalid JSON content detected, unexpected " + theEvent + " at " + theParser.getLocation());
+		}
+	}
+
 	@Override
 	public IParser setPrettyPrint(boolean thePrettyPrint) {
 		myPrettyPrint = thePrettyPrint;
 		return this;
 	}
 
+	/**
+	 * If set to <code>true</code> (which is the default), resources and bundles are parsed directly from a stream of JSON
+	 * events instead of first reading the entire document into a tree of JSON objects. This uses considerably less
+	 * memory for large documents. Setting this to <code>false</code> restores the tree based behaviour.
+	 */
+	public JsonParser setStreamingParse(boolean theStreamingParse) {
+		myStreamingParse = theStreamingParse;
+		return this;
+	}
+
+	/**
+	 * See {@link #setStreamingParse(boolean)}
+	 */
+	public boolean isStreamingParse() {
+		return myStreamingParse;
+	}
+
 	private boolean writeAtomLinkInDstu1Format(JsonGenerator theEventWriter, String theRel, StringDt theLink, boolean theStarted) {
 		boolean retVal = theStarted;
 		if (isNotBlank(theLink.getValue())) {
@@ -1341,6 +1784,19 @@ public class JsonParser extends BaseParser implements IParser {
 		// }
 	}
 
+	/**
+	 * A primitive value read by the streaming parser which is waiting for its <code>_name</code> sibling
+	 */
+	private static class HeldPrimitive {
+		private final int myIndex;
+		private final String myValue;
+
+		public HeldPrimitive(int theIndex, String theValue) {
+			myIndex = theIndex;
+			myValue = theValue;
+		}
+	}
+
 	private class HeldExtension implements Comparable<HeldExtension> {
 
 		private RuntimeChildDeclaredExtensionDefinition myDef;
@@ -0,0 +1,70 @@
+package ca.uhn.fhir.rest.api;
+
+/*
+ * #%L
+ * HAPI FHIR - Core Library
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * How the total number of results of a search should be calculated, as requested using the <code>_total</code>
+ * parameter
+ */
+public enum SearchTotalModeEnum {
+
+	/**
+	 * The total is calculated before the first page of results is returned (this is the default)
+	 */
+	ACCURATE("accurate"),
+
+	/**
+	 * The first page may be returned before the total is known, in which case the total is omitted from it and is
+	 * included in later pages once it has been calculated
+	 */
+	ESTIMATED("estimate"),
+
+	/**
+	 * The total is not needed, so it is never returned
+	 */
+	NONE("none");
+
+	private final String myCode;
+
+	private SearchTotalModeEnum(String theCode) {
+		myCode = theCode;
+	}
+
+	/**
+	 * Returns the value of the <code>_total</code> parameter which requests this mode
+	 */
+	public String getCode() {
+		return myCode;
+	}
+
+	/**
+	 * Returns the mode with the given code, or <code>null</code> if the code is not recognized
+	 */
+	public static SearchTotalModeEnum fromCode(String theCode) {
+		for (SearchTotalModeEnum next : values()) {
+			if (next.getCode().equals(theCode)) {
+				return next;
+			}
+		}
+		return null;
+	}
+
+}
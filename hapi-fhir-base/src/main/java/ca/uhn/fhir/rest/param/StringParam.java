@@ -32,7 +32,10 @@ import ca.uhn.fhir.rest.server.Constants;
 
 public class StringParam extends BaseParam implements IQueryParameterType {
 
+	private boolean myContains;
 	private boolean myExact;
+	private boolean myFuzzy;
+	private boolean myPhonetic;
 	private String myValue;
 
 	public StringParam() {
@@ -53,6 +56,12 @@ public class StringParam extends BaseParam implements IQueryParameterType {
 			return super.getQueryParameterQualifier();
 		}else if (isExact()) {
 			return Constants.PARAMQUALIFIER_STRING_EXACT;
+		} else if (isContains()) {
+			return Constants.PARAMQUALIFIER_STRING_CONTAINS;
+		} else if (isFuzzy()) {
+			return Constants.PARAMQUALIFIER_STRING_FUZZY;
+		} else if (isPhonetic()) {
+			return Constants.PARAMQUALIFIER_STRING_PHONETIC;
 		} else {
 			return null;
 		}
@@ -75,25 +84,60 @@ public class StringParam extends BaseParam implements IQueryParameterType {
 		return StringUtils.isEmpty(myValue);
 	}
 
+	/**
+	 * If <code>true</code>, the parameter matches values which contain the given value anywhere (not just at the
+	 * start), using the <code>:contains</code> qualifier
+	 */
+	public boolean isContains() {
+		return myContains;
+	}
+
 	public boolean isExact() {
 		return myExact;
 	}
 
+	/**
+	 * If <code>true</code>, the parameter matches values which are spelled similarly to the given value, using the
+	 * <code>:fuzzy</code> qualifier. This is an extension which is not supported by all servers.
+	 */
+	public boolean isFuzzy() {
+		return myFuzzy;
+	}
+
+	/**
+	 * If <code>true</code>, the parameter matches values which sound like the given value, using the
+	 * <code>:phonetic</code> qualifier. This is an extension which is not supported by all servers.
+	 */
+	public boolean isPhonetic() {
+		return myPhonetic;
+	}
+
+	public void setContains(boolean theContains) {
+		myContains = theContains;
+	}
+
 	public void setExact(boolean theExact) {
 		myExact = theExact;
 	}
 
+	public void setFuzzy(boolean theFuzzy) {
+		myFuzzy = theFuzzy;
+	}
+
+	public void setPhonetic(boolean thePhonetic) {
+		myPhonetic = thePhonetic;
+	}
+
 	public void setValue(String theValue) {
 		myValue = theValue;
 	}
 
 	@Override
 	public void setValueAsQueryToken(String theQualifier, String theValue) {
-		if (Constants.PARAMQUALIFIER_STRING_EXACT.equals(theQualifier)) {
-			setExact(true);
-		} else {
-			setExact(false);
-		}
+		setExact(Constants.PARAMQUALIFIER_STRING_EXACT.equals(theQualifier));
+		setContains(Constants.PARAMQUALIFIER_STRING_CONTAINS.equals(theQualifier));
+		setFuzzy(Constants.PARAMQUALIFIER_STRING_FUZZY.equals(theQualifier));
+		setPhonetic(Constants.PARAMQUALIFIER_STRING_PHONETIC.equals(theQualifier));
 		myValue = ParameterUtil.unescape(theValue);
 	}
 
@@ -104,6 +148,15 @@ public class StringParam extends BaseParam implements IQueryParameterType {
 		if (myExact) {
 			builder.append("exact", myExact);
 		}
+		if (myContains) {
+			builder.append("contains", myContains);
+		}
+		if (myFuzzy) {
+			builder.append("fuzzy", myFuzzy);
+		}
+		if (myPhonetic) {
+			builder.append("phonetic", myPhonetic);
+		}
 		return builder.toString();
 	}
 
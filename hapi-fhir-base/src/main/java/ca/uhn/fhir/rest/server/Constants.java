@@ -85,6 +85,7 @@ public class Constants {
 	public static final String LINK_PREVIOUS = "previous";
 	public static final String LINK_SELF = "self";
 	public static final String OPENSEARCH_NS_OLDER = "http://purl.org/atompub/tombstones/1.0";
+	public static final String PARAM_CONTENT = "_content";
 	public static final String PARAM_COUNT = "_count";
 	public static final String PARAM_DELETE = "_delete";
 	public static final String PARAM_FORMAT = "_format";
@@ -102,10 +103,17 @@ public class Constants {
 	public static final String PARAM_SORT = "_sort";
 	public static final String PARAM_SORT_ASC = "_sort:asc";
 	public static final String PARAM_SORT_DESC = "_sort:desc";
+	public static final String PARAM_SUMMARY = "_summary";
+	public static final String PARAM_SUMMARY_VALUE_COUNT = "count";
 	public static final String PARAM_TAGS = "_tags";
+	public static final String PARAM_TEXT = "_text";
+	public static final String PARAM_TOTAL = "_total";
 	public static final String PARAM_VALIDATE = "_validate";
 	public static final String PARAMQUALIFIER_MISSING = ":missing";
+	public static final String PARAMQUALIFIER_STRING_CONTAINS = ":contains";
 	public static final String PARAMQUALIFIER_STRING_EXACT = ":exact";
+	public static final String PARAMQUALIFIER_STRING_FUZZY = ":fuzzy";
+	public static final String PARAMQUALIFIER_STRING_PHONETIC = ":phonetic";
 	public static final String PARAMQUALIFIER_TOKEN_TEXT = ":text";
 	public static final int STATUS_HTTP_200_OK = 200;
 	public static final int STATUS_HTTP_201_CREATED = 201;
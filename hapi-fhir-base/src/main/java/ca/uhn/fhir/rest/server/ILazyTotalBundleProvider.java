@@ -0,0 +1,44 @@
+package ca.uhn.fhir.rest.server;
+
+/*
+ * #%L
+ * HAPI FHIR - Core Library
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * A bundle provider which may not know the total number of results when it is first returned, e.g. because its
+ * results are still being loaded in the background. The server uses the methods on this interface when building
+ * pages of results, so that a page can be returned as soon as enough results are available to fill it rather than
+ * waiting for {@link #size()}, which must block until the total is known.
+ */
+public interface ILazyTotalBundleProvider extends IBundleProvider {
+
+	/**
+	 * Returns the number of results which are available to {@link #getResources(int, int)}, waiting until at least
+	 * <code>theMinimum</code> results are available or all of the results have been found (in which case the value
+	 * returned is the same as {@link #size()})
+	 */
+	int getAvailableCount(int theMinimum);
+
+	/**
+	 * Returns the total to be included in a page of results, or <code>null</code> if it should be omitted (e.g. because
+	 * it isn't known yet or the client has asked not to receive it)
+	 */
+	Integer getReportedTotal();
+
+}
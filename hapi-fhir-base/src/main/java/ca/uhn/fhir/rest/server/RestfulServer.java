@@ -448,7 +448,7 @@ public class RestfulServer extends HttpServlet {
 			offsetI = 0;
 		}
 
-		int start = Math.min(offsetI, resultList.size() - 1);
+		int start = Math.min(offsetI, RestfulServerUtils.getAvailableCount(resultList, offsetI + 1) - 1);
 
 		EncodingEnum responseEncoding = RestfulServerUtils.determineResponseEncodingNoDefault(theRequest.getServletRequest());
 		boolean prettyPrint = RestfulServerUtils.prettyPrintResponse(this, theRequest);
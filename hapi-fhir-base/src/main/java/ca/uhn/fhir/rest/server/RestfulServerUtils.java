@@ -23,6 +23,7 @@ package ca.uhn.fhir.rest.server;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
@@ -52,6 +53,7 @@ import ca.uhn.fhir.model.api.TagList;
 import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.model.primitive.InstantDt;
 import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.parser.JsonParser;
 import ca.uhn.fhir.rest.method.Request;
 import ca.uhn.fhir.rest.method.RequestDetails;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
@@ -144,6 +146,30 @@ public class RestfulServerUtils {
 			}
 		}
 
+		if (theNarrativeMode != RestfulServer.NarrativeModeEnum.ONLY && responseEncoding == EncodingEnum.JSON) {
+			// JSON is written straight to the response stream as UTF-8, with no Writer in between
+			JsonParser parser = (JsonParser) getNewParser(theServer.getFhirContext(), responseEncoding, thePrettyPrint, theNarrativeMode);
+			parser.setServerBaseUrl(theServerBase);
+
+			// If nothing on the server can change the content, stored JSON is passed through without parsing it
+			String storedJson = null;
+			if (theNarrativeMode == RestfulServer.NarrativeModeEnum.NORMAL && !thePrettyPrint && theServer.getInterceptors().isEmpty() && theServer.getFhirContext().getNarrativeGenerator() == null) {
+				storedJson = spliceStoredJson(theServer.getFhirContext(), parser, theResource);
+			}
+
+			OutputStream outputStream = getOutputStream(theHttpResponse, theRespondGzip);
+			try {
+				if (storedJson != null) {
+					outputStream.write(storedJson.getBytes(Constants.CHARSET_UTF8));
+				} else {
+					parser.encodeResourceToOutputStream(theResource, outputStream);
+				}
+			} finally {
+				outputStream.close();
+			}
+			return;
+		}
+
 		Writer writer = getWriter(theHttpResponse, theRespondGzip);
 		try {
 			if (theNarrativeMode == RestfulServer.NarrativeModeEnum.ONLY) {
@@ -183,6 +209,17 @@ public class RestfulServerUtils {
 		return prettyPrint;
 	}
 
+	static OutputStream getOutputStream(HttpServletResponse theHttpResponse, boolean theRespondGzip) throws IOException {
+		OutputStream outputStream;
+		if (theRespondGzip) {
+			theHttpResponse.addHeader(Constants.HEADER_CONTENT_ENCODING, Constants.ENCODING_GZIP);
+			outputStream = new GZIPOutputStream(theHttpResponse.getOutputStream());
+		} else {
+			outputStream = theHttpResponse.getOutputStream();
+		}
+		return outputStream;
+	}
+
 	static Writer getWriter(HttpServletResponse theHttpResponse, boolean theRespondGzip) throws UnsupportedEncodingException, IOException {
 		Writer writer;
 		if (theRespondGzip) {
@@ -385,6 +422,19 @@ public class RestfulServerUtils {
 
 		theServer.addHeadersToResponse(theHttpResponse);
 
+		if (theNarrativeMode != RestfulServer.NarrativeModeEnum.ONLY && responseEncoding == EncodingEnum.JSON) {
+			// JSON is written straight to the response stream as UTF-8, with no Writer in between
+			JsonParser parser = (JsonParser) RestfulServerUtils.getNewParser(theServer.getFhirContext(), responseEncoding, thePrettyPrint, theNarrativeMode);
+			parser.setServerBaseUrl(theServerBase);
+			OutputStream outputStream = RestfulServerUtils.getOutputStream(theHttpResponse, theRespondGzip);
+			try {
+				parser.encodeBundleToOutputStream(bundle, outputStream);
+			} finally {
+				outputStream.close();
+			}
+			return;
+		}
+
 		Writer writer = RestfulServerUtils.getWriter(theHttpResponse, theRespondGzip);
 		try {
 			if (theNarrativeMode == RestfulServer.NarrativeModeEnum.ONLY) {
@@ -409,6 +459,154 @@ public class RestfulServerUtils {
 //				theServerBase);
 //	}
 
+	/**
+	 * Returns the {@link ResourceMetadataKeyEnum#STORED_JSON stored JSON} of a resource with its id and meta elements
+	 * replaced by the ones the parser would write for the resource now, or <code>null</code> if the resource has no
+	 * stored JSON or it can't be spliced
+	 */
+	private static String spliceStoredJson(FhirContext theContext, IParser theParser, IResource theResource) {
+		String stored = ResourceMetadataKeyEnum.STORED_JSON.get(theResource);
+		if (stored == null) {
+			return null;
+		}
+
+		// An otherwise empty resource with the same ID and metadata is encoded to get the current id and meta
+		IResource shell = (IResource) theContext.getResourceDefinition(theResource).newInstance();
+		shell.setId(theResource.getId());
+		shell.getResourceMetadata().putAll(theResource.getResourceMetadata());
+		String shellJson = theParser.encodeResourceToString(shell);
+		int shellEnd = shellJson.lastIndexOf('}');
+		if (shellEnd == -1) {
+			return null;
+		}
+
+		StringBuilder b = new StringBuilder(shellJson.length() + stored.length());
+		b.append(shellJson, 0, shellEnd);
+
+		// Copy every top level member of the stored object except the ones the shell provides
+		int pos = skipJsonWhitespace(stored, 0);
+		if (pos == stored.length() || stored.charAt(pos) != '{') {
+			return null;
+		}
+		pos = skipJsonWhitespace(stored, pos + 1);
+		while (pos < stored.length() && stored.charAt(pos) != '}') {
+			int memberStart = pos;
+			int nameEnd = skipJsonString(stored, pos);
+			if (nameEnd == -1) {
+				return null;
+			}
+			String name = stored.substring(memberStart + 1, nameEnd - 1);
+			pos = skipJsonWhitespace(stored, nameEnd);
+			if (pos == stored.length() || stored.charAt(pos) != ':') {
+				return null;
+			}
+			pos = skipJsonValue(stored, pos + 1);
+			if (pos == -1) {
+				return null;
+			}
+			if (!"resourceType".equals(name) && !"id".equals(name) && !"meta".equals(name)) {
+				b.append(',');
+				b.append(stored, memberStart, pos);
+			}
+			pos = skipJsonWhitespace(stored, pos);
+			if (pos < stored.length() && stored.charAt(pos) == ',') {
+				pos = skipJsonWhitespace(stored, pos + 1);
+			}
+		}
+		if (pos == stored.length()) {
+			return null;
+		}
+
+		b.append('}');
+		return b.toString();
+	}
+
+	/**
+	 * Returns the position after the string which starts at the given position, or -1 if it isn't terminated
+	 */
+	private static int skipJsonString(String theJson, int thePos) {
+		if (theJson.charAt(thePos) != '"') {
+			return -1;
+		}
+		int pos = thePos + 1;
+		while (pos < theJson.length()) {
+			char next = theJson.charAt(pos);
+			if (next == '\\') {
+				pos += 2;
+			} else if (next == '"') {
+				return pos + 1;
+			} else {
+				pos++;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the position after the value which starts at (or after whitespace at) the given position, or -1 if it
+	 * isn't terminated
+	 */
+	private static int skipJsonValue(String theJson, int thePos) {
+		int depth = 0;
+		int pos = thePos;
+		while (pos < theJson.length()) {
+			char next = theJson.charAt(pos);
+			if (next == '"') {
+				pos = skipJsonString(theJson, pos);
+				if (pos == -1 || depth == 0) {
+					return pos;
+				}
+				continue;
+			}
+			if (next == '{' || next == '[') {
+				depth++;
+			} else if (next == '}' || next == ']') {
+				if (depth == 0) {
+					return pos;
+				}
+				depth--;
+				if (depth == 0) {
+					return pos + 1;
+				}
+			} else if (next == ',' && depth == 0) {
+				return pos;
+			}
+			pos++;
+		}
+		return -1;
+	}
+
+	private static int skipJsonWhitespace(String theJson, int thePos) {
+		int pos = thePos;
+		while (pos < theJson.length() && Character.isWhitespace(theJson.charAt(pos))) {
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * Returns the number of results which are available from the given provider. If it is an
+	 * {@link ILazyTotalBundleProvider} which hasn't found all of its results yet, this may be any number not less than
+	 * <code>theMinimum</code>, so callers must not assume that it is the total.
+	 */
+	public static int getAvailableCount(IBundleProvider theResult, int theMinimum) {
+		if (theResult instanceof ILazyTotalBundleProvider) {
+			return ((ILazyTotalBundleProvider) theResult).getAvailableCount(theMinimum);
+		}
+		return theResult.size();
+	}
+
+	/**
+	 * Returns the total to be included in a page of results from the given provider, or <code>null</code> if it should
+	 * be omitted
+	 */
+	public static Integer getReportedTotal(IBundleProvider theResult) {
+		if (theResult instanceof ILazyTotalBundleProvider) {
+			return ((ILazyTotalBundleProvider) theResult).getReportedTotal();
+		}
+		return theResult.size();
+	}
+
 	public static void validateResourceListNotNull(List<IResource> theResourceList) {
 		if (theResourceList == null) {
 			throw new InternalErrorException("IBundleProvider returned a null list of resources - This is not allowed");
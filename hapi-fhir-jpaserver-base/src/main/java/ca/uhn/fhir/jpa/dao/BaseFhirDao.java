@@ -23,25 +23,29 @@ package ca.uhn.fhir.jpa.dao;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
-import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.Normalizer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
 import javax.persistence.NoResultException;
 import javax.persistence.PersistenceContext;
 import javax.persistence.PersistenceContextType;
+import javax.persistence.Query;
 import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
@@ -56,8 +60,11 @@ import org.apache.http.client.utils.URLEncodedUtils;
 import org.hl7.fhir.instance.model.IBaseResource;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import ca.uhn.fhir.context.ConfigurationException;
@@ -69,6 +76,10 @@ import ca.uhn.fhir.jpa.entity.BaseHasResource;
 import ca.uhn.fhir.jpa.entity.BaseResourceIndexedSearchParam;
 import ca.uhn.fhir.jpa.entity.BaseTag;
 import ca.uhn.fhir.jpa.entity.ForcedId;
+import ca.uhn.fhir.jpa.entity.ResourceChange;
+import ca.uhn.fhir.jpa.entity.ResourceChangeCounter;
+import ca.uhn.fhir.jpa.entity.ResourceChangeOperationEnum;
+import ca.uhn.fhir.jpa.entity.ResourceCompartment;
 import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
 import ca.uhn.fhir.jpa.entity.ResourceHistoryTable;
 import ca.uhn.fhir.jpa.entity.ResourceHistoryTag;
@@ -77,6 +88,7 @@ import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamNumber;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamQuantity;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedTextTerm;
 import ca.uhn.fhir.jpa.entity.ResourceLink;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.jpa.entity.ResourceTag;
@@ -98,20 +110,28 @@ import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.method.MethodUtil;
 import ca.uhn.fhir.rest.method.QualifiedParamList;
 import ca.uhn.fhir.rest.method.RestSearchParameterTypeEnum;
+import ca.uhn.fhir.rest.server.Constants;
 import ca.uhn.fhir.rest.server.IBundleProvider;
-import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.ILazyTotalBundleProvider;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
-import ca.uhn.fhir.util.FhirTerser;
 
-import com.google.common.base.Function;
 import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Collections2;
-import com.google.common.collect.Lists;
 
 public abstract class BaseFhirDao implements IDao {
 
+	/**
+	 * The maximum number of IDs which are resolved in a single query by {@link #translateForcedIdsToPids(Collection)}
+	 * and {@link #loadResourceTables(Collection)}
+	 */
+	static final int MAX_FORCED_IDS_PER_QUERY = 500;
+
+	/**
+	 * The number of consecutive resource PIDs which are marked for reindexing in each transaction by
+	 * {@link #markResourcesForReindexing(String)}
+	 */
+	static final int REINDEX_MARK_PID_RANGE = 10000;
 	public static final String NS_JPA_PROFILE = "https://github.com/jamesagnew/hapi-fhir/ns/jpa/profile";
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BaseFhirDao.class);
 
@@ -123,11 +143,19 @@ public abstract class BaseFhirDao implements IDao {
 
 	private FhirContext myContext;
 
+	@Autowired(required = false)
+	private ForcedIdCache myForcedIdCache;
+
+	@Autowired(required = false)
+	private TagDefinitionCache myTagDefinitionCache;
+
+	private ResourceTextCache myResourceTextCache;
+
 //	@PersistenceContext(name = "FHIR_UT", type = PersistenceContextType.TRANSACTION, unitName = "FHIR_UT")
 	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
 	private EntityManager myEntityManager;
 
-	private List<IDaoListener> myListeners = new ArrayList<IDaoListener>();
+	private List<IDaoListener> myListeners = new CopyOnWriteArrayList<IDaoListener>();
 	@Autowired
 	private PlatformTransactionManager myPlatformTransactionManager;
 
@@ -156,10 +184,32 @@ public abstract class BaseFhirDao implements IDao {
 		return InstantDt.withCurrentTime();
 	}
 
-	protected List<ResourceLink> extractResourceLinks(ResourceTable theEntity, IResource theResource) {
+	protected List<ResourceLink> extractResourceLinks(ResourceTable theEntity, IResource theResource, Map<RuntimeSearchParam, List<Object>> theValues) {
 		ArrayList<ResourceLink> retVal = new ArrayList<ResourceLink>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
+
+		/*
+		 * Collect every reference in the resource first, so that the IDs can be translated to PIDs and the targets
+		 * loaded with a couple of queries instead of one or two queries per reference
+		 */
+		List<IdDt> referencedIds = new ArrayList<IdDt>();
+		for (RuntimeSearchParam nextSpDef : def.getSearchParams()) {
+			if (nextSpDef.getParamType() != RestSearchParameterTypeEnum.REFERENCE) {
+				continue;
+			}
+			for (Object nextObject : CompiledSearchParamPaths.getValues(theValues, nextSpDef)) {
+				if (nextObject instanceof BaseResourceReferenceDt) {
+					IdDt nextId = ((BaseResourceReferenceDt) nextObject).getReference();
+					if (nextId.hasIdPart() && !nextId.getValue().startsWith("#")) {
+						referencedIds.add(nextId);
+					}
+				}
+			}
+		}
+		Map<String, Long> forcedIdToPid = translateForcedIdsToPids(referencedIds);
+		Map<Long, ResourceTable> pidToTarget = loadResourceTables(forcedIdToPid.values());
+
 		for (RuntimeSearchParam nextSpDef : def.getSearchParams()) {
 			if (nextSpDef.getParamType() != RestSearchParameterTypeEnum.REFERENCE) {
 				continue;
@@ -175,7 +225,7 @@ public abstract class BaseFhirDao implements IDao {
 				multiType = true;
 			}
 
-			for (Object nextObject : extractValues(nextPathsUnsplit, theResource)) {
+			for (Object nextObject : CompiledSearchParamPaths.getValues(theValues, nextSpDef)) {
 				if (nextObject == null) {
 					continue;
 				}
@@ -214,15 +264,13 @@ public abstract class BaseFhirDao implements IDao {
 
 						throw new InvalidRequestException(b.toString());
 					}
-					Long valueOf;
-					try {
-						valueOf = translateForcedIdToPid(nextValue.getReference());
-					} catch (Exception e) {
+					Long valueOf = forcedIdToPid.get(id);
+					if (valueOf == null) {
 						String resName = getContext().getResourceDefinition(type).getName();
 						throw new InvalidRequestException("Resource " + resName + "/" + id + " not found, specified in path: " + nextPathsUnsplit
 								+ " (this is an invalid ID, must be numeric on this server)");
 					}
-					ResourceTable target = myEntityManager.find(ResourceTable.class, valueOf);
+					ResourceTable target = pidToTarget.get(valueOf);
 					if (target == null) {
 						String resName = getContext().getResourceDefinition(type).getName();
 						throw new InvalidRequestException("Resource " + resName + "/" + id + " not found, specified in path: " + nextPathsUnsplit);
@@ -246,40 +294,24 @@ public abstract class BaseFhirDao implements IDao {
 		return retVal;
 	}
 
-	protected List<ResourceIndexedSearchParamDate> extractSearchParamDates(ResourceTable theEntity, IResource theResource) {
-		return mySearchParamExtractor.extractSearchParamDates(theEntity, theResource);
+	protected List<ResourceIndexedSearchParamDate> extractSearchParamDates(ResourceTable theEntity, IResource theResource, Map<RuntimeSearchParam, List<Object>> theValues) {
+		return mySearchParamExtractor.extractSearchParamDates(theEntity, theResource, theValues);
 	}
 
-	protected ArrayList<ResourceIndexedSearchParamNumber> extractSearchParamNumber(ResourceTable theEntity, IResource theResource) {
-		return mySearchParamExtractor.extractSearchParamNumber(theEntity, theResource);
+	protected ArrayList<ResourceIndexedSearchParamNumber> extractSearchParamNumber(ResourceTable theEntity, IResource theResource, Map<RuntimeSearchParam, List<Object>> theValues) {
+		return mySearchParamExtractor.extractSearchParamNumber(theEntity, theResource, theValues);
 	}
 
-	protected List<ResourceIndexedSearchParamQuantity> extractSearchParamQuantity(ResourceTable theEntity, IResource theResource) {
-		return mySearchParamExtractor.extractSearchParamQuantity(theEntity, theResource);
+	protected List<ResourceIndexedSearchParamQuantity> extractSearchParamQuantity(ResourceTable theEntity, IResource theResource, Map<RuntimeSearchParam, List<Object>> theValues) {
+		return mySearchParamExtractor.extractSearchParamQuantity(theEntity, theResource, theValues);
 	}
 
-	protected List<ResourceIndexedSearchParamString> extractSearchParamStrings(ResourceTable theEntity, IResource theResource) {
-		return mySearchParamExtractor.extractSearchParamStrings(theEntity, theResource);
+	protected List<ResourceIndexedSearchParamString> extractSearchParamStrings(ResourceTable theEntity, IResource theResource, Map<RuntimeSearchParam, List<Object>> theValues) {
+		return mySearchParamExtractor.extractSearchParamStrings(theEntity, theResource, theValues);
 	}
 
-	protected List<BaseResourceIndexedSearchParam> extractSearchParamTokens(ResourceTable theEntity, IResource theResource) {
-		return mySearchParamExtractor.extractSearchParamTokens(theEntity, theResource);
-	}
-
-	private List<Object> extractValues(String thePaths, IResource theResource) {
-		List<Object> values = new ArrayList<Object>();
-		String[] nextPathsSplit = thePaths.split("\\|");
-		FhirTerser t = getContext().newTerser();
-		for (String nextPath : nextPathsSplit) {
-			String nextPathTrimmed = nextPath.trim();
-			try {
-				values.addAll(t.getValues(theResource, nextPathTrimmed));
-			} catch (Exception e) {
-				RuntimeResourceDefinition def = myContext.getResourceDefinition(theResource);
-				ourLog.warn("Failed to index values from path[{}] in resource type[{}]: ", nextPathTrimmed, def.getName(), e.toString());
-			}
-		}
-		return values;
+	protected List<BaseResourceIndexedSearchParam> extractSearchParamTokens(ResourceTable theEntity, IResource theResource, Map<RuntimeSearchParam, List<Object>> theValues) {
+		return mySearchParamExtractor.extractSearchParamTokens(theEntity, theResource, theValues);
 	}
 
 	private void findMatchingTagIds(String theResourceName, IdDt theResourceId, Set<Long> tagIds, Class<? extends BaseTag> entityClass) {
@@ -342,7 +374,54 @@ public abstract class BaseFhirDao implements IDao {
 		return myResourceTypeToDao.get(theType);
 	}
 
-	protected TagDefinition getTag(TagTypeEnum theTagType, String theScheme, String theTerm, String theLabel) {
+	protected TagDefinition getTag(final TagTypeEnum theTagType, final String theScheme, final String theTerm, final String theLabel) {
+		if (myTagDefinitionCache != null) {
+			TagDefinition retVal = myTagDefinitionCache.get(theTagType, theScheme, theTerm);
+			if (retVal != null) {
+				return retVal;
+			}
+		}
+
+		TagDefinition retVal = findTag(theTagType, theScheme, theTerm);
+		if (retVal == null) {
+			/*
+			 * Tag definitions are shared by all resources, so they are created in their own transaction. If another
+			 * writer creates the same definition at the same time, the unique constraint on the table makes one of the
+			 * inserts fail, and the loser just reads the winner's row.
+			 */
+			TransactionTemplate txTemplate = new TransactionTemplate(myPlatformTransactionManager);
+			txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+			try {
+				retVal = txTemplate.execute(new TransactionCallback<TagDefinition>() {
+					@Override
+					public TagDefinition doInTransaction(TransactionStatus theStatus) {
+						TagDefinition newDef = new TagDefinition(theTagType, theScheme, theTerm, theLabel);
+						myEntityManager.persist(newDef);
+						myEntityManager.flush();
+						return newDef;
+					}
+				});
+			} catch (RuntimeException e) {
+				ourLog.debug("Failed to create tag definition, checking whether it was created concurrently: {}", e.toString());
+				retVal = txTemplate.execute(new TransactionCallback<TagDefinition>() {
+					@Override
+					public TagDefinition doInTransaction(TransactionStatus theStatus) {
+						return findTag(theTagType, theScheme, theTerm);
+					}
+				});
+				if (retVal == null) {
+					throw e;
+				}
+			}
+		}
+
+		if (myTagDefinitionCache != null) {
+			myTagDefinitionCache.put(retVal);
+		}
+		return retVal;
+	}
+
+	private TagDefinition findTag(TagTypeEnum theTagType, String theScheme, String theTerm) {
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
 		CriteriaQuery<TagDefinition> cq = builder.createQuery(TagDefinition.class);
 		Root<TagDefinition> from = cq.from(TagDefinition.class);
@@ -369,9 +448,7 @@ public abstract class BaseFhirDao implements IDao {
 		try {
 			return q.getSingleResult();
 		} catch (NoResultException e) {
-			TagDefinition retVal = new TagDefinition(theTagType, theScheme, theTerm, theLabel);
-			myEntityManager.persist(retVal);
-			return retVal;
+			return null;
 		}
 	}
 
@@ -414,93 +491,16 @@ public abstract class BaseFhirDao implements IDao {
 		}
 	}
 
+	/**
+	 * Server and type level history. Pages are fetched from the current and previous version tables using a keyset
+	 * (the updated timestamp and PID of the last entry on the previous page) instead of an offset, so every page is an
+	 * index range scan on the updated column no matter how far into the history the client has paged, and the number
+	 * of entries isn't limited. The entries are only counted if something asks for the total, since that means
+	 * scanning every matching row of both tables.
+	 */
 	protected IBundleProvider history(String theResourceName, Long theId, Date theSince) {
-		final List<HistoryTuple> tuples = new ArrayList<HistoryTuple>();
-
-		final InstantDt end = createHistoryToTimestamp();
-
-		StopWatch timer = new StopWatch();
-
-		int limit = 10000;
-
-		// Get list of IDs
-		searchHistoryCurrentVersion(theResourceName, theId, theSince, end.getValue(), limit, tuples);
-		assert tuples.size() < 2 || !tuples.get(tuples.size() - 2).getUpdated().before(tuples.get(tuples.size() - 1).getUpdated());
-		ourLog.info("Retrieved {} history IDs from current versions in {} ms", tuples.size(), timer.getMillisAndRestart());
-
-		searchHistoryHistory(theResourceName, theId, theSince, end.getValue(), limit, tuples);
-		assert tuples.size() < 2 || !tuples.get(tuples.size() - 2).getUpdated().before(tuples.get(tuples.size() - 1).getUpdated());
-		ourLog.info("Retrieved {} history IDs from previous versions in {} ms", tuples.size(), timer.getMillisAndRestart());
-
-		// Sort merged list
-		Collections.sort(tuples, Collections.reverseOrder());
-		assert tuples.size() < 2 || !tuples.get(tuples.size() - 2).getUpdated().before(tuples.get(tuples.size() - 1).getUpdated());
-
-		return new IBundleProvider() {
-
-			@Override
-			public InstantDt getPublished() {
-				return end;
-			}
-
-			@Override
-			public List<IResource> getResources(final int theFromIndex, final int theToIndex) {
-				final StopWatch timer = new StopWatch();
-				TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
-				return template.execute(new TransactionCallback<List<IResource>>() {
-					@Override
-					public List<IResource> doInTransaction(TransactionStatus theStatus) {
-						List<BaseHasResource> resEntities = Lists.newArrayList();
-
-						List<HistoryTuple> tupleSubList = tuples.subList(theFromIndex, theToIndex);
-						searchHistoryCurrentVersion(tupleSubList, resEntities);
-						ourLog.info("Loaded history from current versions in {} ms", timer.getMillisAndRestart());
-
-						searchHistoryHistory(tupleSubList, resEntities);
-						ourLog.info("Loaded history from previous versions in {} ms", timer.getMillisAndRestart());
-
-						Collections.sort(resEntities, new Comparator<BaseHasResource>() {
-							@Override
-							public int compare(BaseHasResource theO1, BaseHasResource theO2) {
-								return theO2.getUpdated().getValue().compareTo(theO1.getUpdated().getValue());
-							}
-						});
-
-						int limit = theToIndex - theFromIndex;
-						if (resEntities.size() > limit) {
-							resEntities = resEntities.subList(0, limit);
-						}
-
-						ArrayList<IResource> retVal = new ArrayList<IResource>();
-						for (BaseHasResource next : resEntities) {
-							RuntimeResourceDefinition type;
-							try {
-								type = myContext.getResourceDefinition(next.getResourceType());
-							} catch (DataFormatException e) {
-								if (next.getFhirVersion() != getContext().getVersion().getVersion()) {
-									ourLog.info("Ignoring history resource of type[{}] because it is not compatible with version[{}]", next.getResourceType(), getContext().getVersion().getVersion());
-									continue;
-								}
-								throw e;
-							}
-							IResource resource = (IResource) toResource(type.getImplementingClass(), next);
-							retVal.add(resource);
-						}
-						return retVal;
-					}
-				});
-			}
-
-			@Override
-			public int size() {
-				return tuples.size();
-			}
-
-			@Override
-			public Integer preferredPageSize() {
-				return null;
-			}
-		};
+		InstantDt end = createHistoryToTimestamp();
+		return new HistoryBundleProvider(theResourceName, theId, theSince, end);
 	}
 
 	protected boolean isValidPid(IdDt theId) {
@@ -547,12 +547,116 @@ public abstract class BaseFhirDao implements IDao {
 		return retVal;
 	}
 
+	/**
+	 * Notifies this DAO's listeners of the changes made by the current transaction. If a transaction is active the
+	 * listeners are called once it has committed (and not at all if it rolls back), so they never see changes which
+	 * aren't yet visible to other transactions.
+	 */
 	protected void notifyWriteCompleted() {
+		if (myListeners.isEmpty()) {
+			return;
+		}
+
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			getOrRegisterPendingChanges().myDaosToNotify.add(this);
+		} else {
+			fireWriteCompleted(Collections.<ResourceChange> emptyList());
+		}
+	}
+
+	/**
+	 * Returns the changes collected by the current transaction, registering a new collector with the transaction if
+	 * this is its first write. Must only be called while transaction synchronization is active.
+	 */
+	private PendingChanges getOrRegisterPendingChanges() {
+		PendingChanges retVal = (PendingChanges) TransactionSynchronizationManager.getResource(PendingChanges.class);
+		if (retVal == null) {
+			retVal = new PendingChanges(this);
+			TransactionSynchronizationManager.bindResource(PendingChanges.class, retVal);
+			TransactionSynchronizationManager.registerSynchronization(retVal);
+		}
+		return retVal;
+	}
+
+	private void fireWriteCompleted(List<ResourceChange> theChanges) {
+		List<ResourceChange> changes = Collections.unmodifiableList(theChanges);
 		for (IDaoListener next : myListeners) {
-			next.writeCompleted();
+			try {
+				next.writeCompleted(changes);
+			} catch (RuntimeException e) {
+				ourLog.error("Failure in DAO listener " + next, e);
+			}
 		}
 	}
 
+	/**
+	 * Appends an entry to the change log for the version of the entity which is being written. The entry is
+	 * written in the current transaction, so it only becomes visible if the write itself commits.
+	 */
+	private void recordChange(ResourceTable theEntity, Date theDeletedTimestampOrNull) {
+		ResourceChangeOperationEnum operation;
+		if (theDeletedTimestampOrNull != null) {
+			operation = ResourceChangeOperationEnum.DELETE;
+		} else if (theEntity.getVersion() <= 1) {
+			operation = ResourceChangeOperationEnum.CREATE;
+		} else {
+			operation = ResourceChangeOperationEnum.UPDATE;
+		}
+
+		Date changeTime = theDeletedTimestampOrNull != null ? theDeletedTimestampOrNull : theEntity.getUpdated().getValue();
+		ResourceChange change = new ResourceChange(theEntity, operation, changeTime != null ? changeTime : new Date());
+		myEntityManager.persist(change);
+
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			getOrRegisterPendingChanges().myChanges.add(change);
+		} else {
+			assignChangeSequences(Collections.singletonList(change));
+		}
+	}
+
+	/**
+	 * Assigns change log sequence numbers to the changes written by the current transaction. This is called just
+	 * before the transaction commits, and the counter row stays locked until the commit completes, so sequence numbers
+	 * are handed out in commit order. A consumer which resumes from the last sequence number it has seen can therefore
+	 * never skip an entry that was written by a slower transaction.
+	 * <p>
+	 * Note that this means every transaction which writes a resource waits for the same counter row at commit time,
+	 * so commits of concurrent writes are serialized (only the final flush and commit, not the work done before
+	 * them). Servers with a high write rate may see commit latency grow with the number of concurrent writers.
+	 * </p>
+	 */
+	private void assignChangeSequences(List<ResourceChange> theChanges) {
+		ResourceChangeCounter counter = myEntityManager.find(ResourceChangeCounter.class, ResourceChangeCounter.COUNTER_ID, LockModeType.PESSIMISTIC_WRITE);
+		if (counter == null) {
+			createChangeCounter();
+			counter = myEntityManager.find(ResourceChangeCounter.class, ResourceChangeCounter.COUNTER_ID, LockModeType.PESSIMISTIC_WRITE);
+		}
+
+		long sequence = counter.getLastSequence();
+		for (ResourceChange next : theChanges) {
+			next.setSequence(++sequence);
+		}
+		counter.setLastSequence(sequence);
+		myEntityManager.flush();
+	}
+
+	/**
+	 * Creates the change log counter row if it doesn't exist yet. Entries which were written before the counter
+	 * existed are given their ID as their sequence number, so consumers which were already reading the log resume
+	 * where they left off. Must be called from within a transaction.
+	 */
+	protected void createChangeCounter() {
+		if (myEntityManager.find(ResourceChangeCounter.class, ResourceChangeCounter.COUNTER_ID) != null) {
+			return;
+		}
+
+		myEntityManager.createQuery("UPDATE ResourceChange c SET c.mySequence = c.myId WHERE c.mySequence IS NULL").executeUpdate();
+		Long last = myEntityManager.createQuery("SELECT MAX(c.mySequence) FROM ResourceChange c", Long.class).getSingleResult();
+
+		myEntityManager.persist(new ResourceChangeCounter(last != null ? last : 0L));
+		myEntityManager.flush();
+	}
+
 	protected void populateResourceIntoEntity(IResource theResource, ResourceTable theEntity) {
 
 		if (theEntity.getPublished().isEmpty()) {
@@ -575,18 +679,7 @@ public abstract class BaseFhirDao implements IDao {
 		ResourceEncodingEnum encoding = myConfig.getResourceEncoding();
 		theEntity.setEncoding(encoding);
 		theEntity.setFhirVersion(myContext.getVersion().getVersion());
-		try {
-			switch (encoding) {
-			case JSON:
-				theEntity.setResource(encoded.getBytes("UTF-8"));
-				break;
-			case JSONC:
-				theEntity.setResource(GZipUtil.compress(encoded));
-				break;
-			}
-		} catch (UnsupportedEncodingException e) {
-			throw new InternalErrorException(e);
-		}
+		theEntity.setResource(ResourceEncodingUtil.encode(encoding, encoded));
 
 		TagList tagList = ResourceMetadataKeyEnum.TAG_LIST.get(theResource);
 		if (tagList != null) {
@@ -675,146 +768,161 @@ public abstract class BaseFhirDao implements IDao {
 		return paramMap;
 	}
 
+	/**
+	 * Sets the cache of decoded resource text used by this DAO (normally this is autowired by Spring). The cache is
+	 * also registered as a listener, so that it is told about versions written through this DAO.
+	 */
+	@Autowired(required = false)
+	public void setResourceTextCache(ResourceTextCache theResourceTextCache) {
+		myResourceTextCache = theResourceTextCache;
+		registerDaoListener(theResourceTextCache);
+	}
+
 	@Override
 	public void registerDaoListener(IDaoListener theListener) {
 		Validate.notNull(theListener, "theListener");
 		myListeners.add(theListener);
 	}
 
-	private void searchHistoryCurrentVersion(List<HistoryTuple> theTuples, List<BaseHasResource> theRetVal) {
-		Collection<HistoryTuple> tuples = Collections2.filter(theTuples, new com.google.common.base.Predicate<HistoryTuple>() {
-			@Override
-			public boolean apply(HistoryTuple theInput) {
-				return theInput.isHistory() == false;
-			}
-		});
-		Collection<Long> ids = Collections2.transform(tuples, new Function<HistoryTuple, Long>() {
-			@Override
-			public Long apply(HistoryTuple theInput) {
-				return theInput.getId();
-			}
-		});
-		if (ids.isEmpty()) {
-			return;
-		}
-
+	private long countHistory(boolean theHistory, String theResourceName, Long theId, Date theSince, Date theEnd) {
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<ResourceTable> cq = builder.createQuery(ResourceTable.class);
-		Root<ResourceTable> from = cq.from(ResourceTable.class);
-		cq.where(from.get("myId").in(ids));
+		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+		Root<? extends BaseHasResource> from = cq.from(theHistory ? ResourceHistoryTable.class : ResourceTable.class);
+		cq.select(builder.count(from));
 
-		cq.orderBy(builder.desc(from.get("myUpdated")));
-		TypedQuery<ResourceTable> q = myEntityManager.createQuery(cq);
-		for (ResourceTable next : q.getResultList()) {
-			theRetVal.add(next);
-		}
-	}
+		List<Predicate> predicates = createHistoryPredicates(builder, from, theHistory, theResourceName, theId, theSince, theEnd);
+		cq.where(builder.and(predicates.toArray(new Predicate[0])));
 
-	private void searchHistoryCurrentVersion(String theResourceName, Long theId, Date theSince, Date theEnd, Integer theLimit, List<HistoryTuple> tuples) {
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Tuple> cq = builder.createTupleQuery();
-		Root<?> from = cq.from(ResourceTable.class);
-		cq.multiselect(from.get("myId").as(Long.class), from.get("myUpdated").as(Date.class));
+		return myEntityManager.createQuery(cq).getSingleResult();
+	}
 
-		List<Predicate> predicates = new ArrayList<Predicate>();
+	private List<Predicate> createHistoryPredicates(CriteriaBuilder theBuilder, Root<? extends BaseHasResource> theFrom, boolean theHistory, String theResourceName, Long theId, Date theSince,
+			Date theEnd) {
+		List<Predicate> retVal = new ArrayList<Predicate>();
 		if (theSince != null) {
-			Predicate low = builder.greaterThanOrEqualTo(from.<Date> get("myUpdated"), theSince);
-			predicates.add(low);
+			retVal.add(theBuilder.greaterThanOrEqualTo(theFrom.<Date> get("myUpdated"), theSince));
 		}
-
-		Predicate high = builder.lessThan(from.<Date> get("myUpdated"), theEnd);
-		predicates.add(high);
-
+		retVal.add(theBuilder.lessThan(theFrom.<Date> get("myUpdated"), theEnd));
 		if (theResourceName != null) {
-			predicates.add(builder.equal(from.get("myResourceType"), theResourceName));
+			retVal.add(theBuilder.equal(theFrom.get("myResourceType"), theResourceName));
 		}
 		if (theId != null) {
-			predicates.add(builder.equal(from.get("myId"), theId));
-		}
-
-		cq.where(builder.and(predicates.toArray(new Predicate[0])));
-
-		cq.orderBy(builder.desc(from.get("myUpdated")));
-		TypedQuery<Tuple> q = myEntityManager.createQuery(cq);
-		if (theLimit != null && theLimit < myConfig.getHardSearchLimit()) {
-			q.setMaxResults(theLimit);
-		} else {
-			q.setMaxResults(myConfig.getHardSearchLimit());
-		}
-		for (Tuple next : q.getResultList()) {
-			long id = next.get(0, Long.class);
-			Date updated = next.get(1, Date.class);
-			tuples.add(new HistoryTuple(false, updated, id));
+			retVal.add(theBuilder.equal(theFrom.get(theHistory ? "myResourceId" : "myId"), theId));
 		}
+		return retVal;
 	}
 
-	private void searchHistoryHistory(List<HistoryTuple> theTuples, List<BaseHasResource> theRetVal) {
-		Collection<HistoryTuple> tuples = Collections2.filter(theTuples, new com.google.common.base.Predicate<HistoryTuple>() {
-			@Override
-			public boolean apply(HistoryTuple theInput) {
-				return theInput.isHistory() == true;
+	private void loadHistoryEntities(boolean theHistory, Collection<HistoryTuple> theTuples, Map<Long, BaseHasResource> theRetVal) {
+		List<Long> ids = new ArrayList<Long>();
+		for (HistoryTuple next : theTuples) {
+			if (next.isHistory() == theHistory) {
+				ids.add(next.getId());
 			}
-		});
-		Collection<Long> ids = Collections2.transform(tuples, new Function<HistoryTuple, Long>() {
-			@Override
-			public Long apply(HistoryTuple theInput) {
-				return (Long) theInput.getId();
-			}
-		});
+		}
 		if (ids.isEmpty()) {
 			return;
 		}
 
-		ourLog.info("Retrieving {} history elements from ResourceHistoryTable", ids.size());
-
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<ResourceHistoryTable> cq = builder.createQuery(ResourceHistoryTable.class);
-		Root<ResourceHistoryTable> from = cq.from(ResourceHistoryTable.class);
+		CriteriaQuery<BaseHasResource> cq = builder.createQuery(BaseHasResource.class);
+		Root<? extends BaseHasResource> from = cq.from(theHistory ? ResourceHistoryTable.class : ResourceTable.class);
+		cq.select(from);
 		cq.where(from.get("myId").in(ids));
-
-		cq.orderBy(builder.desc(from.get("myUpdated")));
-		TypedQuery<ResourceHistoryTable> q = myEntityManager.createQuery(cq);
-		for (ResourceHistoryTable next : q.getResultList()) {
-			theRetVal.add(next);
+		for (BaseHasResource next : myEntityManager.createQuery(cq).getResultList()) {
+			theRetVal.put(next.getId(), next);
 		}
 	}
 
-	private void searchHistoryHistory(String theResourceName, Long theResourceId, Date theSince, Date theEnd, Integer theLimit, List<HistoryTuple> tuples) {
+	/**
+	 * Fetches the IDs of up to <code>theMaxResults</code> history entries from one of the two tables, starting after
+	 * <code>theAfter</code> in the order defined by {@link HistoryTuple} (newest first)
+	 */
+	private void searchHistoryTuples(boolean theHistory, String theResourceName, Long theId, Date theSince, Date theEnd, HistoryTuple theAfter, int theMaxResults, List<HistoryTuple> theTuples) {
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
 		CriteriaQuery<Tuple> cq = builder.createTupleQuery();
-		Root<?> from = cq.from(ResourceHistoryTable.class);
+		Root<? extends BaseHasResource> from = cq.from(theHistory ? ResourceHistoryTable.class : ResourceTable.class);
 		cq.multiselect(from.get("myId").as(Long.class), from.get("myUpdated").as(Date.class));
 
-		List<Predicate> predicates = new ArrayList<Predicate>();
-		if (theSince != null) {
-			Predicate low = builder.greaterThanOrEqualTo(from.<Date> get("myUpdated"), theSince);
-			predicates.add(low);
+		List<Predicate> predicates = createHistoryPredicates(builder, from, theHistory, theResourceName, theId, theSince, theEnd);
+		if (theAfter != null) {
+			Date updated = theAfter.getUpdated();
+			if (theAfter.isHistory() == theHistory) {
+				//@formatter:off
+				predicates.add(builder.or(
+						builder.lessThan(from.<Date> get("myUpdated"), updated),
+						builder.and(
+							builder.equal(from.get("myUpdated"), updated), 
+							builder.lessThan(from.<Long> get("myId"), theAfter.getId()))));
+				//@formatter:on
+			} else if (theHistory) {
+				// Current versions come before previous versions with the same timestamp
+				predicates.add(builder.lessThanOrEqualTo(from.<Date> get("myUpdated"), updated));
+			} else {
+				predicates.add(builder.lessThan(from.<Date> get("myUpdated"), updated));
+			}
 		}
+		cq.where(builder.and(predicates.toArray(new Predicate[0])));
 
-		Predicate high = builder.lessThan(from.<Date> get("myUpdated"), theEnd);
-		predicates.add(high);
-
-		if (theResourceName != null) {
-			predicates.add(builder.equal(from.get("myResourceType"), theResourceName));
+		cq.orderBy(builder.desc(from.get("myUpdated")), builder.desc(from.get("myId")));
+		TypedQuery<Tuple> q = myEntityManager.createQuery(cq);
+		q.setMaxResults(theMaxResults);
+		for (Tuple next : q.getResultList()) {
+			Long id = next.get(0, Long.class);
+			Date updated = next.get(1, Date.class);
+			theTuples.add(new HistoryTuple(theHistory, updated, id));
 		}
-		if (theResourceId != null) {
-			predicates.add(builder.equal(from.get("myResourceId"), theResourceId));
+	}
+
+	/**
+	 * Brings the compartment membership index for the given resource up to date with its links. Deleted resources
+	 * have no links, so they are removed from every compartment.
+	 */
+	private void synchronizeCompartments(ResourceTable theEntity, Collection<ResourceLink> theLinks) {
+		TypedQuery<ResourceCompartment> q = myEntityManager.createQuery("SELECT c FROM ResourceCompartment c WHERE c.myResourcePid = :res_id", ResourceCompartment.class);
+		q.setParameter("res_id", theEntity.getId());
+		List<ResourceCompartment> existing = q.getResultList();
+
+		Date updated = theEntity.getUpdated().getValue();
+		List<ResourceCompartment> membership = new ArrayList<ResourceCompartment>();
+		if (theEntity.getDeleted() == null) {
+			RuntimeResourceDefinition resourceDef = myContext.getResourceDefinition(theEntity.getResourceType());
+			for (Long next : PatientCompartment.findOwnerPids(resourceDef, theEntity, theLinks)) {
+				membership.add(new ResourceCompartment(next, theEntity.getId(), theEntity.getResourceType(), updated));
+			}
 		}
 
-		cq.where(builder.and(predicates.toArray(new Predicate[0])));
+		for (ResourceCompartment next : synchronizeIndexRows(existing, membership)) {
+			next.setUpdated(updated);
+		}
+	}
 
-		cq.orderBy(builder.desc(from.get("myUpdated")));
-		TypedQuery<Tuple> q = myEntityManager.createQuery(cq);
-		if (theLimit != null && theLimit < myConfig.getHardSearchLimit()) {
-			q.setMaxResults(theLimit);
-		} else {
-			q.setMaxResults(myConfig.getHardSearchLimit());
+	/**
+	 * Compares the index rows which are already stored for a resource with the rows which have just been extracted from
+	 * it. Stored rows which are no longer present are removed, and extracted rows which aren't already stored are
+	 * persisted. Rows which are present in both are left alone (and duplicate extracted rows are dropped), so they
+	 * don't generate any SQL. Together with JDBC batching and the pooled ID generators on the index entities, this
+	 * means the remaining inserts and deletes are sent to the database in batches when the session is flushed.
+	 * 
+	 * @return The rows which are now stored for the resource
+	 */
+	private <T> List<T> synchronizeIndexRows(Collection<T> theExistingRows, Collection<T> theNewRows) {
+		Set<T> toAdd = new LinkedHashSet<T>(theNewRows);
+		List<T> retVal = new ArrayList<T>(toAdd.size());
+
+		for (T next : theExistingRows) {
+			if (toAdd.remove(next)) {
+				retVal.add(next);
+			} else {
+				myEntityManager.remove(next);
+			}
 		}
-		for (Tuple next : q.getResultList()) {
-			Long id = next.get(0, Long.class);
-			Date updated = (Date) next.get(1);
-			tuples.add(new HistoryTuple(true, updated, id));
+
+		for (T next : toAdd) {
+			myEntityManager.persist(next);
+			retVal.add(next);
 		}
+
+		return retVal;
 	}
 
 	protected MetaDt toMetaDt(List<TagDefinition> tagDefinitions) {
@@ -863,18 +971,26 @@ public abstract class BaseFhirDao implements IDao {
 	}
 	
 	protected <T extends IBaseResource> T toResource(Class<T> theResourceType, BaseHasResource theEntity) {
+		return toResource(theResourceType, theEntity, false);
+	}
+
+	/**
+	 * @param theIncludeStoredJson
+	 *           If <code>true</code>, the stored JSON is attached as {@link ResourceMetadataKeyEnum#STORED_JSON} so the
+	 *           server can return it as is. The resource is still parsed, because the server falls back to encoding
+	 *           the model for XML, pretty printing, narratives and interceptors.
+	 */
+	protected <T extends IBaseResource> T toResource(Class<T> theResourceType, BaseHasResource theEntity, boolean theIncludeStoredJson) {
 		String resourceText = null;
-		switch (theEntity.getEncoding()) {
-		case JSON:
-			try {
-				resourceText = new String(theEntity.getResource(), "UTF-8");
-			} catch (UnsupportedEncodingException e) {
-				throw new Error("Should not happen", e);
+		Long resourcePid = theEntity instanceof ResourceHistoryTable ? ((ResourceHistoryTable) theEntity).getResourceId() : theEntity.getId();
+		if (myResourceTextCache != null && resourcePid != null) {
+			resourceText = myResourceTextCache.get(theEntity.getResourceType(), resourcePid, theEntity.getVersion());
+		}
+		if (resourceText == null) {
+			resourceText = ResourceEncodingUtil.decode(theEntity.getEncoding(), theEntity.getResource());
+			if (myResourceTextCache != null && resourcePid != null) {
+				myResourceTextCache.put(resourcePid, theEntity.getVersion(), resourceText);
 			}
-			break;
-		case JSONC:
-			resourceText = GZipUtil.decompress(theEntity.getResource());
-			break;
 		}
 
 		IParser parser = theEntity.getEncoding().newParser(getContext(theEntity.getFhirVersion()));
@@ -900,6 +1016,11 @@ public abstract class BaseFhirDao implements IDao {
 		IResource res = (IResource) retVal;
 		res.setId(theEntity.getIdDt());
 
+		if (theIncludeStoredJson && theEntity.getFhirVersion() == myContext.getVersion().getVersion()) {
+			// Lets the server return the stored JSON for reads instead of encoding the parsed resource again
+			ResourceMetadataKeyEnum.STORED_JSON.put(res, resourceText);
+		}
+
 		res.getResourceMetadata().put(ResourceMetadataKeyEnum.VERSION_ID, theEntity.getVersion());
 		res.getResourceMetadata().put(ResourceMetadataKeyEnum.PUBLISHED, theEntity.getPublished());
 		res.getResourceMetadata().put(ResourceMetadataKeyEnum.UPDATED, theEntity.getUpdated());
@@ -960,21 +1081,112 @@ public abstract class BaseFhirDao implements IDao {
 		if (isValidPid(theId)) {
 			return theId.getIdPartAsLong();
 		} else {
+			String forcedId = theId.getIdPart();
+			if (myForcedIdCache != null) {
+				Long retVal = myForcedIdCache.getPid(forcedId);
+				if (retVal != null) {
+					return retVal;
+				}
+			}
+
 			TypedQuery<ForcedId> q = myEntityManager.createNamedQuery("Q_GET_FORCED_ID", ForcedId.class);
-			q.setParameter("ID", theId.getIdPart());
+			q.setParameter("ID", forcedId);
+			Long retVal;
 			try {
-				return q.getSingleResult().getResourcePid();
+				retVal = q.getSingleResult().getResourcePid();
 			} catch (NoResultException e) {
 				throw new ResourceNotFoundException(theId);
 			}
+
+			if (myForcedIdCache != null) {
+				myForcedIdCache.put(forcedId, retVal);
+			}
+			return retVal;
 		}
 	}
 
+	/**
+	 * Translates a collection of IDs to PIDs, using a single query for all of the forced IDs which aren't already
+	 * cached (split into chunks of {@link #MAX_FORCED_IDS_PER_QUERY}). IDs which are numeric PIDs are returned as-is.
+	 * 
+	 * @return A map of ID part to PID. IDs which don't exist are not present in the returned map.
+	 */
+	protected Map<String, Long> translateForcedIdsToPids(Collection<IdDt> theIds) {
+		Map<String, Long> retVal = new HashMap<String, Long>();
+		List<String> toLoad = new ArrayList<String>();
+		for (IdDt next : theIds) {
+			String idPart = next.getIdPart();
+			if (retVal.containsKey(idPart)) {
+				continue;
+			}
+			if (isValidPid(next)) {
+				retVal.put(idPart, next.getIdPartAsLong());
+				continue;
+			}
+			Long cached = myForcedIdCache != null ? myForcedIdCache.getPid(idPart) : null;
+			if (cached != null) {
+				retVal.put(idPart, cached);
+			} else if (!toLoad.contains(idPart)) {
+				toLoad.add(idPart);
+			}
+		}
+
+		for (int from = 0; from < toLoad.size(); from += MAX_FORCED_IDS_PER_QUERY) {
+			List<String> nextChunk = toLoad.subList(from, Math.min(toLoad.size(), from + MAX_FORCED_IDS_PER_QUERY));
+			TypedQuery<ForcedId> q = myEntityManager.createNamedQuery("Q_GET_FORCED_IDS", ForcedId.class);
+			q.setParameter("IDS", nextChunk);
+			for (ForcedId next : q.getResultList()) {
+				retVal.put(next.getForcedId(), next.getResourcePid());
+				if (myForcedIdCache != null) {
+					myForcedIdCache.put(next.getForcedId(), next.getResourcePid());
+				}
+			}
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Loads the resources with the given PIDs, using a single query for each chunk of {@link #MAX_FORCED_IDS_PER_QUERY}
+	 * PIDs
+	 * 
+	 * @return A map of PID to resource. PIDs which don't exist are not present in the returned map.
+	 */
+	protected Map<Long, ResourceTable> loadResourceTables(Collection<Long> thePids) {
+		Map<Long, ResourceTable> retVal = new HashMap<Long, ResourceTable>();
+		List<Long> pids = new ArrayList<Long>(new HashSet<Long>(thePids));
+		for (int from = 0; from < pids.size(); from += MAX_FORCED_IDS_PER_QUERY) {
+			List<Long> nextChunk = pids.subList(from, Math.min(pids.size(), from + MAX_FORCED_IDS_PER_QUERY));
+			TypedQuery<ResourceTable> q = myEntityManager.createQuery("SELECT r FROM ResourceTable r WHERE r.myId IN (:IDS)", ResourceTable.class);
+			q.setParameter("IDS", nextChunk);
+			for (ResourceTable next : q.getResultList()) {
+				retVal.put(next.getId(), next);
+			}
+		}
+		return retVal;
+	}
+
 	protected String translatePidIdToForcedId(Long theId) {
-		ForcedId forcedId = myEntityManager.find(ForcedId.class, theId);
-		if (forcedId != null) {
-			return forcedId.getForcedId();
+		if (myForcedIdCache != null) {
+			String retVal = myForcedIdCache.getForcedId(theId);
+			if (retVal != null) {
+				return retVal;
+			}
+		}
+
+		TypedQuery<ForcedId> q = myEntityManager.createNamedQuery("Q_GET_FORCED_ID_FOR_PID", ForcedId.class);
+		q.setParameter("PID", theId);
+		List<ForcedId> forcedIds = q.getResultList();
+		if (forcedIds.size() > 0) {
+			String retVal = forcedIds.get(0).getForcedId();
+			if (myForcedIdCache != null) {
+				myForcedIdCache.put(retVal, theId);
+			}
+			return retVal;
 		} else {
+			if (myForcedIdCache != null) {
+				myForcedIdCache.putNoForcedId(theId);
+			}
 			return theId.toString();
 		}
 	}
@@ -1004,156 +1216,231 @@ public abstract class BaseFhirDao implements IDao {
 
 		if (theUpdateVersion) {
 			entity.setVersion(entity.getVersion() + 1);
+		} else if (myResourceTextCache != null && entity.getId() != null) {
+			// The body of the current version is being replaced
+			myResourceTextCache.invalidate(entity.getId(), entity.getVersion());
 		}
 
-		Collection<ResourceIndexedSearchParamString> paramsString = new ArrayList<ResourceIndexedSearchParamString>(entity.getParamsString());
-		Collection<ResourceIndexedSearchParamToken> paramsToken = new ArrayList<ResourceIndexedSearchParamToken>(entity.getParamsToken());
-		Collection<ResourceIndexedSearchParamNumber> paramsNumber = new ArrayList<ResourceIndexedSearchParamNumber>(entity.getParamsNumber());
-		Collection<ResourceIndexedSearchParamQuantity> paramsQuantity = new ArrayList<ResourceIndexedSearchParamQuantity>(entity.getParamsQuantity());
-		Collection<ResourceIndexedSearchParamDate> paramsDate = new ArrayList<ResourceIndexedSearchParamDate>(entity.getParamsDate());
-		Collection<ResourceLink> resourceLinks = new ArrayList<ResourceLink>(entity.getResourceLinks());
-
-		List<ResourceIndexedSearchParamString> stringParams = null;
-		List<ResourceIndexedSearchParamToken> tokenParams = null;
-		List<ResourceIndexedSearchParamNumber> numberParams = null;
-		List<ResourceIndexedSearchParamQuantity> quantityParams = null;
-		List<ResourceIndexedSearchParamDate> dateParams = null;
-		List<ResourceLink> links = null;
+		IndexRows existingRows = new IndexRows(entity);
+		IndexRows newRows = null;
 
 		if (theDeletedTimestampOrNull != null) {
 
-			stringParams = Collections.emptyList();
-			tokenParams = Collections.emptyList();
-			numberParams = Collections.emptyList();
-			quantityParams = Collections.emptyList();
-			dateParams = Collections.emptyList();
-			links = Collections.emptyList();
+			newRows = new IndexRows();
 			entity.setDeleted(theDeletedTimestampOrNull);
 			entity.setUpdated(theDeletedTimestampOrNull);
 
+			if (myForcedIdCache != null && entity.getForcedId() != null) {
+				myForcedIdCache.invalidate(entity.getForcedId().getForcedId(), entity.getId());
+			}
+
 		} else {
 
 			entity.setDeleted(null);
 
 			if (thePerformIndexing) {
-
-				stringParams = extractSearchParamStrings(entity, theResource);
-				numberParams = extractSearchParamNumber(entity, theResource);
-				quantityParams = extractSearchParamQuantity(entity, theResource);
-				dateParams = extractSearchParamDates(entity, theResource);
-
-				tokenParams = new ArrayList<ResourceIndexedSearchParamToken>();
-				for (BaseResourceIndexedSearchParam next : extractSearchParamTokens(entity, theResource)) {
-					if (next instanceof ResourceIndexedSearchParamToken) {
-						tokenParams.add((ResourceIndexedSearchParamToken) next);
-					} else {
-						stringParams.add((ResourceIndexedSearchParamString) next);
-					}
-				}
-
-				links = extractResourceLinks(entity, theResource);
-				populateResourceIntoEntity(theResource, entity);
-				entity.setUpdated(new Date());
-				entity.setLanguage(theResource.getLanguage().getValue());
-				entity.setParamsString(stringParams);
-				entity.setParamsStringPopulated(stringParams.isEmpty() == false);
-				entity.setParamsToken(tokenParams);
-				entity.setParamsTokenPopulated(tokenParams.isEmpty() == false);
-				entity.setParamsNumber(numberParams);
-				entity.setParamsNumberPopulated(numberParams.isEmpty() == false);
-				entity.setParamsQuantity(quantityParams);
-				entity.setParamsQuantityPopulated(quantityParams.isEmpty() == false);
-				entity.setParamsDate(dateParams);
-				entity.setParamsDatePopulated(dateParams.isEmpty() == false);
-				entity.setResourceLinks(links);
-				entity.setHasLinks(links.isEmpty() == false);
-
-			} else {
-
-				populateResourceIntoEntity(theResource, entity);
-				entity.setUpdated(new Date());
-				entity.setLanguage(theResource.getLanguage().getValue());
-
+				newRows = extractIndexRows(entity, theResource);
 			}
 
+			populateResourceIntoEntity(theResource, entity);
+			entity.setUpdated(new Date());
+			entity.setLanguage(theResource.getLanguage().getValue());
+
 		}
 
+		// Resources which aren't indexed now are picked up later by the deferred indexer
+		entity.setIndexStatus(thePerformIndexing ? ResourceTable.INDEX_STATUS_INDEXED : ResourceTable.INDEX_STATUS_PENDING);
+
 		if (entity.getId() == null) {
 			myEntityManager.persist(entity);
 
 			if (entity.getForcedId() != null) {
 				myEntityManager.persist(entity.getForcedId());
+				if (myForcedIdCache != null) {
+					myForcedIdCache.put(entity.getForcedId().getForcedId(), entity.getId());
+				}
 			}
 
 		} else {
 			entity = myEntityManager.merge(entity);
 		}
 
+		if (theUpdateVersion) {
+			recordChange(entity, theDeletedTimestampOrNull);
+		}
+
 		if (thePerformIndexing) {
 
-			if (entity.isParamsStringPopulated()) {
-				for (ResourceIndexedSearchParamString next : paramsString) {
-					myEntityManager.remove(next);
-				}
-			}
-			for (ResourceIndexedSearchParamString next : stringParams) {
-				myEntityManager.persist(next);
-			}
+			storeIndexRows(entity, existingRows, newRows);
 
-			if (entity.isParamsTokenPopulated()) {
-				for (ResourceIndexedSearchParamToken next : paramsToken) {
-					myEntityManager.remove(next);
-				}
-			}
-			for (ResourceIndexedSearchParamToken next : tokenParams) {
-				myEntityManager.persist(next);
-			}
+		} else if (theUpdateVersion) {
 
-			if (entity.isParamsNumberPopulated()) {
-				for (ResourceIndexedSearchParamNumber next : paramsNumber) {
-					myEntityManager.remove(next);
-				}
-			}
-			for (ResourceIndexedSearchParamNumber next : numberParams) {
-				myEntityManager.persist(next);
-			}
+			// Membership hasn't changed, but the members' last updated time has
+			String sql = "UPDATE ResourceCompartment c SET c.myUpdated = :updated WHERE c.myResourcePid = :res_id";
+			myEntityManager.createQuery(sql).setParameter("updated", entity.getUpdated().getValue()).setParameter("res_id", entity.getId()).executeUpdate();
 
-			if (entity.isParamsQuantityPopulated()) {
-				for (ResourceIndexedSearchParamQuantity next : paramsQuantity) {
-					myEntityManager.remove(next);
-				}
-			}
-			for (ResourceIndexedSearchParamQuantity next : quantityParams) {
-				myEntityManager.persist(next);
+		} // if thePerformIndexing
+
+		myEntityManager.flush();
+
+		if (theResource != null) {
+			theResource.setId(entity.getIdDt());
+		}
+
+		return entity;
+	}
+
+	/**
+	 * Marks every current resource of the given type (or of all types if <code>null</code>) which was stored using this
+	 * DAO's FHIR version as requiring reindexing, so that the {@link DeferredIndexingSvc} rebuilds its index rows. The
+	 * resource table is walked in ranges of PIDs, each of which is committed in its own transaction so that large
+	 * tables are never locked all at once. Resources which are already waiting to be indexed are left alone.
+	 * 
+	 * @return The number of resources which were marked
+	 */
+	protected int markResourcesForReindexing(final String theResourceType) {
+		StopWatch w = new StopWatch();
+		TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+		template.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+		Object[] range = template.execute(new TransactionCallback<Object[]>() {
+			@Override
+			public Object[] doInTransaction(TransactionStatus theStatus) {
+				return (Object[]) myEntityManager.createQuery("SELECT MIN(r.myId), MAX(r.myId) FROM ResourceTable r").getSingleResult();
 			}
+		});
+		Long minPid = (Long) range[0];
+		Long maxPid = (Long) range[1];
+		if (minPid == null || maxPid == null) {
+			return 0;
+		}
 
-			if (entity.isParamsDatePopulated()) {
-				for (ResourceIndexedSearchParamDate next : paramsDate) {
-					myEntityManager.remove(next);
+		int retVal = 0;
+		for (long low = minPid; low <= maxPid; low += REINDEX_MARK_PID_RANGE) {
+			final long high = low + REINDEX_MARK_PID_RANGE;
+			final long rangeLow = low;
+			retVal += template.execute(new TransactionCallback<Integer>() {
+				@Override
+				public Integer doInTransaction(TransactionStatus theStatus) {
+					String sql = "UPDATE ResourceTable r SET r.myIndexStatus = :reindex WHERE r.myId >= :low AND r.myId < :high AND r.myFhirVersion = :version AND (r.myIndexStatus IS NULL OR r.myIndexStatus <> :pending)";
+					if (theResourceType != null) {
+						sql = sql + " AND r.myResourceType = :type";
+					}
+					Query q = myEntityManager.createQuery(sql);
+					q.setParameter("reindex", ResourceTable.INDEX_STATUS_REINDEX_REQUIRED);
+					q.setParameter("low", rangeLow);
+					q.setParameter("high", high);
+					q.setParameter("version", getContext().getVersion().getVersion());
+					q.setParameter("pending", ResourceTable.INDEX_STATUS_PENDING);
+					if (theResourceType != null) {
+						q.setParameter("type", theResourceType);
+					}
+					return q.executeUpdate();
 				}
+			});
+		}
+
+		ourLog.info("Marked {} {} resources for reindexing in {}ms", new Object[] { retVal, theResourceType != null ? theResourceType : "(all types)", w.getMillis() });
+		return retVal;
+	}
+
+	/**
+	 * Extracts the search parameter values of a stored resource and writes any index rows which have changed, without
+	 * creating a new version of the resource. This is used to index resources whose indexing was deferred when they
+	 * were written.
+	 */
+	protected void reindex(IResource theResource, ResourceTable theEntity) {
+		IndexRows existingRows = new IndexRows(theEntity);
+		IndexRows newRows;
+		if (theEntity.getDeleted() != null) {
+			newRows = new IndexRows();
+		} else {
+			newRows = extractIndexRows(theEntity, theResource);
+		}
+
+		storeIndexRows(theEntity, existingRows, newRows);
+		theEntity.setIndexStatus(ResourceTable.INDEX_STATUS_INDEXED);
+		myEntityManager.flush();
+	}
+
+	private IndexRows extractIndexRows(ResourceTable theEntity, IResource theResource) {
+		IndexRows retVal = new IndexRows();
+
+		Map<RuntimeSearchParam, List<Object>> values = mySearchParamExtractor.extractValues(theResource);
+		retVal.myStrings = extractSearchParamStrings(theEntity, theResource, values);
+		retVal.myNumbers = extractSearchParamNumber(theEntity, theResource, values);
+		retVal.myQuantities = extractSearchParamQuantity(theEntity, theResource, values);
+		retVal.myDates = extractSearchParamDates(theEntity, theResource, values);
+
+		for (BaseResourceIndexedSearchParam next : extractSearchParamTokens(theEntity, theResource, values)) {
+			if (next instanceof ResourceIndexedSearchParamToken) {
+				retVal.myTokens.add((ResourceIndexedSearchParamToken) next);
+			} else {
+				retVal.myStrings.add((ResourceIndexedSearchParamString) next);
 			}
-			for (ResourceIndexedSearchParamDate next : dateParams) {
-				myEntityManager.persist(next);
-			}
+		}
+
+		retVal.myLinks = extractResourceLinks(theEntity, theResource, values);
 
-			if (entity.isHasLinks()) {
-				for (ResourceLink next : resourceLinks) {
-					myEntityManager.remove(next);
+		if (getConfig().isFullTextIndexing()) {
+			for (ResourceIndexedSearchParamString next : retVal.myStrings) {
+				if (isNotBlank(next.getValueNormalized())) {
+					retVal.myTextTerms.addAll(TextTermUtil.extractTerms(theEntity, next.getParamName(), next.getValueNormalized()));
 				}
 			}
-			for (ResourceLink next : links) {
-				myEntityManager.persist(next);
+			String narrative = TextTermUtil.narrativeText(theResource);
+			if (isNotBlank(narrative)) {
+				retVal.myTextTerms.addAll(TextTermUtil.extractTerms(theEntity, Constants.PARAM_TEXT, normalizeString(narrative)));
 			}
+		}
 
-		} // if thePerformIndexing
-
-		myEntityManager.flush();
+		return retVal;
+	}
 
-		if (theResource != null) {
-			theResource.setId(entity.getIdDt());
+	/**
+	 * Writes the index rows of an entity which has already been persisted. Only rows which have actually changed are
+	 * written, so updating a resource without changing its indexed values doesn't produce any index SQL at all.
+	 */
+	private void storeIndexRows(ResourceTable theEntity, IndexRows theExistingRows, IndexRows theNewRows) {
+		/*
+		 * Hashes and normalized quantities are (re)calculated for the existing rows too, so that rows written before
+		 * those columns existed get populated the next time their resource is written or reindexed
+		 */
+		for (IndexRows nextRows : Arrays.asList(theExistingRows, theNewRows)) {
+			for (ResourceIndexedSearchParamString next : nextRows.myStrings) {
+				next.calculateHashes();
+			}
+			for (ResourceIndexedSearchParamToken next : nextRows.myTokens) {
+				next.calculateHashes();
+			}
+			for (ResourceIndexedSearchParamQuantity next : nextRows.myQuantities) {
+				next.calculateNormalizedValues();
+			}
 		}
 
-		return entity;
+		List<ResourceIndexedSearchParamString> stringParams = synchronizeIndexRows(theExistingRows.myStrings, theNewRows.myStrings);
+		List<ResourceIndexedSearchParamToken> tokenParams = synchronizeIndexRows(theExistingRows.myTokens, theNewRows.myTokens);
+		List<ResourceIndexedSearchParamNumber> numberParams = synchronizeIndexRows(theExistingRows.myNumbers, theNewRows.myNumbers);
+		List<ResourceIndexedSearchParamQuantity> quantityParams = synchronizeIndexRows(theExistingRows.myQuantities, theNewRows.myQuantities);
+		List<ResourceIndexedSearchParamDate> dateParams = synchronizeIndexRows(theExistingRows.myDates, theNewRows.myDates);
+		List<ResourceLink> links = synchronizeIndexRows(theExistingRows.myLinks, theNewRows.myLinks);
+		List<ResourceIndexedTextTerm> textTerms = synchronizeIndexRows(theExistingRows.myTextTerms, theNewRows.myTextTerms);
+
+		theEntity.setParamsString(stringParams);
+		theEntity.setParamsStringPopulated(stringParams.isEmpty() == false);
+		theEntity.setParamsToken(tokenParams);
+		theEntity.setParamsTokenPopulated(tokenParams.isEmpty() == false);
+		theEntity.setParamsNumber(numberParams);
+		theEntity.setParamsNumberPopulated(numberParams.isEmpty() == false);
+		theEntity.setParamsQuantity(quantityParams);
+		theEntity.setParamsQuantityPopulated(quantityParams.isEmpty() == false);
+		theEntity.setParamsDate(dateParams);
+		theEntity.setParamsDatePopulated(dateParams.isEmpty() == false);
+		theEntity.setResourceLinks(links);
+		theEntity.setHasLinks(links.isEmpty() == false);
+		theEntity.setTextTerms(textTerms);
+
+		synchronizeCompartments(theEntity, links);
 	}
 
 	protected static String normalizeString(String theString) {
@@ -1169,4 +1456,254 @@ public abstract class BaseFhirDao implements IDao {
 		return new String(out).toUpperCase();
 	}
 
+	/**
+	 * The search parameter index rows of a resource, either as currently stored or as extracted from a new version
+	 */
+	private static class IndexRows {
+
+		private List<ResourceIndexedSearchParamDate> myDates;
+		private List<ResourceLink> myLinks;
+		private List<ResourceIndexedSearchParamNumber> myNumbers;
+		private List<ResourceIndexedSearchParamQuantity> myQuantities;
+		private List<ResourceIndexedSearchParamString> myStrings;
+		private List<ResourceIndexedTextTerm> myTextTerms;
+		private List<ResourceIndexedSearchParamToken> myTokens;
+
+		IndexRows() {
+			myDates = new ArrayList<ResourceIndexedSearchParamDate>();
+			myLinks = new ArrayList<ResourceLink>();
+			myNumbers = new ArrayList<ResourceIndexedSearchParamNumber>();
+			myQuantities = new ArrayList<ResourceIndexedSearchParamQuantity>();
+			myStrings = new ArrayList<ResourceIndexedSearchParamString>();
+			myTextTerms = new ArrayList<ResourceIndexedTextTerm>();
+			myTokens = new ArrayList<ResourceIndexedSearchParamToken>();
+		}
+
+		IndexRows(ResourceTable theEntity) {
+			myDates = new ArrayList<ResourceIndexedSearchParamDate>(theEntity.getParamsDate());
+			myLinks = new ArrayList<ResourceLink>(theEntity.getResourceLinks());
+			myNumbers = new ArrayList<ResourceIndexedSearchParamNumber>(theEntity.getParamsNumber());
+			myQuantities = new ArrayList<ResourceIndexedSearchParamQuantity>(theEntity.getParamsQuantity());
+			myStrings = new ArrayList<ResourceIndexedSearchParamString>(theEntity.getParamsString());
+			myTextTerms = new ArrayList<ResourceIndexedTextTerm>(theEntity.getTextTerms());
+			myTokens = new ArrayList<ResourceIndexedSearchParamToken>(theEntity.getParamsToken());
+		}
+
+	}
+
+	/**
+	 * Collects the change log entries written by a transaction, along with the DAOs whose listeners should be told
+	 * about them once the transaction commits. The entries are given their sequence numbers just before the commit.
+	 */
+	private static class PendingChanges extends TransactionSynchronizationAdapter {
+
+		private final List<ResourceChange> myChanges = new ArrayList<ResourceChange>();
+		private final BaseFhirDao myDao;
+		private final Set<BaseFhirDao> myDaosToNotify = new LinkedHashSet<BaseFhirDao>();
+
+		public PendingChanges(BaseFhirDao theDao) {
+			myDao = theDao;
+		}
+
+		@Override
+		public void beforeCommit(boolean theReadOnly) {
+			if (!myChanges.isEmpty()) {
+				myDao.assignChangeSequences(myChanges);
+			}
+		}
+
+		@Override
+		public void afterCommit() {
+			for (BaseFhirDao next : myDaosToNotify) {
+				next.fireWriteCompleted(myChanges);
+			}
+		}
+
+		@Override
+		public void afterCompletion(int theStatus) {
+			TransactionSynchronizationManager.unbindResourceIfPossible(PendingChanges.class);
+		}
+
+	}
+
+	/**
+	 * Pages through server or type level history. The keyset of the last entry of every page which has been served
+	 * is remembered (keyed by offset), so paging forward from a page that has already been served only needs to
+	 * fetch the entries of the new page. Jumping to an arbitrary offset walks forward from the nearest known keyset,
+	 * fetching only IDs. The total is only known once paging runs off the end of the history, or once
+	 * {@link #size()} has counted it.
+	 */
+	private class HistoryBundleProvider implements ILazyTotalBundleProvider {
+
+		private final TreeMap<Integer, HistoryTuple> myCursors = new TreeMap<Integer, HistoryTuple>();
+		private final InstantDt myEnd;
+		private final Long myId;
+		private final String myResourceName;
+		private final Date mySince;
+		private Integer mySize;
+
+		HistoryBundleProvider(String theResourceName, Long theId, Date theSince, InstantDt theEnd) {
+			myResourceName = theResourceName;
+			myId = theId;
+			mySince = theSince;
+			myEnd = theEnd;
+		}
+
+		/**
+		 * Returns the next <code>theCount</code> entries after <code>theAfter</code>, merged from both tables
+		 */
+		private List<HistoryTuple> fetchTuples(HistoryTuple theAfter, int theCount) {
+			List<HistoryTuple> retVal = new ArrayList<HistoryTuple>();
+			searchHistoryTuples(false, myResourceName, myId, mySince, myEnd.getValue(), theAfter, theCount, retVal);
+			searchHistoryTuples(true, myResourceName, myId, mySince, myEnd.getValue(), theAfter, theCount, retVal);
+			Collections.sort(retVal, Collections.reverseOrder());
+			if (retVal.size() > theCount) {
+				retVal = retVal.subList(0, theCount);
+			}
+			return retVal;
+		}
+
+		/**
+		 * Walks forward from the furthest keyset which has been served until <code>theMinimum</code> entries have been
+		 * passed, fetching only IDs, so the total doesn't need to be counted to fill a page
+		 */
+		@Override
+		public int getAvailableCount(final int theMinimum) {
+			TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+			return template.execute(new TransactionCallback<Integer>() {
+				@Override
+				public Integer doInTransaction(TransactionStatus theStatus) {
+					synchronized (HistoryBundleProvider.this) {
+						if (mySize != null) {
+							return mySize;
+						}
+
+						HistoryTuple after = null;
+						int offset = 0;
+						if (!myCursors.isEmpty()) {
+							offset = myCursors.lastKey();
+							after = myCursors.get(offset);
+						}
+						if (offset >= theMinimum) {
+							return offset;
+						}
+
+						List<HistoryTuple> tuples = fetchTuples(after, theMinimum - offset);
+						if (tuples.size() < theMinimum - offset) {
+							mySize = offset + tuples.size();
+							return mySize;
+						}
+						myCursors.put(theMinimum, tuples.get(tuples.size() - 1));
+						return theMinimum;
+					}
+				}
+			});
+		}
+
+		@Override
+		public InstantDt getPublished() {
+			return myEnd;
+		}
+
+		@Override
+		public synchronized Integer getReportedTotal() {
+			return mySize;
+		}
+
+		@Override
+		public List<IResource> getResources(final int theFromIndex, final int theToIndex) {
+			final StopWatch timer = new StopWatch();
+			TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+			return template.execute(new TransactionCallback<List<IResource>>() {
+				@Override
+				public List<IResource> doInTransaction(TransactionStatus theStatus) {
+					List<HistoryTuple> tuples = getTuples(theFromIndex, theToIndex);
+					ourLog.info("Retrieved {} history IDs in {} ms", tuples.size(), timer.getMillisAndRestart());
+
+					Map<Long, BaseHasResource> currentEntities = new HashMap<Long, BaseHasResource>();
+					Map<Long, BaseHasResource> historyEntities = new HashMap<Long, BaseHasResource>();
+					loadHistoryEntities(false, tuples, currentEntities);
+					loadHistoryEntities(true, tuples, historyEntities);
+					ourLog.info("Loaded {} history entries in {} ms", tuples.size(), timer.getMillisAndRestart());
+
+					ArrayList<IResource> retVal = new ArrayList<IResource>();
+					for (HistoryTuple nextTuple : tuples) {
+						BaseHasResource next = (nextTuple.isHistory() ? historyEntities : currentEntities).get(nextTuple.getId());
+						if (next == null) {
+							continue;
+						}
+						RuntimeResourceDefinition type;
+						try {
+							type = myContext.getResourceDefinition(next.getResourceType());
+						} catch (DataFormatException e) {
+							if (next.getFhirVersion() != getContext().getVersion().getVersion()) {
+								ourLog.info("Ignoring history resource of type[{}] because it is not compatible with version[{}]", next.getResourceType(), getContext().getVersion().getVersion());
+								continue;
+							}
+							throw e;
+						}
+						IResource resource = (IResource) toResource(type.getImplementingClass(), next);
+						retVal.add(resource);
+					}
+					return retVal;
+				}
+			});
+		}
+
+		private synchronized List<HistoryTuple> getTuples(int theFromIndex, int theToIndex) {
+			HistoryTuple after = null;
+			int offset = 0;
+			if (theFromIndex > 0) {
+				Map.Entry<Integer, HistoryTuple> nearest = myCursors.floorEntry(theFromIndex);
+				if (nearest != null) {
+					offset = nearest.getKey();
+					after = nearest.getValue();
+				}
+				if (offset < theFromIndex) {
+					List<HistoryTuple> skipped = fetchTuples(after, theFromIndex - offset);
+					if (skipped.size() < theFromIndex - offset) {
+						mySize = offset + skipped.size();
+						return Collections.emptyList();
+					}
+					after = skipped.get(skipped.size() - 1);
+					myCursors.put(theFromIndex, after);
+				}
+			}
+
+			List<HistoryTuple> retVal = fetchTuples(after, theToIndex - theFromIndex);
+			if (retVal.size() > 0) {
+				myCursors.put(theFromIndex + retVal.size(), retVal.get(retVal.size() - 1));
+			}
+			if (retVal.size() < theToIndex - theFromIndex) {
+				mySize = theFromIndex + retVal.size();
+			}
+			return retVal;
+		}
+
+		@Override
+		public Integer preferredPageSize() {
+			return null;
+		}
+
+		@Override
+		public int size() {
+			TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+			return template.execute(new TransactionCallback<Integer>() {
+				@Override
+				public Integer doInTransaction(TransactionStatus theStatus) {
+					synchronized (HistoryBundleProvider.this) {
+						if (mySize == null) {
+							StopWatch timer = new StopWatch();
+							long count = countHistory(false, myResourceName, myId, mySince, myEnd.getValue()) + countHistory(true, myResourceName, myId, mySince, myEnd.getValue());
+							ourLog.info("Counted {} history entries in {} ms", count, timer.getMillisAndRestart());
+							mySize = (int) Math.min(count, Integer.MAX_VALUE);
+						}
+						return mySize;
+					}
+				}
+			});
+		}
+
+	}
+
 }
@@ -20,6 +20,7 @@ package ca.uhn.fhir.jpa.dao;
  * #L%
  */
 
+import static org.apache.commons.lang3.StringUtils.defaultString;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
@@ -35,6 +36,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.UUID;
 
 import javax.annotation.PostConstruct;
 import javax.persistence.EntityManager;
@@ -43,26 +45,35 @@ import javax.persistence.PersistenceContextType;
 import javax.persistence.TemporalType;
 import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
+import javax.persistence.criteria.AbstractQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Expression;
 import javax.persistence.criteria.From;
 import javax.persistence.criteria.JoinType;
 import javax.persistence.criteria.Order;
+import javax.persistence.criteria.ParameterExpression;
 import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Selection;
+import javax.persistence.criteria.Subquery;
 
-import org.apache.commons.lang3.NotImplementedException;
 import org.apache.commons.lang3.StringUtils;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hl7.fhir.instance.model.IBaseResource;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Required;
 import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
@@ -79,11 +90,17 @@ import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamNumber;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamQuantity;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedTextTerm;
 import ca.uhn.fhir.jpa.entity.ResourceLink;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.entity.SearchResult;
+import ca.uhn.fhir.jpa.entity.SearchStatusEnum;
 import ca.uhn.fhir.jpa.entity.TagDefinition;
 import ca.uhn.fhir.jpa.entity.TagTypeEnum;
+import ca.uhn.fhir.jpa.entity.TextTermTypeEnum;
 import ca.uhn.fhir.jpa.util.StopWatch;
+import ca.uhn.fhir.jpa.util.UcumUtil;
 import ca.uhn.fhir.model.api.IPrimitiveDatatype;
 import ca.uhn.fhir.model.api.IQueryParameterType;
 import ca.uhn.fhir.model.api.IResource;
@@ -93,7 +110,6 @@ import ca.uhn.fhir.model.api.TagList;
 import ca.uhn.fhir.model.base.composite.BaseCodingDt;
 import ca.uhn.fhir.model.base.composite.BaseIdentifierDt;
 import ca.uhn.fhir.model.base.composite.BaseQuantityDt;
-import ca.uhn.fhir.model.base.composite.BaseResourceReferenceDt;
 import ca.uhn.fhir.model.dstu.resource.OperationOutcome;
 import ca.uhn.fhir.model.dstu.valueset.IssueSeverityEnum;
 import ca.uhn.fhir.model.dstu.valueset.QuantityCompararatorEnum;
@@ -103,6 +119,7 @@ import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.model.primitive.InstantDt;
 import ca.uhn.fhir.model.primitive.UriDt;
 import ca.uhn.fhir.model.valueset.BundleEntrySearchModeEnum;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.SortOrderEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.method.RestSearchParameterTypeEnum;
@@ -114,15 +131,15 @@ import ca.uhn.fhir.rest.param.QuantityParam;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.Constants;
 import ca.uhn.fhir.rest.server.IBundleProvider;
-import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import ca.uhn.fhir.rest.server.ILazyTotalBundleProvider;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
-import ca.uhn.fhir.util.FhirTerser;
 import ca.uhn.fhir.util.ObjectUtil;
 
 @Transactional(propagation = Propagation.REQUIRED)
@@ -130,6 +147,13 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BaseFhirResourceDao.class);
 
+	/**
+	 * Number of search result rows which are written to the database at a time
+	 */
+	static final int SEARCH_RESULT_BATCH_SIZE = 500;
+
+	private static final long WAIT_FOR_INDEX_POLL_MILLIS = 50;
+
 	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
 	private EntityManager myEntityManager;
 
@@ -138,13 +162,17 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 
 	private String myResourceName;
 	private Class<T> myResourceType;
+
+	@Autowired(required = false)
+	private SearchLoadingSvc mySearchLoadingSvc;
+
 	private String mySecondaryPrimaryKeyParamName;
 
-	private Set<Long> addPredicateComposite(RuntimeSearchParam theParamDef, Set<Long> thePids, List<? extends IQueryParameterType> theNextAnd) {
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-		Root<ResourceTable> from = cq.from(ResourceTable.class);
-		cq.select(from.get("myId").as(Long.class));
+	private Predicate addPredicateComposite(CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Expression<Long> thePid, String theResourceName, RuntimeSearchParam theParamDef,
+			List<? extends IQueryParameterType> theNextAnd) {
+		Subquery<Long> subQ = theQuery.subquery(Long.class);
+		Root<ResourceTable> from = subQ.from(ResourceTable.class);
+		subQ.select(from.get("myId").as(Long.class));
 
 		IQueryParameterType or = theNextAnd.get(0);
 		if (!(or instanceof CompositeParam<?, ?>)) {
@@ -154,55 +182,37 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 
 		RuntimeSearchParam left = theParamDef.getCompositeOf().get(0);
 		IQueryParameterType leftValue = cp.getLeftValue();
-		Predicate leftPredicate = createCompositeParamPart(builder, from, left, leftValue);
+		Predicate leftPredicate = createCompositeParamPart(theBuilder, from, left, leftValue);
 
 		RuntimeSearchParam right = theParamDef.getCompositeOf().get(1);
 		IQueryParameterType rightValue = cp.getRightValue();
-		Predicate rightPredicate = createCompositeParamPart(builder, from, right, rightValue);
+		Predicate rightPredicate = createCompositeParamPart(theBuilder, from, right, rightValue);
 
-		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myResourcePid").in(thePids));
-			cq.where(builder.and(type, leftPredicate, rightPredicate, inPids));
-		} else {
-			cq.where(builder.and(type, leftPredicate, rightPredicate));
-		}
-
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		return new HashSet<Long>(q.getResultList());
+		Predicate type = theBuilder.equal(from.get("myResourceType"), theResourceName);
+		subQ.where(theBuilder.and(type, leftPredicate, rightPredicate));
 
+		return thePid.in(subQ);
 	}
 
-	private Set<Long> addPredicateDate(String theParamName, Set<Long> thePids, List<? extends IQueryParameterType> theList) {
-		if (theList == null || theList.isEmpty()) {
-			return thePids;
-		}
-
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-		Root<ResourceIndexedSearchParamDate> from = cq.from(ResourceIndexedSearchParamDate.class);
-		cq.select(from.get("myResourcePid").as(Long.class));
+	private Predicate addPredicateDate(CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Expression<Long> thePid, String theResourceName, String theParamName,
+			List<? extends IQueryParameterType> theList) {
+		Subquery<Long> subQ = theQuery.subquery(Long.class);
+		Root<ResourceIndexedSearchParamDate> from = subQ.from(ResourceIndexedSearchParamDate.class);
+		subQ.select(from.get("myResourcePid").as(Long.class));
 
 		List<Predicate> codePredicates = new ArrayList<Predicate>();
 		for (IQueryParameterType nextOr : theList) {
 			IQueryParameterType params = nextOr;
-			Predicate p = createPredicateDate(builder, from, params);
-			codePredicates.add(p);
+			Predicate p = createPredicateDate(theBuilder, from, params);
+			if (p != null) {
+				codePredicates.add(p);
+			}
 		}
-
-		Predicate masterCodePredicate = builder.or(codePredicates.toArray(new Predicate[0]));
-
-		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
-		Predicate name = builder.equal(from.get("myParamName"), theParamName);
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myResourcePid").in(thePids));
-			cq.where(builder.and(type, name, masterCodePredicate, inPids));
-		} else {
-			cq.where(builder.and(type, name, masterCodePredicate));
+		if (codePredicates.isEmpty()) {
+			return null;
 		}
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		return new HashSet<Long>(q.getResultList());
+		return createIndexPredicate(theBuilder, thePid, subQ, from, theResourceName, theParamName, codePredicates);
 	}
 
 	private Predicate addPredicateDateFromRange(CriteriaBuilder theBuilder, From<ResourceIndexedSearchParamDate, ResourceIndexedSearchParamDate> theFrom, DateRangeParam theRange) {
@@ -245,47 +255,11 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 		}
 	}
 
-	// private Set<Long> addPredicateComposite(String theParamName, Set<Long> thePids, List<? extends
-	// IQueryParameterType> theList) {
-	// }
-
-	private Set<Long> addPredicateId(Set<Long> theExistingPids, Set<Long> thePids) {
-		if (thePids == null || thePids.isEmpty()) {
-			return Collections.emptySet();
-		}
-
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-		Root<ResourceTable> from = cq.from(ResourceTable.class);
-		cq.select(from.get("myId").as(Long.class));
-
-		Predicate typePredicate = builder.equal(from.get("myResourceType"), myResourceName);
-		Predicate idPrecidate = from.get("myId").in(thePids);
-
-		cq.where(builder.and(typePredicate, idPrecidate));
-
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		HashSet<Long> found = new HashSet<Long>(q.getResultList());
-		if (!theExistingPids.isEmpty()) {
-			theExistingPids.retainAll(found);
-		}
-
-		return found;
-	}
-
-	private Set<Long> addPredicateLanguage(Set<Long> thePids, List<List<? extends IQueryParameterType>> theList) {
-		if (theList == null || theList.isEmpty()) {
-			return thePids;
-		}
+	private Predicate addPredicateLanguage(CriteriaBuilder theBuilder, Root<ResourceTable> theFrom, List<List<? extends IQueryParameterType>> theList) {
 		if (theList.size() > 1) {
 			throw new InvalidRequestException("Language parameter can not have more than one AND value, found " + theList.size());
 		}
 
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-		Root<ResourceTable> from = cq.from(ResourceTable.class);
-		cq.select(from.get("myId").as(Long.class));
-
 		Set<String> values = new HashSet<String>();
 		for (IQueryParameterType next : theList.get(0)) {
 			if (next instanceof StringParam) {
@@ -300,33 +274,17 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 		}
 
 		if (values.isEmpty()) {
-			return thePids;
-		}
-
-		Predicate typePredicate = builder.equal(from.get("myResourceType"), myResourceName);
-		Predicate langPredicate = from.get("myLanguage").as(String.class).in(values);
-		Predicate masterCodePredicate = builder.and(typePredicate, langPredicate);
-
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myId").in(thePids));
-			cq.where(builder.and(masterCodePredicate, inPids));
-		} else {
-			cq.where(masterCodePredicate);
+			return null;
 		}
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		return new HashSet<Long>(q.getResultList());
+		return theFrom.get("myLanguage").as(String.class).in(values);
 	}
 
-	private Set<Long> addPredicateNumber(String theParamName, Set<Long> thePids, List<? extends IQueryParameterType> theList) {
-		if (theList == null || theList.isEmpty()) {
-			return thePids;
-		}
-
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-		Root<ResourceIndexedSearchParamNumber> from = cq.from(ResourceIndexedSearchParamNumber.class);
-		cq.select(from.get("myResourcePid").as(Long.class));
+	private Predicate addPredicateNumber(CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Expression<Long> thePid, String theResourceName, String theParamName,
+			List<? extends IQueryParameterType> theList) {
+		Subquery<Long> subQ = theQuery.subquery(Long.class);
+		Root<ResourceIndexedSearchParamNumber> from = subQ.from(ResourceIndexedSearchParamNumber.class);
+		subQ.select(from.get("myResourcePid").as(Long.class));
 
 		List<Predicate> codePredicates = new ArrayList<Predicate>();
 		for (IQueryParameterType nextOr : theList) {
@@ -337,7 +295,7 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 
 				BigDecimal value = param.getValue();
 				if (value == null) {
-					return thePids;
+					return null;
 				}
 
 				Path<Object> fromObj = from.get("myValue");
@@ -345,22 +303,22 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 					double mul = value.doubleValue() * 1.01;
 					double low = value.doubleValue() - mul;
 					double high = value.doubleValue() + mul;
-					Predicate lowPred = builder.ge(fromObj.as(Long.class), low);
-					Predicate highPred = builder.le(fromObj.as(Long.class), high);
-					codePredicates.add(builder.and(lowPred, highPred));
+					Predicate lowPred = theBuilder.ge(fromObj.as(Long.class), low);
+					Predicate highPred = theBuilder.le(fromObj.as(Long.class), high);
+					codePredicates.add(theBuilder.and(lowPred, highPred));
 				} else {
 					switch (param.getComparator()) {
 					case GREATERTHAN:
-						codePredicates.add(builder.greaterThan(fromObj.as(BigDecimal.class), value));
+						codePredicates.add(theBuilder.greaterThan(fromObj.as(BigDecimal.class), value));
 						break;
 					case GREATERTHAN_OR_EQUALS:
-						codePredicates.add(builder.ge(fromObj.as(BigDecimal.class), value));
+						codePredicates.add(theBuilder.ge(fromObj.as(BigDecimal.class), value));
 						break;
 					case LESSTHAN:
-						codePredicates.add(builder.lessThan(fromObj.as(BigDecimal.class), value));
+						codePredicates.add(theBuilder.lessThan(fromObj.as(BigDecimal.class), value));
 						break;
 					case LESSTHAN_OR_EQUALS:
-						codePredicates.add(builder.le(fromObj.as(BigDecimal.class), value));
+						codePredicates.add(theBuilder.le(fromObj.as(BigDecimal.class), value));
 						break;
 					}
 				}
@@ -370,30 +328,14 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 
 		}
 
-		Predicate masterCodePredicate = builder.or(codePredicates.toArray(new Predicate[0]));
-
-		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
-		Predicate name = builder.equal(from.get("myParamName"), theParamName);
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myResourcePid").in(thePids));
-			cq.where(builder.and(type, name, masterCodePredicate, inPids));
-		} else {
-			cq.where(builder.and(type, name, masterCodePredicate));
-		}
-
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		return new HashSet<Long>(q.getResultList());
+		return createIndexPredicate(theBuilder, thePid, subQ, from, theResourceName, theParamName, codePredicates);
 	}
 
-	private Set<Long> addPredicateQuantity(String theParamName, Set<Long> thePids, List<? extends IQueryParameterType> theList) {
-		if (theList == null || theList.isEmpty()) {
-			return thePids;
-		}
-
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-		Root<ResourceIndexedSearchParamQuantity> from = cq.from(ResourceIndexedSearchParamQuantity.class);
-		cq.select(from.get("myResourcePid").as(Long.class));
+	private Predicate addPredicateQuantity(CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Expression<Long> thePid, String theResourceName, String theParamName,
+			List<? extends IQueryParameterType> theList) {
+		Subquery<Long> subQ = theQuery.subquery(Long.class);
+		Root<ResourceIndexedSearchParamQuantity> from = subQ.from(ResourceIndexedSearchParamQuantity.class);
+		subQ.select(from.get("myResourcePid").as(Long.class));
 
 		List<Predicate> codePredicates = new ArrayList<Predicate>();
 		for (IQueryParameterType nextOr : theList) {
@@ -422,88 +364,57 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 				throw new IllegalArgumentException("Invalid quantity type: " + params.getClass());
 			}
 
+			/*
+			 * UCUM quantities are compared in canonical units where possible, so that equal quantities expressed in
+			 * different (but commensurable) units match each other
+			 */
+			String canonicalUnits = null;
+			if (getConfig().isSearchUsingNormalizedQuantities()) {
+				canonicalUnits = UcumUtil.toCanonicalUnits(systemValue, unitsValue);
+			}
+			if (canonicalUnits != null) {
+				Predicate units = theBuilder.equal(from.get("myUnitsNormalized"), canonicalUnits);
+				Predicate num = createPredicateQuantityValue(theBuilder, from.<BigDecimal> get("myValueNormalized"), cmpValue, valueValue, approx, systemValue, unitsValue);
+				codePredicates.add(theBuilder.and(units, num));
+				continue;
+			}
+
 			Predicate system = null;
 			if (!isBlank(systemValue)) {
-				system = builder.equal(from.get("mySystem"), systemValue);
+				system = theBuilder.equal(from.get("mySystem"), systemValue);
 			}
 
 			Predicate code = null;
 			if (!isBlank(unitsValue)) {
-				code = builder.equal(from.get("myUnits"), unitsValue);
+				code = theBuilder.equal(from.get("myUnits"), unitsValue);
 			}
 
-			Predicate num;
-			if (cmpValue == null) {
-				BigDecimal mul = approx ? new BigDecimal(0.1) : new BigDecimal(0.01);
-				BigDecimal low = valueValue.subtract(valueValue.multiply(mul));
-				BigDecimal high = valueValue.add(valueValue.multiply(mul));
-				Predicate lowPred = builder.gt(from.get("myValue").as(BigDecimal.class), low);
-				Predicate highPred = builder.lt(from.get("myValue").as(BigDecimal.class), high);
-				num = builder.and(lowPred, highPred);
-			} else {
-				switch (cmpValue) {
-				case GREATERTHAN:
-					Expression<Number> path = from.get("myValue");
-					num = builder.gt(path, valueValue);
-					break;
-				case GREATERTHAN_OR_EQUALS:
-					path = from.get("myValue");
-					num = builder.ge(path, valueValue);
-					break;
-				case LESSTHAN:
-					path = from.get("myValue");
-					num = builder.lt(path, valueValue);
-					break;
-				case LESSTHAN_OR_EQUALS:
-					path = from.get("myValue");
-					num = builder.le(path, valueValue);
-					break;
-				default:
-					throw new IllegalStateException(cmpValue.getCode());
-				}
-			}
+			Predicate num = createPredicateQuantityValue(theBuilder, from.<BigDecimal> get("myValue"), cmpValue, valueValue, approx, null, null);
 
 			if (system == null && code == null) {
 				codePredicates.add(num);
 			} else if (system == null) {
-				Predicate singleCode = builder.and(code, num);
+				Predicate singleCode = theBuilder.and(code, num);
 				codePredicates.add(singleCode);
 			} else if (code == null) {
-				Predicate singleCode = builder.and(system, num);
+				Predicate singleCode = theBuilder.and(system, num);
 				codePredicates.add(singleCode);
 			} else {
-				Predicate singleCode = builder.and(system, code, num);
+				Predicate singleCode = theBuilder.and(system, code, num);
 				codePredicates.add(singleCode);
 			}
 		}
 
-		Predicate masterCodePredicate = builder.or(codePredicates.toArray(new Predicate[0]));
-
-		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
-		Predicate name = builder.equal(from.get("myParamName"), theParamName);
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myResourcePid").in(thePids));
-			cq.where(builder.and(type, name, masterCodePredicate, inPids));
-		} else {
-			cq.where(builder.and(type, name, masterCodePredicate));
-		}
-
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		return new HashSet<Long>(q.getResultList());
+		return createIndexPredicate(theBuilder, thePid, subQ, from, theResourceName, theParamName, codePredicates);
 	}
 
-	private Set<Long> addPredicateReference(String theParamName, Set<Long> thePids, List<? extends IQueryParameterType> theList) {
+	private Predicate addPredicateReference(CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Expression<Long> thePid, RuntimeResourceDefinition theResourceDef, String theParamName,
+			List<? extends IQueryParameterType> theList) {
 		assert theParamName.contains(".") == false;
 
-		Set<Long> pidsToRetain = thePids;
-		if (theList == null || theList.isEmpty()) {
-			return pidsToRetain;
-		}
-
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-		Root<ResourceLink> from = cq.from(ResourceLink.class);
-		cq.select(from.get("mySourceResourcePid").as(Long.class));
+		Subquery<Long> subQ = theQuery.subquery(Long.class);
+		Root<ResourceLink> from = subQ.from(ResourceLink.class);
+		subQ.select(from.get("mySourceResourcePid").as(Long.class));
 
 		List<Predicate> codePredicates = new ArrayList<Predicate>();
 
@@ -522,15 +433,15 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 				if (isBlank(ref.getChain())) {
 					Long targetPid = translateForcedIdToPid(new IdDt(resourceId));
 					ourLog.info("Searching for resource link with target PID: {}", targetPid);
-					Predicate eq = builder.equal(from.get("myTargetResourcePid"), targetPid);
+					Predicate eq = theBuilder.equal(from.get("myTargetResourcePid"), targetPid);
 
 					codePredicates.add(eq);
 
 				} else {
-					String chain = getContext().getResourceDefinition(myResourceType).getSearchParam(theParamName).getPath();
-					BaseRuntimeChildDefinition def = getContext().newTerser().getDefinition(myResourceType, chain);
+					String chain = theResourceDef.getSearchParam(theParamName).getPath();
+					BaseRuntimeChildDefinition def = getContext().newTerser().getDefinition(theResourceDef.getImplementingClass(), chain);
 					if (!(def instanceof RuntimeChildResourceDefinition)) {
-						throw new ConfigurationException("Property " + chain + " of type " + myResourceName + " is not a resource: " + def.getClass());
+						throw new ConfigurationException("Property " + chain + " of type " + theResourceDef.getName() + " is not a resource: " + def.getClass());
 					}
 					List<Class<? extends IBaseResource>> resourceTypes;
 					if (isBlank(ref.getResourceType())) {
@@ -554,15 +465,17 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 							continue;
 						}
 
+						/*
+						 * The chained parameter is evaluated as a nested subquery against the target type's indexes
+						 * rather than by loading the matching target PIDs first
+						 */
 						IQueryParameterType chainValue = toParameterType(param, resourceId);
-						Set<Long> pids = dao.searchForIds(ref.getChain(), chainValue);
-						if (pids.isEmpty()) {
-							continue;
+						List<IQueryParameterType> chainOrs = Collections.singletonList(chainValue);
+						Predicate eq = createParamPredicate(theBuilder, subQ, from.<Long> get("myTargetResourcePid"), typeDef, ref.getChain(), param, chainOrs);
+						if (eq != null) {
+							codePredicates.add(eq);
 						}
 
-						Predicate eq = from.get("myTargetResourcePid").in(pids);
-						codePredicates.add(eq);
-
 					}
 				}
 
@@ -572,104 +485,136 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 
 		}
 
-		Predicate masterCodePredicate = builder.or(codePredicates.toArray(new Predicate[0]));
+		Predicate masterCodePredicate = theBuilder.or(codePredicates.toArray(new Predicate[0]));
 
-		RuntimeSearchParam param = getContext().getResourceDefinition(getResourceType()).getSearchParam(theParamName);
+		RuntimeSearchParam param = theResourceDef.getSearchParam(theParamName);
 		String path = param.getPath();
 
-		Predicate type = builder.equal(from.get("mySourcePath"), path);
-		if (pidsToRetain.size() > 0) {
-			Predicate inPids = (from.get("mySourceResourcePid").in(pidsToRetain));
-			cq.where(builder.and(type, masterCodePredicate, inPids));
-		} else {
-			cq.where(builder.and(type, masterCodePredicate));
-		}
+		Predicate type = theBuilder.equal(from.get("mySourcePath"), path);
+		subQ.where(theBuilder.and(type, masterCodePredicate));
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		return new HashSet<Long>(q.getResultList());
+		return thePid.in(subQ);
 	}
 
-	private Set<Long> addPredicateString(String theParamName, Set<Long> thePids, List<? extends IQueryParameterType> theList) {
-		if (theList == null || theList.isEmpty()) {
-			return thePids;
+	private Predicate addPredicateString(CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Expression<Long> thePid, String theResourceName, String theParamName,
+			List<? extends IQueryParameterType> theList) {
+		for (IQueryParameterType nextOr : theList) {
+			if (nextOr instanceof StringParam) {
+				StringParam id = (StringParam) nextOr;
+				if (id.isContains() || id.isFuzzy() || id.isPhonetic()) {
+					return addPredicateStringQualified(theBuilder, theQuery, thePid, theResourceName, theParamName, theList);
+				}
+			}
 		}
 
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-		Root<ResourceIndexedSearchParamString> from = cq.from(ResourceIndexedSearchParamString.class);
-		cq.select(from.get("myResourcePid").as(Long.class));
+		Subquery<Long> subQ = theQuery.subquery(Long.class);
+		Root<ResourceIndexedSearchParamString> from = subQ.from(ResourceIndexedSearchParamString.class);
+		subQ.select(from.get("myResourcePid").as(Long.class));
 
 		List<Predicate> codePredicates = new ArrayList<Predicate>();
 		for (IQueryParameterType nextOr : theList) {
 			IQueryParameterType theParameter = nextOr;
 
-			Predicate singleCode = createPredicateString(theParameter, theParamName, builder, from);
+			Predicate singleCode = createPredicateString(theParameter, theResourceName, theParamName, theBuilder, from);
 			codePredicates.add(singleCode);
 		}
 
-		Predicate masterCodePredicate = builder.or(codePredicates.toArray(new Predicate[0]));
+		return createIndexPredicate(theBuilder, thePid, subQ, from, theResourceName, theParamName, codePredicates);
+	}
 
-		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
-		Predicate name = builder.equal(from.get("myParamName"), theParamName);
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myResourcePid").in(thePids));
-			cq.where(builder.and(type, name, masterCodePredicate, inPids));
-		} else {
-			cq.where(builder.and(type, name, masterCodePredicate));
+	/**
+	 * Handles a string parameter where at least one of the OR values uses the <code>:contains</code>,
+	 * <code>:fuzzy</code> or <code>:phonetic</code> qualifier. Each value may need a different index table (or
+	 * several subqueries against the same one), so each gets its own predicate and these are OR-ed together.
+	 */
+	private Predicate addPredicateStringQualified(CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Expression<Long> thePid, String theResourceName, String theParamName,
+			List<? extends IQueryParameterType> theList) {
+		List<Predicate> orPredicates = new ArrayList<Predicate>();
+		for (IQueryParameterType nextOr : theList) {
+			StringParam param = nextOr instanceof StringParam ? (StringParam) nextOr : null;
+			if (param == null || !(param.isContains() || param.isFuzzy() || param.isPhonetic())) {
+				orPredicates.add(addPredicateString(theBuilder, theQuery, thePid, theResourceName, theParamName, Collections.singletonList(nextOr)));
+				continue;
+			}
+
+			String normalized = TextTermUtil.collapseWhitespace(normalizeString(defaultString(param.getValue())));
+			if (param.isFuzzy() || param.isPhonetic()) {
+				orPredicates.add(createPredicateTextWords(theBuilder, theQuery, thePid, theResourceName, theParamName, normalized, param));
+				continue;
+			}
+
+			/*
+			 * For :contains the LIKE against the string index always decides the match, but it can't use an index
+			 * since the term may appear anywhere in the value. Resources containing every trigram of the term are
+			 * found using the text term index first, so the LIKE only needs to check those.
+			 */
+			Subquery<Long> subQ = theQuery.subquery(Long.class);
+			Root<ResourceIndexedSearchParamString> from = subQ.from(ResourceIndexedSearchParamString.class);
+			subQ.select(from.get("myResourcePid").as(Long.class));
+			String likeExpression = "%" + normalized.replace("%", "[%]") + "%";
+			Predicate like = theBuilder.like(from.get("myValueNormalized").as(String.class), likeExpression);
+			Predicate predicate = createIndexPredicate(theBuilder, thePid, subQ, from, theResourceName, theParamName, Collections.singletonList(like));
+
+			Set<String> trigrams = TextTermUtil.trigrams(normalized);
+			if (getConfig().isFullTextIndexing() && trigrams.isEmpty() == false) {
+				Predicate terms = createPredicateTextTerms(theBuilder, theQuery, thePid, theResourceName, theParamName, TextTermTypeEnum.TRIGRAM, trigrams, trigrams.size());
+				predicate = theBuilder.and(terms, predicate);
+			}
+			orPredicates.add(predicate);
 		}
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		return new HashSet<Long>(q.getResultList());
+		return theBuilder.or(orPredicates.toArray(new Predicate[0]));
 	}
 
-	private Set<Long> addPredicateToken(String theParamName, Set<Long> thePids, List<? extends IQueryParameterType> theList) {
-		if (theList == null || theList.isEmpty()) {
-			return thePids;
+	/**
+	 * Handles the <code>_content</code> (any string parameter or the narrative) and <code>_text</code> (the
+	 * narrative only) parameters. Every word of a value must be found, either as a substring of an indexed word or,
+	 * using the <code>:fuzzy</code> and <code>:phonetic</code> qualifiers, as an approximate match.
+	 */
+	private Predicate addPredicateText(CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Expression<Long> thePid, String theResourceName, String theParamName,
+			List<? extends IQueryParameterType> theList) {
+		if (!getConfig().isFullTextIndexing()) {
+			throw new InvalidRequestException("Parameter[" + theParamName + "] is not supported because full text indexing is not enabled on this server");
 		}
 
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-		Root<ResourceIndexedSearchParamToken> from = cq.from(ResourceIndexedSearchParamToken.class);
-		cq.select(from.get("myResourcePid").as(Long.class));
+		String termParamName = theParamName.equals(Constants.PARAM_TEXT) ? Constants.PARAM_TEXT : null;
+		List<Predicate> orPredicates = new ArrayList<Predicate>();
+		for (IQueryParameterType nextOr : theList) {
+			StringParam param;
+			if (nextOr instanceof StringParam) {
+				param = (StringParam) nextOr;
+			} else {
+				param = new StringParam(nextOr.getValueAsQueryToken());
+			}
+			String normalized = normalizeString(defaultString(param.getValue()));
+			orPredicates.add(createPredicateTextWords(theBuilder, theQuery, thePid, theResourceName, termParamName, normalized, param));
+		}
 
-		List<Predicate> codePredicates = new ArrayList<Predicate>();
+		return theBuilder.or(orPredicates.toArray(new Predicate[0]));
+	}
+
+	private Predicate addPredicateToken(CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Expression<Long> thePid, String theResourceName, String theParamName,
+			List<? extends IQueryParameterType> theList) {
 		for (IQueryParameterType nextOr : theList) {
 			if (nextOr instanceof TokenParam) {
 				TokenParam id = (TokenParam) nextOr;
 				if (id.isText()) {
-					return addPredicateString(theParamName, thePids, theList);
+					return addPredicateString(theBuilder, theQuery, thePid, theResourceName, theParamName, theList);
 				}
 			}
-
-			Predicate singleCode = createPredicateToken(nextOr, theParamName, builder, from);
-			codePredicates.add(singleCode);
 		}
 
-		Predicate masterCodePredicate = builder.or(codePredicates.toArray(new Predicate[0]));
+		Subquery<Long> subQ = theQuery.subquery(Long.class);
+		Root<ResourceIndexedSearchParamToken> from = subQ.from(ResourceIndexedSearchParamToken.class);
+		subQ.select(from.get("myResourcePid").as(Long.class));
 
-		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
-		Predicate name = builder.equal(from.get("myParamName"), theParamName);
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myResourcePid").in(thePids));
-			cq.where(builder.and(type, name, masterCodePredicate, inPids));
-		} else {
-			cq.where(builder.and(type, name, masterCodePredicate));
+		List<Predicate> codePredicates = new ArrayList<Predicate>();
+		for (IQueryParameterType nextOr : theList) {
+			Predicate singleCode = createPredicateToken(nextOr, theResourceName, theParamName, theBuilder, from);
+			codePredicates.add(singleCode);
 		}
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		return new HashSet<Long>(q.getResultList());
-	}
-
-	private List<IResource> addResourcesAsIncludesById(List<IResource> theListToPopulate, Set<IdDt> includePids, List<IResource> resources) {
-		if (!includePids.isEmpty()) {
-			ourLog.info("Loading {} included resources", includePids.size());
-			resources = loadResourcesById(includePids);
-			for (IResource next : resources) {
-				ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.put(next, BundleEntrySearchModeEnum.INCLUDE);
-			}
-			theListToPopulate.addAll(resources);
-		}
-		return resources;
+		return createIndexPredicate(theBuilder, thePid, subQ, from, theResourceName, theParamName, codePredicates);
 	}
 
 	@Override
@@ -703,12 +648,12 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 
 	@Override
 	public DaoMethodOutcome create(final T theResource) {
-		return create(theResource, null, true);
+		return create(theResource, null, !getConfig().isDeferIndexing());
 	}
 
 	@Override
 	public DaoMethodOutcome create(final T theResource, String theIfNoneExist) {
-		return create(theResource, theIfNoneExist, true);
+		return create(theResource, theIfNoneExist, !getConfig().isDeferIndexing());
 	}
 
 	@Override
@@ -731,12 +676,12 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 		switch (left.getParamType()) {
 		case STRING: {
 			From<ResourceIndexedSearchParamString, ResourceIndexedSearchParamString> stringJoin = from.join("myParamsString", JoinType.INNER);
-			retVal = createPredicateString(leftValue, left.getName(), builder, stringJoin);
+			retVal = createPredicateString(leftValue, myResourceName, left.getName(), builder, stringJoin);
 			break;
 		}
 		case TOKEN: {
 			From<ResourceIndexedSearchParamToken, ResourceIndexedSearchParamToken> tokenJoin = from.join("myParamsToken", JoinType.INNER);
-			retVal = createPredicateToken(leftValue, left.getName(), builder, tokenJoin);
+			retVal = createPredicateToken(leftValue, myResourceName, left.getName(), builder, tokenJoin);
 			break;
 		}
 		case DATE: {
@@ -753,6 +698,47 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 		return retVal;
 	}
 
+	private Predicate createIndexPredicate(CriteriaBuilder theBuilder, Expression<Long> thePid, Subquery<Long> theSubquery, From<?, ?> theFrom, String theResourceName, String theParamName,
+			List<Predicate> theCodePredicates) {
+		Predicate masterCodePredicate = theBuilder.or(theCodePredicates.toArray(new Predicate[0]));
+
+		Predicate type = theBuilder.equal(theFrom.get("myResourceType"), theResourceName);
+		Predicate name = theBuilder.equal(theFrom.get("myParamName"), theParamName);
+		theSubquery.where(theBuilder.and(type, name, masterCodePredicate));
+
+		return thePid.in(theSubquery);
+	}
+
+	/**
+	 * Creates a predicate restricting the given PID expression to resources which match a single AND-ed parameter
+	 * (i.e. any of the values in theOrList). The predicate is expressed as a subquery against the relevant index
+	 * table so that it can be combined with other predicates in a single statement.
+	 * 
+	 * @return Returns <code>null</code> if the parameter places no restriction on the results
+	 */
+	private Predicate createParamPredicate(CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Expression<Long> thePid, RuntimeResourceDefinition theResourceDef, String theParamName,
+			RuntimeSearchParam theParamDef, List<? extends IQueryParameterType> theOrList) {
+		String resourceName = theResourceDef.getName();
+		switch (theParamDef.getParamType()) {
+		case DATE:
+			return addPredicateDate(theBuilder, theQuery, thePid, resourceName, theParamName, theOrList);
+		case QUANTITY:
+			return addPredicateQuantity(theBuilder, theQuery, thePid, resourceName, theParamName, theOrList);
+		case REFERENCE:
+			return addPredicateReference(theBuilder, theQuery, thePid, theResourceDef, theParamName, theOrList);
+		case STRING:
+			return addPredicateString(theBuilder, theQuery, thePid, resourceName, theParamName, theOrList);
+		case TOKEN:
+			return addPredicateToken(theBuilder, theQuery, thePid, resourceName, theParamName, theOrList);
+		case NUMBER:
+			return addPredicateNumber(theBuilder, theQuery, thePid, resourceName, theParamName, theOrList);
+		case COMPOSITE:
+			return addPredicateComposite(theBuilder, theQuery, thePid, resourceName, theParamDef, theOrList);
+		default:
+			return null;
+		}
+	}
+
 	private Predicate createPredicateDate(CriteriaBuilder theBuilder, From<ResourceIndexedSearchParamDate, ResourceIndexedSearchParamDate> theFrom, IQueryParameterType theParam) {
 		Predicate p;
 		if (theParam instanceof DateParam) {
@@ -773,7 +759,41 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 		return p;
 	}
 
-	private Predicate createPredicateString(IQueryParameterType theParameter, String theParamName, CriteriaBuilder theBuilder,
+	/**
+	 * Creates the comparison of a quantity value against the value being searched for
+	 * 
+	 * @param theCanonicalSystem
+	 *           If not <code>null</code>, the bounds being compared against are first converted from the given UCUM
+	 *           units to canonical units, for comparison against the normalized value column
+	 */
+	private Predicate createPredicateQuantityValue(CriteriaBuilder theBuilder, Expression<BigDecimal> thePath, QuantityCompararatorEnum theComparator, BigDecimal theValue, boolean theApprox,
+			String theCanonicalSystem, String theCanonicalUnits) {
+		if (theComparator == null) {
+			BigDecimal mul = theApprox ? new BigDecimal("0.1") : new BigDecimal("0.01");
+			BigDecimal delta = theValue.multiply(mul).abs();
+			BigDecimal low = toQuantitySearchValue(theValue.subtract(delta), theCanonicalSystem, theCanonicalUnits);
+			BigDecimal high = toQuantitySearchValue(theValue.add(delta), theCanonicalSystem, theCanonicalUnits);
+			Predicate lowPred = theBuilder.gt(thePath, low);
+			Predicate highPred = theBuilder.lt(thePath, high);
+			return theBuilder.and(lowPred, highPred);
+		}
+
+		BigDecimal value = toQuantitySearchValue(theValue, theCanonicalSystem, theCanonicalUnits);
+		switch (theComparator) {
+		case GREATERTHAN:
+			return theBuilder.gt(thePath, value);
+		case GREATERTHAN_OR_EQUALS:
+			return theBuilder.ge(thePath, value);
+		case LESSTHAN:
+			return theBuilder.lt(thePath, value);
+		case LESSTHAN_OR_EQUALS:
+			return theBuilder.le(thePath, value);
+		default:
+			throw new IllegalStateException(theComparator.getCode());
+		}
+	}
+
+	private Predicate createPredicateString(IQueryParameterType theParameter, String theResourceName, String theParamName, CriteriaBuilder theBuilder,
 			From<ResourceIndexedSearchParamString, ResourceIndexedSearchParamString> theFrom) {
 		String rawSearchTerm;
 		if (theParameter instanceof TokenParam) {
@@ -797,18 +817,98 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 					+ ResourceIndexedSearchParamString.MAX_LENGTH + "): " + rawSearchTerm);
 		}
 
-		String likeExpression = normalizeString(rawSearchTerm);
-		likeExpression = likeExpression.replace("%", "[%]") + "%";
+		String normalizedSearchTerm = normalizeString(rawSearchTerm);
+		String likeExpression = normalizedSearchTerm.replace("%", "[%]") + "%";
 
 		Predicate singleCode = theBuilder.like(theFrom.get("myValueNormalized").as(String.class), likeExpression);
 		if (theParameter instanceof StringParam && ((StringParam) theParameter).isExact()) {
 			Predicate exactCode = theBuilder.equal(theFrom.get("myValueExact"), rawSearchTerm);
 			singleCode = theBuilder.and(singleCode, exactCode);
 		}
+
+		/*
+		 * Every value which starts with the search term shares its first few characters, so the hash of those
+		 * narrows the search down using the hash index and the LIKE is only evaluated against the rows it finds
+		 */
+		if (getConfig().isSearchUsingHashIndexes() && normalizedSearchTerm.length() >= ResourceIndexedSearchParamString.HASH_PREFIX_LENGTH) {
+			long hash = ResourceIndexedSearchParamString.calculateHashNormalizedPrefix(theResourceName, theParamName, normalizedSearchTerm);
+			singleCode = theBuilder.and(theBuilder.equal(theFrom.get("myHashNormalizedPrefix"), hash), singleCode);
+		}
 		return singleCode;
 	}
 
-	private Predicate createPredicateToken(IQueryParameterType theParameter, String theParamName, CriteriaBuilder theBuilder,
+	/**
+	 * Creates a predicate matching resources which have at least the given number of distinct terms from the given
+	 * set in the text term index
+	 * 
+	 * @param theParamName
+	 *           The parameter whose terms are searched, or <code>null</code> to search the terms of every parameter
+	 */
+	private Predicate createPredicateTextTerms(CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Expression<Long> thePid, String theResourceName, String theParamName,
+			TextTermTypeEnum theTermType, Collection<String> theTerms, int theMinimumMatches) {
+		Subquery<Long> subQ = theQuery.subquery(Long.class);
+		Root<ResourceIndexedTextTerm> from = subQ.from(ResourceIndexedTextTerm.class);
+		Expression<Long> resourcePid = from.get("myResourcePid").as(Long.class);
+		subQ.select(resourcePid);
+
+		List<Predicate> predicates = new ArrayList<Predicate>();
+		predicates.add(theBuilder.equal(from.get("myResourceType"), theResourceName));
+		predicates.add(theBuilder.equal(from.get("myTermType"), theTermType));
+		predicates.add(from.get("myTerm").in(theTerms));
+		if (theParamName != null) {
+			predicates.add(theBuilder.equal(from.get("myParamName"), theParamName));
+		}
+		subQ.where(theBuilder.and(predicates.toArray(new Predicate[0])));
+
+		if (theMinimumMatches > 1) {
+			subQ.groupBy(resourcePid);
+			subQ.having(theBuilder.ge(theBuilder.countDistinct(from.get("myTerm")), theMinimumMatches));
+		}
+
+		return thePid.in(subQ);
+	}
+
+	/**
+	 * Creates a predicate matching resources in which every word of the given value is found in the text term index,
+	 * using the matching rules of the qualifier on the given parameter
+	 */
+	private Predicate createPredicateTextWords(CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Expression<Long> thePid, String theResourceName, String theParamName,
+			String theValueNormalized, StringParam theParam) {
+		String paramName = defaultString(theParamName, Constants.PARAM_CONTENT);
+		if (!getConfig().isFullTextIndexing()) {
+			throw new InvalidRequestException("Parameter[" + paramName + "] can not be searched using this qualifier because full text indexing is not enabled on this server");
+		}
+
+		List<String> words = TextTermUtil.words(theValueNormalized);
+		if (words.isEmpty()) {
+			throw new InvalidRequestException("Parameter[" + paramName + "] has no words to search for: " + theParam.getValue());
+		}
+
+		List<Predicate> andPredicates = new ArrayList<Predicate>();
+		for (String nextWord : words) {
+			if (theParam.isPhonetic()) {
+				String code = TextTermUtil.phonetic(nextWord);
+				if (code == null) {
+					throw new InvalidRequestException("Parameter[" + paramName + "] has a value which can not be searched phonetically: " + nextWord);
+				}
+				andPredicates.add(createPredicateTextTerms(theBuilder, theQuery, thePid, theResourceName, theParamName, TextTermTypeEnum.PHONETIC, Collections.singleton(code), 1));
+			} else if (theParam.isFuzzy()) {
+				Set<String> trigrams = TextTermUtil.fuzzyTrigrams(nextWord);
+				int minimumMatches = (int) Math.ceil(trigrams.size() * TextTermUtil.FUZZY_MATCH_THRESHOLD);
+				andPredicates.add(createPredicateTextTerms(theBuilder, theQuery, thePid, theResourceName, theParamName, TextTermTypeEnum.TRIGRAM, trigrams, minimumMatches));
+			} else {
+				Set<String> trigrams = TextTermUtil.trigrams(nextWord);
+				if (trigrams.isEmpty()) {
+					throw new InvalidRequestException("Parameter[" + paramName + "] has a word which is too short to search for (must be at least 3 characters): " + nextWord);
+				}
+				andPredicates.add(createPredicateTextTerms(theBuilder, theQuery, thePid, theResourceName, theParamName, TextTermTypeEnum.TRIGRAM, trigrams, trigrams.size()));
+			}
+		}
+
+		return theBuilder.and(andPredicates.toArray(new Predicate[0]));
+	}
+
+	private Predicate createPredicateToken(IQueryParameterType theParameter, String theResourceName, String theParamName, CriteriaBuilder theBuilder,
 			From<ResourceIndexedSearchParamToken, ResourceIndexedSearchParamToken> theFrom) {
 		String code;
 		String system;
@@ -838,6 +938,22 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 		}
 
 		ArrayList<Predicate> singleCodePredicates = (new ArrayList<Predicate>());
+
+		/*
+		 * The hash is probed first, using its narrow index. The values are still compared too, which costs nothing
+		 * extra since they are only evaluated against the rows the hash finds, and means that a hash collision can
+		 * never produce a false match.
+		 */
+		if (getConfig().isSearchUsingHashIndexes()) {
+			if (system != null) {
+				long hash = ResourceIndexedSearchParamToken.calculateHashSystemAndValue(theResourceName, theParamName, system, code);
+				singleCodePredicates.add(theBuilder.equal(theFrom.get("myHashSystemAndValue"), hash));
+			} else {
+				long hash = ResourceIndexedSearchParamToken.calculateHashValue(theResourceName, theParamName, code);
+				singleCodePredicates.add(theBuilder.equal(theFrom.get("myHashValue"), hash));
+			}
+		}
+
 		if (StringUtils.isNotBlank(system)) {
 			singleCodePredicates.add(theBuilder.equal(theFrom.get("mySystem"), system));
 		} else if (system == null) {
@@ -855,97 +971,310 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 		return singleCode;
 	}
 
-	private void createSort(CriteriaBuilder theBuilder, Root<ResourceTable> theFrom, SortSpec theSort, List<Order> theOrders, List<Predicate> thePredicates) {
-		if (theSort == null || isBlank(theSort.getParamName())) {
-			return;
+	/**
+	 * Compiles the given parameters into a single query against {@link ResourceTable}. Each AND-ed parameter becomes
+	 * an <code>IN (subquery)</code> predicate against the relevant index table (or {@link ResourceLink} for
+	 * references), and the predicates are ordered by their estimated selectivity so that the most restrictive ones
+	 * come first.
+	 * 
+	 * @param theCount
+	 *           If true, the query selects the number of matching resources instead of their PIDs
+	 * @return Returns <code>null</code> if the parameters can be determined to match nothing without querying
+	 */
+	private CriteriaQuery<Long> createSearchQuery(CriteriaBuilder theBuilder, SearchParameterMap theParams, boolean theCount) {
+		CriteriaQuery<Long> cq = theBuilder.createQuery(Long.class);
+		Root<ResourceTable> from = cq.from(ResourceTable.class);
+		if (theCount) {
+			cq.select(theBuilder.count(from));
+		} else {
+			cq.select(from.get("myId").as(Long.class));
+			cq.orderBy(theBuilder.asc(from.get("myId")));
 		}
 
-		if ("_id".equals(theSort.getParamName())) {
-			From<?, ?> forcedIdJoin = theFrom.join("myForcedId", JoinType.LEFT);
-			if (theSort.getOrder() == null || theSort.getOrder() == SortOrderEnum.ASC) {
-				theOrders.add(theBuilder.asc(forcedIdJoin.get("myForcedId")));
-				theOrders.add(theBuilder.asc(theFrom.get("myId")));
-			} else {
-				theOrders.add(theBuilder.desc(forcedIdJoin.get("myForcedId")));
-				theOrders.add(theBuilder.desc(theFrom.get("myId")));
-			}
-
-			createSort(theBuilder, theFrom, theSort.getChain(), theOrders, null);
-			return;
+		List<Predicate> predicates = createSearchPredicates(theBuilder, cq, from, theParams);
+		if (predicates == null) {
+			return null;
 		}
+		cq.where(theBuilder.and(predicates.toArray(new Predicate[0])));
 
-		RuntimeResourceDefinition resourceDef = getContext().getResourceDefinition(myResourceType);
-		RuntimeSearchParam param = resourceDef.getSearchParam(theSort.getParamName());
-		if (param == null) {
-			throw new InvalidRequestException("Unknown sort parameter '" + theSort.getParamName() + "'");
-		}
+		return cq;
+	}
 
-		String joinAttrName;
-		String sortAttrName;
+	/**
+	 * Creates the predicates used by {@link #createSearchQuery(CriteriaBuilder, SearchParameterMap, boolean)},
+	 * ordered by their estimated selectivity
+	 * 
+	 * @return Returns <code>null</code> if the parameters can be determined to match nothing without querying
+	 */
+	private List<Predicate> createSearchPredicates(CriteriaBuilder theBuilder, AbstractQuery<?> cq, Root<ResourceTable> from, SearchParameterMap theParams) {
+		RuntimeResourceDefinition resourceDef = getContext().getResourceDefinition(myResourceType);
 
-		switch (param.getParamType()) {
-		case STRING:
-			joinAttrName = "myParamsString";
-			sortAttrName = "myValueExact";
-			break;
-		case DATE:
-			joinAttrName = "myParamsDate";
-			sortAttrName = "myValueLow";
-			break;
-		default:
-			throw new NotImplementedException("This server does not support _sort specifications of type " + param.getParamType() + " - Can't serve _sort=" + theSort.getParamName());
+		List<PlannedPredicate> planned = new ArrayList<PlannedPredicate>();
+		planned.add(new PlannedPredicate(0, theBuilder.equal(from.get("myResourceType"), myResourceName)));
+		if (theParams.isEmpty()) {
+			planned.add(new PlannedPredicate(0, theBuilder.isNull(from.get("myDeleted"))));
 		}
 
-		From<?, ?> stringJoin = theFrom.join(joinAttrName, JoinType.INNER);
-		// Predicate p = theBuilder.equal(stringJoin.get("myParamName"), theSort.getParamName());
-		// Predicate pn = theBuilder.isNull(stringJoin.get("myParamName"));
-		// thePredicates.add(theBuilder.or(p, pn));
+		for (Entry<String, List<List<? extends IQueryParameterType>>> nextParamEntry : theParams.entrySet()) {
+			String nextParamName = nextParamEntry.getKey();
+			if (nextParamEntry.getValue().isEmpty()) {
+				continue;
+			}
 
-		if (theSort.getOrder() == null || theSort.getOrder() == SortOrderEnum.ASC) {
-			theOrders.add(theBuilder.asc(stringJoin.get(sortAttrName)));
-		} else {
-			theOrders.add(theBuilder.desc(stringJoin.get(sortAttrName)));
-		}
+			if (nextParamName.equals("_id")) {
 
-		createSort(theBuilder, theFrom, theSort.getChain(), theOrders, null);
-	}
+				if (nextParamEntry.getValue().size() > 1) {
+					throw new InvalidRequestException("AND queries not supported for _id (Multiple instances of this param found)");
+				}
+				List<? extends IQueryParameterType> nextValue = nextParamEntry.getValue().get(0);
+				if (nextValue == null || nextValue.size() == 0) {
+					continue;
+				}
 
-	@Override
-	public DaoMethodOutcome delete(IdDt theId) {
-		StopWatch w = new StopWatch();
-		final ResourceTable entity = readEntityLatestVersion(theId);
-		if (theId.hasVersionIdPart() && theId.getVersionIdPartAsLong().longValue() != entity.getVersion()) {
-			throw new InvalidRequestException("Trying to update " + theId + " but this is not the current version");
-		}
+				Set<Long> joinPids = new HashSet<Long>();
+				for (IQueryParameterType next : nextValue) {
+					String value = next.getValueAsQueryToken();
+					IdDt valueId = new IdDt(value);
+					try {
+						long valueLong = translateForcedIdToPid(valueId);
+						joinPids.add(valueLong);
+					} catch (ResourceNotFoundException e) {
+						// This isn't an error, just means no result found
+					}
+				}
+				if (joinPids.isEmpty()) {
+					/*
+					 * None of the requested IDs exist, so nothing can match. Previously this parameter was
+					 * just dropped, which meant that any other parameters were searched as though no _id
+					 * had been given at all.
+					 */
+					return null;
+				}
 
-		ResourceTable savedEntity = updateEntity(null, entity, true, new Date());
+				planned.add(new PlannedPredicate(0, from.get("myId").in(joinPids)));
 
-		notifyWriteCompleted();
+			} else if (nextParamName.equals("_language")) {
 
-		ourLog.info("Processed delete on {} in {}ms", theId.getValue(), w.getMillisAndRestart());
-		return toMethodOutcome(savedEntity, null);
-	}
+				Predicate languagePredicate = addPredicateLanguage(theBuilder, from, nextParamEntry.getValue());
+				if (languagePredicate != null) {
+					planned.add(new PlannedPredicate(100, languagePredicate));
+				}
 
-	@Override
-	public DaoMethodOutcome deleteByUrl(String theUrl) {
-		StopWatch w = new StopWatch();
+			} else if (nextParamName.equals(Constants.PARAM_CONTENT) || nextParamName.equals(Constants.PARAM_TEXT)) {
 
-		Set<Long> resource = processMatchUrl(theUrl, myResourceType);
-		if (resource.isEmpty()) {
-			throw new ResourceNotFoundException(getContext().getLocalizer().getMessage(BaseFhirResourceDao.class, "unableToDeleteNotFound", theUrl));
-		} else if (resource.size() > 1) {
-			throw new ResourceNotFoundException(getContext().getLocalizer().getMessage(BaseFhirDao.class, "transactionOperationWithMultipleMatchFailure", "DELETE", theUrl, resource.size()));
-		}
+				for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
+					if (nextAnd == null || nextAnd.isEmpty()) {
+						continue;
+					}
+					Predicate textPredicate = addPredicateText(theBuilder, cq, from.<Long> get("myId"), myResourceName, nextParamName, nextAnd);
+					planned.add(new PlannedPredicate(50 + nextAnd.size(), textPredicate));
+				}
 
-		Long pid = resource.iterator().next();
+			} else {
 
-		ResourceTable entity = myEntityManager.find(ResourceTable.class, pid);
+				RuntimeSearchParam nextParamDef = resourceDef.getSearchParam(nextParamName);
+				if (nextParamDef != null) {
+					for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
+						if (nextAnd == null || nextAnd.isEmpty()) {
+							continue;
+						}
+						Predicate nextPredicate = createParamPredicate(theBuilder, cq, from.<Long> get("myId"), resourceDef, nextParamName, nextParamDef, nextAnd);
+						if (nextPredicate != null) {
+							planned.add(new PlannedPredicate(estimateSelectivityCost(nextParamDef, nextAnd), nextPredicate));
+						}
+					}
+				}
 
-		ResourceTable savedEntity = updateEntity(null, entity, true, new Date());
-		notifyWriteCompleted();
+			}
+		}
 
-		ourLog.info("Processed delete on {} in {}ms", theUrl, w.getMillisAndRestart());
-		return toMethodOutcome(savedEntity, null);
+		Collections.sort(planned);
+		List<Predicate> predicates = new ArrayList<Predicate>();
+		for (PlannedPredicate next : planned) {
+			predicates.add(next.getPredicate());
+		}
+		return predicates;
+	}
+
+	/**
+	 * Builds a query which selects the PIDs of the resources matching the given parameters, ordered by the given
+	 * sort columns. The sort is part of the same statement as the search predicates, so the database can order (and
+	 * limit) the results without the full list of PIDs ever being loaded. Each sort parameter is joined to its index
+	 * table and aggregated per resource, using the lowest value when sorting ascending and the highest when sorting
+	 * descending, so a resource with several values for a parameter still appears only once.
+	 * <p>
+	 * Resources which have no value for one of the sort parameters are not matched by this query, see
+	 * {@link #createSortRemainderQuery(CriteriaBuilder, SearchParameterMap, List)}
+	 * </p>
+	 * 
+	 * @return Returns <code>null</code> if the parameters can be determined to match nothing without querying
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private CriteriaQuery<Tuple> createSortedSearchQuery(CriteriaBuilder theBuilder, SearchParameterMap theParams, List<SortColumn> theSortColumns) {
+		CriteriaQuery<Tuple> cq = theBuilder.createTupleQuery();
+		Root<ResourceTable> from = cq.from(ResourceTable.class);
+
+		List<Predicate> predicates = createSearchPredicates(theBuilder, cq, from, theParams);
+		if (predicates == null) {
+			return null;
+		}
+
+		List<Selection<?>> selections = new ArrayList<Selection<?>>();
+		List<Expression<?>> groupBy = new ArrayList<Expression<?>>();
+		List<Order> orders = new ArrayList<Order>();
+		selections.add(from.get("myId"));
+		groupBy.add(from.get("myId"));
+
+		for (SortColumn next : theSortColumns) {
+			Expression<?> value;
+			if (next.myIndexType == null) {
+				// _id sorts by the client assigned ID if there is one, then by PID
+				value = from.join("myForcedId", JoinType.LEFT).get("myForcedId");
+				groupBy.add(value);
+			} else {
+				From<?, ?> join = from.join(next.myJoinAttribute, JoinType.INNER);
+				predicates.add(theBuilder.equal(join.get(next.myNameAttribute), next.myName));
+				if (next.myAscending) {
+					value = theBuilder.least((Expression<Comparable>) join.<Comparable> get(next.myAscValueAttribute));
+				} else {
+					value = theBuilder.greatest((Expression<Comparable>) join.<Comparable> get(next.myDescValueAttribute));
+				}
+			}
+			selections.add(value);
+			orders.add(next.myAscending ? theBuilder.asc(value) : theBuilder.desc(value));
+		}
+
+		// Ties (and resources without a client assigned ID) are ordered by PID so that the order is stable
+		boolean idDescending = !theSortColumns.isEmpty() && theSortColumns.get(0).myIndexType == null && !theSortColumns.get(0).myAscending;
+		orders.add(idDescending ? theBuilder.desc(from.get("myId")) : theBuilder.asc(from.get("myId")));
+
+		cq.multiselect(selections);
+		cq.where(theBuilder.and(predicates.toArray(new Predicate[0])));
+		cq.groupBy(groupBy);
+		cq.orderBy(orders);
+		return cq;
+	}
+
+	/**
+	 * Builds a query which selects the PIDs of the resources matching the given parameters which have no value for at
+	 * least one of the sort parameters (and are therefore not matched by
+	 * {@link #createSortedSearchQuery(CriteriaBuilder, SearchParameterMap, List)}). These resources are placed after
+	 * the sorted ones, in PID order.
+	 * 
+	 * @return Returns <code>null</code> if no such resources can exist
+	 */
+	private CriteriaQuery<Long> createSortRemainderQuery(CriteriaBuilder theBuilder, SearchParameterMap theParams, List<SortColumn> theSortColumns) {
+		CriteriaQuery<Long> cq = createSearchQuery(theBuilder, theParams, false);
+		if (cq == null) {
+			return null;
+		}
+		Root<?> from = cq.getRoots().iterator().next();
+
+		List<Predicate> missing = new ArrayList<Predicate>();
+		for (SortColumn next : theSortColumns) {
+			if (next.myIndexType == null) {
+				continue;
+			}
+			Subquery<Long> subQ = cq.subquery(Long.class);
+			Root<?> indexFrom = subQ.from(next.myIndexType);
+			subQ.select(indexFrom.<Long> get(next.myPidAttribute));
+			subQ.where(theBuilder.equal(indexFrom.get(next.myNameAttribute), next.myName));
+			missing.add(theBuilder.not(from.get("myId").in(subQ)));
+		}
+		if (missing.isEmpty()) {
+			return null;
+		}
+
+		cq.where(theBuilder.and(cq.getRestriction(), theBuilder.or(missing.toArray(new Predicate[0]))));
+		return cq;
+	}
+
+	private List<SortColumn> createSortColumns(SortSpec theSort) {
+		List<SortColumn> retVal = new ArrayList<SortColumn>();
+		RuntimeResourceDefinition resourceDef = getContext().getResourceDefinition(myResourceType);
+		Set<String> seen = new HashSet<String>();
+
+		for (SortSpec next = theSort; next != null && isNotBlank(next.getParamName()); next = next.getChain()) {
+			String paramName = next.getParamName();
+			boolean ascending = next.getOrder() == null || next.getOrder() == SortOrderEnum.ASC;
+			if (!seen.add(paramName)) {
+				// A repeated key can't change the order
+				continue;
+			}
+
+			if ("_id".equals(paramName)) {
+				retVal.add(new SortColumn(ascending, null, null, null, null, null, null, null));
+				continue;
+			}
+
+			RuntimeSearchParam param = resourceDef.getSearchParam(paramName);
+			if (param == null) {
+				throw new InvalidRequestException("Unknown sort parameter '" + paramName + "'");
+			}
+
+			switch (param.getParamType()) {
+			case STRING:
+				retVal.add(new SortColumn(ascending, ResourceIndexedSearchParamString.class, "myParamsString", "myParamName", paramName, "myResourcePid", "myValueExact", "myValueExact"));
+				break;
+			case DATE:
+				retVal.add(new SortColumn(ascending, ResourceIndexedSearchParamDate.class, "myParamsDate", "myParamName", paramName, "myResourcePid", "myValueLow", "myValueHigh"));
+				break;
+			case TOKEN:
+				retVal.add(new SortColumn(ascending, ResourceIndexedSearchParamToken.class, "myParamsToken", "myParamName", paramName, "myResourcePid", "myValue", "myValue"));
+				break;
+			case NUMBER:
+				retVal.add(new SortColumn(ascending, ResourceIndexedSearchParamNumber.class, "myParamsNumber", "myParamName", paramName, "myResourcePid", "myValue", "myValue"));
+				break;
+			case QUANTITY:
+				retVal.add(new SortColumn(ascending, ResourceIndexedSearchParamQuantity.class, "myParamsQuantity", "myParamName", paramName, "myResourcePid", "myValue", "myValue"));
+				break;
+			case REFERENCE:
+				retVal.add(new SortColumn(ascending, ResourceLink.class, "myResourceLinks", "mySourcePath", param.getPath(), "mySourceResourcePid", "myTargetResourcePid", "myTargetResourcePid"));
+				break;
+			default:
+				throw new InvalidRequestException("This server does not support _sort specifications of type " + param.getParamType() + " - Can't serve _sort=" + paramName);
+			}
+		}
+
+		return retVal;
+	}
+
+	@Override
+	public DaoMethodOutcome delete(IdDt theId) {
+		StopWatch w = new StopWatch();
+		final ResourceTable entity = readEntityLatestVersion(theId);
+		if (theId.hasVersionIdPart() && theId.getVersionIdPartAsLong().longValue() != entity.getVersion()) {
+			throw new InvalidRequestException("Trying to update " + theId + " but this is not the current version");
+		}
+
+		ResourceTable savedEntity = updateEntity(null, entity, true, new Date());
+
+		notifyWriteCompleted();
+
+		ourLog.info("Processed delete on {} in {}ms", theId.getValue(), w.getMillisAndRestart());
+		return toMethodOutcome(savedEntity, null);
+	}
+
+	@Override
+	public DaoMethodOutcome deleteByUrl(String theUrl) {
+		StopWatch w = new StopWatch();
+
+		Set<Long> resource = processMatchUrl(theUrl, myResourceType);
+		if (resource.isEmpty()) {
+			throw new ResourceNotFoundException(getContext().getLocalizer().getMessage(BaseFhirResourceDao.class, "unableToDeleteNotFound", theUrl));
+		} else if (resource.size() > 1) {
+			throw new ResourceNotFoundException(getContext().getLocalizer().getMessage(BaseFhirDao.class, "transactionOperationWithMultipleMatchFailure", "DELETE", theUrl, resource.size()));
+		}
+
+		Long pid = resource.iterator().next();
+
+		ResourceTable entity = myEntityManager.find(ResourceTable.class, pid);
+
+		ResourceTable savedEntity = updateEntity(null, entity, true, new Date());
+		notifyWriteCompleted();
+
+		ourLog.info("Processed delete on {} in {}ms", theUrl, w.getMillisAndRestart());
+		return toMethodOutcome(savedEntity, null);
 	}
 
 	private DaoMethodOutcome doCreate(T theResource, String theIfNoneExist, boolean thePerformIndexing) {
@@ -992,6 +1321,66 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 		return outcome;
 	}
 
+	/**
+	 * Returns a rough, static estimate of how selective a parameter is likely to be, used to order the predicates in
+	 * a planned search (lower values are expected to match fewer rows). Each additional OR value widens the match.
+	 */
+	private static int estimateSelectivityCost(RuntimeSearchParam theParamDef, List<? extends IQueryParameterType> theOrList) {
+		int retVal;
+		switch (theParamDef.getParamType()) {
+		case TOKEN:
+			retVal = 10;
+			break;
+		case REFERENCE:
+			retVal = 20;
+			break;
+		case NUMBER:
+		case QUANTITY:
+			retVal = 30;
+			break;
+		case STRING:
+			retVal = 40;
+			break;
+		case COMPOSITE:
+			retVal = 50;
+			break;
+		case DATE:
+		default:
+			retVal = 60;
+			break;
+		}
+		return retVal + theOrList.size();
+	}
+
+	private static BigDecimal toQuantitySearchValue(BigDecimal theValue, String theCanonicalSystem, String theCanonicalUnits) {
+		if (theCanonicalSystem == null) {
+			return theValue;
+		}
+		BigDecimal retVal = UcumUtil.toCanonicalValue(theCanonicalSystem, theCanonicalUnits, theValue);
+		if (retVal == null) {
+			throw new InvalidRequestException("Quantity value " + theValue + " can not be converted from units: " + theCanonicalUnits);
+		}
+		return retVal;
+	}
+
+	private Search findReusableSearch(String theQueryString) {
+		Date cutoff = new Date(System.currentTimeMillis() - getConfig().getReuseCachedSearchResultsForMillis());
+
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<Search> cq = builder.createQuery(Search.class);
+		Root<Search> from = cq.from(Search.class);
+		cq.where(builder.equal(from.get("myResourceType"), myResourceName), builder.equal(from.get("mySearchQueryStringHash"), theQueryString.hashCode()),
+				builder.greaterThan(from.<Date> get("myCreated"), cutoff));
+		cq.orderBy(builder.desc(from.get("myCreated")));
+
+		for (Search next : myEntityManager.createQuery(cq).getResultList()) {
+			if (theQueryString.equals(next.getSearchQueryString()) && !isExpired(next) && next.getStatus() != SearchStatusEnum.FAILED) {
+				return next;
+			}
+		}
+		return null;
+	}
+
 	@Override
 	public TagList getAllResourceTags() {
 		StopWatch w = new StopWatch();
@@ -1000,7 +1389,12 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 		return tags;
 	}
 
-	protected abstract List<Object> getIncludeValues(FhirTerser theTerser, Include theInclude, IResource theResource, RuntimeResourceDefinition theResourceDef);
+	/**
+	 * Returns the resource link source paths ({@link ResourceLink#getSourcePath()}) matched by the given
+	 * <code>_include</code>, or an empty set if it doesn't match any. This is not called for <code>*</code>, which
+	 * matches every path.
+	 */
+	protected abstract Set<String> getIncludePaths(Include theInclude);
 
 	public Class<T> getResourceType() {
 		return myResourceType;
@@ -1128,6 +1522,182 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 		return retVal;
 	}
 
+	@Override
+	public IBundleProvider everything(IdDt theId, final Date theSince, final Set<String> theTypes) {
+		if (!PatientCompartment.OWNER_RESOURCE_TYPE.equals(myResourceName)) {
+			throw new InvalidRequestException("$everything is not supported for resource type " + myResourceName);
+		}
+		StopWatch w = new StopWatch();
+
+		// Make sure the owner exists (and hasn't been deleted)
+		read(theId.toVersionless());
+		final Long ownerPid = translateForcedIdToPid(theId);
+		final InstantDt published = InstantDt.withCurrentTime();
+
+		final StringBuilder where = new StringBuilder(" FROM ResourceCompartment c WHERE c.myOwnerResourcePid = :owner");
+		if (theSince != null) {
+			where.append(" AND c.myUpdated >= :since");
+		}
+		if (theTypes != null && !theTypes.isEmpty()) {
+			where.append(" AND c.myResourceType IN (:types)");
+		}
+
+		TypedQuery<Long> countQuery = myEntityManager.createQuery("SELECT count(c)" + where, Long.class);
+		setCompartmentQueryParameters(countQuery, ownerPid, theSince, theTypes);
+		final int count = countQuery.getSingleResult().intValue();
+
+		ourLog.info("Processed $everything on {} ({} resources) in {}ms", new Object[] { theId.getValue(), count, w.getMillisAndRestart() });
+
+		return new IBundleProvider() {
+
+			@Override
+			public InstantDt getPublished() {
+				return published;
+			}
+
+			@Override
+			public List<IResource> getResources(final int theFromIndex, final int theToIndex) {
+				TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+				return template.execute(new TransactionCallback<List<IResource>>() {
+					@Override
+					public List<IResource> doInTransaction(TransactionStatus theStatus) {
+						if (theToIndex <= theFromIndex) {
+							return new ArrayList<IResource>();
+						}
+
+						TypedQuery<Long> q = myEntityManager.createQuery("SELECT c.myResourcePid" + where + " ORDER BY c.myResourcePid ASC", Long.class);
+						setCompartmentQueryParameters(q, ownerPid, theSince, theTypes);
+						q.setFirstResult(theFromIndex);
+						q.setMaxResults(theToIndex - theFromIndex);
+
+						// Resources referred to by the compartment members are included with each page
+						return loadResourcesAndIncludes(q.getResultList(), Collections.singleton(new Include("*")));
+					}
+				});
+			}
+
+			@Override
+			public Integer preferredPageSize() {
+				return null;
+			}
+
+			@Override
+			public int size() {
+				return count;
+			}
+		};
+	}
+
+	private static void setCompartmentQueryParameters(TypedQuery<?> theQuery, Long theOwnerPid, Date theSince, Set<String> theTypes) {
+		theQuery.setParameter("owner", theOwnerPid);
+		if (theSince != null) {
+			theQuery.setParameter("since", theSince, TemporalType.TIMESTAMP);
+		}
+		if (theTypes != null && !theTypes.isEmpty()) {
+			theQuery.setParameter("types", theTypes);
+		}
+	}
+
+	private boolean isExpired(Search theSearch) {
+		long cutoff = System.currentTimeMillis() - getConfig().getExpireSearchResultsAfterMillis();
+		return theSearch.getCreated().getTime() < cutoff;
+	}
+
+	private List<IResource> loadResourcesAndIncludes(List<Long> thePids, Set<Include> theIncludes) {
+		// Execute the query and make sure we return distinct results
+		List<IResource> retVal = new ArrayList<IResource>();
+		loadResourcesByPid(thePids, retVal, BundleEntrySearchModeEnum.MATCH);
+
+		/*
+		 * Load _include resources - Note that _revincludes are handled differently
+		 * than _include ones, as they are counted towards the total count and paged,
+		 * so they are loaded outside the bundle provider
+		 */
+		if (theIncludes != null && theIncludes.isEmpty() == false) {
+			boolean matchAll = false;
+			Set<String> paths = new HashSet<String>();
+			for (Include next : theIncludes) {
+				if ("*".equals(next.getValue())) {
+					matchAll = true;
+				} else {
+					paths.addAll(getIncludePaths(next));
+				}
+			}
+
+			/*
+			 * Each round follows the includes from the resources loaded by the previous one, so that included
+			 * resources can themselves have their references included
+			 */
+			Set<Long> previouslyLoadedPids = new HashSet<Long>(thePids);
+			Collection<Long> sourcePids = thePids;
+			boolean limitReached = false;
+			while (!sourcePids.isEmpty() && (matchAll || !paths.isEmpty()) && !limitReached) {
+				List<Long> includePids = new ArrayList<Long>();
+				for (Long next : findLinkedPids(sourcePids, paths, matchAll, false)) {
+					if (previouslyLoadedPids.size() >= getConfig().getIncludeLimit()) {
+						limitReached = true;
+						break;
+					}
+					if (previouslyLoadedPids.add(next)) {
+						includePids.add(next);
+					}
+				}
+
+				if (!includePids.isEmpty()) {
+					ourLog.info("Loading {} included resources", includePids.size());
+					loadResourcesByPid(includePids, retVal, BundleEntrySearchModeEnum.INCLUDE);
+				}
+				sourcePids = includePids;
+			}
+
+			if (limitReached) {
+				OperationOutcome oo = new OperationOutcome();
+				oo.addIssue().setSeverity(IssueSeverityEnum.WARNING)
+						.setDetails("Not all _include resources were actually included as the request surpassed the limit of " + getConfig().getIncludeLimit() + " resources");
+				retVal.add(0, oo);
+			}
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Follows the indexed resource links from (or, if theReverse is set, to) the given resources, without loading or
+	 * parsing them. Each query covers every requested path and a chunk of the given PIDs.
+	 * 
+	 * @param thePaths
+	 *           The source paths of the links to follow
+	 * @param theMatchAll
+	 *           If true, links with any source path are followed and thePaths is ignored
+	 * @return Returns the PIDs at the other end of the links, in no particular order
+	 */
+	private Set<Long> findLinkedPids(Collection<Long> thePids, Set<String> thePaths, boolean theMatchAll, boolean theReverse) {
+		Set<Long> retVal = new LinkedHashSet<Long>();
+		if (thePids.isEmpty() || (!theMatchAll && thePaths.isEmpty())) {
+			return retVal;
+		}
+
+		String selectAttr = theReverse ? "mySourceResourcePid" : "myTargetResourcePid";
+		String whereAttr = theReverse ? "myTargetResourcePid" : "mySourceResourcePid";
+		StringBuilder sql = new StringBuilder();
+		sql.append("SELECT DISTINCT r.").append(selectAttr).append(" FROM ResourceLink r WHERE r.").append(whereAttr).append(" IN (:pids)");
+		if (!theMatchAll) {
+			sql.append(" AND r.mySourcePath IN (:src_paths)");
+		}
+
+		List<Long> pids = new ArrayList<Long>(thePids);
+		for (int from = 0; from < pids.size(); from += MAX_FORCED_IDS_PER_QUERY) {
+			TypedQuery<Long> q = myEntityManager.createQuery(sql.toString(), Long.class);
+			q.setParameter("pids", pids.subList(from, Math.min(pids.size(), from + MAX_FORCED_IDS_PER_QUERY)));
+			if (!theMatchAll) {
+				q.setParameter("src_paths", thePaths);
+			}
+			retVal.addAll(q.getResultList());
+		}
+
+		return retVal;
+	}
+
 	private void loadResourcesByPid(Collection<Long> theIncludePids, List<IResource> theResourceListToPopulate, BundleEntrySearchModeEnum theBundleEntryStatus) {
 		if (theIncludePids.isEmpty()) {
 			return;
@@ -1139,13 +1709,17 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 			theResourceListToPopulate.add(null);
 		}
 
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<ResourceTable> cq = builder.createQuery(ResourceTable.class);
-		Root<ResourceTable> from = cq.from(ResourceTable.class);
-		cq.where(from.get("myId").in(theIncludePids));
-		TypedQuery<ResourceTable> q = myEntityManager.createQuery(cq);
+		List<Long> pids = new ArrayList<Long>(theIncludePids);
+		List<ResourceTable> entities = new ArrayList<ResourceTable>();
+		for (int i = 0; i < pids.size(); i += MAX_FORCED_IDS_PER_QUERY) {
+			CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+			CriteriaQuery<ResourceTable> cq = builder.createQuery(ResourceTable.class);
+			Root<ResourceTable> from = cq.from(ResourceTable.class);
+			cq.where(from.get("myId").in(pids.subList(i, Math.min(pids.size(), i + MAX_FORCED_IDS_PER_QUERY))));
+			entities.addAll(myEntityManager.createQuery(cq).getResultList());
+		}
 
-		for (ResourceTable next : q.getResultList()) {
+		for (ResourceTable next : entities) {
 			Class<? extends IBaseResource> resourceType = getContext().getResourceDefinition(next.getResourceType()).getImplementingClass();
 			IResource resource = (IResource) toResource(resourceType, next);
 			Integer index = position.get(next.getId());
@@ -1165,51 +1739,177 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 			return;
 		}
 
-		HashSet<Long> pidsToInclude = new HashSet<Long>();
-		
+		boolean matchAll = false;
+		Set<String> paths = new HashSet<String>();
 		for (Include nextInclude : theRevIncludes) {
-			boolean matchAll = "*".equals(nextInclude.getValue());
-			if (matchAll) {
-				String sql = "SELECT r FROM ResourceLink r WHERE r.myTargetResourcePid IN (:target_pids)";
-				TypedQuery<ResourceLink> q = myEntityManager.createQuery(sql, ResourceLink.class);
-				q.setParameter("target_pids", theMatches);
-				List<ResourceLink> results = q.getResultList();
-				for (ResourceLink resourceLink : results) {
-					pidsToInclude.add(resourceLink.getSourceResourcePid());
-				}
-			} else {
-				int colonIdx = nextInclude.getValue().indexOf(':');
-				if (colonIdx < 2) {
-					continue;
-				}
-				String resType = nextInclude.getValue().substring(0, colonIdx);
-				RuntimeResourceDefinition def = getContext().getResourceDefinition(resType);
-				if (def == null) {
-					ourLog.warn("Unknown resource type in _revinclude=" + nextInclude.getValue());
-					continue;
-				}
+			if ("*".equals(nextInclude.getValue())) {
+				matchAll = true;
+				continue;
+			}
 
-				String paramName = nextInclude.getValue().substring(colonIdx + 1);
-				RuntimeSearchParam param = def.getSearchParam(paramName);
-				if (param == null) {
-					ourLog.warn("Unknown param name in _revinclude=" + nextInclude.getValue());
-					continue;
+			int colonIdx = nextInclude.getValue().indexOf(':');
+			if (colonIdx < 2) {
+				continue;
+			}
+			String resType = nextInclude.getValue().substring(0, colonIdx);
+			RuntimeResourceDefinition def = getContext().getResourceDefinition(resType);
+			if (def == null) {
+				ourLog.warn("Unknown resource type in _revinclude=" + nextInclude.getValue());
+				continue;
+			}
+
+			String paramName = nextInclude.getValue().substring(colonIdx + 1);
+			RuntimeSearchParam param = def.getSearchParam(paramName);
+			if (param == null) {
+				ourLog.warn("Unknown param name in _revinclude=" + nextInclude.getValue());
+				continue;
+			}
+
+			// Links are indexed under the full (unsplit) path of the parameter
+			paths.add(param.getPath());
+		}
+
+		Set<Long> pidsToInclude = findLinkedPids(theMatches, paths, matchAll, true);
+		pidsToInclude.removeAll(new HashSet<Long>(theMatches));
+		theMatches.addAll(pidsToInclude);
+	}
+
+	/**
+	 * Loads a single page of a stored search, along with any resources it <code>_include</code>s
+	 */
+	List<IResource> loadSearchResultPage(final Search theSearch, final int theFromIndex, final int theToIndex) {
+		TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+		return template.execute(new TransactionCallback<List<IResource>>() {
+			@Override
+			public List<IResource> doInTransaction(TransactionStatus theStatus) {
+				if (theToIndex <= theFromIndex) {
+					return new ArrayList<IResource>();
 				}
 
-				for (String nextPath : param.getPathsSplit()) {
-					String sql = "SELECT r FROM ResourceLink r WHERE r.mySourcePath = :src_path AND r.myTargetResourcePid IN (:target_pids)";
-					TypedQuery<ResourceLink> q = myEntityManager.createQuery(sql, ResourceLink.class);
-					q.setParameter("src_path", nextPath);
-					q.setParameter("target_pids", theMatches);
-					List<ResourceLink> results = q.getResultList();
-					for (ResourceLink resourceLink : results) {
-						pidsToInclude.add(resourceLink.getSourceResourcePid());
+				CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+				CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+				Root<SearchResult> from = cq.from(SearchResult.class);
+				cq.select(from.get("myResourcePid").as(Long.class));
+				cq.where(builder.equal(from.get("mySearchPid"), theSearch.getId()), builder.greaterThanOrEqualTo(from.<Integer> get("myOrder"), theFromIndex),
+						builder.lessThan(from.<Integer> get("myOrder"), theToIndex));
+				cq.orderBy(builder.asc(from.get("myOrder")));
+
+				List<Long> pids = myEntityManager.createQuery(cq).getResultList();
+				return loadResourcesAndIncludes(pids, toIncludes(theSearch.getIncludes()));
+			}
+		});
+	}
+
+	/**
+	 * Loads the current state of a stored search, or returns <code>null</code> if it has been deleted
+	 */
+	Search loadSearch(final Long theSearchPid) {
+		TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+		return template.execute(new TransactionCallback<Search>() {
+			@Override
+			public Search doInTransaction(TransactionStatus theStatus) {
+				return myEntityManager.find(Search.class, theSearchPid);
+			}
+		});
+	}
+
+	/**
+	 * Stores the remaining results of a search whose first batch of results has already been stored. Each batch is
+	 * stored in its own transaction, so that pages which have been stored can be read while the rest are loading. If
+	 * an estimated total was requested, the results are counted first, which is much faster than storing them.
+	 */
+	void loadRemainingSearchResults(final Long theSearchPid, final SearchParameterMap theParams) {
+		StopWatch w = new StopWatch();
+		TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+		template.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+		try {
+			if (theParams.getTotalMode() == SearchTotalModeEnum.ESTIMATED) {
+				template.execute(new TransactionCallbackWithoutResult() {
+					@Override
+					protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+						CriteriaQuery<Long> cq = createSearchQuery(myEntityManager.getCriteriaBuilder(), theParams, true);
+						long total = cq != null ? myEntityManager.createQuery(cq).getSingleResult() : 0;
+						Search search = myEntityManager.find(Search.class, theSearchPid);
+						if (search != null && search.getStatus() == SearchStatusEnum.LOADING) {
+							search.setTotalCount((int) total);
+						}
+					}
+				});
+			}
+
+			boolean finished = false;
+			while (!finished) {
+				finished = template.execute(new TransactionCallback<Boolean>() {
+					@Override
+					public Boolean doInTransaction(TransactionStatus theStatus) {
+						Search search = myEntityManager.find(Search.class, theSearchPid);
+						if (search == null) {
+							// The search has expired and been deleted while it was loading
+							return true;
+						}
+
+						int numFound = search.getNumFound();
+						Long lastPid = findSearchResultPid(theSearchPid, numFound - 1);
+						CriteriaQuery<Long> cq = createSearchQuery(myEntityManager.getCriteriaBuilder(), theParams, false);
+						int count = storeSearchResultsFromQuery(search, cq, numFound, lastPid, 1);
+						search.setNumFound(count);
+						if (count - numFound < SEARCH_RESULT_BATCH_SIZE) {
+							search.setTotalCount(count);
+							search.setStatus(SearchStatusEnum.FINISHED);
+							return true;
+						}
+						return false;
+					}
+				});
+			}
+
+			ourLog.info("Finished loading search {} for {} in {}ms", new Object[] { theSearchPid, myResourceName, w.getMillis() });
+		} catch (RuntimeException e) {
+			ourLog.error("Failed to load results of search " + theSearchPid + " for " + myResourceName, e);
+			template.execute(new TransactionCallbackWithoutResult() {
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+					Search search = myEntityManager.find(Search.class, theSearchPid);
+					if (search != null) {
+						search.setStatus(SearchStatusEnum.FAILED);
 					}
 				}
+			});
+		}
+	}
+
+	/**
+	 * Submits the remaining results of a search to the {@link SearchLoadingSvc} once the transaction which stored its
+	 * first results has committed, since they can't be seen by the background thread until then
+	 */
+	private void loadRemainingSearchResultsAfterCommit(final Long theSearchPid, final SearchParameterMap theParams) {
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				loadRemainingSearchResults(theSearchPid, theParams);
 			}
+		};
+
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			mySearchLoadingSvc.submit(task);
+			return;
 		}
-		
-		theMatches.addAll(pidsToInclude);
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCommit() {
+				mySearchLoadingSvc.submit(task);
+			}
+		});
+	}
+
+	private Long findSearchResultPid(Long theSearchPid, int theOrder) {
+		//@formatter:off
+		return myEntityManager.createQuery("SELECT r.myResourcePid FROM SearchResult r WHERE r.mySearchPid = :search AND r.myOrder = :order", Long.class)
+				.setParameter("search", theSearchPid)
+				.setParameter("order", theOrder)
+				.getSingleResult();
+		//@formatter:on
 	}
 
 	@Override
@@ -1286,6 +1986,11 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 		return metaGetOperation(theResourceId);
 	}
 
+	@Override
+	public int markAllResourcesForReindexing() {
+		return markResourcesForReindexing(myResourceName);
+	}
+
 	@Override
 	public MetaDt metaGetOperation() {
 		String sql = "SELECT d FROM TagDefinition d WHERE d.myId IN (SELECT DISTINCT t.myTagId FROM ResourceTag t WHERE t.myResourceType = :res_type)";
@@ -1333,13 +2038,18 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 
 	@Override
 	public T read(IdDt theId) {
+		return read(theId, false);
+	}
+
+	@Override
+	public T read(IdDt theId, boolean theIncludeStoredJson) {
 		validateResourceTypeAndThrowIllegalArgumentException(theId);
 
 		StopWatch w = new StopWatch();
 		BaseHasResource entity = readEntity(theId);
 		validateResourceType(entity);
 
-		T retVal = toResource(myResourceType, entity);
+		T retVal = toResource(myResourceType, entity, theIncludeStoredJson);
 
 		InstantDt deleted = ResourceMetadataKeyEnum.DELETED_AT.get(retVal);
 		if (deleted != null && !deleted.isEmpty()) {
@@ -1430,6 +2140,21 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 		ourLog.info("Processed remove tag {}/{} on {} in {}ms", new Object[] { theScheme, theTerm, theId.getValue(), w.getMillisAndRestart() });
 	}
 
+	@Override
+	public IBundleProvider retrieveSearchResults(String theSearchUuid) {
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<Search> cq = builder.createQuery(Search.class);
+		Root<Search> from = cq.from(Search.class);
+		cq.where(builder.equal(from.get("myUuid"), theSearchUuid), builder.equal(from.get("myResourceType"), myResourceName));
+
+		List<Search> results = myEntityManager.createQuery(cq).getResultList();
+		if (results.isEmpty() || isExpired(results.get(0))) {
+			return null;
+		}
+
+		return new PersistedJpaBundleProvider(results.get(0), this);
+	}
+
 	@Override
 	public IBundleProvider search(Map<String, IQueryParameterType> theParams) {
 		SearchParameterMap map = new SearchParameterMap();
@@ -1439,175 +2164,145 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 		return search(map);
 	}
 
+	/**
+	 * Doesn't start a transaction itself, so that a search which has to wait for indexing doesn't hold one open while
+	 * it waits. The search itself runs in a transaction (joining the caller's transaction, if there is one).
+	 */
+	@Transactional(propagation = Propagation.SUPPORTS)
 	@Override
 	public IBundleProvider search(final SearchParameterMap theParams) {
-		StopWatch w = new StopWatch();
-		final InstantDt now = InstantDt.withCurrentTime();
-
-		Set<Long> loadPids;
-		if (theParams.isEmpty()) {
-			loadPids = new HashSet<Long>();
-			CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-			CriteriaQuery<Tuple> cq = builder.createTupleQuery();
-			Root<ResourceTable> from = cq.from(ResourceTable.class);
-			cq.multiselect(from.get("myId").as(Long.class));
-			Predicate typeEquals = builder.equal(from.get("myResourceType"), myResourceName);
-			Predicate notDeleted = builder.isNull(from.get("myDeleted"));
-			cq.where(builder.and(typeEquals, notDeleted));
+		if (theParams.getWaitForIndex() != null) {
+			waitForIndex(theParams.getWaitForIndex());
+		}
 
-			TypedQuery<Tuple> query = myEntityManager.createQuery(cq);
-			for (Tuple next : query.getResultList()) {
-				loadPids.add(next.get(0, Long.class));
-			}
-		} else {
-			loadPids = searchForIdsWithAndOr(theParams);
-			if (loadPids.isEmpty()) {
-				return new SimpleBundleProvider();
+		TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+		return template.execute(new TransactionCallback<IBundleProvider>() {
+			@Override
+			public IBundleProvider doInTransaction(TransactionStatus theStatus) {
+				return doSearch(theParams);
 			}
-		}
+		});
+	}
 
-		final List<Long> pids;
+	private IBundleProvider doSearch(final SearchParameterMap theParams) {
+		StopWatch w = new StopWatch();
 
-		// Handle sorting if any was provided
-		if (theParams.getSort() != null && isNotBlank(theParams.getSort().getParamName())) {
-			List<Order> orders = new ArrayList<Order>();
-			List<Predicate> predicates = new ArrayList<Predicate>();
-			CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-			CriteriaQuery<Tuple> cq = builder.createTupleQuery();
-			Root<ResourceTable> from = cq.from(ResourceTable.class);
-			predicates.add(from.get("myId").in(loadPids));
-			createSort(builder, from, theParams.getSort(), orders, predicates);
-			if (orders.size() > 0) {
-				Set<Long> originalPids = loadPids;
-				loadPids = new LinkedHashSet<Long>();
-				cq.multiselect(from.get("myId").as(Long.class));
-				cq.where(predicates.toArray(new Predicate[0]));
-				cq.orderBy(orders);
-
-				TypedQuery<Tuple> query = myEntityManager.createQuery(cq);
-
-				for (Tuple next : query.getResultList()) {
-					loadPids.add(next.get(0, Long.class));
-				}
+		if (theParams.isSummaryCount()) {
+			return countSearchResults(theParams, w);
+		}
 
-				ourLog.info("Sort PID order is now: {}", loadPids);
+		SearchTotalModeEnum totalMode = theParams.getTotalMode() != null ? theParams.getTotalMode() : SearchTotalModeEnum.ACCURATE;
 
-				pids = new ArrayList<Long>(loadPids);
+		String queryString = theParams.toNormalizedQueryString();
+		if (getConfig().getReuseCachedSearchResultsForMillis() > 0 && theParams.getWaitForIndex() == null) {
+			Search cached = findReusableSearch(queryString);
+			if (cached != null) {
+				ourLog.info("Reusing stored results of search {} for {} on {}", new Object[] { cached.getUuid(), myResourceName, theParams });
+				return new PersistedJpaBundleProvider(cached, this, totalMode);
+			}
+		}
 
-				// Any ressources which weren't matched by the sort get added to the bottom
-				for (Long next : originalPids) {
-					if (loadPids.contains(next) == false) {
-						pids.add(next);
-					}
+		Search search = new Search();
+		search.setUuid(UUID.randomUUID().toString());
+		search.setCreated(new Date());
+		search.setResourceType(myResourceName);
+		search.setSearchQueryString(queryString);
+		search.setIncludes(toIncludesString(theParams.getIncludes()));
+		search.setPreferredPageSize(theParams.getCount());
+		search.setTotalMode(totalMode);
+		search.setStatus(SearchStatusEnum.LOADING);
+		myEntityManager.persist(search);
+
+		boolean haveSort = theParams.getSort() != null && isNotBlank(theParams.getSort().getParamName());
+		boolean haveRevIncludes = theParams.getRevIncludes() != null && theParams.getRevIncludes().isEmpty() == false;
+
+		int count;
+		if (!haveRevIncludes) {
+			/*
+			 * The matching PIDs are copied straight from the planned query into the result table in batches, so the
+			 * full list is never held in memory
+			 */
+			if (haveSort) {
+				count = storeSortedSearchResults(search, theParams);
+			} else if (totalMode != SearchTotalModeEnum.ACCURATE && mySearchLoadingSvc != null) {
+				/*
+				 * The client doesn't need the total straight away, so only the first batch of results is stored
+				 * before returning and the rest are stored in the background
+				 */
+				count = storeSearchResultsFromQuery(search, createSearchQuery(myEntityManager.getCriteriaBuilder(), theParams, false), 0, Long.MIN_VALUE, 1);
+				if (count == SEARCH_RESULT_BATCH_SIZE) {
+					search.setNumFound(count);
+					loadRemainingSearchResultsAfterCommit(search.getId(), theParams);
+					ourLog.info("Stored first {} results of search {} for {} on {} in {}ms, loading the rest in the background", new Object[] { count, search.getUuid(), myResourceName, theParams,
+							w.getMillisAndRestart() });
+					return new PersistedJpaBundleProvider(search, this);
 				}
-
 			} else {
-				pids = new ArrayList<Long>(loadPids);
+				count = storeSearchResultsFromQuery(search, createSearchQuery(myEntityManager.getCriteriaBuilder(), theParams, false), 0);
 			}
 		} else {
-			pids = new ArrayList<Long>(loadPids);
-		}
+			List<Long> pids = searchForSortedIds(theParams);
 
-		// Load _revinclude resources
-		if (theParams.getRevIncludes() != null && theParams.getRevIncludes().isEmpty() == false) {
+			// Load _revinclude resources
 			loadReverseIncludes(pids, theParams.getRevIncludes());
+
+			for (int i = 0; i < pids.size(); i += SEARCH_RESULT_BATCH_SIZE) {
+				storeSearchResults(search, pids.subList(i, Math.min(pids.size(), i + SEARCH_RESULT_BATCH_SIZE)), i);
+			}
+			count = pids.size();
 		}
+		search.setNumFound(count);
+		search.setTotalCount(count);
+		search.setStatus(SearchStatusEnum.FINISHED);
+
+		ourLog.info("Processed search {} for {} on {} in {}ms", new Object[] { search.getUuid(), myResourceName, theParams, w.getMillisAndRestart() });
+
+		return new PersistedJpaBundleProvider(search, this);
+	}
+
+	/**
+	 * Counts the resources matching a search with <code>_summary=count</code>. Only the count is selected, so no
+	 * PIDs are loaded or stored.
+	 */
+	private IBundleProvider countSearchResults(SearchParameterMap theParams, StopWatch theStopWatch) {
+		CriteriaQuery<Long> cq = createSearchQuery(myEntityManager.getCriteriaBuilder(), theParams, true);
+		final int count = cq != null ? myEntityManager.createQuery(cq).getSingleResult().intValue() : 0;
+		final InstantDt published = InstantDt.withCurrentTime();
+
+		ourLog.info("Counted {} results for {} on {} in {}ms", new Object[] { count, myResourceName, theParams, theStopWatch.getMillisAndRestart() });
+
+		return new ILazyTotalBundleProvider() {
 
-		IBundleProvider retVal = new IBundleProvider() {
 			@Override
-			public InstantDt getPublished() {
-				return now;
+			public int getAvailableCount(int theMinimum) {
+				return 0;
 			}
 
 			@Override
-			public List<IResource> getResources(final int theFromIndex, final int theToIndex) {
-				TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
-				return template.execute(new TransactionCallback<List<IResource>>() {
-					@Override
-					public List<IResource> doInTransaction(TransactionStatus theStatus) {
-						List<Long> pidsSubList = pids.subList(theFromIndex, theToIndex);
-
-						// Execute the query and make sure we return distinct results
-						List<IResource> retVal = new ArrayList<IResource>();
-						loadResourcesByPid(pidsSubList, retVal, BundleEntrySearchModeEnum.MATCH);
-
-						/*
-						 * Load _include resources - Note that _revincludes are handled differently
-						 * than _include ones, as they are counted towards the total count and paged,
-						 * so they are loaded outside the bundle provider
-						 */
-						if (theParams.getIncludes() != null && theParams.getIncludes().isEmpty() == false) {
-							Set<IdDt> previouslyLoadedPids = new HashSet<IdDt>();
-							for (IResource next : retVal) {
-								previouslyLoadedPids.add(next.getId().toUnqualifiedVersionless());
-							}
-
-							Set<IdDt> includePids = new HashSet<IdDt>();
-							List<IResource> resources = retVal;
-							do {
-								includePids.clear();
-
-								FhirTerser t = getContext().newTerser();
-								for (Include next : theParams.getIncludes()) {
-									for (IResource nextResource : resources) {
-										RuntimeResourceDefinition def = getContext().getResourceDefinition(nextResource);
-										List<Object> values = getIncludeValues(t, next, nextResource, def);
-
-										for (Object object : values) {
-											if (object == null) {
-												continue;
-											}
-											if (!(object instanceof BaseResourceReferenceDt)) {
-												throw new InvalidRequestException("Path '" + next.getValue() + "' produced non ResourceReferenceDt value: " + object.getClass());
-											}
-											BaseResourceReferenceDt rr = (BaseResourceReferenceDt) object;
-											if (rr.getReference().isEmpty()) {
-												continue;
-											}
-											if (rr.getReference().isLocal()) {
-												continue;
-											}
-
-											IdDt nextId = rr.getReference().toUnqualified();
-											if (!previouslyLoadedPids.contains(nextId)) {
-												includePids.add(nextId);
-												previouslyLoadedPids.add(nextId);
-											}
-										}
-									}
-								}
-
-								resources = addResourcesAsIncludesById(retVal, includePids, resources);
-							} while (includePids.size() > 0 && previouslyLoadedPids.size() < getConfig().getIncludeLimit());
-
-							if (previouslyLoadedPids.size() >= getConfig().getIncludeLimit()) {
-								OperationOutcome oo = new OperationOutcome();
-								oo.addIssue().setSeverity(IssueSeverityEnum.WARNING)
-										.setDetails("Not all _include resources were actually included as the request surpassed the limit of " + getConfig().getIncludeLimit() + " resources");
-								retVal.add(0, oo);
-							}
-						}
+			public InstantDt getPublished() {
+				return published;
+			}
 
-						return retVal;
-					}
+			@Override
+			public Integer getReportedTotal() {
+				return count;
+			}
 
-				});
+			@Override
+			public List<IResource> getResources(int theFromIndex, int theToIndex) {
+				return Collections.emptyList();
 			}
 
 			@Override
 			public Integer preferredPageSize() {
-				return theParams.getCount();
+				return null;
 			}
 
 			@Override
 			public int size() {
-				return pids.size();
+				return count;
 			}
 		};
-
-		ourLog.info("Processed search for {} on {} in {}ms", new Object[] { myResourceName, theParams, w.getMillisAndRestart() });
-
-		return retVal;
 	}
 
 	@Override
@@ -1636,119 +2331,37 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 			params = new SearchParameterMap();
 		}
 
-		RuntimeResourceDefinition resourceDef = getContext().getResourceDefinition(myResourceType);
-
-		Set<Long> pids = new HashSet<Long>();
-
-		for (Entry<String, List<List<? extends IQueryParameterType>>> nextParamEntry : params.entrySet()) {
-			String nextParamName = nextParamEntry.getKey();
-			if (nextParamName.equals("_id")) {
-
-				if (nextParamEntry.getValue().isEmpty()) {
-					continue;
-				} else if (nextParamEntry.getValue().size() > 1) {
-					throw new InvalidRequestException("AND queries not supported for _id (Multiple instances of this param found)");
-				} else {
-					Set<Long> joinPids = new HashSet<Long>();
-					List<? extends IQueryParameterType> nextValue = nextParamEntry.getValue().get(0);
-					if (nextValue == null || nextValue.size() == 0) {
-						continue;
-					} else {
-						for (IQueryParameterType next : nextValue) {
-							String value = next.getValueAsQueryToken();
-							IdDt valueId = new IdDt(value);
-							try {
-								long valueLong = translateForcedIdToPid(valueId);
-								joinPids.add(valueLong);
-							} catch (ResourceNotFoundException e) {
-								// This isn't an error, just means no result found
-							}
-						}
-						if (joinPids.isEmpty()) {
-							continue;
-						}
-					}
-
-					pids = addPredicateId(pids, joinPids);
-					if (pids.isEmpty()) {
-						return new HashSet<Long>();
-					}
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<Long> cq = createSearchQuery(builder, params, false);
+		if (cq == null) {
+			return new HashSet<Long>();
+		}
 
-					if (pids.isEmpty()) {
-						pids.addAll(joinPids);
-					} else {
-						pids.retainAll(joinPids);
-					}
-				}
+		TypedQuery<Long> q = myEntityManager.createQuery(cq);
+		return new HashSet<Long>(q.getResultList());
+	}
 
-			} else if (nextParamName.equals("_language")) {
+	private List<Long> searchForSortedIds(SearchParameterMap theParams) {
+		if (theParams.getSort() == null || isBlank(theParams.getSort().getParamName())) {
+			return new ArrayList<Long>(searchForIdsWithAndOr(theParams));
+		}
 
-				pids = addPredicateLanguage(pids, nextParamEntry.getValue());
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+		List<SortColumn> sortColumns = createSortColumns(theParams.getSort());
+		CriteriaQuery<Tuple> cq = createSortedSearchQuery(builder, theParams, sortColumns);
+		if (cq == null) {
+			return new ArrayList<Long>();
+		}
 
-			} else {
+		List<Long> pids = new ArrayList<Long>();
+		for (Tuple next : myEntityManager.createQuery(cq).getResultList()) {
+			pids.add(next.get(0, Long.class));
+		}
 
-				RuntimeSearchParam nextParamDef = resourceDef.getSearchParam(nextParamName);
-				if (nextParamDef != null) {
-					switch (nextParamDef.getParamType()) {
-					case DATE:
-						for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
-							pids = addPredicateDate(nextParamName, pids, nextAnd);
-							if (pids.isEmpty()) {
-								return new HashSet<Long>();
-							}
-						}
-						break;
-					case QUANTITY:
-						for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
-							pids = addPredicateQuantity(nextParamName, pids, nextAnd);
-							if (pids.isEmpty()) {
-								return new HashSet<Long>();
-							}
-						}
-						break;
-					case REFERENCE:
-						for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
-							pids = addPredicateReference(nextParamName, pids, nextAnd);
-							if (pids.isEmpty()) {
-								return new HashSet<Long>();
-							}
-						}
-						break;
-					case STRING:
-						for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
-							pids = addPredicateString(nextParamName, pids, nextAnd);
-							if (pids.isEmpty()) {
-								return new HashSet<Long>();
-							}
-						}
-						break;
-					case TOKEN:
-						for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
-							pids = addPredicateToken(nextParamName, pids, nextAnd);
-							if (pids.isEmpty()) {
-								return new HashSet<Long>();
-							}
-						}
-						break;
-					case NUMBER:
-						for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
-							pids = addPredicateNumber(nextParamName, pids, nextAnd);
-							if (pids.isEmpty()) {
-								return new HashSet<Long>();
-							}
-						}
-						break;
-					case COMPOSITE:
-						for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
-							pids = addPredicateComposite(nextParamDef, pids, nextAnd);
-							if (pids.isEmpty()) {
-								return new HashSet<Long>();
-							}
-						}
-						break;
-					}
-				}
-			}
+		// Any resources which weren't matched by the sort get added to the bottom
+		CriteriaQuery<Long> remainder = createSortRemainderQuery(builder, theParams, sortColumns);
+		if (remainder != null) {
+			pids.addAll(myEntityManager.createQuery(remainder).getResultList());
 		}
 
 		return pids;
@@ -1767,6 +2380,147 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 		mySecondaryPrimaryKeyParamName = theSecondaryPrimaryKeyParamName;
 	}
 
+	/**
+	 * Stores the results of a sorted search. The sorted query is executed once and its results are streamed into the
+	 * result table in batches, followed by the resources which have no value for one of the sort parameters.
+	 */
+	private int storeSortedSearchResults(Search theSearch, SearchParameterMap theParams) {
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+		List<SortColumn> sortColumns = createSortColumns(theParams.getSort());
+		CriteriaQuery<Tuple> cq = createSortedSearchQuery(builder, theParams, sortColumns);
+		if (cq == null) {
+			return 0;
+		}
+
+		int count = 0;
+		org.hibernate.Query query = myEntityManager.createQuery(cq).unwrap(org.hibernate.Query.class);
+		query.setFetchSize(SEARCH_RESULT_BATCH_SIZE);
+		ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			List<Long> nextBatch = new ArrayList<Long>(SEARCH_RESULT_BATCH_SIZE);
+			while (results.next()) {
+				nextBatch.add(toSortedPid(results.get(0)));
+				if (nextBatch.size() == SEARCH_RESULT_BATCH_SIZE) {
+					storeSearchResults(theSearch, nextBatch, count);
+					count += nextBatch.size();
+					nextBatch.clear();
+				}
+			}
+			storeSearchResults(theSearch, nextBatch, count);
+			count += nextBatch.size();
+		} finally {
+			results.close();
+		}
+
+		CriteriaQuery<Long> remainder = createSortRemainderQuery(builder, theParams, sortColumns);
+		if (remainder != null) {
+			count = storeSearchResultsFromQuery(theSearch, remainder, count);
+		}
+
+		return count;
+	}
+
+	private static Long toSortedPid(Object theRow) {
+		if (theRow instanceof Tuple) {
+			return ((Tuple) theRow).get(0, Long.class);
+		}
+		return (Long) theRow;
+	}
+
+	/**
+	 * Copies the PIDs selected by the given query (which must be ordered by PID) into the result table, starting at the
+	 * given order
+	 * 
+	 * @return Returns the order following the last stored result
+	 */
+	private int storeSearchResultsFromQuery(Search theSearch, CriteriaQuery<Long> cq, int theFirstOrder) {
+		return storeSearchResultsFromQuery(theSearch, cq, theFirstOrder, Long.MIN_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Copies the PIDs selected by the given query which are greater than the given PID into the result table, starting
+	 * at the given order, stopping after the given number of batches
+	 * 
+	 * @return Returns the order following the last stored result
+	 */
+	private int storeSearchResultsFromQuery(Search theSearch, CriteriaQuery<Long> cq, int theFirstOrder, long theAfterPid, int theMaxBatches) {
+		if (cq == null) {
+			return theFirstOrder;
+		}
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+
+		/*
+		 * The planned query is ordered by PID, so each batch picks up after the last PID of the previous one
+		 */
+		Root<?> from = cq.getRoots().iterator().next();
+		ParameterExpression<Long> lastPid = builder.parameter(Long.class);
+		cq.where(builder.and(cq.getRestriction(), builder.greaterThan(from.<Long> get("myId"), lastPid)));
+
+		TypedQuery<Long> q = myEntityManager.createQuery(cq);
+		q.setMaxResults(SEARCH_RESULT_BATCH_SIZE);
+
+		int count = theFirstOrder;
+		Long nextLastPid = theAfterPid;
+		for (int batch = 1;; batch++) {
+			q.setParameter(lastPid, nextLastPid);
+			List<Long> nextBatch = q.getResultList();
+			storeSearchResults(theSearch, nextBatch, count);
+			count += nextBatch.size();
+			if (nextBatch.size() < SEARCH_RESULT_BATCH_SIZE || batch >= theMaxBatches) {
+				break;
+			}
+			nextLastPid = nextBatch.get(nextBatch.size() - 1);
+		}
+
+		return count;
+	}
+
+	private void storeSearchResults(Search theSearch, List<Long> thePids, int theFirstOrder) {
+		if (thePids.isEmpty()) {
+			return;
+		}
+
+		List<SearchResult> results = new ArrayList<SearchResult>(thePids.size());
+		int order = theFirstOrder;
+		for (Long next : thePids) {
+			SearchResult result = new SearchResult(theSearch, order++, next);
+			myEntityManager.persist(result);
+			results.add(result);
+		}
+
+		// Don't keep the results in the persistence context once they have been written
+		myEntityManager.flush();
+		for (SearchResult next : results) {
+			myEntityManager.detach(next);
+		}
+	}
+
+	private static Set<Include> toIncludes(String theIncludes) {
+		Set<Include> retVal = new HashSet<Include>();
+		if (isNotBlank(theIncludes)) {
+			for (String next : theIncludes.split("\n")) {
+				if (isNotBlank(next)) {
+					retVal.add(new Include(next));
+				}
+			}
+		}
+		return retVal;
+	}
+
+	private static String toIncludesString(Set<Include> theIncludes) {
+		if (theIncludes == null || theIncludes.isEmpty()) {
+			return null;
+		}
+		StringBuilder b = new StringBuilder();
+		for (Include next : theIncludes) {
+			if (b.length() > 0) {
+				b.append('\n');
+			}
+			b.append(next.getValue());
+		}
+		return b.toString();
+	}
+
 	private DaoMethodOutcome toMethodOutcome(final ResourceTable theEntity, IResource theResource) {
 		DaoMethodOutcome outcome = new DaoMethodOutcome();
 		outcome.setId(theEntity.getIdDt());
@@ -1835,6 +2589,39 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 		return retVal;
 	}
 
+	/**
+	 * Blocks until no resource version written at or before the given time is still waiting to be indexed, or throws
+	 * {@link PreconditionFailedException} if this takes longer than {@link DaoConfig#getWaitForIndexMaxWaitMillis()}.
+	 * Each check runs in its own short transaction (unless the caller already has one), so no transaction is held
+	 * open while sleeping and every check sees the indexing which has been committed since the last one.
+	 */
+	private void waitForIndex(final Date theWrittenBefore) {
+		long deadline = System.currentTimeMillis() + getConfig().getWaitForIndexMaxWaitMillis();
+		TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+		template.setReadOnly(true);
+		TransactionCallback<Long> countPending = new TransactionCallback<Long>() {
+			@Override
+			public Long doInTransaction(TransactionStatus theStatus) {
+				TypedQuery<Long> q = myEntityManager.createQuery("SELECT COUNT(r) FROM ResourceTable r WHERE r.myIndexStatus = :status AND r.myUpdated <= :updated", Long.class);
+				q.setParameter("status", ResourceTable.INDEX_STATUS_PENDING);
+				q.setParameter("updated", theWrittenBefore, TemporalType.TIMESTAMP);
+				return q.getSingleResult();
+			}
+		};
+
+		while (template.execute(countPending) > 0) {
+			if (System.currentTimeMillis() >= deadline) {
+				throw new PreconditionFailedException("Resources written before " + new InstantDt(theWrittenBefore).getValueAsString() + " have not been indexed yet, please try again later");
+			}
+			try {
+				Thread.sleep(WAIT_FOR_INDEX_POLL_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new PreconditionFailedException("Interrupted while waiting for resources to be indexed");
+			}
+		}
+	}
+
 	@Override
 	public DaoMethodOutcome update(T theResource) {
 		return update(theResource, null);
@@ -1842,7 +2629,7 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 
 	@Override
 	public DaoMethodOutcome update(T theResource, String theMatchUrl) {
-		return update(theResource, theMatchUrl, true);
+		return update(theResource, theMatchUrl, !getConfig().isDeferIndexing());
 	}
 
 	@Override
@@ -1915,4 +2702,61 @@ public abstract class BaseFhirResourceDao<T extends IResource> extends BaseFhirD
 		}
 	}
 
+	/**
+	 * Describes where the values of a single <code>_sort</code> parameter are indexed. An index type of
+	 * <code>null</code> means sorting by resource ID.
+	 */
+	private static class SortColumn {
+		private final String myAscValueAttribute;
+		private final boolean myAscending;
+		private final String myDescValueAttribute;
+		private final Class<?> myIndexType;
+		private final String myJoinAttribute;
+		private final String myName;
+		private final String myNameAttribute;
+		private final String myPidAttribute;
+
+		public SortColumn(boolean theAscending, Class<?> theIndexType, String theJoinAttribute, String theNameAttribute, String theName, String thePidAttribute, String theAscValueAttribute,
+				String theDescValueAttribute) {
+			myAscending = theAscending;
+			myIndexType = theIndexType;
+			myJoinAttribute = theJoinAttribute;
+			myNameAttribute = theNameAttribute;
+			myName = theName;
+			myPidAttribute = thePidAttribute;
+			myAscValueAttribute = theAscValueAttribute;
+			myDescValueAttribute = theDescValueAttribute;
+		}
+
+	}
+
+	/**
+	 * A single predicate in a planned search query, along with an estimate of how expensive it is to evaluate. Cheaper
+	 * (more selective) predicates are placed first so that the database can narrow the candidate set early.
+	 */
+	private static class PlannedPredicate implements Comparable<PlannedPredicate> {
+		private final int myCost;
+		private final Predicate myPredicate;
+
+		public PlannedPredicate(int theCost, Predicate thePredicate) {
+			myCost = theCost;
+			myPredicate = thePredicate;
+		}
+
+		@Override
+		public int compareTo(PlannedPredicate theO) {
+			if (myCost < theO.myCost) {
+				return -1;
+			} else if (myCost > theO.myCost) {
+				return 1;
+			}
+			return 0;
+		}
+
+		public Predicate getPredicate() {
+			return myPredicate;
+		}
+
+	}
+
 }
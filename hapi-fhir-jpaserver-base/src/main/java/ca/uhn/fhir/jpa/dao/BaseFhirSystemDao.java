@@ -20,12 +20,16 @@ package ca.uhn.fhir.jpa.dao;
  * #L%
  */
 
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.annotation.PostConstruct;
 import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
 import javax.persistence.PersistenceContext;
 import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
@@ -33,11 +37,20 @@ import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Root;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import ca.uhn.fhir.jpa.entity.MigrationMarker;
+import ca.uhn.fhir.jpa.entity.ResourceChange;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.jpa.util.StopWatch;
+import ca.uhn.fhir.model.api.IResource;
 import ca.uhn.fhir.model.api.TagList;
 import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.model.primitive.InstantDt;
@@ -45,8 +58,28 @@ import ca.uhn.fhir.rest.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 
 public abstract class BaseFhirSystemDao<T> extends BaseFhirDao implements IFhirSystemDao<T> {
+	/**
+	 * Name of the {@link MigrationMarker} which records that existing resources have been marked for compartment
+	 * indexing
+	 */
+	static final String MIGRATION_COMPARTMENT_INDEX = "COMPARTMENT_INDEX";
+
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BaseFhirSystemDao.class);
 
+	/**
+	 * Incremented (and notified) every time a transaction which wrote to the change log commits, so that
+	 * {@link #readChanges(long, int, long)} can wait for new changes without polling the database
+	 */
+	private long myChangeCounter;
+	private final Object myChangeMonitor = new Object();
+	private boolean myChangeListenersRegistered;
+
+	@Autowired
+	private PlatformTransactionManager myPlatformTransactionManager;
+
+	@Autowired
+	private List<IFhirResourceDao<?>> myResourceDaos;
+
 	@Transactional(propagation=Propagation.REQUIRED)
 	@Override
 	public void deleteAllTagsOnServer() {
@@ -83,6 +116,217 @@ public abstract class BaseFhirSystemDao<T> extends BaseFhirDao implements IFhirS
 		return retVal;
 	}
 
+	@Transactional(propagation = Propagation.REQUIRED)
+	@Override
+	public int indexDeferredResources(List<Long> theResourcePids) {
+		int retVal = 0;
+		for (Long next : theResourcePids) {
+			if (indexDeferredResource(next)) {
+				retVal++;
+			}
+		}
+		return retVal;
+	}
+
+	@Override
+	public int markAllResourcesForReindexing() {
+		return markResourcesForReindexing(null);
+	}
+
+	/**
+	 * Indexes a single resource if it is still waiting to be indexed (or reindexed). The row is locked first so that two indexers
+	 * (e.g. the background indexer and an NDJSON import, or two server instances) never index the same resource at
+	 * the same time.
+	 * 
+	 * @return Returns <code>true</code> if the resource was indexed, or <code>false</code> if it did not need to be
+	 */
+	protected boolean indexDeferredResource(Long thePid) {
+		ResourceTable entity = myEntityManager.find(ResourceTable.class, thePid, LockModeType.PESSIMISTIC_WRITE);
+		if (entity == null) {
+			return false;
+		}
+		if (!ResourceTable.INDEX_STATUS_PENDING.equals(entity.getIndexStatus()) && !ResourceTable.INDEX_STATUS_REINDEX_REQUIRED.equals(entity.getIndexStatus())) {
+			return false;
+		}
+		if (entity.getFhirVersion() != getContext().getVersion().getVersion()) {
+			return false;
+		}
+
+		reindex((IResource) toResource(entity), entity);
+		return true;
+	}
+
+	@PostConstruct
+	public void start() {
+		startAdvanceIdSequences();
+		startCreateChangeCounter();
+		startMarkResourcesForCompartmentIndexing();
+	}
+
+	/**
+	 * Makes sure that the ID sequences of the index, link and search result tables are ahead of the IDs which were
+	 * allocated from <code>hibernate_sequence</code> before those tables had their own sequences (see
+	 * {@link IdSequenceMigration}). A failure here stops the server from starting, since it would otherwise fail with
+	 * primary key collisions.
+	 */
+	private void startAdvanceIdSequences() {
+		TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+		template.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+				IdSequenceMigration.advanceSequences(myEntityManager);
+			}
+		});
+	}
+
+	/**
+	 * Creates the change log counter row at startup (if it doesn't already exist), so that the first transactions to
+	 * write changes don't race to create it
+	 */
+	private void startCreateChangeCounter() {
+		TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+		try {
+			template.execute(new TransactionCallbackWithoutResult() {
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+					createChangeCounter();
+				}
+			});
+		} catch (RuntimeException e) {
+			// Probably another server instance sharing the database created it first
+			ourLog.warn("Failed to create change log counter: {}", e.toString());
+		}
+	}
+
+	/**
+	 * Databases which were created before the compartment membership index existed have resources which refer to a
+	 * patient but no compartment rows, so $everything would return nothing for them. If that is the case, every
+	 * resource is marked for reindexing so that the {@link DeferredIndexingSvc} populates the index in the background.
+	 * Completion is recorded as a {@link MigrationMarker}, so later startups only look up that row. The marker is
+	 * written after the resources have been marked, so a server which stops part way through marks them again.
+	 */
+	private void startMarkResourcesForCompartmentIndexing() {
+		TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+		template.setReadOnly(true);
+		Boolean needed = template.execute(new TransactionCallback<Boolean>() {
+			@Override
+			public Boolean doInTransaction(TransactionStatus theStatus) {
+				if (myEntityManager.find(MigrationMarker.class, MIGRATION_COMPARTMENT_INDEX) != null) {
+					return null;
+				}
+
+				TypedQuery<Long> compartments = myEntityManager.createQuery("SELECT c.myId FROM ResourceCompartment c", Long.class);
+				compartments.setMaxResults(1);
+				if (!compartments.getResultList().isEmpty()) {
+					return false;
+				}
+
+				TypedQuery<Long> links = myEntityManager.createQuery("SELECT l.myId FROM ResourceLink l WHERE l.myTargetResource.myResourceType = :type", Long.class);
+				links.setParameter("type", PatientCompartment.OWNER_RESOURCE_TYPE);
+				links.setMaxResults(1);
+				return !links.getResultList().isEmpty();
+			}
+		});
+		if (needed == null) {
+			return;
+		}
+
+		if (needed) {
+			ourLog.info("Compartment membership index is empty, marking all resources for reindexing");
+			markAllResourcesForReindexing();
+		}
+
+		template = new TransactionTemplate(myPlatformTransactionManager);
+		try {
+			template.execute(new TransactionCallbackWithoutResult() {
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+					if (myEntityManager.find(MigrationMarker.class, MIGRATION_COMPARTMENT_INDEX) == null) {
+						myEntityManager.persist(new MigrationMarker(MIGRATION_COMPARTMENT_INDEX));
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			// Probably another server instance sharing the database recorded it first
+			ourLog.warn("Failed to record migration {}: {}", MIGRATION_COMPARTMENT_INDEX, e.toString());
+		}
+	}
+
+	@Override
+	public List<ResourceChange> readChanges(final long theAfterSequence, int theCount, long theMaxWaitMillis) {
+		registerChangeListenersIfNeeded();
+
+		final int count = Math.max(1, Math.min(theCount, getConfig().getChangeFeedMaxCount()));
+		long maxWait = Math.max(0, Math.min(theMaxWaitMillis, getConfig().getChangeFeedMaxWaitMillis()));
+		long deadline = System.currentTimeMillis() + maxWait;
+
+		TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+		template.setReadOnly(true);
+
+		while (true) {
+			long counter;
+			synchronized (myChangeMonitor) {
+				counter = myChangeCounter;
+			}
+
+			List<ResourceChange> retVal = template.execute(new TransactionCallback<List<ResourceChange>>() {
+				@Override
+				public List<ResourceChange> doInTransaction(TransactionStatus theStatus) {
+					TypedQuery<ResourceChange> q = myEntityManager.createQuery("SELECT c FROM ResourceChange c WHERE c.mySequence > :AFTER ORDER BY c.mySequence ASC", ResourceChange.class);
+					q.setParameter("AFTER", theAfterSequence);
+					q.setMaxResults(count);
+					return q.getResultList();
+				}
+			});
+
+			long remaining = deadline - System.currentTimeMillis();
+			if (!retVal.isEmpty() || remaining <= 0) {
+				return retVal;
+			}
+
+			synchronized (myChangeMonitor) {
+				if (myChangeCounter == counter) {
+					try {
+						myChangeMonitor.wait(remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return Collections.emptyList();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Listeners are registered the first time the change feed is read rather than at startup, since the resource DAOs
+	 * may not be fully initialized when this DAO is created
+	 */
+	private synchronized void registerChangeListenersIfNeeded() {
+		if (myChangeListenersRegistered) {
+			return;
+		}
+
+		IDaoListener listener = new IDaoListener() {
+			@Override
+			public void writeCompleted(List<ResourceChange> theChanges) {
+				if (theChanges.isEmpty()) {
+					return;
+				}
+				synchronized (myChangeMonitor) {
+					myChangeCounter++;
+					myChangeMonitor.notifyAll();
+				}
+			}
+		};
+
+		for (IFhirResourceDao<?> next : myResourceDaos) {
+			next.registerDaoListener(listener);
+		}
+		registerDaoListener(listener);
+
+		myChangeListenersRegistered = true;
+	}
+
 	@Override
 	public TagList getAllTags() {
 		StopWatch w = new StopWatch();
@@ -20,41 +20,47 @@ package ca.uhn.fhir.jpa.dao;
  * #L%
  */
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
 import ca.uhn.fhir.model.api.IResource;
-import ca.uhn.fhir.util.FhirTerser;
 
 public class BaseSearchParamExtractor {
-	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BaseSearchParamExtractor.class);
 	private FhirContext myContext;
-	
+	private final ConcurrentHashMap<RuntimeResourceDefinition, CompiledSearchParamPaths> myResourceDefToCompiledPaths = new ConcurrentHashMap<RuntimeResourceDefinition, CompiledSearchParamPaths>();
+
 	public BaseSearchParamExtractor(FhirContext theContext) {
 		myContext = theContext;
 	}
 
+	/**
+	 * Extracts the values of all search parameters for the given resource in a single pass. The result is shared by
+	 * the individual <code>extractSearchParamXXX</code> methods, which read from it using
+	 * {@link #getValues(Map, RuntimeSearchParam)}.
+	 */
+	public Map<RuntimeSearchParam, List<Object>> extractValues(IResource theResource) {
+		RuntimeResourceDefinition def = myContext.getResourceDefinition(theResource);
+		CompiledSearchParamPaths paths = myResourceDefToCompiledPaths.get(def);
+		if (paths == null) {
+			paths = new CompiledSearchParamPaths(myContext, def);
+			CompiledSearchParamPaths existing = myResourceDefToCompiledPaths.putIfAbsent(def, paths);
+			if (existing != null) {
+				paths = existing;
+			}
+		}
+		return paths.extract(theResource);
+	}
+
 	protected FhirContext getContext() {
 		return myContext;
 	}
 
-	protected List<Object> extractValues(String thePaths, IResource theResource) {
-		List<Object> values = new ArrayList<Object>();
-		String[] nextPathsSplit = thePaths.split("\\|");
-		FhirTerser t = myContext.newTerser();
-		for (String nextPath : nextPathsSplit) {
-			String nextPathTrimmed = nextPath.trim();
-			try {
-				values.addAll(t.getValues(theResource, nextPathTrimmed));
-			} catch (Exception e) {
-				RuntimeResourceDefinition def = myContext.getResourceDefinition(theResource);
-				ourLog.warn("Failed to index values from path[{}] in resource type[{}]: ", nextPathTrimmed, def.getName(), e.toString());
-			}
-		}
-		return values;
+	protected List<Object> getValues(Map<RuntimeSearchParam, List<Object>> theValues, RuntimeSearchParam theParam) {
+		return CompiledSearchParamPaths.getValues(theValues, theParam);
 	}
 
-	
 }
@@ -0,0 +1,260 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.IBase;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeChildChoiceDefinition;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.model.api.IResource;
+
+/**
+ * The search parameter paths (e.g. <code>Patient.name.family | Patient.contact.name.family</code>) of a single
+ * resource type, compiled into a tree of child definitions so that every search parameter of a resource can be
+ * extracted in a single pass over the resource.
+ * <p>
+ * Each step of each path is resolved against the resource definition once, when the tree is built, instead of being
+ * split and looked up by name for every resource being indexed (which is what {@link ca.uhn.fhir.util.FhirTerser}
+ * does). Paths which share a prefix share the nodes for that prefix, so e.g. <code>Patient.name.family</code> and
+ * <code>Patient.name.given</code> only walk <code>Patient.name</code> once. Choice elements are filtered the same way
+ * the terser does it (<code>Observation.valueQuantity</code> only matches quantities, whereas
+ * <code>Observation.value[x]</code> matches any type), and this also applies to choice elements in the middle of a
+ * path.
+ * </p>
+ * <p>
+ * Instances are immutable once built and are thread safe.
+ * </p>
+ */
+class CompiledSearchParamPaths {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(CompiledSearchParamPaths.class);
+
+	private final FhirContext myContext;
+	private final RuntimeResourceDefinition myResourceDef;
+	private final Map<String, Node> myRoots = new LinkedHashMap<String, Node>();
+
+	CompiledSearchParamPaths(FhirContext theContext, RuntimeResourceDefinition theResourceDef) {
+		myContext = theContext;
+		myResourceDef = theResourceDef;
+
+		for (RuntimeSearchParam nextParam : theResourceDef.getSearchParams()) {
+			String nextPaths = nextParam.getPath();
+			if (isBlank(nextPaths)) {
+				continue;
+			}
+			for (String nextPath : nextPaths.split("\\|")) {
+				String nextPathTrimmed = nextPath.trim();
+				try {
+					compile(nextParam, nextPathTrimmed);
+				} catch (Exception e) {
+					ourLog.warn("Failed to compile search parameter path[{}] in resource type[{}]: {}", new Object[] { nextPathTrimmed, theResourceDef.getName(), e.toString() });
+				}
+			}
+		}
+	}
+
+	private void compile(RuntimeSearchParam theParam, String thePath) {
+		String[] parts = thePath.split("\\.");
+		if (parts.length < 2) {
+			throw new IllegalArgumentException("Invalid path: " + thePath);
+		}
+
+		/*
+		 * Resolve the whole path before adding anything to the tree so that an invalid path doesn't leave a dangling
+		 * branch behind
+		 */
+		BaseRuntimeElementCompositeDefinition<?> parentDef = myResourceDef;
+		List<Node> resolved = new ArrayList<Node>(parts.length - 1);
+		for (int i = 1; i < parts.length; i++) {
+			String name = parts[i];
+			BaseRuntimeChildDefinition childDef = null;
+			if (parentDef != null) {
+				childDef = parentDef.getChildByNameOrThrowDataFormatException(name);
+			}
+			Node node = new Node(name, parentDef, childDef);
+			resolved.add(node);
+			parentDef = node.myValueDef;
+		}
+
+		Map<String, Node> children = myRoots;
+		Node node = null;
+		for (Node next : resolved) {
+			node = children.get(next.myName);
+			if (node == null) {
+				node = next;
+				children.put(node.myName, node);
+			}
+			children = node.myChildren;
+		}
+		node.myParams.add(theParam);
+	}
+
+	/**
+	 * Extracts the values of every search parameter of the given resource, keyed by search parameter. Parameters which
+	 * have no values are not present in the returned map - Use {@link #getValues(Map, RuntimeSearchParam)} to read
+	 * from it.
+	 */
+	Map<RuntimeSearchParam, List<Object>> extract(IResource theResource) {
+		Map<RuntimeSearchParam, List<Object>> retVal = new HashMap<RuntimeSearchParam, List<Object>>();
+		for (Node next : myRoots.values()) {
+			evaluate(next, myResourceDef, theResource, retVal);
+		}
+		return retVal;
+	}
+
+	private void evaluate(Node theNode, BaseRuntimeElementCompositeDefinition<?> theParentDef, Object theParent, Map<RuntimeSearchParam, List<Object>> theValues) {
+		List<? extends IBase> values;
+		BaseRuntimeChildDefinition childDef;
+		try {
+			childDef = theNode.getChildDefinition(theParentDef);
+			values = childDef.getAccessor().getValues(theParent);
+		} catch (Exception e) {
+			ourLog.warn("Failed to index values from path element[{}] in resource type[{}]: {}", new Object[] { theNode.myName, myResourceDef.getName(), e.toString() });
+			return;
+		}
+		if (values.isEmpty()) {
+			return;
+		}
+
+		boolean choice = childDef instanceof RuntimeChildChoiceDefinition;
+		boolean filterChoice = choice && !theNode.myName.endsWith("[x]");
+
+		for (RuntimeSearchParam nextParam : theNode.myParams) {
+			List<Object> paramValues = theValues.get(nextParam);
+			if (paramValues == null) {
+				paramValues = new ArrayList<Object>(values.size());
+				theValues.put(nextParam, paramValues);
+			}
+			if (!choice) {
+				paramValues.addAll(values);
+				continue;
+			}
+			for (IBase next : values) {
+				if (next != null && (!filterChoice || theNode.myName.equals(childDef.getChildNameByDatatype(next.getClass())))) {
+					paramValues.add(next);
+				}
+			}
+		}
+
+		if (theNode.myChildren.isEmpty()) {
+			return;
+		}
+
+		for (IBase next : values) {
+			if (next == null) {
+				continue;
+			}
+			if (filterChoice && !theNode.myName.equals(childDef.getChildNameByDatatype(next.getClass()))) {
+				continue;
+			}
+			BaseRuntimeElementCompositeDefinition<?> nextDef = theNode.getValueDefinition(myContext, next);
+			if (nextDef == null) {
+				continue;
+			}
+			for (Node nextChild : theNode.myChildren.values()) {
+				evaluate(nextChild, nextDef, next, theValues);
+			}
+		}
+	}
+
+	/**
+	 * Returns the values extracted for the given search parameter by {@link #extract(IResource)}
+	 */
+	static List<Object> getValues(Map<RuntimeSearchParam, List<Object>> theValues, RuntimeSearchParam theParam) {
+		List<Object> retVal = theValues.get(theParam);
+		if (retVal == null) {
+			return Collections.emptyList();
+		}
+		return retVal;
+	}
+
+	private static class Node {
+		private final BaseRuntimeChildDefinition myChildDef;
+		private final Map<String, Node> myChildren = new LinkedHashMap<String, Node>();
+		private final String myName;
+		private final List<RuntimeSearchParam> myParams = new ArrayList<RuntimeSearchParam>(1);
+		private final BaseRuntimeElementCompositeDefinition<?> myParentDef;
+		private final BaseRuntimeElementCompositeDefinition<?> myValueDef;
+		private final Class<?> myValueType;
+
+		/**
+		 * @param theParentDef
+		 *           The definition the child was resolved against, or <code>null</code> if the type of the parent
+		 *           element can only be known at runtime (e.g. it is a choice)
+		 * @param theChildDef
+		 *           The resolved child, or <code>null</code> if the parent definition is not known
+		 */
+		Node(String theName, BaseRuntimeElementCompositeDefinition<?> theParentDef, BaseRuntimeChildDefinition theChildDef) {
+			myName = theName;
+			myParentDef = theParentDef;
+			myChildDef = theChildDef;
+
+			BaseRuntimeElementCompositeDefinition<?> valueDef = null;
+			if (theChildDef != null && !(theChildDef instanceof RuntimeChildChoiceDefinition)) {
+				BaseRuntimeElementDefinition<?> elementDef;
+				try {
+					elementDef = theChildDef.getChildByName(theName);
+				} catch (RuntimeException e) {
+					// Not all child types can describe their values up front, those are resolved at runtime instead
+					elementDef = null;
+				}
+				if (elementDef instanceof BaseRuntimeElementCompositeDefinition) {
+					valueDef = (BaseRuntimeElementCompositeDefinition<?>) elementDef;
+				}
+			}
+			myValueDef = valueDef;
+			myValueType = valueDef != null ? valueDef.getImplementingClass() : null;
+		}
+
+		BaseRuntimeChildDefinition getChildDefinition(BaseRuntimeElementCompositeDefinition<?> theParentDef) {
+			if (theParentDef == myParentDef) {
+				return myChildDef;
+			}
+			return theParentDef.getChildByNameOrThrowDataFormatException(myName);
+		}
+
+		BaseRuntimeElementCompositeDefinition<?> getValueDefinition(FhirContext theContext, IBase theValue) {
+			if (theValue.getClass() == myValueType) {
+				return myValueDef;
+			}
+			BaseRuntimeElementDefinition<?> retVal = theContext.getElementDefinition(theValue.getClass());
+			if (retVal instanceof BaseRuntimeElementCompositeDefinition) {
+				return (BaseRuntimeElementCompositeDefinition<?>) retVal;
+			}
+			return null;
+		}
+
+	}
+
+}
@@ -20,14 +20,35 @@ package ca.uhn.fhir.jpa.dao;
  * #L%
  */
 
+import org.apache.commons.lang3.time.DateUtils;
+
 import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
 
 public class DaoConfig {
 
+	private int myChangeFeedMaxCount = 1000;
+	private boolean myDeferIndexing = false;
+	private int myDeferredIndexingBatchSize = 100;
+	private int myDeferredIndexingThreadCount = 2;
+	private long myChangeFeedMaxWaitMillis = 30 * DateUtils.MILLIS_PER_SECOND;
 	private int myHardSearchLimit = 1000;
 	private int myHardTagListLimit = 1000;
 	private ResourceEncodingEnum myResourceEncoding=ResourceEncodingEnum.JSONC;
+	private long myResourceTextCacheMaximumLength = 16 * 1024 * 1024;
+	private int myImportBatchSize = 100;
 	private int myIncludeLimit = 2000;
+	private int myReencodeBatchSize = 500;
+	private int myReindexingMaxResourcesPerPoll = 0;
+	private long myExpireSearchResultsAfterMillis = DateUtils.MILLIS_PER_HOUR;
+	private long myForcedIdCacheExpireAfterMillis = DateUtils.MILLIS_PER_HOUR;
+	private int myForcedIdCacheMaximumSize = 10000;
+	private long myReuseCachedSearchResultsForMillis = 0;
+	private long myWaitForIndexMaxWaitMillis = 30 * DateUtils.MILLIS_PER_SECOND;
+	private int myTagDefinitionCacheMaximumSize = 10000;
+	private boolean mySearchUsingHashIndexes = false;
+	private boolean myFullTextIndexing = false;
+	private boolean mySearchUsingNormalizedQuantities = false;
+	private int mySearchLoadingThreadCount = 2;
 
 	/**
 	 * This is the maximum number of resources that will be added to a single page of 
@@ -58,10 +79,19 @@ public class DaoConfig {
 		myHardTagListLimit = theHardTagListLimit;
 	}
 
+	/**
+	 * See {@link #setResourceEncoding(ResourceEncodingEnum)}
+	 */
 	public ResourceEncodingEnum getResourceEncoding() {
 		return myResourceEncoding;
 	}
 
+	/**
+	 * Sets the encoding used to store new resource versions in the database. Default is
+	 * {@link ResourceEncodingEnum#JSONC} (GZIP). {@link ResourceEncodingEnum#JSONL} (LZ4) is much cheaper to decode,
+	 * and {@link ResourceEncodingEnum#JSOND} stores small resources more densely. Previously stored versions keep
+	 * their original encoding unless they are rewritten using the {@link ResourceReencodingSvc}.
+	 */
 	public void setResourceEncoding(ResourceEncodingEnum theResourceEncoding) {
 		myResourceEncoding = theResourceEncoding;
 	}
@@ -70,4 +100,321 @@ public class DaoConfig {
 		return myIncludeLimit;
 	}
 
+	/**
+	 * See {@link #setReencodeBatchSize(int)}
+	 */
+	public int getReencodeBatchSize() {
+		return myReencodeBatchSize;
+	}
+
+	/**
+	 * Sets the maximum number of stored resource bodies which the {@link ResourceReencodingSvc} will convert to the
+	 * current {@link #setResourceEncoding(ResourceEncodingEnum) resource encoding} in each database transaction.
+	 * Default is 500.
+	 */
+	public void setReencodeBatchSize(int theReencodeBatchSize) {
+		myReencodeBatchSize = theReencodeBatchSize;
+	}
+
+	/**
+	 * See {@link #setImportBatchSize(int)}
+	 */
+	public int getImportBatchSize() {
+		return myImportBatchSize;
+	}
+
+	/**
+	 * Sets the number of resources which will be committed in each database transaction during a bulk NDJSON import
+	 * (the <code>$import</code> operation), unless the client requests a different size. Default is 100.
+	 */
+	public void setImportBatchSize(int theImportBatchSize) {
+		myImportBatchSize = theImportBatchSize;
+	}
+
+	/**
+	 * See {@link #setChangeFeedMaxCount(int)}
+	 */
+	public int getChangeFeedMaxCount() {
+		return myChangeFeedMaxCount;
+	}
+
+	/**
+	 * Sets the maximum number of change log entries returned by a single read of the change feed (the
+	 * <code>$changes</code> operation). Requests for more entries than this are truncated. Default is 1000.
+	 */
+	public void setChangeFeedMaxCount(int theChangeFeedMaxCount) {
+		myChangeFeedMaxCount = theChangeFeedMaxCount;
+	}
+
+	/**
+	 * See {@link #setChangeFeedMaxWaitMillis(long)}
+	 */
+	public long getChangeFeedMaxWaitMillis() {
+		return myChangeFeedMaxWaitMillis;
+	}
+
+	/**
+	 * Sets the longest time (in milliseconds) that a read of the change feed will wait for new changes to arrive when
+	 * there are none to return immediately. Requests for a longer wait are truncated. Default is 30 seconds.
+	 */
+	public void setChangeFeedMaxWaitMillis(long theChangeFeedMaxWaitMillis) {
+		myChangeFeedMaxWaitMillis = theChangeFeedMaxWaitMillis;
+	}
+
+	/**
+	 * See {@link #setExpireSearchResultsAfterMillis(long)}
+	 */
+	public long getExpireSearchResultsAfterMillis() {
+		return myExpireSearchResultsAfterMillis;
+	}
+
+	/**
+	 * The results of each search are stored in the database so that they can be paged through. This setting controls
+	 * how long (in milliseconds) those results are kept before they are eligible to be deleted. Clients who attempt to
+	 * page through a search after this time will receive an error. Default is one hour.
+	 */
+	public void setExpireSearchResultsAfterMillis(long theExpireSearchResultsAfterMillis) {
+		myExpireSearchResultsAfterMillis = theExpireSearchResultsAfterMillis;
+	}
+
+	/**
+	 * See {@link #setForcedIdCacheExpireAfterMillis(long)}
+	 */
+	public long getForcedIdCacheExpireAfterMillis() {
+		return myForcedIdCacheExpireAfterMillis;
+	}
+
+	/**
+	 * Sets how long (in milliseconds) a translation between a client assigned resource ID and the internal PID is kept
+	 * in the {@link ForcedIdCache} after it is loaded. Default is one hour. This setting is read when the cache is
+	 * created, so changing it afterward has no effect.
+	 */
+	public void setForcedIdCacheExpireAfterMillis(long theForcedIdCacheExpireAfterMillis) {
+		myForcedIdCacheExpireAfterMillis = theForcedIdCacheExpireAfterMillis;
+	}
+
+	/**
+	 * See {@link #setForcedIdCacheMaximumSize(int)}
+	 */
+	public int getForcedIdCacheMaximumSize() {
+		return myForcedIdCacheMaximumSize;
+	}
+
+	/**
+	 * Sets the maximum number of entries (in each direction) held by the {@link ForcedIdCache}. Default is 10000. Set
+	 * to 0 to effectively disable the cache. This setting is read when the cache is created, so changing it afterward
+	 * has no effect.
+	 */
+	public void setForcedIdCacheMaximumSize(int theForcedIdCacheMaximumSize) {
+		myForcedIdCacheMaximumSize = theForcedIdCacheMaximumSize;
+	}
+
+	/**
+	 * See {@link #setTagDefinitionCacheMaximumSize(int)}
+	 */
+	public int getTagDefinitionCacheMaximumSize() {
+		return myTagDefinitionCacheMaximumSize;
+	}
+
+	/**
+	 * Sets the maximum number of tag, security label and profile definitions held by the {@link TagDefinitionCache}.
+	 * Default is 10000. Set to 0 to effectively disable the cache. This setting is read when the cache is created, so
+	 * changing it afterward has no effect.
+	 */
+	public void setTagDefinitionCacheMaximumSize(int theTagDefinitionCacheMaximumSize) {
+		myTagDefinitionCacheMaximumSize = theTagDefinitionCacheMaximumSize;
+	}
+
+	/**
+	 * See {@link #setResourceTextCacheMaximumLength(long)}
+	 */
+	public long getResourceTextCacheMaximumLength() {
+		return myResourceTextCacheMaximumLength;
+	}
+
+	/**
+	 * Sets the maximum total length (in characters) of the decoded resource text held by the
+	 * {@link ResourceTextCache}. Default is 16M characters. Set to 0 to effectively disable the cache. This setting is
+	 * read when the cache is created, so changing it afterward has no effect.
+	 */
+	public void setResourceTextCacheMaximumLength(long theResourceTextCacheMaximumLength) {
+		myResourceTextCacheMaximumLength = theResourceTextCacheMaximumLength;
+	}
+
+	/**
+	 * See {@link #setReuseCachedSearchResultsForMillis(long)}
+	 */
+	public long getReuseCachedSearchResultsForMillis() {
+		return myReuseCachedSearchResultsForMillis;
+	}
+
+	/**
+	 * If set to a value greater than 0, a search which exactly matches a search that was performed within this many
+	 * milliseconds will return the stored results of the earlier search instead of being executed again. Note that
+	 * this means the results may not reflect changes made within that window. Default is 0 (disabled).
+	 */
+	public void setReuseCachedSearchResultsForMillis(long theReuseCachedSearchResultsForMillis) {
+		myReuseCachedSearchResultsForMillis = theReuseCachedSearchResultsForMillis;
+	}
+
+	/**
+	 * See {@link #setDeferIndexing(boolean)}
+	 */
+	public boolean isDeferIndexing() {
+		return myDeferIndexing;
+	}
+
+	/**
+	 * If set to <code>true</code> (default is <code>false</code>), resources which are created or updated are stored
+	 * without extracting their search parameters, and are marked as pending indexing. The index rows are written
+	 * afterward by the {@link DeferredIndexingSvc}, so writes return sooner but a search performed immediately
+	 * afterward may not find the new resource version. Clients which need to read their own writes can pass the
+	 * <code>meta.lastUpdated</code> of the write in the <code>_waitForIndex</code> search parameter.
+	 */
+	public void setDeferIndexing(boolean theDeferIndexing) {
+		myDeferIndexing = theDeferIndexing;
+	}
+
+	/**
+	 * See {@link #setDeferredIndexingBatchSize(int)}
+	 */
+	public int getDeferredIndexingBatchSize() {
+		return myDeferredIndexingBatchSize;
+	}
+
+	/**
+	 * Sets the number of resources which each {@link DeferredIndexingSvc} worker thread indexes in a single database
+	 * transaction. Default is 100.
+	 */
+	public void setDeferredIndexingBatchSize(int theDeferredIndexingBatchSize) {
+		myDeferredIndexingBatchSize = theDeferredIndexingBatchSize;
+	}
+
+	/**
+	 * See {@link #setDeferredIndexingThreadCount(int)}
+	 */
+	public int getDeferredIndexingThreadCount() {
+		return myDeferredIndexingThreadCount;
+	}
+
+	/**
+	 * Sets the number of worker threads which the {@link DeferredIndexingSvc} uses to index pending resources. This
+	 * is read when the service starts. Default is 2.
+	 */
+	public void setDeferredIndexingThreadCount(int theDeferredIndexingThreadCount) {
+		myDeferredIndexingThreadCount = theDeferredIndexingThreadCount;
+	}
+
+	/**
+	 * See {@link #setWaitForIndexMaxWaitMillis(long)}
+	 */
+	public long getWaitForIndexMaxWaitMillis() {
+		return myWaitForIndexMaxWaitMillis;
+	}
+
+	/**
+	 * Sets the maximum amount of time that a search which specifies the <code>_waitForIndex</code> parameter will
+	 * wait for pending resources to be indexed before failing. Default is 30 seconds.
+	 */
+	public void setWaitForIndexMaxWaitMillis(long theWaitForIndexMaxWaitMillis) {
+		myWaitForIndexMaxWaitMillis = theWaitForIndexMaxWaitMillis;
+	}
+
+	/**
+	 * See {@link #setReindexingMaxResourcesPerPoll(int)}
+	 */
+	public int getReindexingMaxResourcesPerPoll() {
+		return myReindexingMaxResourcesPerPoll;
+	}
+
+	/**
+	 * Sets the maximum number of resources which have been marked for reindexing (e.g. by the <code>$reindex</code>
+	 * operation) that the {@link DeferredIndexingSvc} will reindex each time it polls, which by default is once per
+	 * second. This can be used to throttle reindexing of a large server so that it doesn't compete with normal
+	 * traffic. Resources whose indexing was deferred are always indexed first and don't count towards this limit.
+	 * Default is 0, meaning no limit other than the number of worker threads and their batch size.
+	 */
+	public void setReindexingMaxResourcesPerPoll(int theReindexingMaxResourcesPerPoll) {
+		myReindexingMaxResourcesPerPoll = theReindexingMaxResourcesPerPoll;
+	}
+
+	/**
+	 * See {@link #setSearchUsingHashIndexes(boolean)}
+	 */
+	public boolean isSearchUsingHashIndexes() {
+		return mySearchUsingHashIndexes;
+	}
+
+	/**
+	 * If set to <code>true</code> (default is <code>false</code>), token and string searches are resolved using the
+	 * narrow 64-bit hash columns on the token and string index tables instead of the wide indexes on the values
+	 * themselves. The hash columns are populated whenever a resource is written or reindexed, so a server with
+	 * existing data should first run the <code>$reindex</code> operation and wait for it to complete before enabling
+	 * this, since rows written before the hash columns existed will not be found by hash. Once enabled, the wide value
+	 * indexes (<code>IDX_SP_TOKEN</code>, <code>IDX_SP_TOKEN_UNQUAL</code> and <code>IDX_SP_STRING</code>) are no
+	 * longer needed for searching and may be dropped.
+	 */
+	public void setSearchUsingHashIndexes(boolean theSearchUsingHashIndexes) {
+		mySearchUsingHashIndexes = theSearchUsingHashIndexes;
+	}
+
+	/**
+	 * See {@link #setFullTextIndexing(boolean)}
+	 */
+	public boolean isFullTextIndexing() {
+		return myFullTextIndexing;
+	}
+
+	/**
+	 * If set to <code>true</code> (default is <code>false</code>), the values of string search parameters and the
+	 * resource narrative are broken down into trigram and phonetic terms which are stored in the
+	 * <code>HFJ_SPIDX_TEXT_TERM</code> table. This is required by the <code>:fuzzy</code> and <code>:phonetic</code>
+	 * string qualifiers and the <code>_content</code> and <code>_text</code> search parameters, and lets
+	 * <code>:contains</code> searches use an index instead of scanning every string value. Terms are written in the
+	 * same transaction as the resource (or by the {@link DeferredIndexingSvc} if indexing is deferred), at the cost of
+	 * several extra index rows per string value. Resources stored before this was enabled are not found by these
+	 * searches until the <code>$reindex</code> operation has been run.
+	 */
+	public void setFullTextIndexing(boolean theFullTextIndexing) {
+		myFullTextIndexing = theFullTextIndexing;
+	}
+
+	/**
+	 * See {@link #setSearchUsingNormalizedQuantities(boolean)}
+	 */
+	public boolean isSearchUsingNormalizedQuantities() {
+		return mySearchUsingNormalizedQuantities;
+	}
+
+	/**
+	 * If set to <code>true</code> (default is <code>false</code>), quantity searches with UCUM units (system
+	 * <code>http://unitsofmeasure.org</code>) are converted to canonical units and matched against the normalized
+	 * quantity columns, so that for example a search for <code>1|http://unitsofmeasure.org|g/L</code> also finds values
+	 * stored as <code>100 mg/dL</code>. Units can only be converted between quantities of the same dimension, so a
+	 * molar concentration (e.g. <code>mmol/L</code>) never matches a mass concentration (e.g. <code>mg/dL</code>).
+	 * The normalized columns are populated whenever a resource is written or reindexed, so a server with existing data
+	 * should first run the <code>$reindex</code> operation and wait for it to complete before enabling this. Searches
+	 * with units which are not UCUM are always matched against the units as stored.
+	 */
+	public void setSearchUsingNormalizedQuantities(boolean theSearchUsingNormalizedQuantities) {
+		mySearchUsingNormalizedQuantities = theSearchUsingNormalizedQuantities;
+	}
+
+	/**
+	 * See {@link #setSearchLoadingThreadCount(int)}
+	 */
+	public int getSearchLoadingThreadCount() {
+		return mySearchLoadingThreadCount;
+	}
+
+	/**
+	 * Sets the number of threads used by the {@link SearchLoadingSvc} to store the remaining results of searches whose
+	 * first page has already been returned (i.e. searches with <code>_total=none</code> or
+	 * <code>_total=estimate</code>). Each search is loaded by a single thread, so this is the number of searches which
+	 * can be loaded at the same time; any others wait for a free thread. Default is 2.
+	 */
+	public void setSearchLoadingThreadCount(int theSearchLoadingThreadCount) {
+		mySearchLoadingThreadCount = theSearchLoadingThreadCount;
+	}
+
 }
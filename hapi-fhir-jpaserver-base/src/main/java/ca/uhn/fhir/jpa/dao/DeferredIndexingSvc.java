@@ -0,0 +1,314 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+
+import org.apache.commons.lang3.time.DateUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.jpa.util.StopWatch;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+
+/**
+ * Indexes resources which were stored with indexing deferred (see {@link DaoConfig#setDeferIndexing(boolean)}), and
+ * rebuilds the index rows of resources which have been marked for reindexing (see
+ * {@link IFhirSystemDao#markAllResourcesForReindexing()}). Pending resources are found using the index status column on
+ * the resource table rather than an in-memory queue, so nothing is lost if the server stops before they are indexed;
+ * they are simply picked up on the next poll after a restart. This class must be created as a Spring bean, and
+ * scheduling must be enabled in the context (e.g. using <code>&lt;task:annotation-driven/&gt;</code>) for it to run
+ * automatically.
+ */
+public class DeferredIndexingSvc {
+
+	public static final long DEFAULT_POLL_INTERVAL_MILLIS = DateUtils.MILLIS_PER_SECOND;
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(DeferredIndexingSvc.class);
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	private ExecutorService myExecutor;
+
+	@Autowired
+	private PlatformTransactionManager myPlatformTransactionManager;
+
+	@Autowired
+	private List<IFhirSystemDao<?>> mySystemDaos;
+
+	private int myThreadCount;
+
+	private volatile double myThroughputPerSecond;
+
+	@PostConstruct
+	public void start() {
+		myThreadCount = Math.max(1, myDaoConfig.getDeferredIndexingThreadCount());
+		ourLog.info("Starting {} deferred indexing threads", myThreadCount);
+
+		final AtomicInteger threadIndex = new AtomicInteger();
+		myExecutor = Executors.newFixedThreadPool(myThreadCount, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable theRunnable) {
+				Thread retVal = new Thread(theRunnable, "deferred-indexing-" + threadIndex.incrementAndGet());
+				retVal.setDaemon(true);
+				return retVal;
+			}
+		});
+	}
+
+	@PreDestroy
+	public void stop() {
+		myExecutor.shutdownNow();
+	}
+
+	/**
+	 * Returns the number of resources which are waiting to be indexed
+	 */
+	public long getBacklog() {
+		return countWithStatus(ResourceTable.INDEX_STATUS_PENDING);
+	}
+
+	/**
+	 * Returns the number of resources which have been marked for reindexing (e.g. by the <code>$reindex</code>
+	 * operation) and haven't been reindexed yet
+	 */
+	public long getReindexBacklog() {
+		return countWithStatus(ResourceTable.INDEX_STATUS_REINDEX_REQUIRED);
+	}
+
+	/**
+	 * Returns the number of resources per second which were indexed by the most recent poll which found any work to
+	 * do, or 0 if no resources have been indexed yet
+	 */
+	public double getThroughputPerSecond() {
+		return myThroughputPerSecond;
+	}
+
+	/**
+	 * Returns the number of milliseconds that the oldest resource which is waiting to be indexed has been waiting for,
+	 * or 0 if no resources are waiting
+	 */
+	public long getLagMillis() {
+		Date oldest = newTransactionTemplate().execute(new TransactionCallback<Date>() {
+			@Override
+			public Date doInTransaction(TransactionStatus theStatus) {
+				//@formatter:off
+				return myEntityManager.createQuery("SELECT MIN(r.myUpdated) FROM ResourceTable r WHERE r.myIndexStatus = :status", Date.class)
+						.setParameter("status", ResourceTable.INDEX_STATUS_PENDING)
+						.getSingleResult();
+				//@formatter:on
+			}
+		});
+		if (oldest == null) {
+			return 0;
+		}
+		return Math.max(0, System.currentTimeMillis() - oldest.getTime());
+	}
+
+	/**
+	 * Indexes a batch of pending resources, splitting them between {@link DaoConfig#getDeferredIndexingThreadCount()}
+	 * worker threads which each index up to {@link DaoConfig#getDeferredIndexingBatchSize()} resources in a single
+	 * transaction. Resources whose indexing was deferred are indexed first, in the order in which they were first
+	 * created, and any remaining capacity is used for resources which have been marked for reindexing (subject to
+	 * {@link DaoConfig#getReindexingMaxResourcesPerPoll()}).
+	 * 
+	 * @return The number of resources which were indexed
+	 */
+	@Scheduled(fixedDelay = DEFAULT_POLL_INTERVAL_MILLIS)
+	public synchronized int pollForPendingResources() {
+		final int batchSize = Math.max(1, myDaoConfig.getDeferredIndexingBatchSize());
+		int capacity = myThreadCount * batchSize;
+
+		List<Long> pending = findWithStatus(ResourceTable.INDEX_STATUS_PENDING, capacity);
+		int reindexCapacity = capacity - pending.size();
+		if (myDaoConfig.getReindexingMaxResourcesPerPoll() > 0) {
+			reindexCapacity = Math.min(reindexCapacity, myDaoConfig.getReindexingMaxResourcesPerPoll());
+		}
+		List<Long> reindex = Collections.emptyList();
+		if (reindexCapacity > 0) {
+			reindex = findWithStatus(ResourceTable.INDEX_STATUS_REINDEX_REQUIRED, reindexCapacity);
+		}
+
+		List<Long> work = new ArrayList<Long>(pending.size() + reindex.size());
+		work.addAll(pending);
+		work.addAll(reindex);
+		if (work.isEmpty()) {
+			return 0;
+		}
+
+		StopWatch w = new StopWatch();
+		int retVal = 0;
+		List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+		try {
+			for (int fromIndex = 0; fromIndex < work.size(); fromIndex += batchSize) {
+				int toIndex = Math.min(fromIndex + batchSize, work.size());
+				futures.add(myExecutor.submit(new BatchIndexer(new ArrayList<Long>(work.subList(fromIndex, toIndex)))));
+			}
+			for (Future<Integer> next : futures) {
+				retVal += next.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException("Interrupted while indexing pending resources", e);
+		} catch (ExecutionException e) {
+			throw new InternalErrorException("Failed to index pending resources: " + e.getCause(), e.getCause());
+		} finally {
+			for (Future<Integer> next : futures) {
+				next.cancel(true);
+			}
+		}
+
+		long millis = Math.max(1, w.getMillis());
+		myThroughputPerSecond = (retVal * 1000.0) / millis;
+		if (reindex.isEmpty()) {
+			ourLog.info("Indexed {} of {} pending resources in {}ms", new Object[] { retVal, pending.size(), millis });
+		} else {
+			ourLog.info("Indexed {} of {} pending and reindex resources in {}ms ({}/sec), {} resources remain to be reindexed",
+					new Object[] { retVal, work.size(), millis, Math.round(myThroughputPerSecond), getReindexBacklog() });
+		}
+		return retVal;
+	}
+
+	private long countWithStatus(final Long theStatus) {
+		return newTransactionTemplate().execute(new TransactionCallback<Long>() {
+			@Override
+			public Long doInTransaction(TransactionStatus theTxStatus) {
+				//@formatter:off
+				return myEntityManager.createQuery("SELECT COUNT(r) FROM ResourceTable r WHERE r.myIndexStatus = :status", Long.class)
+						.setParameter("status", theStatus)
+						.getSingleResult();
+				//@formatter:on
+			}
+		});
+	}
+
+	private List<Long> findWithStatus(final Long theStatus, final int theMaxResults) {
+		return newTransactionTemplate().execute(new TransactionCallback<List<Long>>() {
+			@Override
+			public List<Long> doInTransaction(TransactionStatus theTxStatus) {
+				//@formatter:off
+				return myEntityManager.createQuery("SELECT r.myId FROM ResourceTable r WHERE r.myIndexStatus = :status ORDER BY r.myId ASC", Long.class)
+						.setParameter("status", theStatus)
+						.setMaxResults(theMaxResults)
+						.getResultList();
+				//@formatter:on
+			}
+		});
+	}
+
+	private int indexInAnyVersion(List<Long> theResourcePids) {
+		int retVal = 0;
+		for (IFhirSystemDao<?> next : mySystemDaos) {
+			retVal += next.indexDeferredResources(theResourcePids);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Moves a resource which couldn't be indexed out of the queue it was taken from, so that it isn't picked up again
+	 * by every following poll
+	 */
+	private void markIndexingFailed(final Long theResourcePid) {
+		newTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+				updateStatus(theResourcePid, ResourceTable.INDEX_STATUS_PENDING, ResourceTable.INDEX_STATUS_INDEXING_FAILED);
+				updateStatus(theResourcePid, ResourceTable.INDEX_STATUS_REINDEX_REQUIRED, ResourceTable.INDEX_STATUS_REINDEX_FAILED);
+			}
+		});
+	}
+
+	private void updateStatus(Long theResourcePid, Long theFromStatus, Long theToStatus) {
+		//@formatter:off
+		myEntityManager.createQuery("UPDATE ResourceTable r SET r.myIndexStatus = :to WHERE r.myId = :id AND r.myIndexStatus = :from")
+				.setParameter("to", theToStatus)
+				.setParameter("id", theResourcePid)
+				.setParameter("from", theFromStatus)
+				.executeUpdate();
+		//@formatter:on
+	}
+
+	private TransactionTemplate newTransactionTemplate() {
+		return new TransactionTemplate(myPlatformTransactionManager);
+	}
+
+	/**
+	 * Indexes one batch in a single transaction. If the batch fails as a whole, each resource is retried in its own
+	 * transaction so that only the resources which actually can't be indexed get marked as failed (otherwise they
+	 * would block the queue forever).
+	 */
+	private class BatchIndexer implements Callable<Integer> {
+
+		private final List<Long> myResourcePids;
+
+		public BatchIndexer(List<Long> theResourcePids) {
+			myResourcePids = theResourcePids;
+		}
+
+		@Override
+		public Integer call() {
+			try {
+				return indexInAnyVersion(myResourcePids);
+			} catch (RuntimeException e) {
+				ourLog.info("Deferred indexing batch failed, retrying resources individually: {}", e.toString());
+			}
+
+			int retVal = 0;
+			for (Long next : myResourcePids) {
+				try {
+					retVal += indexInAnyVersion(Collections.singletonList(next));
+				} catch (RuntimeException e) {
+					ourLog.warn("Failed to index resource " + next + ", it will not be retried", e);
+					markIndexingFailed(next);
+				}
+			}
+			return retVal;
+		}
+
+	}
+
+}
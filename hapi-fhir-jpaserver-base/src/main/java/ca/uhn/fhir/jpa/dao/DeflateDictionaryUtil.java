@@ -0,0 +1,122 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.server.Constants;
+
+/**
+ * Deflate (zlib) compression using a preset dictionary, used for the {@link ResourceEncodingEnum#JSOND} encoding.
+ * Small resources compress poorly with plain GZIP because the compressor has nothing to refer back to; the
+ * dictionary primes it with element names and values which appear in most encoded FHIR JSON resources.
+ * <p>
+ * Stored resources can only be decoded with the exact dictionary that they were encoded with, so the contents of
+ * {@link #DICTIONARY} must never be changed. A new dictionary requires a new {@link ResourceEncodingEnum} value.
+ * </p>
+ */
+public class DeflateDictionaryUtil {
+
+	private static final int BUFFER_SIZE = 4096;
+
+	/*
+	 * Deflate can refer back 32KB, and content near the end of the dictionary is the cheapest to
+	 * refer to, so the most common strings are placed last
+	 */
+	//@formatter:off
+	private static final byte[] DICTIONARY = (
+		"\"http://hl7.org/fhir/v2/0203\",\"http://hl7.org/fhir/sid/us-ssn\",\"http://snomed.info/sct\"," +
+		"\"interpretation\":{\"coding\":[{\"system\":\"http://hl7.org/fhir/v2/0078\",\"code\":\"" +
+		"\"referenceRange\":[{\"low\":{\"value\":\"high\":{\"value\":" +
+		"\"maritalStatus\":{\"coding\":[{\"system\":\"http://hl7.org/fhir/v3/MaritalStatus\",\"code\":\"" +
+		"\"communication\":[{\"language\":{\"coding\":[{\"system\":\"urn:ietf:bcp:47\",\"code\":\"" +
+		"\"contact\":[{\"relationship\":[{\"coding\":[{\"system\":\"http://hl7.org/fhir/patient-contact-relationship\",\"code\":\"" +
+		"\"managingOrganization\":{\"reference\":\"Organization/\"careProvider\":[{\"reference\":\"Practitioner/" +
+		"\"performer\":[{\"reference\":\"Practitioner/\"encounter\":{\"reference\":\"Encounter/" +
+		"\"contained\":[{\"resourceType\":\"\"extension\":[{\"url\":\"http://hl7.org/fhir/StructureDefinition/" +
+		"\"valueQuantity\":{\"value\":\"unit\":\"\",\"system\":\"http://unitsofmeasure.org\",\"code\":\"" +
+		"\"effectiveDateTime\":\"\"issued\":\"\"status\":\"final\",\"status\":\"active\",\"active\":true," +
+		"\"category\":{\"coding\":[{\"system\":\"http://hl7.org/fhir/observation-category\",\"code\":\"" +
+		"\"code\":{\"coding\":[{\"system\":\"http://loinc.org\",\"code\":\"\",\"display\":\"\"},\"text\":\"" +
+		"\"address\":[{\"use\":\"home\",\"line\":[\"\"],\"city\":\"\",\"state\":\"\",\"postalCode\":\"\",\"country\":\"" +
+		"\"telecom\":[{\"system\":\"phone\",\"value\":\"\",\"use\":\"work\"},{\"system\":\"email\",\"value\":\"" +
+		"\"gender\":\"male\",\"gender\":\"female\",\"birthDate\":\"\"deceasedBoolean\":false," +
+		"\"name\":[{\"use\":\"official\",\"family\":[\"\"],\"given\":[\"\"],\"prefix\":[\"" +
+		"\"period\":{\"start\":\"\",\"end\":\"\"type\":{\"coding\":[{\"system\":\"" +
+		"\"identifier\":[{\"use\":\"usual\",\"system\":\"urn:oid:\",\"value\":\"" +
+		"\"subject\":{\"reference\":\"Patient/\"patient\":{\"reference\":\"Patient/\"},\"display\":\"" +
+		"\"text\":{\"status\":\"generated\",\"div\":\"<div xmlns=\\\"http://www.w3.org/1999/xhtml\\\">\"}," +
+		"\"meta\":{\"versionId\":\"\",\"lastUpdated\":\"\",\"profile\":[\"http://hl7.org/fhir/StructureDefinition/" +
+		"{\"resourceType\":\"Observation\",\"id\":\"{\"resourceType\":\"Patient\",\"id\":\""
+	).getBytes(Constants.CHARSET_UTF8);
+	//@formatter:on
+
+	public static byte[] compress(String theEncoded) {
+		byte[] input = theEncoded.getBytes(Constants.CHARSET_UTF8);
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try {
+			deflater.setDictionary(DICTIONARY);
+			deflater.setInput(input);
+			deflater.finish();
+
+			ByteArrayOutputStream os = new ByteArrayOutputStream(input.length / 2 + 16);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (!deflater.finished()) {
+				int count = deflater.deflate(buffer);
+				os.write(buffer, 0, count);
+			}
+			return os.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	public static String decompress(byte[] theResource) {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(theResource);
+
+			ByteArrayOutputStream os = new ByteArrayOutputStream(theResource.length * 4);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (!inflater.finished()) {
+				int count = inflater.inflate(buffer);
+				if (count == 0) {
+					if (inflater.needsDictionary()) {
+						inflater.setDictionary(DICTIONARY);
+					} else if (inflater.needsInput()) {
+						throw new DataFormatException("Failed to decompress contents: unexpected end of data");
+					}
+				}
+				os.write(buffer, 0, count);
+			}
+			return new String(os.toByteArray(), Constants.CHARSET_UTF8);
+		} catch (java.util.zip.DataFormatException e) {
+			throw new DataFormatException("Failed to decompress contents", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+}
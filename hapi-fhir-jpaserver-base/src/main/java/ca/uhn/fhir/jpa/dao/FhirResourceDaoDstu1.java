@@ -20,30 +20,42 @@ package ca.uhn.fhir.jpa.dao;
  * #L%
  */
 
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.List;
+import java.util.HashSet;
+import java.util.Set;
 
 import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
 import ca.uhn.fhir.model.api.IResource;
 import ca.uhn.fhir.model.api.Include;
-import ca.uhn.fhir.model.base.composite.BaseResourceReferenceDt;
-import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.rest.method.RestSearchParameterTypeEnum;
 
 public class FhirResourceDaoDstu1<T extends IResource> extends BaseFhirResourceDao<T> {
 
-	protected List<Object> getIncludeValues(FhirTerser t, Include next, IResource nextResource, RuntimeResourceDefinition def) {
-		List<Object> values;
-		if ("*".equals(next.getValue())) {
-			values = new ArrayList<Object>();
-			values.addAll(t.getAllPopulatedChildElementsOfType(nextResource, BaseResourceReferenceDt.class));
-		} else if (next.getValue().startsWith(def.getName() + ".")) {
-			values = t.getValues(nextResource, next.getValue());
-		} else {
-			values = Collections.emptyList();
+	/**
+	 * DSTU1 includes are an element path, e.g. <code>Patient.managingOrganization</code>. Links are indexed under the
+	 * full path of the search parameter they were extracted for, so this returns the path of every reference
+	 * parameter which covers the included element.
+	 */
+	@Override
+	protected Set<String> getIncludePaths(Include theInclude) {
+		int dotIdx = theInclude.getValue().indexOf('.');
+		if (dotIdx < 1) {
+			return Collections.emptySet();
 		}
-		return values;
+
+		RuntimeResourceDefinition def = getContext().getResourceDefinition(theInclude.getValue().substring(0, dotIdx));
+		if (def == null) {
+			return Collections.emptySet();
+		}
+
+		Set<String> retVal = new HashSet<String>();
+		for (RuntimeSearchParam next : def.getSearchParams()) {
+			if (next.getParamType() == RestSearchParameterTypeEnum.REFERENCE && next.getPathsSplit().contains(theInclude.getValue())) {
+				retVal.add(next.getPath());
+			}
+		}
+		return retVal;
 	}
 
-	
 }
@@ -20,35 +20,41 @@ package ca.uhn.fhir.jpa.dao;
  * #L%
  */
 
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.List;
+import java.util.Set;
 
 import ca.uhn.fhir.context.RuntimeResourceDefinition;
 import ca.uhn.fhir.context.RuntimeSearchParam;
 import ca.uhn.fhir.model.api.IResource;
 import ca.uhn.fhir.model.api.Include;
-import ca.uhn.fhir.model.base.composite.BaseResourceReferenceDt;
-import ca.uhn.fhir.util.FhirTerser;
 
 public class FhirResourceDaoDstu2<T extends IResource> extends BaseFhirResourceDao<T> {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FhirResourceDaoDstu2.class);
 
-	protected List<Object> getIncludeValues(FhirTerser theTerser, Include theInclude, IResource theResource, RuntimeResourceDefinition theResourceDef) {
-		List<Object> values;
-		if ("*".equals(theInclude.getValue())) {
-			values = new ArrayList<Object>();
-			values.addAll(theTerser.getAllPopulatedChildElementsOfType(theResource, BaseResourceReferenceDt.class));
-		} else if (theInclude.getValue().startsWith(theResourceDef.getName() + ":")) {
-			values = new ArrayList<Object>();
-			RuntimeSearchParam sp = theResourceDef.getSearchParam(theInclude.getValue().substring(theInclude.getValue().indexOf(':')+1));
-			for (String nextPath : sp.getPathsSplit()) {
-				values.addAll(theTerser.getValues(theResource, nextPath));
-			}
-		} else {
-			values = Collections.emptyList();
+	/**
+	 * DSTU2 includes take the form <code>[source type]:[search param]</code>, optionally followed by
+	 * <code>:[target type]</code>
+	 */
+	@Override
+	protected Set<String> getIncludePaths(Include theInclude) {
+		String[] parts = theInclude.getValue().split(":");
+		if (parts.length < 2) {
+			return Collections.emptySet();
 		}
-		return values;
+
+		RuntimeResourceDefinition def = getContext().getResourceDefinition(parts[0]);
+		if (def == null) {
+			ourLog.warn("Unknown resource type in _include=" + theInclude.getValue());
+			return Collections.emptySet();
+		}
+		RuntimeSearchParam sp = def.getSearchParam(parts[1]);
+		if (sp == null) {
+			ourLog.warn("Unknown param name in _include=" + theInclude.getValue());
+			return Collections.emptySet();
+		}
+
+		// Links are indexed under the full (unsplit) path of the parameter
+		return Collections.singleton(sp.getPath());
 	}
 
-	
 }
@@ -20,6 +20,7 @@ package ca.uhn.fhir.jpa.dao;
  * #L%
  */
 
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -267,5 +268,10 @@ public class FhirSystemDaoDstu1 extends BaseFhirSystemDao<List<IResource>> {
 		throw new NotImplementedOperationException("meta not supported in DSTU1");
 	}
 
+	@Override
+	public ImportOutcome importNdjson(Reader theReader, int theBatchSize) {
+		throw new NotImplementedOperationException("$import not supported in DSTU1");
+	}
+
 
 }
@@ -22,20 +22,36 @@ package ca.uhn.fhir.jpa.dao;
 
 import static org.apache.commons.lang3.StringUtils.*;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.persistence.TypedQuery;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import ca.uhn.fhir.context.RuntimeResourceDefinition;
 import ca.uhn.fhir.jpa.entity.TagDefinition;
+import ca.uhn.fhir.jpa.util.StopWatch;
 import ca.uhn.fhir.model.api.IResource;
 import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
 import ca.uhn.fhir.model.base.composite.BaseResourceReferenceDt;
@@ -50,12 +66,16 @@ import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.model.primitive.InstantDt;
 import ca.uhn.fhir.rest.server.Constants;
 import ca.uhn.fhir.rest.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.util.FhirTerser;
 
 public class FhirSystemDaoDstu2 extends BaseFhirSystemDao<Bundle> {
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FhirSystemDaoDstu2.class);
 
+	@Autowired
+	private PlatformTransactionManager myPlatformTransactionManager;
+
 	private UrlParts parseUrl(String theAction, String theUrl) {
 		UrlParts retVal = new UrlParts();
 
@@ -412,6 +432,7 @@ public class FhirSystemDaoDstu2 extends BaseFhirSystemDao<Bundle> {
 		//
 		// }
 		//
+		List<IdDt> referencedIds = new ArrayList<IdDt>();
 		for (DaoMethodOutcome nextOutcome : idToPersistedOutcome.values()) {
 			IResource nextResource = nextOutcome.getResource();
 			if (nextResource == null) {
@@ -428,6 +449,22 @@ public class FhirSystemDaoDstu2 extends BaseFhirSystemDao<Bundle> {
 				} else {
 					ourLog.debug(" * Reference [{}] does not exist in bundle", nextId);
 				}
+				if (nextRef.getReference().hasIdPart() && !nextRef.getReference().getValue().startsWith("#")) {
+					referencedIds.add(nextRef.getReference());
+				}
+			}
+		}
+
+		/*
+		 * Resolve the forced IDs referenced by every resource in the bundle with as few queries as possible, so that
+		 * indexing the individual resources below finds them in the cache
+		 */
+		translateForcedIdsToPids(referencedIds);
+
+		for (DaoMethodOutcome nextOutcome : idToPersistedOutcome.values()) {
+			IResource nextResource = nextOutcome.getResource();
+			if (nextResource == null) {
+				continue;
 			}
 
 			InstantDt deletedInstantOrNull = ResourceMetadataKeyEnum.DELETED_AT.get(nextResource);
@@ -465,6 +502,195 @@ public class FhirSystemDaoDstu2 extends BaseFhirSystemDao<Bundle> {
 		return response;
 	}
 
+	/**
+	 * Note that this method is deliberately not transactional: each batch is committed in its own transaction
+	 */
+	@Override
+	public ImportOutcome importNdjson(Reader theReader, int theBatchSize) {
+		int batchSize = theBatchSize > 0 ? theBatchSize : getConfig().getImportBatchSize();
+		ourLog.info("Beginning NDJSON import with batch size {}", batchSize);
+		StopWatch w = new StopWatch();
+
+		ImportOutcome retVal = new ImportOutcome();
+		List<ImportLine> unresolvedLines = new ArrayList<ImportLine>();
+
+		/*
+		 * Parsing is CPU bound and independent for each line, so the lines in each batch are
+		 * parsed on a worker pool while the writes themselves happen on this thread (they
+		 * need to share a single transaction)
+		 */
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+		try {
+			BufferedReader reader = new BufferedReader(theReader);
+			List<Future<ImportLine>> batch = new ArrayList<Future<ImportLine>>();
+			int lineNumber = 0;
+			String nextLine;
+			while ((nextLine = reader.readLine()) != null) {
+				lineNumber++;
+				if (isBlank(nextLine)) {
+					continue;
+				}
+				retVal.incrementLinesRead();
+				batch.add(executor.submit(new ImportLineParser(lineNumber, nextLine)));
+				if (batch.size() >= batchSize) {
+					importIndexBatch(importStoreBatch(awaitParsedLines(batch), retVal), retVal, unresolvedLines);
+					batch.clear();
+					ourLog.info("NDJSON import has read {} lines, stored {} resources and indexed {} resources in {}ms", new Object[] { retVal.getLinesRead(), retVal.getResourcesStored(),
+							retVal.getResourcesIndexed(), w.getMillis() });
+				}
+			}
+			if (batch.size() > 0) {
+				importIndexBatch(importStoreBatch(awaitParsedLines(batch), retVal), retVal, unresolvedLines);
+			}
+		} catch (IOException e) {
+			throw new InternalErrorException("Failed to read NDJSON input: " + e.getMessage(), e);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		/*
+		 * Everything has now been stored, so references to resources which appeared in a later
+		 * batch than the resource referring to them will now resolve
+		 */
+		for (int fromIndex = 0; fromIndex < unresolvedLines.size(); fromIndex += batchSize) {
+			int toIndex = Math.min(fromIndex + batchSize, unresolvedLines.size());
+			importIndexBatch(unresolvedLines.subList(fromIndex, toIndex), retVal, null);
+		}
+		ourLog.info("NDJSON import retried indexing {} resources with forward references in {}ms", unresolvedLines.size(), w.getMillis());
+
+		ourLog.info("NDJSON import completed in {}ms - Read {} lines, stored {} resources, {} failures", new Object[] { w.getMillis(), retVal.getLinesRead(), retVal.getResourcesStored(),
+				retVal.getFailures().size() });
+
+		notifyWriteCompleted();
+		return retVal;
+	}
+
+	private List<ImportLine> awaitParsedLines(List<Future<ImportLine>> theBatch) {
+		List<ImportLine> retVal = new ArrayList<ImportLine>(theBatch.size());
+		for (Future<ImportLine> next : theBatch) {
+			try {
+				retVal.add(next.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InternalErrorException("Interrupted while parsing NDJSON input", e);
+			} catch (ExecutionException e) {
+				throw new InternalErrorException("Failed to parse NDJSON input: " + e.getCause(), e.getCause());
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Stores a batch of parsed lines without indexing them. If the batch fails as a whole, each
+	 * line is retried in its own transaction so that only the lines which are actually bad get
+	 * reported as failures.
+	 * 
+	 * @return The lines which were stored
+	 */
+	private List<ImportLine> importStoreBatch(final List<ImportLine> theLines, ImportOutcome theOutcome) {
+		List<ImportLine> retVal = new ArrayList<ImportLine>(theLines.size());
+		List<ImportLine> parsed = new ArrayList<ImportLine>(theLines.size());
+		for (ImportLine next : theLines) {
+			if (next.getError() != null) {
+				theOutcome.addFailure(next.getLineNumber(), next.getError());
+			} else {
+				parsed.add(next);
+			}
+		}
+
+		try {
+			importInTransaction(parsed, false);
+			for (ImportLine next : parsed) {
+				retVal.add(next);
+				theOutcome.incrementResourcesStored();
+			}
+		} catch (RuntimeException e) {
+			ourLog.info("NDJSON import batch failed, retrying lines individually: {}", e.toString());
+			for (ImportLine next : parsed) {
+				try {
+					importInTransaction(Collections.singletonList(next), false);
+					retVal.add(next);
+					theOutcome.incrementResourcesStored();
+				} catch (RuntimeException e2) {
+					theOutcome.addFailure(next.getLineNumber(), e2.getMessage());
+				}
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Indexes a batch of stored lines. If the batch fails as a whole, each line is retried in its
+	 * own transaction. A line which still fails is added to <code>theRetryLines</code> (since it may
+	 * refer to a resource further on in the input which hasn't been stored yet), or reported as a
+	 * failure if that is <code>null</code>.
+	 */
+	private void importIndexBatch(List<ImportLine> theLines, ImportOutcome theOutcome, List<ImportLine> theRetryLines) {
+		try {
+			importInTransaction(theLines, true);
+			for (int i = 0; i < theLines.size(); i++) {
+				theOutcome.incrementResourcesIndexed();
+			}
+		} catch (RuntimeException e) {
+			ourLog.info("NDJSON import index batch failed, retrying resources individually: {}", e.toString());
+			for (ImportLine next : theLines) {
+				try {
+					importInTransaction(Collections.singletonList(next), true);
+					theOutcome.incrementResourcesIndexed();
+				} catch (RuntimeException e2) {
+					if (theRetryLines != null) {
+						theRetryLines.add(next);
+						continue;
+					}
+					theOutcome.addFailure(next.getLineNumber(), "Resource " + next.getId().getValue() + " was stored but could not be indexed: " + e2.getMessage());
+				}
+			}
+		}
+	}
+
+	private void importInTransaction(final List<ImportLine> theLines, final boolean theIndex) {
+		TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+		template.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+				for (ImportLine next : theLines) {
+					if (theIndex) {
+						importIndexLine(next);
+					} else {
+						importStoreLine(next);
+					}
+				}
+			}
+		});
+	}
+
+	private void importIndexLine(ImportLine theLine) {
+		/*
+		 * The line may already have been picked up by the DeferredIndexingSvc, in which case
+		 * there's nothing left to do here
+		 */
+		indexDeferredResource(translateForcedIdToPid(theLine.getId()));
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void importStoreLine(ImportLine theLine) {
+		IResource res = theLine.getResource();
+		IFhirResourceDao resourceDao = getDao(res.getClass());
+		if (resourceDao == null) {
+			throw new InvalidRequestException("Resource type " + toResourceName(res) + " is not supported by this server");
+		}
+
+		DaoMethodOutcome outcome;
+		if (res.getId().hasIdPart()) {
+			res.setId(new IdDt(toResourceName(res), res.getId().getIdPart()));
+			outcome = resourceDao.update(res, null, false);
+		} else {
+			outcome = resourceDao.create(res, null, false);
+		}
+
+		theLine.setId(outcome.getId().toUnqualifiedVersionless());
+	}
+
 	@Override
 	public MetaDt metaGetOperation() {
 		
@@ -501,6 +727,71 @@ public class FhirSystemDaoDstu2 extends BaseFhirSystemDao<Bundle> {
 		newEntry.getTransactionResponse().setEtag(outcome.getId().getVersionIdPart());
 	}
 
+	private static class ImportLine {
+		private String myError;
+		private IdDt myId;
+		private final int myLineNumber;
+		private IResource myResource;
+
+		public ImportLine(int theLineNumber) {
+			myLineNumber = theLineNumber;
+		}
+
+		public String getError() {
+			return myError;
+		}
+
+		public IdDt getId() {
+			return myId;
+		}
+
+		public int getLineNumber() {
+			return myLineNumber;
+		}
+
+		public IResource getResource() {
+			return myResource;
+		}
+
+		public void setError(String theError) {
+			myError = theError;
+		}
+
+		/**
+		 * Once the resource has been stored only its ID is retained, so that large imports
+		 * don't hold every parsed resource in memory until indexing
+		 */
+		public void setId(IdDt theId) {
+			myId = theId;
+			myResource = null;
+		}
+
+		public void setResource(IResource theResource) {
+			myResource = theResource;
+		}
+	}
+
+	private class ImportLineParser implements Callable<ImportLine> {
+		private final String myLine;
+		private final int myLineNumber;
+
+		public ImportLineParser(int theLineNumber, String theLine) {
+			myLineNumber = theLineNumber;
+			myLine = theLine;
+		}
+
+		@Override
+		public ImportLine call() {
+			ImportLine retVal = new ImportLine(myLineNumber);
+			try {
+				retVal.setResource((IResource) getContext().newJsonParser().parseResource(myLine));
+			} catch (Exception e) {
+				retVal.setError("Failed to parse resource: " + e.getMessage());
+			}
+			return retVal;
+		}
+	}
+
 	private static class UrlParts {
 		private IFhirResourceDao<? extends IResource> myDao;
 		private String myParams;
@@ -0,0 +1,153 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * In-memory cache of the translation between client assigned (forced) resource IDs and the internal resource PIDs, in
+ * both directions. Forced IDs are unique across all resource types on the server, so the resource type is not part of
+ * the key.
+ * <p>
+ * The maximum size and expiry of the cache are controlled by {@link DaoConfig#setForcedIdCacheMaximumSize(int)} and
+ * {@link DaoConfig#setForcedIdCacheExpireAfterMillis(long)}. This class must be created as a Spring bean (one per
+ * database) for the DAOs to use it, and if no bean is present the DAOs always go to the database.
+ * </p>
+ * <p>
+ * Entries which are added while a database transaction is active are removed again if that transaction rolls back, so
+ * that a forced ID which was never committed isn't resolved to a PID which doesn't exist.
+ * </p>
+ */
+public class ForcedIdCache {
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	private Cache<String, Long> myForcedIdToPid;
+	private Cache<Long, String> myPidToForcedId;
+
+	/**
+	 * Returns the PID for the given forced ID, or <code>null</code> if it is not in the cache
+	 */
+	public Long getPid(String theForcedId) {
+		return myForcedIdToPid.getIfPresent(theForcedId);
+	}
+
+	/**
+	 * Returns the hit/miss statistics for lookups by forced ID
+	 */
+	public CacheStats getForcedIdToPidStats() {
+		return myForcedIdToPid.stats();
+	}
+
+	/**
+	 * Returns the forced ID for the given PID, or <code>null</code> if it is not in the cache. Note that for
+	 * resources which don't have a forced ID, the string form of the PID itself is cached.
+	 */
+	public String getForcedId(Long thePid) {
+		return myPidToForcedId.getIfPresent(thePid);
+	}
+
+	/**
+	 * Returns the hit/miss statistics for lookups by PID
+	 */
+	public CacheStats getPidToForcedIdStats() {
+		return myPidToForcedId.stats();
+	}
+
+	/**
+	 * Removes the translation for a resource, e.g. because the resource has been deleted
+	 */
+	public void invalidate(String theForcedId, Long thePid) {
+		if (theForcedId != null) {
+			myForcedIdToPid.invalidate(theForcedId);
+		}
+		if (thePid != null) {
+			myPidToForcedId.invalidate(thePid);
+		}
+	}
+
+	/**
+	 * Removes all entries
+	 */
+	public void invalidateAll() {
+		myForcedIdToPid.invalidateAll();
+		myPidToForcedId.invalidateAll();
+	}
+
+	/**
+	 * Adds a translation between a forced ID and a PID
+	 */
+	public void put(String theForcedId, Long thePid) {
+		myForcedIdToPid.put(theForcedId, thePid);
+		myPidToForcedId.put(thePid, theForcedId);
+		invalidateOnRollback(theForcedId, thePid);
+	}
+
+	/**
+	 * Records the translation of a PID for a resource which has no forced ID
+	 */
+	public void putNoForcedId(Long thePid) {
+		myPidToForcedId.put(thePid, thePid.toString());
+		invalidateOnRollback(null, thePid);
+	}
+
+	private void invalidateOnRollback(final String theForcedId, final Long thePid) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			return;
+		}
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCompletion(int theStatus) {
+				if (theStatus != STATUS_COMMITTED) {
+					invalidate(theForcedId, thePid);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sets the DAO config (normally this is autowired by Spring)
+	 */
+	public void setDaoConfig(DaoConfig theDaoConfig) {
+		myDaoConfig = theDaoConfig;
+	}
+
+	@PostConstruct
+	public void start() {
+		long expireAfterMillis = myDaoConfig.getForcedIdCacheExpireAfterMillis();
+		int maximumSize = myDaoConfig.getForcedIdCacheMaximumSize();
+
+		myForcedIdToPid = CacheBuilder.newBuilder().maximumSize(maximumSize).expireAfterWrite(expireAfterMillis, TimeUnit.MILLISECONDS).recordStats().build();
+		myPidToForcedId = CacheBuilder.newBuilder().maximumSize(maximumSize).expireAfterWrite(expireAfterMillis, TimeUnit.MILLISECONDS).recordStats().build();
+	}
+
+}
@@ -35,9 +35,20 @@ class HistoryTuple implements Comparable<HistoryTuple> {
 		myId = theId;
 	}
 
+	/**
+	 * Orders by updated timestamp, then previous versions before current versions (so that in descending order the
+	 * current version of a resource comes first), then by PID. This is the keyset order used to page through history.
+	 */
 	@Override
 	public int compareTo(HistoryTuple theO) {
-		return myUpdated.compareTo(theO.myUpdated);
+		int retVal = myUpdated.compareTo(theO.myUpdated);
+		if (retVal == 0 && myIsHistory != theO.myIsHistory) {
+			retVal = myIsHistory ? -1 : 1;
+		}
+		if (retVal == 0) {
+			retVal = myId.compareTo(theO.myId);
+		}
+		return retVal;
 	}
 
 	public Long getId() {
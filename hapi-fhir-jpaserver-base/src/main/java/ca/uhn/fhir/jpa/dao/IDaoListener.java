@@ -20,8 +20,20 @@ package ca.uhn.fhir.jpa.dao;
  * #L%
  */
 
+import java.util.List;
+
+import ca.uhn.fhir.jpa.entity.ResourceChange;
+
 public interface IDaoListener {
 
-	void writeCompleted();
-	
+	/**
+	 * Called after a write has completed. If the write took place in a transaction, this is only called once the
+	 * transaction has committed.
+	 * 
+	 * @param theChanges
+	 *           The change log entries written by the transaction, in the order they were written. This list is
+	 *           unmodifiable, and is empty if the write did not create any new resource versions (e.g. adding a tag)
+	 */
+	void writeCompleted(List<ResourceChange> theChanges);
+
 }
@@ -28,6 +28,7 @@ import ca.uhn.fhir.jpa.entity.BaseHasResource;
 import ca.uhn.fhir.jpa.entity.TagTypeEnum;
 import ca.uhn.fhir.model.api.IQueryParameterType;
 import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
 import ca.uhn.fhir.model.api.TagList;
 import ca.uhn.fhir.model.dstu2.composite.MetaDt;
 import ca.uhn.fhir.model.primitive.IdDt;
@@ -58,6 +59,20 @@ public interface IFhirResourceDao<T extends IResource> extends IDao {
 
 	TagList getTags(IdDt theResourceId);
 
+	/**
+	 * Returns every resource in the compartment of the given resource (including the resource itself), paged from the
+	 * compartment membership index. Each page also includes the resources referred to by the resources on it. Currently
+	 * only supported for Patient.
+	 * 
+	 * @param theSince
+	 *           If not <code>null</code>, only resources updated at or after this time are returned
+	 * @param theTypes
+	 *           If not <code>null</code> or empty, only resources of these types are returned
+	 * @throws ResourceNotFoundException
+	 *             If the ID is not known to the server
+	 */
+	IBundleProvider everything(IdDt theId, Date theSince, Set<String> theTypes);
+
 	IBundleProvider history(Date theSince);
 
 	IBundleProvider history(IdDt theId, Date theSince);
@@ -73,6 +88,16 @@ public interface IFhirResourceDao<T extends IResource> extends IDao {
 	 */
 	T read(IdDt theId);
 
+	/**
+	 * Reads a resource as {@link #read(IdDt)} does, optionally attaching the
+	 * {@link ResourceMetadataKeyEnum#STORED_JSON stored JSON} so that the server can return it without encoding the
+	 * resource again. Only pass <code>true</code> if the returned resource is handed to the server unmodified.
+	 * 
+	 * @throws ResourceNotFoundException
+	 *             If the ID is not known to the server
+	 */
+	T read(IdDt theId, boolean theIncludeStoredJson);
+
 	BaseHasResource readEntity(IdDt theId);
 
 	/**
@@ -83,6 +108,16 @@ public interface IFhirResourceDao<T extends IResource> extends IDao {
 
 	void removeTag(IdDt theId, TagTypeEnum theTagType, String theScheme, String theTerm);
 
+	/**
+	 * Returns the stored results of a previously executed search
+	 * 
+	 * @param theSearchUuid
+	 *           The UUID of the search (see {@link PersistedJpaBundleProvider#getUuid()})
+	 * @return The results, or <code>null</code> if no search with the given UUID exists for this resource type or
+	 *         the stored results have expired
+	 */
+	IBundleProvider retrieveSearchResults(String theSearchUuid);
+
 	IBundleProvider search(Map<String, IQueryParameterType> theParams);
 
 	IBundleProvider search(SearchParameterMap theMap);
@@ -106,6 +141,14 @@ public interface IFhirResourceDao<T extends IResource> extends IDao {
 	 */
 	DaoMethodOutcome update(T theResource, String theMatchUrl, boolean thePerformIndexing);
 
+	/**
+	 * Marks every resource of this type as requiring reindexing, so that its index rows are rebuilt in the background
+	 * by the {@link DeferredIndexingSvc}. This is used after the search parameters for the type have changed.
+	 * 
+	 * @return The number of resources which were marked
+	 */
+	int markAllResourcesForReindexing();
+
 	/**
 	 * Not supported in DSTU1!
 	 */
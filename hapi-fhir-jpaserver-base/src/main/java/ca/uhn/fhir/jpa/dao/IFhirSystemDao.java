@@ -20,9 +20,12 @@ package ca.uhn.fhir.jpa.dao;
  * #L%
  */
 
+import java.io.Reader;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
+import ca.uhn.fhir.jpa.entity.ResourceChange;
 import ca.uhn.fhir.model.api.TagList;
 import ca.uhn.fhir.model.dstu2.composite.MetaDt;
 import ca.uhn.fhir.rest.server.IBundleProvider;
@@ -45,6 +48,67 @@ public interface IFhirSystemDao<T> extends IDao {
 	 */
 	MetaDt metaGetOperation();
 
+	/**
+	 * Imports resources from a stream of newline-delimited JSON (one resource per line). Resources are stored in
+	 * batches, each of which is committed in its own database transaction, so a failure on one line does not prevent
+	 * the remaining lines from being imported. Each batch is indexed as soon as it has been stored. A resource which
+	 * refers to a resource further on in the stream is indexed again once every line has been stored, so references
+	 * between resources in the stream resolve regardless of the order in which they appear.
+	 * <p>
+	 * Not supported for DSTU1
+	 * </p>
+	 * 
+	 * @param theReader
+	 *           The NDJSON stream. This method does not close the reader.
+	 * @param theBatchSize
+	 *           The number of resources to commit in each transaction, or a value of 0 or less to use the default
+	 *           from {@link DaoConfig#getImportBatchSize()}
+	 */
+	ImportOutcome importNdjson(Reader theReader, int theBatchSize);
+
+	/**
+	 * Marks every resource on the server as requiring reindexing, so that its index rows are rebuilt in the background
+	 * by the {@link DeferredIndexingSvc}. This is used after search parameters have been added or changed.
+	 * 
+	 * @return The number of resources which were marked
+	 */
+	int markAllResourcesForReindexing();
+
+	/**
+	 * Writes the search parameter index rows for resources which were stored with indexing deferred (see
+	 * {@link DaoConfig#setDeferIndexing(boolean)}) or which have been marked for reindexing. All of the given
+	 * resources are indexed in a single database transaction, so if any of them fails the exception is thrown and none
+	 * of them are marked as indexed. Resources which are no longer waiting to be indexed, or which were stored using a
+	 * different FHIR version than the one supported by this DAO, are skipped.
+	 * 
+	 * @param theResourcePids
+	 *           The resource IDs (PIDs) to index
+	 * @return The number of resources which were indexed
+	 */
+	int indexDeferredResources(List<Long> theResourcePids);
+
+	/**
+	 * Reads entries from the change log, which records every new resource version (create, update or delete) written
+	 * to the server, in sequence order. Clients replicate the server by calling this method repeatedly, passing the
+	 * sequence number ({@link ResourceChange#getSequence()}) of the last entry they have processed.
+	 * <p>
+	 * Sequence numbers are assigned as the writing transaction commits, and transactions are serialized while they do
+	 * so, so an entry never becomes visible with a lower sequence number than an entry which is already visible.
+	 * </p>
+	 * 
+	 * @param theAfterSequence
+	 *           Only entries with a sequence number greater than this are returned. Use 0 to read from the start of
+	 *           the log.
+	 * @param theCount
+	 *           The maximum number of entries to return. Values greater than {@link DaoConfig#getChangeFeedMaxCount()}
+	 *           are truncated.
+	 * @param theMaxWaitMillis
+	 *           If there are no matching entries, wait up to this many milliseconds for one to be committed before
+	 *           returning an empty list. Values greater than {@link DaoConfig#getChangeFeedMaxWaitMillis()} are
+	 *           truncated, and 0 means return immediately.
+	 */
+	List<ResourceChange> readChanges(long theAfterSequence, int theCount, long theMaxWaitMillis);
+
 	/**
 	 * Use with caution! This deletes everything!!
 	 */
@@ -0,0 +1,33 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Converts between the encoded text of a resource and the bytes stored in the database for one
+ * {@link ca.uhn.fhir.jpa.entity.ResourceEncodingEnum}. Codecs are looked up by {@link ResourceEncodingUtil}.
+ */
+public interface IResourceCodec {
+
+	String decode(byte[] theResource);
+
+	byte[] encode(String theEncoded);
+
+}
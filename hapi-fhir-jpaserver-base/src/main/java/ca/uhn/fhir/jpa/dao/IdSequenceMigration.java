@@ -0,0 +1,144 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.Session;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+
+/**
+ * The index, link and search result tables used to take their IDs from the shared <code>hibernate_sequence</code>,
+ * and now use their own pooled sequences (<code>SEQ_SPIDX</code>, <code>SEQ_RESLINK</code> and
+ * <code>SEQ_SEARCH_RES</code>). On a database which already has rows in those tables, the new sequences (which
+ * Hibernate creates starting at 1) would hand out IDs which are already in use. This class advances each sequence
+ * past the highest ID which is already stored in the tables that use it. It is idempotent and cheap once the
+ * sequences are ahead, so it is run at every startup.
+ * <p>
+ * Advancing a sequence is done by drawing values from it, which is portable but can take a while on a large database
+ * (one round trip per {@link #INCREMENT_SIZE} IDs). To avoid this, the sequences can instead be created by hand before
+ * upgrading, starting above the current maximum ID plus 50, e.g.
+ * <code>CREATE SEQUENCE SEQ_RESLINK START WITH [max PID of HFJ_RES_LINK + 51] INCREMENT BY 50</code> (for
+ * <code>SEQ_SPIDX</code>, use the maximum <code>SP_ID</code> of all of the <code>HFJ_SPIDX_*</code> tables). On
+ * databases without sequence support Hibernate emulates each sequence with a single row table, which is updated
+ * directly.
+ * </p>
+ */
+public class IdSequenceMigration {
+
+	/**
+	 * The <code>increment_size</code> of the pooled sequences
+	 */
+	static final int INCREMENT_SIZE = 50;
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(IdSequenceMigration.class);
+
+	private static final Map<String, List<String>> ourSequenceToEntities;
+
+	static {
+		Map<String, List<String>> sequenceToEntities = new LinkedHashMap<String, List<String>>();
+		//@formatter:off
+		sequenceToEntities.put("SEQ_SPIDX", Arrays.asList(
+				"ResourceIndexedSearchParamDate", 
+				"ResourceIndexedSearchParamNumber", 
+				"ResourceIndexedSearchParamQuantity", 
+				"ResourceIndexedSearchParamString", 
+				"ResourceIndexedSearchParamToken", 
+				"ResourceIndexedTextTerm"));
+		//@formatter:on
+		sequenceToEntities.put("SEQ_RESLINK", Arrays.asList("ResourceLink"));
+		sequenceToEntities.put("SEQ_SEARCH_RES", Arrays.asList("SearchResult"));
+		ourSequenceToEntities = Collections.unmodifiableMap(sequenceToEntities);
+	}
+
+	private IdSequenceMigration() {
+		// non instantiable
+	}
+
+	/**
+	 * Advances every sequence which is behind the IDs stored in its tables. Must be called from within a transaction.
+	 * 
+	 * @return The number of sequences which had to be advanced
+	 */
+	public static int advanceSequences(EntityManager theEntityManager) {
+		Dialect dialect = ((SessionFactoryImplementor) theEntityManager.unwrap(Session.class).getSessionFactory()).getDialect();
+
+		int retVal = 0;
+		for (Entry<String, List<String>> next : ourSequenceToEntities.entrySet()) {
+			long maxId = 0;
+			for (String nextEntity : next.getValue()) {
+				Long max = theEntityManager.createQuery("SELECT MAX(e.myId) FROM " + nextEntity + " e", Long.class).getSingleResult();
+				if (max != null) {
+					maxId = Math.max(maxId, max);
+				}
+			}
+			if (maxId == 0) {
+				continue;
+			}
+
+			// The pooled optimizer hands out the block of IDs below each value it draws, so the sequence needs to be a
+			// whole block ahead of the stored IDs
+			long target = maxId + INCREMENT_SIZE + 1;
+			if (advanceSequence(theEntityManager, dialect, next.getKey(), target)) {
+				retVal++;
+			}
+		}
+		return retVal;
+	}
+
+	private static boolean advanceSequence(EntityManager theEntityManager, Dialect theDialect, String theSequenceName, long theTarget) {
+		if (!theDialect.supportsSequences()) {
+			int updated = theEntityManager.createNativeQuery("UPDATE " + theSequenceName + " SET next_val = " + theTarget + " WHERE next_val < " + theTarget).executeUpdate();
+			if (updated > 0) {
+				ourLog.info("Advanced ID table {} to {}", theSequenceName, theTarget);
+			}
+			return updated > 0;
+		}
+
+		String nextValSql = theDialect.getSequenceNextValString(theSequenceName);
+		long value = nextValue(theEntityManager, nextValSql);
+		if (value >= theTarget) {
+			return false;
+		}
+
+		ourLog.info("Sequence {} is at {} but IDs up to {} are already in use, advancing it", new Object[] { theSequenceName, value, theTarget - INCREMENT_SIZE - 1 });
+		long draws = 0;
+		while (value < theTarget) {
+			value = nextValue(theEntityManager, nextValSql);
+			draws++;
+		}
+		ourLog.info("Advanced sequence {} to {} using {} draws", new Object[] { theSequenceName, value, draws });
+		return true;
+	}
+
+	private static long nextValue(EntityManager theEntityManager, String theNextValSql) {
+		return ((Number) theEntityManager.createNativeQuery(theNextValSql).getSingleResult()).longValue();
+	}
+
+}
@@ -0,0 +1,75 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Summary of a bulk NDJSON import performed by {@link IFhirSystemDao#importNdjson(java.io.Reader, int)}
+ */
+public class ImportOutcome {
+
+	private List<String> myFailures = new ArrayList<String>();
+	private int myLinesRead;
+	private int myResourcesIndexed;
+	private int myResourcesStored;
+
+	void addFailure(int theLineNumber, String theMessage) {
+		myFailures.add("Line " + theLineNumber + ": " + theMessage);
+	}
+
+	/**
+	 * Returns a description of each line which could not be imported, in the form
+	 * <code>Line [number]: [message]</code>
+	 */
+	public List<String> getFailures() {
+		return myFailures;
+	}
+
+	public int getLinesRead() {
+		return myLinesRead;
+	}
+
+	/**
+	 * Returns the number of stored resources which were also successfully indexed (and are therefore searchable)
+	 */
+	public int getResourcesIndexed() {
+		return myResourcesIndexed;
+	}
+
+	public int getResourcesStored() {
+		return myResourcesStored;
+	}
+
+	void incrementLinesRead() {
+		myLinesRead++;
+	}
+
+	void incrementResourcesIndexed() {
+		myResourcesIndexed++;
+	}
+
+	void incrementResourcesStored() {
+		myResourcesStored++;
+	}
+
+}
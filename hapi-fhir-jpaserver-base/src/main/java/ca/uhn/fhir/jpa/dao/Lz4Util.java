@@ -0,0 +1,203 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Arrays;
+
+import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.server.Constants;
+
+/**
+ * Pure Java implementation of the LZ4 block format, used for the {@link ResourceEncodingEnum#JSONL} encoding. The
+ * compressed form is the length of the uncompressed UTF-8 bytes (4 bytes, big endian) followed by a single LZ4 block.
+ */
+public class Lz4Util {
+
+	private static final int HASH_LOG = 12;
+	private static final int LAST_LITERALS = 5;
+	private static final int MAX_OFFSET = 65535;
+	private static final int MF_LIMIT = 12;
+	private static final int MIN_MATCH = 4;
+	private static final int RUN_MASK = 15;
+
+	public static byte[] compress(String theEncoded) {
+		byte[] src = theEncoded.getBytes(Constants.CHARSET_UTF8);
+		int srcLen = src.length;
+
+		// Incompressible input grows by at most one length byte per 255 literals plus the token
+		byte[] dest = new byte[4 + srcLen + (srcLen / 255) + 16];
+		writeInt(dest, 0, srcLen);
+		int destPos = 4;
+		int anchor = 0;
+
+		if (srcLen > MF_LIMIT) {
+			int[] table = new int[1 << HASH_LOG];
+			Arrays.fill(table, -1);
+
+			// The format requires the last match to start at least 12 bytes before the end, and end at least 5 before it
+			int matchStartLimit = srcLen - MF_LIMIT;
+			int matchEndLimit = srcLen - LAST_LITERALS;
+
+			int pos = 0;
+			while (pos < matchStartLimit) {
+				int sequence = readInt(src, pos);
+				int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+				int ref = table[hash];
+				table[hash] = pos;
+				if (ref < 0 || pos - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+					pos++;
+					continue;
+				}
+
+				while (pos > anchor && ref > 0 && src[pos - 1] == src[ref - 1]) {
+					pos--;
+					ref--;
+				}
+				int matchLen = MIN_MATCH;
+				while (pos + matchLen < matchEndLimit && src[pos + matchLen] == src[ref + matchLen]) {
+					matchLen++;
+				}
+
+				destPos = writeSequence(src, anchor, pos - anchor, pos - ref, matchLen, dest, destPos);
+				pos += matchLen;
+				anchor = pos;
+			}
+		}
+
+		destPos = writeSequence(src, anchor, srcLen - anchor, 0, 0, dest, destPos);
+		return Arrays.copyOf(dest, destPos);
+	}
+
+	public static String decompress(byte[] theResource) {
+		try {
+			int len = readInt(theResource, 0);
+			byte[] dest = new byte[len];
+			int srcPos = 4;
+			int destPos = 0;
+			while (srcPos < theResource.length) {
+				int token = theResource[srcPos++] & 0xFF;
+
+				int literalLen = token >>> 4;
+				if (literalLen == RUN_MASK) {
+					int next;
+					do {
+						next = theResource[srcPos++] & 0xFF;
+						literalLen += next;
+					} while (next == 255);
+				}
+				System.arraycopy(theResource, srcPos, dest, destPos, literalLen);
+				srcPos += literalLen;
+				destPos += literalLen;
+
+				// The last sequence has no match
+				if (srcPos == theResource.length) {
+					break;
+				}
+
+				int offset = (theResource[srcPos++] & 0xFF) | ((theResource[srcPos++] & 0xFF) << 8);
+				int matchLen = token & RUN_MASK;
+				if (matchLen == RUN_MASK) {
+					int next;
+					do {
+						next = theResource[srcPos++] & 0xFF;
+						matchLen += next;
+					} while (next == 255);
+				}
+				matchLen += MIN_MATCH;
+
+				int ref = destPos - offset;
+				if (offset == 0 || ref < 0) {
+					throw new DataFormatException("Failed to decompress contents: invalid match offset " + offset);
+				}
+				// Matches may overlap the bytes they produce, so this can't be an arraycopy
+				for (int i = 0; i < matchLen; i++) {
+					dest[destPos++] = dest[ref++];
+				}
+			}
+
+			if (destPos != len) {
+				throw new DataFormatException("Failed to decompress contents: expected " + len + " bytes but found " + destPos);
+			}
+			return new String(dest, Constants.CHARSET_UTF8);
+		} catch (IndexOutOfBoundsException e) {
+			throw new DataFormatException("Failed to decompress contents", e);
+		} catch (NegativeArraySizeException e) {
+			throw new DataFormatException("Failed to decompress contents", e);
+		}
+	}
+
+	private static int readInt(byte[] theBytes, int thePos) {
+		return ((theBytes[thePos] & 0xFF) << 24) | ((theBytes[thePos + 1] & 0xFF) << 16) | ((theBytes[thePos + 2] & 0xFF) << 8) | (theBytes[thePos + 3] & 0xFF);
+	}
+
+	private static void writeInt(byte[] theBytes, int thePos, int theValue) {
+		theBytes[thePos] = (byte) (theValue >>> 24);
+		theBytes[thePos + 1] = (byte) (theValue >>> 16);
+		theBytes[thePos + 2] = (byte) (theValue >>> 8);
+		theBytes[thePos + 3] = (byte) theValue;
+	}
+
+	private static int writeLength(byte[] theDest, int theDestPos, int theLength) {
+		int destPos = theDestPos;
+		int remaining = theLength;
+		while (remaining >= 255) {
+			theDest[destPos++] = (byte) 255;
+			remaining -= 255;
+		}
+		theDest[destPos++] = (byte) remaining;
+		return destPos;
+	}
+
+	/**
+	 * Writes one sequence. A match length of 0 writes the final, literal-only sequence.
+	 */
+	private static int writeSequence(byte[] theSrc, int theLiteralStart, int theLiteralLen, int theOffset, int theMatchLen, byte[] theDest, int theDestPos) {
+		int tokenPos = theDestPos;
+		int destPos = theDestPos + 1;
+
+		int token;
+		if (theLiteralLen >= RUN_MASK) {
+			token = RUN_MASK << 4;
+			destPos = writeLength(theDest, destPos, theLiteralLen - RUN_MASK);
+		} else {
+			token = theLiteralLen << 4;
+		}
+		System.arraycopy(theSrc, theLiteralStart, theDest, destPos, theLiteralLen);
+		destPos += theLiteralLen;
+
+		if (theMatchLen > 0) {
+			theDest[destPos++] = (byte) theOffset;
+			theDest[destPos++] = (byte) (theOffset >>> 8);
+			int matchLen = theMatchLen - MIN_MATCH;
+			if (matchLen >= RUN_MASK) {
+				token |= RUN_MASK;
+				destPos = writeLength(theDest, destPos, matchLen - RUN_MASK);
+			} else {
+				token |= matchLen;
+			}
+		}
+
+		theDest[tokenPos] = (byte) token;
+		return destPos;
+	}
+
+}
@@ -0,0 +1,100 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.jpa.entity.ResourceLink;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.rest.method.RestSearchParameterTypeEnum;
+
+/**
+ * Determines which Patient compartments a resource belongs to. The structures don't carry the compartment
+ * definitions, so these follow the Patient compartment definition by parameter name: a resource is in the
+ * compartment of any Patient it refers to through one of the reference parameters below, and a Patient is in its own
+ * compartment.
+ */
+class PatientCompartment {
+
+	static final String OWNER_RESOURCE_TYPE = "Patient";
+
+	//@formatter:off
+	private static final Set<String> MEMBERSHIP_PARAMS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+		"actor",
+		"asserter",
+		"author",
+		"informant",
+		"orderer",
+		"participant",
+		"patient",
+		"performer",
+		"recipient",
+		"recorder",
+		"reporter",
+		"requester",
+		"sender",
+		"source",
+		"subject")));
+	//@formatter:on
+
+	private PatientCompartment() {
+		// non instantiable
+	}
+
+	/**
+	 * Returns the PIDs of the Patients whose compartment the given resource belongs to
+	 * 
+	 * @param theLinks
+	 *           The resource's current (already extracted) resource links
+	 */
+	static Set<Long> findOwnerPids(RuntimeResourceDefinition theResourceDef, ResourceTable theEntity, Collection<ResourceLink> theLinks) {
+		Set<Long> retVal = new LinkedHashSet<Long>();
+		if (OWNER_RESOURCE_TYPE.equals(theResourceDef.getName())) {
+			retVal.add(theEntity.getId());
+		}
+		if (theLinks.isEmpty()) {
+			return retVal;
+		}
+
+		Set<String> paths = new HashSet<String>();
+		for (RuntimeSearchParam next : theResourceDef.getSearchParams()) {
+			if (next.getParamType() == RestSearchParameterTypeEnum.REFERENCE && MEMBERSHIP_PARAMS.contains(next.getName())) {
+				paths.add(next.getPath());
+			}
+		}
+
+		for (ResourceLink next : theLinks) {
+			ResourceTable target = next.getTargetResource();
+			if (target != null && OWNER_RESOURCE_TYPE.equals(target.getResourceType()) && paths.contains(next.getSourcePath())) {
+				retVal.add(target.getId());
+			}
+		}
+		return retVal;
+	}
+
+}
@@ -0,0 +1,163 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.List;
+
+import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.entity.SearchStatusEnum;
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.primitive.InstantDt;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
+import ca.uhn.fhir.rest.server.ILazyTotalBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+
+/**
+ * Bundle provider for a search whose results have been stored in the database. Only the search UUID and a few
+ * details about the search are held in memory, so instances of this class are cheap to keep around between pages.
+ * <p>
+ * If the remaining results of the search are still being stored in the background (see {@link SearchLoadingSvc}),
+ * pages which have already been stored can be returned straight away, and methods which need results that haven't
+ * been stored yet wait for them.
+ * </p>
+ */
+public class PersistedJpaBundleProvider implements ILazyTotalBundleProvider {
+
+	/**
+	 * How often the progress of a search which is being loaded in the background is checked while waiting for it
+	 */
+	private static final long LOADING_POLL_MILLIS = 50;
+
+	/**
+	 * If a search which is being loaded in the background doesn't find any more results for this long, it is assumed
+	 * that whatever was loading it has stopped (e.g. because the server was restarted)
+	 */
+	private static final long LOADING_STALLED_MILLIS = 60 * 1000;
+
+	private final BaseFhirResourceDao<?> myDao;
+	private final Integer myPreferredPageSize;
+	private final InstantDt myPublished;
+	private Search mySearch;
+	private final SearchTotalModeEnum myTotalMode;
+
+	PersistedJpaBundleProvider(Search theSearch, BaseFhirResourceDao<?> theDao) {
+		this(theSearch, theDao, theSearch.getTotalMode());
+	}
+
+	/**
+	 * @param theTotalMode
+	 *           The total mode requested by the client, which may differ from that of the stored search if its results
+	 *           are being reused
+	 */
+	PersistedJpaBundleProvider(Search theSearch, BaseFhirResourceDao<?> theDao, SearchTotalModeEnum theTotalMode) {
+		mySearch = theSearch;
+		myDao = theDao;
+		myPublished = new InstantDt(theSearch.getCreated());
+		myPreferredPageSize = theSearch.getPreferredPageSize();
+		myTotalMode = theTotalMode != null ? theTotalMode : SearchTotalModeEnum.ACCURATE;
+	}
+
+	@Override
+	public int getAvailableCount(int theMinimum) {
+		return waitForResults(theMinimum).getNumFound();
+	}
+
+	@Override
+	public InstantDt getPublished() {
+		return myPublished;
+	}
+
+	@Override
+	public Integer getReportedTotal() {
+		switch (myTotalMode) {
+		case NONE:
+			return null;
+		case ESTIMATED:
+			Search search = waitForResults(0);
+			if (search.getStatus() == SearchStatusEnum.FINISHED) {
+				return search.getNumFound();
+			}
+			return search.getTotalCount();
+		case ACCURATE:
+		default:
+			return size();
+		}
+	}
+
+	@Override
+	public List<IResource> getResources(int theFromIndex, int theToIndex) {
+		waitForResults(theToIndex);
+		return myDao.loadSearchResultPage(mySearch, theFromIndex, theToIndex);
+	}
+
+	/**
+	 * Returns the UUID of the stored search, which may be used to retrieve it again later
+	 */
+	public String getUuid() {
+		return mySearch.getUuid();
+	}
+
+	@Override
+	public Integer preferredPageSize() {
+		return myPreferredPageSize;
+	}
+
+	@Override
+	public int size() {
+		return waitForResults(Integer.MAX_VALUE).getNumFound();
+	}
+
+	/**
+	 * Waits until at least the given number of results have been stored, or the search has finished loading
+	 */
+	private synchronized Search waitForResults(int theMinimum) {
+		Search search = mySearch;
+		long lastProgress = System.currentTimeMillis();
+		while (search.getStatus() == SearchStatusEnum.LOADING && search.getNumFound() < theMinimum) {
+			if (System.currentTimeMillis() - lastProgress > LOADING_STALLED_MILLIS) {
+				throw new InternalErrorException("Search " + search.getUuid() + " has stopped loading results");
+			}
+			try {
+				Thread.sleep(LOADING_POLL_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InternalErrorException("Interrupted while waiting for search " + search.getUuid() + " to load results");
+			}
+
+			Search reloaded = myDao.loadSearch(search.getId());
+			if (reloaded == null) {
+				throw new InternalErrorException("Search " + search.getUuid() + " was deleted while its results were loading");
+			}
+			if (reloaded.getNumFound() > search.getNumFound()) {
+				lastProgress = System.currentTimeMillis();
+			}
+			search = reloaded;
+		}
+
+		if (search.getStatus() == SearchStatusEnum.FAILED && search.getNumFound() < theMinimum) {
+			throw new InternalErrorException("Search " + search.getUuid() + " failed while loading its results");
+		}
+
+		mySearch = search;
+		return search;
+	}
+
+}
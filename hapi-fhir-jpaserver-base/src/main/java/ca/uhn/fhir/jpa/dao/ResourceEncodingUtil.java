@@ -0,0 +1,117 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
+import ca.uhn.fhir.rest.server.Constants;
+
+/**
+ * Converts between the encoded text of a resource and the bytes stored in the database for each
+ * {@link ResourceEncodingEnum}, using the {@link IResourceCodec} registered for the encoding. The encoding used for
+ * new versions is selected with {@link DaoConfig#setResourceEncoding(ResourceEncodingEnum)}; existing rows keep the
+ * encoding they were written with until they are rewritten by the {@link ResourceReencodingSvc}.
+ */
+public class ResourceEncodingUtil {
+
+	/** Replaced as a whole when a codec is registered, so lookups don't need to lock */
+	private static volatile Map<ResourceEncodingEnum, IResourceCodec> ourCodecs = new EnumMap<ResourceEncodingEnum, IResourceCodec>(ResourceEncodingEnum.class);
+
+	static {
+		registerCodec(ResourceEncodingEnum.JSON, new IResourceCodec() {
+			@Override
+			public String decode(byte[] theResource) {
+				return new String(theResource, Constants.CHARSET_UTF8);
+			}
+
+			@Override
+			public byte[] encode(String theEncoded) {
+				return theEncoded.getBytes(Constants.CHARSET_UTF8);
+			}
+		});
+		registerCodec(ResourceEncodingEnum.JSONC, new IResourceCodec() {
+			@Override
+			public String decode(byte[] theResource) {
+				return GZipUtil.decompress(theResource);
+			}
+
+			@Override
+			public byte[] encode(String theEncoded) {
+				return GZipUtil.compress(theEncoded);
+			}
+		});
+		registerCodec(ResourceEncodingEnum.JSONL, new IResourceCodec() {
+			@Override
+			public String decode(byte[] theResource) {
+				return Lz4Util.decompress(theResource);
+			}
+
+			@Override
+			public byte[] encode(String theEncoded) {
+				return Lz4Util.compress(theEncoded);
+			}
+		});
+		registerCodec(ResourceEncodingEnum.JSOND, new IResourceCodec() {
+			@Override
+			public String decode(byte[] theResource) {
+				return DeflateDictionaryUtil.decompress(theResource);
+			}
+
+			@Override
+			public byte[] encode(String theEncoded) {
+				return DeflateDictionaryUtil.compress(theEncoded);
+			}
+		});
+	}
+
+	public static byte[] encode(ResourceEncodingEnum theEncoding, String theEncoded) {
+		return getCodec(theEncoding).encode(theEncoded);
+	}
+
+	public static String decode(ResourceEncodingEnum theEncoding, byte[] theResource) {
+		return getCodec(theEncoding).decode(theResource);
+	}
+
+	private static IResourceCodec getCodec(ResourceEncodingEnum theEncoding) {
+		IResourceCodec retVal = ourCodecs.get(theEncoding);
+		if (retVal == null) {
+			throw new IllegalArgumentException("Unknown encoding: " + theEncoding);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Registers the codec used to store and load resources with the given encoding, replacing any codec registered for
+	 * it before (including the built-in one). Rows which were written by the replaced codec must still be readable by
+	 * the new one.
+	 */
+	public static synchronized void registerCodec(ResourceEncodingEnum theEncoding, IResourceCodec theCodec) {
+		if (theEncoding == null || theCodec == null) {
+			throw new NullPointerException("Encoding and codec must not be null");
+		}
+		Map<ResourceEncodingEnum, IResourceCodec> codecs = new EnumMap<ResourceEncodingEnum, IResourceCodec>(ourCodecs);
+		codecs.put(theEncoding, theCodec);
+		ourCodecs = codecs;
+	}
+
+}
@@ -0,0 +1,221 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import javax.persistence.TypedQuery;
+
+import org.apache.commons.lang3.time.DateUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import ca.uhn.fhir.jpa.entity.BaseHasResource;
+import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
+import ca.uhn.fhir.jpa.entity.ResourceHistoryTable;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+
+/**
+ * Rewrites stored resource bodies (current and historical versions) which use a different encoding than
+ * {@link DaoConfig#getResourceEncoding()}, so that changing the encoding also applies to existing data. Only the
+ * stored bytes change; resource versions and indexes are left untouched. Each poll converts at most
+ * {@link DaoConfig#getReencodeBatchSize()} rows in a single transaction.
+ * <p>
+ * The tables are walked in ranges of {@link #REENCODE_PID_RANGE} PIDs, starting where the previous poll stopped, so no
+ * query ever scans more than one range of the primary key. Once a pass over both tables has finished, polling does
+ * nothing until the configured encoding is changed (new versions are always written using the configured encoding,
+ * so there is nothing left to convert). The position is kept in memory, so a restart begins a new pass from the
+ * lowest PID.
+ * </p>
+ * <p>
+ * This class must be created as a Spring bean, and scheduling must be enabled in the context (e.g. using
+ * <code>&lt;task:annotation-driven/&gt;</code>) for it to run automatically.
+ * </p>
+ */
+public class ResourceReencodingSvc {
+
+	public static final long DEFAULT_POLL_INTERVAL_MILLIS = DateUtils.MILLIS_PER_MINUTE;
+
+	/**
+	 * The number of consecutive PIDs which are examined by each query
+	 */
+	static final int REENCODE_PID_RANGE = 10000;
+
+	/**
+	 * The maximum number of PID ranges which a single poll examines in each table, so that a poll which finds few rows
+	 * to convert still finishes quickly
+	 */
+	static final int REENCODE_MAX_RANGES_PER_POLL = 10;
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ResourceReencodingSvc.class);
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	private ResourceEncodingEnum myPassEncoding;
+	private List<TableWalk<?>> myPassWalks;
+
+	@Scheduled(fixedDelay = DEFAULT_POLL_INTERVAL_MILLIS)
+	@Transactional(propagation = Propagation.REQUIRED)
+	public synchronized void pollForResourcesToReencode() {
+		ResourceEncodingEnum encoding = myDaoConfig.getResourceEncoding();
+		if (encoding != myPassEncoding) {
+			myPassEncoding = encoding;
+			myPassWalks = newTableWalks();
+		}
+		if (isPassComplete()) {
+			return;
+		}
+
+		int count = 0;
+		for (TableWalk<?> next : myPassWalks) {
+			count += walk(next, encoding, myDaoConfig.getReencodeBatchSize() - count, REENCODE_MAX_RANGES_PER_POLL);
+		}
+
+		if (count > 0) {
+			ourLog.info("Re-encoded {} stored resources as {}", count, encoding);
+		}
+		if (isPassComplete()) {
+			ourLog.info("Finished re-encoding stored resources as {}", encoding);
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the most recent poll finished a pass over both tables, meaning that every stored
+	 * resource body uses the encoding which was configured when the pass started
+	 */
+	synchronized boolean isPassComplete() {
+		if (myPassWalks == null) {
+			return false;
+		}
+		for (TableWalk<?> next : myPassWalks) {
+			if (!next.myComplete) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Re-encodes up to the given number of stored resource bodies using the currently configured encoding, walking both
+	 * tables from the lowest PID (independently of the scheduled poll)
+	 * 
+	 * @return The number of rows which were re-encoded. A value less than <code>theMaxCount</code> means that no
+	 *         rows using a different encoding remain.
+	 */
+	@Transactional(propagation = Propagation.REQUIRED)
+	public synchronized int reencodeResources(int theMaxCount) {
+		ResourceEncodingEnum encoding = myDaoConfig.getResourceEncoding();
+
+		int count = 0;
+		for (TableWalk<?> next : newTableWalks()) {
+			count += walk(next, encoding, theMaxCount - count, Integer.MAX_VALUE);
+		}
+
+		if (count > 0) {
+			ourLog.info("Re-encoded {} stored resources as {}", count, encoding);
+		}
+		return count;
+	}
+
+	/**
+	 * Converts rows from the table being walked, one PID range at a time, until the given number of rows has been
+	 * converted, the given number of ranges has been examined, or the end of the table has been reached
+	 * 
+	 * @return The number of rows which were converted
+	 */
+	private <T extends BaseHasResource> int walk(TableWalk<T> theWalk, ResourceEncodingEnum theEncoding, int theMaxCount, int theMaxRanges) {
+		if (theMaxCount <= 0 || theWalk.myComplete) {
+			return 0;
+		}
+
+		String entityName = theWalk.myType.getSimpleName();
+		Long maxPid = myEntityManager.createQuery("SELECT MAX(r.myId) FROM " + entityName + " r", Long.class).getSingleResult();
+
+		int retVal = 0;
+		int ranges = 0;
+		while (retVal < theMaxCount && ranges < theMaxRanges) {
+			if (maxPid == null || theWalk.myNextPid > maxPid) {
+				theWalk.myComplete = true;
+				break;
+			}
+
+			long high = theWalk.myNextPid + REENCODE_PID_RANGE;
+			int maxResults = theMaxCount - retVal;
+			TypedQuery<T> q = myEntityManager.createQuery("SELECT r FROM " + entityName + " r WHERE r.myId >= :low AND r.myId < :high AND r.myEncoding <> :encoding ORDER BY r.myId ASC", theWalk.myType);
+			q.setParameter("low", theWalk.myNextPid);
+			q.setParameter("high", high);
+			q.setParameter("encoding", theEncoding);
+			q.setMaxResults(maxResults);
+			List<T> entities = q.getResultList();
+
+			for (T next : entities) {
+				String encoded = ResourceEncodingUtil.decode(next.getEncoding(), next.getResource());
+				next.setResource(ResourceEncodingUtil.encode(theEncoding, encoded));
+				next.setEncoding(theEncoding);
+			}
+			retVal += entities.size();
+
+			if (entities.size() < maxResults) {
+				theWalk.myNextPid = high;
+				ranges++;
+			} else {
+				// The batch is full, so the rest of this range is converted by the next call
+				theWalk.myNextPid = entities.get(entities.size() - 1).getId() + 1;
+			}
+		}
+
+		myEntityManager.flush();
+		return retVal;
+	}
+
+	private static List<TableWalk<?>> newTableWalks() {
+		List<TableWalk<?>> retVal = new ArrayList<TableWalk<?>>();
+		retVal.add(new TableWalk<ResourceTable>(ResourceTable.class));
+		retVal.add(new TableWalk<ResourceHistoryTable>(ResourceHistoryTable.class));
+		return retVal;
+	}
+
+	/**
+	 * The position of a pass through one of the tables which store resource bodies
+	 */
+	private static class TableWalk<T extends BaseHasResource> {
+
+		private boolean myComplete;
+		private long myNextPid;
+		private final Class<T> myType;
+
+		public TableWalk(Class<T> theType) {
+			myType = theType;
+		}
+
+	}
+
+}
@@ -0,0 +1,185 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import ca.uhn.fhir.jpa.entity.ResourceChange;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+
+/**
+ * In-memory cache of the decoded (decompressed) text of stored resource versions, keyed by resource PID and version,
+ * so that frequently read resources don't need to be decompressed every time they are loaded. The parsed resource
+ * isn't cached, because model objects are mutable and each caller must get its own copy.
+ * <p>
+ * The size of the cache is limited by the total length of the cached text, which is controlled by
+ * {@link DaoConfig#setResourceTextCacheMaximumLength(long)}. This class must be created as a Spring bean for the DAOs
+ * to use it, and if no bean is present the DAOs always decode the stored resource. Every DAO which uses the cache
+ * registers it as an {@link IDaoListener}, so that versions written by a committed transaction are evicted.
+ * </p>
+ * <p>
+ * Entries which are added while a database transaction is active are removed again if that transaction rolls back, so
+ * that the text of a version which was never committed isn't returned for a version with the same number later on.
+ * </p>
+ */
+public class ResourceTextCache implements IDaoListener {
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	private Cache<Key, String> myResourceText;
+	private final ConcurrentMap<String, AtomicLong[]> myTypeCounts = new ConcurrentHashMap<String, AtomicLong[]>();
+
+	/**
+	 * Returns the cached text, or <code>null</code> if it is not in the cache
+	 */
+	public String get(String theResourceType, Long theResourcePid, long theVersion) {
+		String retVal = myResourceText.getIfPresent(new Key(theResourcePid, theVersion));
+
+		AtomicLong[] counts = myTypeCounts.get(theResourceType);
+		if (counts == null) {
+			myTypeCounts.putIfAbsent(theResourceType, new AtomicLong[] { new AtomicLong(), new AtomicLong() });
+			counts = myTypeCounts.get(theResourceType);
+		}
+		counts[retVal != null ? 0 : 1].incrementAndGet();
+
+		return retVal;
+	}
+
+	/**
+	 * Returns the hit/miss statistics for this cache
+	 */
+	public CacheStats getStats() {
+		return myResourceText.stats();
+	}
+
+	/**
+	 * Returns the hit/miss statistics for lookups of the given resource type. Only the hit and miss counts are
+	 * populated.
+	 */
+	public CacheStats getStats(String theResourceType) {
+		AtomicLong[] counts = myTypeCounts.get(theResourceType);
+		if (counts == null) {
+			return new CacheStats(0, 0, 0, 0, 0, 0);
+		}
+		return new CacheStats(counts[0].get(), counts[1].get(), 0, 0, 0, 0);
+	}
+
+	/**
+	 * Removes the text for a resource version
+	 */
+	public void invalidate(Long theResourcePid, long theVersion) {
+		myResourceText.invalidate(new Key(theResourcePid, theVersion));
+	}
+
+	/**
+	 * Removes all entries
+	 */
+	public void invalidateAll() {
+		myResourceText.invalidateAll();
+	}
+
+	private void invalidateOnRollback(final Long theResourcePid, final long theVersion) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			return;
+		}
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCompletion(int theStatus) {
+				if (theStatus != STATUS_COMMITTED) {
+					invalidate(theResourcePid, theVersion);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Adds the decoded text of a resource version
+	 */
+	public void put(Long theResourcePid, long theVersion, String theText) {
+		myResourceText.put(new Key(theResourcePid, theVersion), theText);
+		invalidateOnRollback(theResourcePid, theVersion);
+	}
+
+	/**
+	 * Sets the DAO config (normally this is autowired by Spring)
+	 */
+	public void setDaoConfig(DaoConfig theDaoConfig) {
+		myDaoConfig = theDaoConfig;
+	}
+
+	@PostConstruct
+	public void start() {
+		long maximumLength = myDaoConfig.getResourceTextCacheMaximumLength();
+		myResourceText = CacheBuilder.newBuilder().maximumWeight(maximumLength).weigher(new Weigher<Key, String>() {
+			@Override
+			public int weigh(Key theKey, String theValue) {
+				return theValue.length();
+			}
+		}).recordStats().build();
+	}
+
+	@Override
+	public void writeCompleted(List<ResourceChange> theChanges) {
+		for (ResourceChange next : theChanges) {
+			invalidate(next.getResourcePid(), next.getVersion());
+		}
+	}
+
+	private static final class Key {
+		private final Long myResourcePid;
+		private final long myVersion;
+
+		Key(Long theResourcePid, long theVersion) {
+			myResourcePid = theResourcePid;
+			myVersion = theVersion;
+		}
+
+		@Override
+		public boolean equals(Object theObj) {
+			if (!(theObj instanceof Key)) {
+				return false;
+			}
+			Key obj = (Key) theObj;
+			return myResourcePid.equals(obj.myResourcePid) && myVersion == obj.myVersion;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * myResourcePid.hashCode() + (int) (myVersion ^ (myVersion >>> 32));
+		}
+
+	}
+
+}
@@ -0,0 +1,77 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
+
+/**
+ * Runs the part of a search which continues after its first page of results has been returned, for searches which
+ * don't need an accurate total before then (see {@link SearchTotalModeEnum}). The DAOs use this service if it is
+ * present in the Spring context, and otherwise store every result of a search before returning it.
+ */
+public class SearchLoadingSvc {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SearchLoadingSvc.class);
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	private ExecutorService myExecutor;
+
+	@PostConstruct
+	public void start() {
+		int threadCount = Math.max(1, myDaoConfig.getSearchLoadingThreadCount());
+		ourLog.info("Starting {} search loading threads", threadCount);
+
+		final AtomicInteger threadIndex = new AtomicInteger();
+		myExecutor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable theRunnable) {
+				Thread retVal = new Thread(theRunnable, "search-loading-" + threadIndex.incrementAndGet());
+				retVal.setDaemon(true);
+				return retVal;
+			}
+		});
+	}
+
+	@PreDestroy
+	public void stop() {
+		myExecutor.shutdownNow();
+	}
+
+	/**
+	 * Runs the given task in the background
+	 */
+	void submit(Runnable theTask) {
+		myExecutor.submit(theTask);
+	}
+
+}
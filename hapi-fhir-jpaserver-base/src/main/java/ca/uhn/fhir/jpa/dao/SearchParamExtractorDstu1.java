@@ -27,6 +27,7 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.measure.quantity.Quantity;
@@ -72,7 +73,7 @@ class SearchParamExtractorDstu1 extends BaseSearchParamExtractor implements ISea
 	}
 
 	@Override
-	public List<ResourceIndexedSearchParamDate> extractSearchParamDates(ResourceTable theEntity, IResource theResource) {
+	public List<ResourceIndexedSearchParamDate> extractSearchParamDates(ResourceTable theEntity, IResource theResource, Map<RuntimeSearchParam, List<Object>> theValues) {
 		ArrayList<ResourceIndexedSearchParamDate> retVal = new ArrayList<ResourceIndexedSearchParamDate>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -91,7 +92,7 @@ class SearchParamExtractorDstu1 extends BaseSearchParamExtractor implements ISea
 				multiType = true;
 			}
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : getValues(theValues, nextSpDef)) {
 				if (nextObject == null) {
 					continue;
 				}
@@ -129,7 +130,7 @@ class SearchParamExtractorDstu1 extends BaseSearchParamExtractor implements ISea
 	}
 
 	@Override
-	public ArrayList<ResourceIndexedSearchParamNumber> extractSearchParamNumber(ResourceTable theEntity, IResource theResource) {
+	public ArrayList<ResourceIndexedSearchParamNumber> extractSearchParamNumber(ResourceTable theEntity, IResource theResource, Map<RuntimeSearchParam, List<Object>> theValues) {
 		ArrayList<ResourceIndexedSearchParamNumber> retVal = new ArrayList<ResourceIndexedSearchParamNumber>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -143,7 +144,7 @@ class SearchParamExtractorDstu1 extends BaseSearchParamExtractor implements ISea
 				continue;
 			}
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : getValues(theValues, nextSpDef)) {
 				if (nextObject == null || ((IDatatype) nextObject).isEmpty()) {
 					continue;
 				}
@@ -226,7 +227,7 @@ class SearchParamExtractorDstu1 extends BaseSearchParamExtractor implements ISea
 	}
 
 	@Override
-	public List<ResourceIndexedSearchParamQuantity> extractSearchParamQuantity(ResourceTable theEntity, IResource theResource) {
+	public List<ResourceIndexedSearchParamQuantity> extractSearchParamQuantity(ResourceTable theEntity, IResource theResource, Map<RuntimeSearchParam, List<Object>> theValues) {
 		ArrayList<ResourceIndexedSearchParamQuantity> retVal = new ArrayList<ResourceIndexedSearchParamQuantity>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -240,7 +241,7 @@ class SearchParamExtractorDstu1 extends BaseSearchParamExtractor implements ISea
 				continue;
 			}
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : getValues(theValues, nextSpDef)) {
 				if (nextObject == null || ((IDatatype) nextObject).isEmpty()) {
 					continue;
 				}
@@ -276,7 +277,7 @@ class SearchParamExtractorDstu1 extends BaseSearchParamExtractor implements ISea
 	}
 
 	@Override
-	public List<ResourceIndexedSearchParamString> extractSearchParamStrings(ResourceTable theEntity, IResource theResource) {
+	public List<ResourceIndexedSearchParamString> extractSearchParamStrings(ResourceTable theEntity, IResource theResource, Map<RuntimeSearchParam, List<Object>> theValues) {
 		ArrayList<ResourceIndexedSearchParamString> retVal = new ArrayList<ResourceIndexedSearchParamString>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -291,7 +292,7 @@ class SearchParamExtractorDstu1 extends BaseSearchParamExtractor implements ISea
 				continue;
 			}
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : getValues(theValues, nextSpDef)) {
 				if (nextObject == null || ((IDatatype) nextObject).isEmpty()) {
 					continue;
 				}
@@ -364,7 +365,7 @@ class SearchParamExtractorDstu1 extends BaseSearchParamExtractor implements ISea
 	}
 
 	@Override
-	public List<BaseResourceIndexedSearchParam> extractSearchParamTokens(ResourceTable theEntity, IResource theResource) {
+	public List<BaseResourceIndexedSearchParam> extractSearchParamTokens(ResourceTable theEntity, IResource theResource, Map<RuntimeSearchParam, List<Object>> theValues) {
 		ArrayList<BaseResourceIndexedSearchParam> retVal = new ArrayList<BaseResourceIndexedSearchParam>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -386,7 +387,7 @@ class SearchParamExtractorDstu1 extends BaseSearchParamExtractor implements ISea
 			List<String> systems = new ArrayList<String>();
 			List<String> codes = new ArrayList<String>();
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : getValues(theValues, nextSpDef)) {
 				if (nextObject instanceof IdentifierDt) {
 					IdentifierDt nextValue = (IdentifierDt) nextObject;
 					if (nextValue.isEmpty()) {
@@ -26,6 +26,7 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.measure.quantity.Quantity;
@@ -79,7 +80,7 @@ class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implements ISea
 	 * ca.uhn.fhir.model.api.IResource)
 	 */
 	@Override
-	public List<ResourceIndexedSearchParamDate> extractSearchParamDates(ResourceTable theEntity, IResource theResource) {
+	public List<ResourceIndexedSearchParamDate> extractSearchParamDates(ResourceTable theEntity, IResource theResource, Map<RuntimeSearchParam, List<Object>> theValues) {
 		ArrayList<ResourceIndexedSearchParamDate> retVal = new ArrayList<ResourceIndexedSearchParamDate>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -98,7 +99,7 @@ class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implements ISea
 				multiType = true;
 			}
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : getValues(theValues, nextSpDef)) {
 				if (nextObject == null) {
 					continue;
 				}
@@ -142,7 +143,7 @@ class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implements ISea
 	 * ca.uhn.fhir.model.api.IResource)
 	 */
 	@Override
-	public ArrayList<ResourceIndexedSearchParamNumber> extractSearchParamNumber(ResourceTable theEntity, IResource theResource) {
+	public ArrayList<ResourceIndexedSearchParamNumber> extractSearchParamNumber(ResourceTable theEntity, IResource theResource, Map<RuntimeSearchParam, List<Object>> theValues) {
 		ArrayList<ResourceIndexedSearchParamNumber> retVal = new ArrayList<ResourceIndexedSearchParamNumber>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -156,7 +157,7 @@ class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implements ISea
 				continue;
 			}
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : getValues(theValues, nextSpDef)) {
 				if (nextObject == null || ((IDatatype) nextObject).isEmpty()) {
 					continue;
 				}
@@ -245,7 +246,7 @@ class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implements ISea
 	 * ca.uhn.fhir.model.api.IResource)
 	 */
 	@Override
-	public List<ResourceIndexedSearchParamQuantity> extractSearchParamQuantity(ResourceTable theEntity, IResource theResource) {
+	public List<ResourceIndexedSearchParamQuantity> extractSearchParamQuantity(ResourceTable theEntity, IResource theResource, Map<RuntimeSearchParam, List<Object>> theValues) {
 		ArrayList<ResourceIndexedSearchParamQuantity> retVal = new ArrayList<ResourceIndexedSearchParamQuantity>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -259,7 +260,7 @@ class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implements ISea
 				continue;
 			}
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : getValues(theValues, nextSpDef)) {
 				if (nextObject == null || ((IDatatype) nextObject).isEmpty()) {
 					continue;
 				}
@@ -301,7 +302,7 @@ class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implements ISea
 	 * ca.uhn.fhir.model.api.IResource)
 	 */
 	@Override
-	public List<ResourceIndexedSearchParamString> extractSearchParamStrings(ResourceTable theEntity, IResource theResource) {
+	public List<ResourceIndexedSearchParamString> extractSearchParamStrings(ResourceTable theEntity, IResource theResource, Map<RuntimeSearchParam, List<Object>> theValues) {
 		ArrayList<ResourceIndexedSearchParamString> retVal = new ArrayList<ResourceIndexedSearchParamString>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -316,7 +317,7 @@ class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implements ISea
 				continue;
 			}
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : getValues(theValues, nextSpDef)) {
 				if (nextObject == null || ((IDatatype) nextObject).isEmpty()) {
 					continue;
 				}
@@ -395,7 +396,7 @@ class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implements ISea
 	 * ca.uhn.fhir.model.api.IResource)
 	 */
 	@Override
-	public List<BaseResourceIndexedSearchParam> extractSearchParamTokens(ResourceTable theEntity, IResource theResource) {
+	public List<BaseResourceIndexedSearchParam> extractSearchParamTokens(ResourceTable theEntity, IResource theResource, Map<RuntimeSearchParam, List<Object>> theValues) {
 		ArrayList<BaseResourceIndexedSearchParam> retVal = new ArrayList<BaseResourceIndexedSearchParam>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -417,7 +418,7 @@ class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implements ISea
 			List<String> systems = new ArrayList<String>();
 			List<String> codes = new ArrayList<String>();
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : getValues(theValues, nextSpDef)) {
 				
 				// Patient:language 
 				if (nextObject instanceof Patient.Communication) {
@@ -21,10 +21,12 @@ package ca.uhn.fhir.jpa.dao;
  */
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.commons.lang3.builder.ToStringStyle;
@@ -33,6 +35,7 @@ import ca.uhn.fhir.model.api.IQueryParameterAnd;
 import ca.uhn.fhir.model.api.IQueryParameterOr;
 import ca.uhn.fhir.model.api.IQueryParameterType;
 import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 
 public class SearchParameterMap extends HashMap<String, List<List<? extends IQueryParameterType>>> {
@@ -43,6 +46,9 @@ public class SearchParameterMap extends HashMap<String, List<List<? extends IQue
 	private Set<Include> myIncludes;
 	private Set<Include> myRevIncludes;
 	private SortSpec mySort;
+	private boolean mySummaryCount;
+	private SearchTotalModeEnum myTotalMode;
+	private Date myWaitForIndex;
 
 	public void add(String theName, IQueryParameterAnd<?> theAnd) {
 		if (theAnd == null) {
@@ -106,6 +112,27 @@ public class SearchParameterMap extends HashMap<String, List<List<? extends IQue
 		return mySort;
 	}
 
+	/**
+	 * See {@link #setTotalMode(SearchTotalModeEnum)}
+	 */
+	public SearchTotalModeEnum getTotalMode() {
+		return myTotalMode;
+	}
+
+	/**
+	 * See {@link #setWaitForIndex(Date)}
+	 */
+	public Date getWaitForIndex() {
+		return myWaitForIndex;
+	}
+
+	/**
+	 * See {@link #setSummaryCount(boolean)}
+	 */
+	public boolean isSummaryCount() {
+		return mySummaryCount;
+	}
+
 	public void setCount(Integer theCount) {
 		myCount = theCount;
 	}
@@ -122,6 +149,83 @@ public class SearchParameterMap extends HashMap<String, List<List<? extends IQue
 		mySort = theSort;
 	}
 
+	/**
+	 * If set to <code>true</code> (as requested by <code>_summary=count</code>), the search only counts the matching
+	 * resources. No results are stored or returned, only the total.
+	 */
+	public void setSummaryCount(boolean theSummaryCount) {
+		mySummaryCount = theSummaryCount;
+	}
+
+	/**
+	 * Sets how the total number of results should be calculated (as requested by <code>_total</code>). If not set,
+	 * the total is {@link SearchTotalModeEnum#ACCURATE accurate}. This is not part of the
+	 * {@link #toNormalizedQueryString() normalized query string}, since it doesn't change which resources match.
+	 */
+	public void setTotalMode(SearchTotalModeEnum theTotalMode) {
+		myTotalMode = theTotalMode;
+	}
+
+	/**
+	 * If set, the search will not be performed until every resource version written at or before the given time has
+	 * been indexed. This is only meaningful when indexing is deferred (see {@link DaoConfig#setDeferIndexing(boolean)}),
+	 * and is not part of the {@link #toNormalizedQueryString() normalized query string}.
+	 */
+	public void setWaitForIndex(Date theWaitForIndex) {
+		myWaitForIndex = theWaitForIndex;
+	}
+
+	/**
+	 * Returns a string representation of this search which is identical for any two maps which describe the same
+	 * search, regardless of the order in which parameters and includes were added. This is used as the key for
+	 * reusing stored search results.
+	 */
+	public String toNormalizedQueryString() {
+		StringBuilder b = new StringBuilder();
+
+		for (String nextName : new TreeSet<String>(keySet())) {
+			for (List<? extends IQueryParameterType> nextAnd : get(nextName)) {
+				if (b.length() > 0) {
+					b.append('&');
+				}
+				b.append(nextName);
+				if (nextAnd.size() > 0 && nextAnd.get(0).getQueryParameterQualifier() != null) {
+					b.append(nextAnd.get(0).getQueryParameterQualifier());
+				}
+				b.append('=');
+				boolean first = true;
+				for (IQueryParameterType nextOr : nextAnd) {
+					if (!first) {
+						b.append(',');
+					}
+					first = false;
+					b.append(nextOr.getValueAsQueryToken());
+				}
+			}
+		}
+
+		for (SortSpec nextSort = mySort; nextSort != null; nextSort = nextSort.getChain()) {
+			b.append("&_sort");
+			if (nextSort.getOrder() != null) {
+				b.append(':').append(nextSort.getOrder().name());
+			}
+			b.append('=').append(nextSort.getParamName());
+		}
+
+		for (String next : toSortedIncludeValues(myIncludes)) {
+			b.append("&_include=").append(next);
+		}
+		for (String next : toSortedIncludeValues(myRevIncludes)) {
+			b.append("&_revinclude=").append(next);
+		}
+
+		if (myCount != null) {
+			b.append("&_count=").append(myCount);
+		}
+
+		return b.toString();
+	}
+
 	@Override
 	public String toString() {
 		ToStringBuilder b = new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE);
@@ -134,4 +238,14 @@ public class SearchParameterMap extends HashMap<String, List<List<? extends IQue
 		return b.toString();
 	}
 
+	private static Set<String> toSortedIncludeValues(Set<Include> theIncludes) {
+		TreeSet<String> retVal = new TreeSet<String>();
+		if (theIncludes != null) {
+			for (Include next : theIncludes) {
+				retVal.add(next.getValue());
+			}
+		}
+		return retVal;
+	}
+
 }
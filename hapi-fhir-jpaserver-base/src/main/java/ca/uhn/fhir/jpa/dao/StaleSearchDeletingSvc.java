@@ -0,0 +1,73 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Date;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+
+import org.apache.commons.lang3.time.DateUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Deletes stored search results once they are older than {@link DaoConfig#getExpireSearchResultsAfterMillis()}. This
+ * class must be created as a Spring bean, and scheduling must be enabled in the context (e.g. using
+ * <code>&lt;task:annotation-driven/&gt;</code>) for it to run automatically.
+ */
+public class StaleSearchDeletingSvc {
+
+	public static final long DEFAULT_POLL_INTERVAL_MILLIS = DateUtils.MILLIS_PER_MINUTE;
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(StaleSearchDeletingSvc.class);
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	@Scheduled(fixedDelay = DEFAULT_POLL_INTERVAL_MILLIS)
+	@Transactional(propagation = Propagation.REQUIRED)
+	public synchronized void pollForStaleSearches() {
+		Date cutoff = new Date(System.currentTimeMillis() - myDaoConfig.getExpireSearchResultsAfterMillis());
+		ourLog.debug("Deleting searches created before {}", cutoff);
+
+		//@formatter:off
+		int deletedResults = myEntityManager.createQuery(
+				"DELETE FROM SearchResult r WHERE r.mySearchPid IN (SELECT s.myId FROM Search s WHERE s.myCreated < :cutoff)")
+				.setParameter("cutoff", cutoff)
+				.executeUpdate();
+		int deletedSearches = myEntityManager.createQuery("DELETE FROM Search s WHERE s.myCreated < :cutoff")
+				.setParameter("cutoff", cutoff)
+				.executeUpdate();
+		//@formatter:on
+
+		if (deletedSearches > 0) {
+			ourLog.info("Deleted {} stale searches with {} stored results", deletedSearches, deletedResults);
+		}
+	}
+
+}
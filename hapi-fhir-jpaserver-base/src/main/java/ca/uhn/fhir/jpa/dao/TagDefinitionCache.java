@@ -0,0 +1,154 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.*;
+
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import javax.persistence.TypedQuery;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.jpa.entity.TagDefinition;
+import ca.uhn.fhir.jpa.entity.TagTypeEnum;
+import ca.uhn.fhir.jpa.util.StopWatch;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * In-memory cache of {@link TagDefinition} rows (tags, security labels and profiles), keyed by type, system and code,
+ * so that writing a resource doesn't need to query for each of its tags. Tag definitions are never modified or deleted
+ * once created, so entries don't need to be invalidated.
+ * <p>
+ * The cache is loaded with existing tag definitions when it is started, and its size is controlled by
+ * {@link DaoConfig#setTagDefinitionCacheMaximumSize(int)}. This class must be created as a Spring bean for the DAOs to
+ * use it, and if no bean is present the DAOs always go to the database.
+ * </p>
+ */
+public class TagDefinitionCache {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(TagDefinitionCache.class);
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	@Autowired
+	private PlatformTransactionManager myPlatformTransactionManager;
+
+	private Cache<Key, TagDefinition> myTagDefinitions;
+
+	/**
+	 * Returns the cached definition, or <code>null</code> if it is not in the cache
+	 */
+	public TagDefinition get(TagTypeEnum theTagType, String theSystem, String theCode) {
+		return myTagDefinitions.getIfPresent(new Key(theTagType, theSystem, theCode));
+	}
+
+	/**
+	 * Returns the hit/miss statistics for this cache
+	 */
+	public CacheStats getStats() {
+		return myTagDefinitions.stats();
+	}
+
+	/**
+	 * Adds a definition to the cache. The definition must already have been committed to the database.
+	 */
+	public void put(TagDefinition theTagDefinition) {
+		myTagDefinitions.put(new Key(theTagDefinition.getTagType(), theTagDefinition.getSystem(), theTagDefinition.getCode()), theTagDefinition);
+	}
+
+	/**
+	 * Sets the DAO config (normally this is autowired by Spring)
+	 */
+	public void setDaoConfig(DaoConfig theDaoConfig) {
+		myDaoConfig = theDaoConfig;
+	}
+
+	@PostConstruct
+	public void start() {
+		final int maximumSize = myDaoConfig.getTagDefinitionCacheMaximumSize();
+		myTagDefinitions = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+		if (maximumSize <= 0) {
+			return;
+		}
+
+		StopWatch w = new StopWatch();
+		TransactionTemplate txTemplate = new TransactionTemplate(myPlatformTransactionManager);
+		txTemplate.setReadOnly(true);
+		List<TagDefinition> definitions = txTemplate.execute(new TransactionCallback<List<TagDefinition>>() {
+			@Override
+			public List<TagDefinition> doInTransaction(TransactionStatus theStatus) {
+				TypedQuery<TagDefinition> q = myEntityManager.createQuery("SELECT d FROM TagDefinition d", TagDefinition.class);
+				q.setMaxResults(maximumSize);
+				return q.getResultList();
+			}
+		});
+		for (TagDefinition next : definitions) {
+			put(next);
+		}
+		ourLog.info("Loaded {} tag definitions into cache in {}ms", definitions.size(), w.getMillis());
+	}
+
+	private static final class Key {
+		private final String myCode;
+		private final String mySystem;
+		private final TagTypeEnum myTagType;
+
+		Key(TagTypeEnum theTagType, String theSystem, String theCode) {
+			myTagType = theTagType;
+			mySystem = defaultIfBlank(theSystem, null);
+			myCode = theCode;
+		}
+
+		@Override
+		public boolean equals(Object theObj) {
+			if (!(theObj instanceof Key)) {
+				return false;
+			}
+			Key obj = (Key) theObj;
+			return new EqualsBuilder().append(myTagType, obj.myTagType).append(mySystem, obj.mySystem).append(myCode, obj.myCode).isEquals();
+		}
+
+		@Override
+		public int hashCode() {
+			return new HashCodeBuilder().append(myTagType).append(mySystem).append(myCode).toHashCode();
+		}
+
+	}
+
+}
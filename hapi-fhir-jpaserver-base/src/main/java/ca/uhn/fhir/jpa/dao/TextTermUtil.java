@@ -0,0 +1,162 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+
+import ca.uhn.fhir.jpa.entity.ResourceIndexedTextTerm;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.jpa.entity.TextTermTypeEnum;
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.base.composite.BaseNarrativeDt;
+
+/**
+ * Breaks values down into the terms stored in the full text index (see {@link DaoConfig#setFullTextIndexing(boolean)}).
+ * All methods expect values which have already been normalized using {@link BaseFhirDao#normalizeString(String)}, so
+ * that values and search terms are broken down identically.
+ */
+public class TextTermUtil {
+
+	/**
+	 * The proportion of the trigrams of a search word which a value must contain to be a <code>:fuzzy</code> match for
+	 * it
+	 */
+	public static final double FUZZY_MATCH_THRESHOLD = 0.6;
+
+	/**
+	 * The phonetic codes of the letters A-Z, as used by American Soundex. A 0 separates codes (vowels) and a space is
+	 * ignored (H and W).
+	 */
+	private static final String SOUNDEX_CODES = "0123012 02245501262301 202";
+
+	/**
+	 * Returns every term to be indexed for a single value
+	 */
+	public static List<ResourceIndexedTextTerm> extractTerms(ResourceTable theEntity, String theParamName, String theValueNormalized) {
+		List<ResourceIndexedTextTerm> retVal = new ArrayList<ResourceIndexedTextTerm>();
+		for (String next : trigrams(" " + collapseWhitespace(theValueNormalized) + " ")) {
+			retVal.add(newTerm(theEntity, theParamName, TextTermTypeEnum.TRIGRAM, next));
+		}
+		for (String nextWord : words(theValueNormalized)) {
+			String code = phonetic(nextWord);
+			if (code != null) {
+				retVal.add(newTerm(theEntity, theParamName, TextTermTypeEnum.PHONETIC, code));
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns the plain text of the resource narrative, or <code>null</code> if it has none
+	 */
+	public static String narrativeText(IResource theResource) {
+		BaseNarrativeDt<?> text = theResource.getText();
+		if (text == null || text.getDiv() == null || text.getDiv().isEmpty()) {
+			return null;
+		}
+		String xhtml = text.getDiv().getValueAsString();
+		if (isBlank(xhtml)) {
+			return null;
+		}
+		return StringEscapeUtils.unescapeXml(xhtml.replaceAll("<[^>]*>", " ")).trim();
+	}
+
+	/**
+	 * Returns the American Soundex code of the given word, or <code>null</code> if it doesn't start with a letter
+	 */
+	public static String phonetic(String theWord) {
+		if (theWord.length() == 0 || theWord.charAt(0) < 'A' || theWord.charAt(0) > 'Z') {
+			return null;
+		}
+
+		StringBuilder b = new StringBuilder(4);
+		b.append(theWord.charAt(0));
+		char previous = SOUNDEX_CODES.charAt(theWord.charAt(0) - 'A');
+		for (int i = 1; i < theWord.length() && b.length() < 4; i++) {
+			char next = theWord.charAt(i);
+			if (next < 'A' || next > 'Z') {
+				continue;
+			}
+			char code = SOUNDEX_CODES.charAt(next - 'A');
+			if (code == ' ') {
+				continue;
+			}
+			if (code != '0' && code != previous) {
+				b.append(code);
+			}
+			previous = code;
+		}
+		while (b.length() < 4) {
+			b.append('0');
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Returns every distinct sequence of three consecutive characters in the given string
+	 */
+	public static Set<String> trigrams(String theString) {
+		Set<String> retVal = new LinkedHashSet<String>();
+		for (int i = 0; i + 3 <= theString.length(); i++) {
+			retVal.add(theString.substring(i, i + 3));
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns the trigrams used to find <code>:fuzzy</code> matches for a single word, which include the word
+	 * boundaries so that short words still have several trigrams
+	 */
+	public static Set<String> fuzzyTrigrams(String theWord) {
+		return trigrams(" " + theWord + " ");
+	}
+
+	/**
+	 * Splits the given value into words, i.e. runs of letters and digits
+	 */
+	public static List<String> words(String theValueNormalized) {
+		List<String> retVal = new ArrayList<String>();
+		for (String next : theValueNormalized.split("[^A-Z0-9]+")) {
+			if (next.length() > 0) {
+				retVal.add(next);
+			}
+		}
+		return retVal;
+	}
+
+	static String collapseWhitespace(String theValueNormalized) {
+		return theValueNormalized.trim().replaceAll("\\s+", " ");
+	}
+
+	private static ResourceIndexedTextTerm newTerm(ResourceTable theEntity, String theParamName, TextTermTypeEnum theTermType, String theTerm) {
+		ResourceIndexedTextTerm retVal = new ResourceIndexedTextTerm(theParamName, theTermType, theTerm);
+		retVal.setResource(theEntity);
+		return retVal;
+	}
+
+}
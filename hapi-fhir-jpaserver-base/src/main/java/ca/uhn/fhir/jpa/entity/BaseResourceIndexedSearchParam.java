@@ -21,25 +21,52 @@ package ca.uhn.fhir.jpa.entity;
  */
 
 import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.Date;
 
 import javax.persistence.Column;
 import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.MappedSuperclass;
 
+import org.apache.commons.lang3.StringUtils;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Base class for the rows which index a resource's search parameters.
+ * <p>
+ * Subclasses implement {@link #equals(Object)} and {@link #hashCode()} by comparing the parameter name and the indexed
+ * values (not the ID or the owning resource), so that the rows extracted from a new version of a resource can be
+ * compared against the rows which are already stored for it.
+ * </p>
+ */
 @MappedSuperclass
 public abstract class BaseResourceIndexedSearchParam implements Serializable {
 
 	static final int MAX_SP_NAME = 100;
 
+	private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128(0);
+
 	private static final long serialVersionUID = 1L;
 
+	//@formatter:off
 	@Id
-	@GeneratedValue(strategy = GenerationType.AUTO)
+	@GenericGenerator(name = "SEQ_SPIDX", strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator", parameters = {
+		@Parameter(name = "sequence_name", value = "SEQ_SPIDX"),
+		@Parameter(name = "optimizer", value = "pooled"),
+		@Parameter(name = "increment_size", value = "50")
+	})
+	@GeneratedValue(generator = "SEQ_SPIDX")
 	@Column(name = "SP_ID")
+	//@formatter:on
 	private Long myId;
 
 	@Column(name = "SP_NAME", length = MAX_SP_NAME, nullable=false)
@@ -63,6 +90,10 @@ public abstract class BaseResourceIndexedSearchParam implements Serializable {
 		myParamName = theName;
 	}
 
+	public String getResourceType() {
+		return myResourceType;
+	}
+
 	public ResourceTable getResource() {
 		return myResource;
 	}
@@ -72,4 +103,40 @@ public abstract class BaseResourceIndexedSearchParam implements Serializable {
 		myResourceType = theResource.getResourceType();
 	}
 
+	/**
+	 * Computes a 64-bit hash of the given values, which is stored in (and searched against) a narrow indexed column in
+	 * place of the much wider index on the values themselves. A <code>null</code> value hashes the same as an empty
+	 * string, and the values are separated so that e.g. <code>("ab", "c")</code> and <code>("a", "bc")</code> hash
+	 * differently.
+	 */
+	public static long hash(String... theValues) {
+		Hasher hasher = HASH_FUNCTION.newHasher();
+		for (String next : theValues) {
+			hasher.putString(StringUtils.defaultString(next), Charsets.UTF_8);
+			hasher.putByte((byte) 0);
+		}
+		return hasher.hash().asLong();
+	}
+
+	/**
+	 * Returns a form of the given value which is equal for any two numerically equal values, regardless of scale
+	 */
+	protected static BigDecimal toComparable(BigDecimal theValue) {
+		if (theValue == null) {
+			return null;
+		}
+		if (theValue.signum() == 0) {
+			return BigDecimal.ZERO;
+		}
+		return theValue.stripTrailingZeros();
+	}
+
+	/**
+	 * Dates loaded from the database may be {@link java.sql.Timestamp} instances, which are never equal to a plain
+	 * {@link Date}, so dates are compared by their millisecond value
+	 */
+	protected static Long toMillis(Date theDate) {
+		return theDate != null ? theDate.getTime() : null;
+	}
+
 }
@@ -38,7 +38,9 @@ import javax.persistence.UniqueConstraint;
 		@UniqueConstraint(name = "IDX_FORCEDID", columnNames = {"FORCED_ID"})
 })
 @NamedQueries(value = {
-		@NamedQuery(name = "Q_GET_FORCED_ID", query = "SELECT f FROM ForcedId f WHERE myForcedId = :ID")
+		@NamedQuery(name = "Q_GET_FORCED_ID", query = "SELECT f FROM ForcedId f WHERE myForcedId = :ID"),
+		@NamedQuery(name = "Q_GET_FORCED_IDS", query = "SELECT f FROM ForcedId f WHERE myForcedId IN (:IDS)"),
+		@NamedQuery(name = "Q_GET_FORCED_ID_FOR_PID", query = "SELECT f FROM ForcedId f WHERE myResourcePid = :PID")
 })
 //@formatter:on
 public class ForcedId {
@@ -0,0 +1,72 @@
+package ca.uhn.fhir.jpa.entity;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * Records that a one-time data migration has completed against this database, so that it is not run again when the
+ * server next starts
+ */
+//@formatter:off
+@Entity
+@Table(name = "HFJ_MIGRATION")
+//@formatter:on
+public class MigrationMarker implements Serializable {
+
+	public static final int MAX_NAME_LENGTH = 100;
+
+	private static final long serialVersionUID = 1L;
+
+	@Id
+	@Column(name = "MIGRATION_NAME", length = MAX_NAME_LENGTH)
+	private String myName;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "COMPLETED", nullable = false)
+	private Date myCompleted;
+
+	public MigrationMarker() {
+		// nothing
+	}
+
+	public MigrationMarker(String theName) {
+		myName = theName;
+		myCompleted = new Date();
+	}
+
+	public Date getCompleted() {
+		return myCompleted;
+	}
+
+	public String getName() {
+		return myName;
+	}
+
+}
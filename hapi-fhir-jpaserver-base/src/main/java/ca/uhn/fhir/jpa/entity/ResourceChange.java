@@ -0,0 +1,162 @@
+package ca.uhn.fhir.jpa.entity;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Parameter;
+
+import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.rest.server.Constants;
+
+/**
+ * An entry in the append-only change log. One row is written (in the same database transaction as the write itself)
+ * every time a new version of a resource is stored. The row's sequence number is assigned just before that transaction
+ * commits, under a lock on the {@link ResourceChangeCounter} row, so sequence numbers increase in commit order and
+ * consumers can read the log in order and resume from the last sequence number they have processed without missing
+ * entries which were committed late.
+ */
+//@formatter:off
+@Entity
+@Table(name = "HFJ_RES_CHANGE")
+@org.hibernate.annotations.Table(appliesTo = "HFJ_RES_CHANGE", indexes = { @Index(name = "IDX_RES_CHANGE_SEQ", columnNames = { "CHANGE_SEQ" }) })
+//@formatter:on
+public class ResourceChange implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "CHANGE_TIME", nullable = false)
+	private Date myChangeTime;
+
+	@Column(name = "FORCED_ID", nullable = true, length = ForcedId.MAX_FORCED_ID_LENGTH)
+	private String myForcedId;
+
+	//@formatter:off
+	@Id
+	@GenericGenerator(name = "SEQ_RES_CHANGE", strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator", parameters = {
+		@Parameter(name = "sequence_name", value = "SEQ_RES_CHANGE"),
+		@Parameter(name = "optimizer", value = "pooled"),
+		@Parameter(name = "increment_size", value = "50")
+	})
+	@GeneratedValue(generator = "SEQ_RES_CHANGE")
+	@Column(name = "CHANGE_ID")
+	//@formatter:on
+	private Long myId;
+
+	@Column(name = "CHANGE_OPERATION", nullable = false, length = 10)
+	@Enumerated(EnumType.STRING)
+	private ResourceChangeOperationEnum myOperation;
+
+	@Column(name = "RES_ID", nullable = false)
+	private Long myResourcePid;
+
+	@Column(name = "RES_TYPE", nullable = false, length = ResourceTable.RESTYPE_LEN)
+	private String myResourceType;
+
+	@Column(name = "RES_VER", nullable = false)
+	private long myVersion;
+
+	@Column(name = "CHANGE_SEQ", nullable = true)
+	private Long mySequence;
+
+	public ResourceChange() {
+		// nothing
+	}
+
+	public ResourceChange(ResourceTable theEntity, ResourceChangeOperationEnum theOperation, Date theChangeTime) {
+		myResourceType = theEntity.getResourceType();
+		myResourcePid = theEntity.getId();
+		myForcedId = theEntity.getForcedId() != null ? theEntity.getForcedId().getForcedId() : null;
+		myVersion = theEntity.getVersion();
+		myOperation = theOperation;
+		myChangeTime = theChangeTime;
+	}
+
+	public Date getChangeTime() {
+		return myChangeTime;
+	}
+
+	/**
+	 * Returns the client assigned ID of the resource, or <code>null</code> if it doesn't have one
+	 */
+	public String getForcedId() {
+		return myForcedId;
+	}
+
+	/**
+	 * Returns the PID of this row. Note that this is allocated when the change is written, not when it commits, so
+	 * it can't be used to read the log in order. Use {@link #getSequence()} for that.
+	 */
+	public Long getId() {
+		return myId;
+	}
+
+	/**
+	 * Returns the versioned ID of the resource which was changed, e.g. <code>Patient/123/_history/2</code>
+	 */
+	public IdDt getIdDt() {
+		Object id = myForcedId != null ? myForcedId : myResourcePid;
+		return new IdDt(myResourceType + '/' + id + '/' + Constants.PARAM_HISTORY + '/' + myVersion);
+	}
+
+	public ResourceChangeOperationEnum getOperation() {
+		return myOperation;
+	}
+
+	public Long getResourcePid() {
+		return myResourcePid;
+	}
+
+	public String getResourceType() {
+		return myResourceType;
+	}
+
+	/**
+	 * Returns the sequence number of this change, or <code>null</code> if the transaction which wrote it hasn't
+	 * committed yet
+	 */
+	public Long getSequence() {
+		return mySequence;
+	}
+
+	public long getVersion() {
+		return myVersion;
+	}
+
+	public void setSequence(Long theSequence) {
+		mySequence = theSequence;
+	}
+
+}
@@ -0,0 +1,73 @@
+package ca.uhn.fhir.jpa.entity;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.Serializable;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * Holds the last sequence number handed out to a {@link ResourceChange}. There is only ever one row. Writers lock it
+ * just before their transaction commits and hold the lock until the commit completes, so sequence numbers are
+ * assigned in commit order.
+ */
+//@formatter:off
+@Entity
+@Table(name = "HFJ_RES_CHANGE_COUNTER")
+//@formatter:on
+public class ResourceChangeCounter implements Serializable {
+
+	public static final long COUNTER_ID = 1L;
+
+	private static final long serialVersionUID = 1L;
+
+	@Id
+	@Column(name = "PID")
+	private Long myId;
+
+	@Column(name = "LAST_SEQ", nullable = false)
+	private long myLastSequence;
+
+	public ResourceChangeCounter() {
+		// nothing
+	}
+
+	public ResourceChangeCounter(long theLastSequence) {
+		myId = COUNTER_ID;
+		myLastSequence = theLastSequence;
+	}
+
+	public Long getId() {
+		return myId;
+	}
+
+	public long getLastSequence() {
+		return myLastSequence;
+	}
+
+	public void setLastSequence(long theLastSequence) {
+		myLastSequence = theLastSequence;
+	}
+
+}
@@ -0,0 +1,134 @@
+package ca.uhn.fhir.jpa.entity;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
+/**
+ * Records that a resource is a member of the compartment of another resource (currently only Patient compartments
+ * are indexed). Rows are maintained whenever the member resource is written, so that all of the resources in a
+ * compartment can be found with a single indexed query instead of by following links.
+ */
+//@formatter:off
+@Entity
+@Table(name = "HFJ_RES_COMPARTMENT")
+@org.hibernate.annotations.Table(appliesTo="HFJ_RES_COMPARTMENT", indexes= {
+		@org.hibernate.annotations.Index(name="IDX_RC_OWNER_RES", columnNames= {"OWNER_RES_ID", "RES_ID"}),
+		@org.hibernate.annotations.Index(name="IDX_RC_RES", columnNames= {"RES_ID"})})
+//@formatter:on
+public class ResourceCompartment implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	//@formatter:off
+	@Id
+	@GenericGenerator(name = "SEQ_RES_COMPARTMENT", strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator", parameters = {
+		@Parameter(name = "sequence_name", value = "SEQ_RES_COMPARTMENT"),
+		@Parameter(name = "optimizer", value = "pooled"),
+		@Parameter(name = "increment_size", value = "50")
+	})
+	@GeneratedValue(generator = "SEQ_RES_COMPARTMENT")
+	@Column(name = "PID")
+	//@formatter:on
+	private Long myId;
+
+	@Column(name = "OWNER_RES_ID", nullable = false)
+	private Long myOwnerResourcePid;
+
+	@Column(name = "RES_ID", nullable = false)
+	private Long myResourcePid;
+
+	@Column(name = "RES_TYPE", nullable = false, length = ResourceTable.RESTYPE_LEN)
+	private String myResourceType;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "RES_UPDATED", nullable = false)
+	private Date myUpdated;
+
+	public ResourceCompartment() {
+		// nothing
+	}
+
+	public ResourceCompartment(Long theOwnerResourcePid, Long theResourcePid, String theResourceType, Date theUpdated) {
+		myOwnerResourcePid = theOwnerResourcePid;
+		myResourcePid = theResourcePid;
+		myResourceType = theResourceType;
+		myUpdated = theUpdated;
+	}
+
+	@Override
+	public boolean equals(Object theObj) {
+		if (this == theObj) {
+			return true;
+		}
+		if (!(theObj instanceof ResourceCompartment)) {
+			return false;
+		}
+		ResourceCompartment obj = (ResourceCompartment) theObj;
+		EqualsBuilder b = new EqualsBuilder();
+		b.append(myOwnerResourcePid, obj.myOwnerResourcePid);
+		b.append(myResourcePid, obj.myResourcePid);
+		return b.isEquals();
+	}
+
+	public Long getOwnerResourcePid() {
+		return myOwnerResourcePid;
+	}
+
+	public Long getResourcePid() {
+		return myResourcePid;
+	}
+
+	public String getResourceType() {
+		return myResourceType;
+	}
+
+	public Date getUpdated() {
+		return myUpdated;
+	}
+
+	@Override
+	public int hashCode() {
+		HashCodeBuilder b = new HashCodeBuilder();
+		b.append(myOwnerResourcePid);
+		b.append(myResourcePid);
+		return b.toHashCode();
+	}
+
+	public void setUpdated(Date theUpdated) {
+		myUpdated = theUpdated;
+	}
+
+}
@@ -29,7 +29,13 @@ public enum ResourceEncodingEnum {
 	JSON,
 	
 	/** Json Compressed */
-	JSONC;
+	JSONC,
+
+	/** Json Compressed using LZ4 (fast to decode, less dense than {@link #JSONC}) */
+	JSONL,
+
+	/** Json Compressed using deflate with a preset dictionary of common FHIR JSON content (dense) */
+	JSOND;
 
 	public IParser newParser(FhirContext theContext) {
 		return theContext.newJsonParser();
@@ -28,6 +28,9 @@ import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
 
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
 //@formatter:off
 @Entity
 @Table(name = "HFJ_SPIDX_DATE" /*, indexes= {@Index(name="IDX_SP_DATE", columnList= "SP_VALUE_LOW,SP_VALUE_HIGH")}*/)
@@ -76,6 +79,29 @@ public class ResourceIndexedSearchParamDate extends BaseResourceIndexedSearchPar
 		myValueLow = theValueLow;
 	}
 
-	
+	@Override
+	public boolean equals(Object theObj) {
+		if (this == theObj) {
+			return true;
+		}
+		if (!(theObj instanceof ResourceIndexedSearchParamDate)) {
+			return false;
+		}
+		ResourceIndexedSearchParamDate obj = (ResourceIndexedSearchParamDate) theObj;
+		EqualsBuilder b = new EqualsBuilder();
+		b.append(getParamName(), obj.getParamName());
+		b.append(toMillis(getValueLow()), toMillis(obj.getValueLow()));
+		b.append(toMillis(getValueHigh()), toMillis(obj.getValueHigh()));
+		return b.isEquals();
+	}
+
+	@Override
+	public int hashCode() {
+		HashCodeBuilder b = new HashCodeBuilder();
+		b.append(getParamName());
+		b.append(toMillis(getValueLow()));
+		b.append(toMillis(getValueHigh()));
+		return b.toHashCode();
+	}
 
 }
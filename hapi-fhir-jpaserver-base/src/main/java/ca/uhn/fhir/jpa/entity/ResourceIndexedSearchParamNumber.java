@@ -26,6 +26,9 @@ import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Table;
 
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
 //@formatter:off
 @Entity
 @Table(name = "HFJ_SPIDX_NUMBER" /*, indexes= {@Index(name="IDX_SP_NUMBER", columnList="SP_VALUE")}*/ )
@@ -56,4 +59,27 @@ public class ResourceIndexedSearchParamNumber extends BaseResourceIndexedSearchP
 		myValue = theValue;
 	}
 
+	@Override
+	public boolean equals(Object theObj) {
+		if (this == theObj) {
+			return true;
+		}
+		if (!(theObj instanceof ResourceIndexedSearchParamNumber)) {
+			return false;
+		}
+		ResourceIndexedSearchParamNumber obj = (ResourceIndexedSearchParamNumber) theObj;
+		EqualsBuilder b = new EqualsBuilder();
+		b.append(getParamName(), obj.getParamName());
+		b.append(toComparable(getValue()), toComparable(obj.getValue()));
+		return b.isEquals();
+	}
+
+	@Override
+	public int hashCode() {
+		HashCodeBuilder b = new HashCodeBuilder();
+		b.append(getParamName());
+		b.append(toComparable(getValue()));
+		return b.toHashCode();
+	}
+
 }
@@ -26,12 +26,18 @@ import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Table;
 
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+import ca.uhn.fhir.jpa.util.UcumUtil;
+
 //@formatter:off
 @Entity
 @Table(name = "HFJ_SPIDX_QUANTITY" /*, indexes= {@Index(name="IDX_SP_NUMBER", columnList="SP_VALUE")}*/ )
 @org.hibernate.annotations.Table(appliesTo = "HFJ_SPIDX_QUANTITY", indexes= {
-		@org.hibernate.annotations.Index(name="IDX_SP_QUANTITY", columnNames= {"RES_TYPE", "SP_NAME", "SP_SYSTEM", "SP_UNITS", "SP_VALUE"}
-	)})
+		@org.hibernate.annotations.Index(name="IDX_SP_QUANTITY", columnNames= {"RES_TYPE", "SP_NAME", "SP_SYSTEM", "SP_UNITS", "SP_VALUE"}),
+		@org.hibernate.annotations.Index(name="IDX_SP_QUANTITY_NRM", columnNames= {"RES_TYPE", "SP_NAME", "SP_UNITS_NORM", "SP_VALUE_NORM"})
+	})
 //@formatter:on
 public class ResourceIndexedSearchParamQuantity extends BaseResourceIndexedSearchParam {
 
@@ -43,9 +49,22 @@ public class ResourceIndexedSearchParamQuantity extends BaseResourceIndexedSearc
 	@Column(name = "SP_UNITS", nullable = true, length = 100)
 	public String myUnits;
 
+	/**
+	 * The units of {@link #myValueNormalized}, i.e. the canonical UCUM units of {@link #myUnits}, or
+	 * <code>null</code> if the units are not UCUM
+	 */
+	@Column(name = "SP_UNITS_NORM", nullable = true, length = 100)
+	private String myUnitsNormalized;
+
 	@Column(name = "SP_VALUE", nullable = true)
 	public BigDecimal myValue;
 
+	/**
+	 * The value converted to canonical UCUM units (see {@link UcumUtil})
+	 */
+	@Column(name = "SP_VALUE_NORM", nullable = true, precision = 38, scale = 19)
+	private BigDecimal myValueNormalized;
+
 	public ResourceIndexedSearchParamQuantity() {
 		//nothing
 	}
@@ -57,6 +76,14 @@ public class ResourceIndexedSearchParamQuantity extends BaseResourceIndexedSearc
 		setUnits(theUnits);
 	}
 
+	/**
+	 * Populates the normalized columns from the current system, units and value
+	 */
+	public void calculateNormalizedValues() {
+		myUnitsNormalized = UcumUtil.toCanonicalUnits(getSystem(), getUnits());
+		myValueNormalized = myUnitsNormalized != null ? UcumUtil.toCanonicalValue(getSystem(), getUnits(), getValue()) : null;
+	}
+
 	public String getSystem() {
 		return mySystem;
 	}
@@ -65,10 +92,18 @@ public class ResourceIndexedSearchParamQuantity extends BaseResourceIndexedSearc
 		return myUnits;
 	}
 
+	public String getUnitsNormalized() {
+		return myUnitsNormalized;
+	}
+
 	public BigDecimal getValue() {
 		return myValue;
 	}
 
+	public BigDecimal getValueNormalized() {
+		return myValueNormalized;
+	}
+
 
 	public void setSystem(String theSystem) {
 		mySystem = theSystem;
@@ -82,4 +117,31 @@ public class ResourceIndexedSearchParamQuantity extends BaseResourceIndexedSearc
 		myValue = theValue;
 	}
 
+	@Override
+	public boolean equals(Object theObj) {
+		if (this == theObj) {
+			return true;
+		}
+		if (!(theObj instanceof ResourceIndexedSearchParamQuantity)) {
+			return false;
+		}
+		ResourceIndexedSearchParamQuantity obj = (ResourceIndexedSearchParamQuantity) theObj;
+		EqualsBuilder b = new EqualsBuilder();
+		b.append(getParamName(), obj.getParamName());
+		b.append(toComparable(getValue()), toComparable(obj.getValue()));
+		b.append(getSystem(), obj.getSystem());
+		b.append(getUnits(), obj.getUnits());
+		return b.isEquals();
+	}
+
+	@Override
+	public int hashCode() {
+		HashCodeBuilder b = new HashCodeBuilder();
+		b.append(getParamName());
+		b.append(toComparable(getValue()));
+		b.append(getSystem());
+		b.append(getUnits());
+		return b.toHashCode();
+	}
+
 }
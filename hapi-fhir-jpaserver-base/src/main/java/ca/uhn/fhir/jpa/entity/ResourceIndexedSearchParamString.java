@@ -25,17 +25,33 @@ import javax.persistence.Entity;
 import javax.persistence.Table;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
 
 @Entity
 @Table(name = "HFJ_SPIDX_STRING"/*, indexes= {@Index(name="IDX_SP_STRING", columnList="SP_VALUE_NORMALIZED")}*/)
 @org.hibernate.annotations.Table(appliesTo="HFJ_SPIDX_STRING",indexes= {
-		@org.hibernate.annotations.Index(name="IDX_SP_STRING", columnNames= {"RES_TYPE", "SP_NAME", "SP_VALUE_NORMALIZED"})})
+		@org.hibernate.annotations.Index(name="IDX_SP_STRING", columnNames= {"RES_TYPE", "SP_NAME", "SP_VALUE_NORMALIZED"}),
+		@org.hibernate.annotations.Index(name="IDX_SP_STRING_HASH_NRM", columnNames= {"HASH_NORM_PREFIX"})})
 public class ResourceIndexedSearchParamString extends BaseResourceIndexedSearchParam {
 
+	/**
+	 * The number of leading characters of the normalized value which are included in {@link #getHashNormalizedPrefix()}.
+	 * Searches for shorter strings can't use the hash.
+	 */
+	public static final int HASH_PREFIX_LENGTH = 3;
+
 	public static final int MAX_LENGTH = 100;
 
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * Hash of the resource type, parameter name and the first {@link #HASH_PREFIX_LENGTH} characters of the normalized
+	 * value
+	 */
+	@Column(name = "HASH_NORM_PREFIX", nullable = true)
+	private Long myHashNormalizedPrefix;
+
 	@Column(name = "SP_VALUE_NORMALIZED", length = MAX_LENGTH, nullable = true)
 	public String myValueNormalized;
 
@@ -51,6 +67,18 @@ public class ResourceIndexedSearchParamString extends BaseResourceIndexedSearchP
 		setValueExact(theValueExact);
 	}
 
+	/**
+	 * Populates the hash column from the current values. This must be called after {@link #setResource(ResourceTable)}
+	 * since the resource type is part of the hash.
+	 */
+	public void calculateHashes() {
+		myHashNormalizedPrefix = calculateHashNormalizedPrefix(getResourceType(), getParamName(), getValueNormalized());
+	}
+
+	public Long getHashNormalizedPrefix() {
+		return myHashNormalizedPrefix;
+	}
+
 	public String getValueNormalized() {
 		return myValueNormalized;
 	}
@@ -73,6 +101,33 @@ public class ResourceIndexedSearchParamString extends BaseResourceIndexedSearchP
 		myValueExact = theValueExact;
 	}
 
+	@Override
+	public boolean equals(Object theObj) {
+		if (this == theObj) {
+			return true;
+		}
+		if (!(theObj instanceof ResourceIndexedSearchParamString)) {
+			return false;
+		}
+		ResourceIndexedSearchParamString obj = (ResourceIndexedSearchParamString) theObj;
+		EqualsBuilder b = new EqualsBuilder();
+		b.append(getParamName(), obj.getParamName());
+		b.append(getValueNormalized(), obj.getValueNormalized());
+		b.append(getValueExact(), obj.getValueExact());
+		return b.isEquals();
+	}
 
+	@Override
+	public int hashCode() {
+		HashCodeBuilder b = new HashCodeBuilder();
+		b.append(getParamName());
+		b.append(getValueNormalized());
+		b.append(getValueExact());
+		return b.toHashCode();
+	}
+
+	public static long calculateHashNormalizedPrefix(String theResourceType, String theParamName, String theValueNormalized) {
+		return hash(theResourceType, theParamName, StringUtils.left(theValueNormalized, HASH_PREFIX_LENGTH));
+	}
 
 }
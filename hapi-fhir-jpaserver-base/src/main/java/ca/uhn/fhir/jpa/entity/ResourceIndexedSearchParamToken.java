@@ -25,12 +25,16 @@ import javax.persistence.Entity;
 import javax.persistence.Table;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
 
 @Entity
 @Table(name = "HFJ_SPIDX_TOKEN" /* , indexes = { @Index(name = "IDX_SP_TOKEN", columnList = "SP_SYSTEM,SP_VALUE") } */)
 @org.hibernate.annotations.Table(appliesTo = "HFJ_SPIDX_TOKEN", indexes = { 
 		@org.hibernate.annotations.Index(name = "IDX_SP_TOKEN", columnNames = { "RES_TYPE", "SP_NAME", "SP_SYSTEM", "SP_VALUE" }), 
-		@org.hibernate.annotations.Index(name = "IDX_SP_TOKEN_UNQUAL", columnNames = { "RES_TYPE", "SP_NAME", "SP_VALUE" }) 
+		@org.hibernate.annotations.Index(name = "IDX_SP_TOKEN_UNQUAL", columnNames = { "RES_TYPE", "SP_NAME", "SP_VALUE" }), 
+		@org.hibernate.annotations.Index(name = "IDX_SP_TOKEN_HASH", columnNames = { "HASH_SYS_AND_VALUE" }), 
+		@org.hibernate.annotations.Index(name = "IDX_SP_TOKEN_HASH_V", columnNames = { "HASH_VALUE" }) 
 })
 public class ResourceIndexedSearchParamToken extends BaseResourceIndexedSearchParam {
 
@@ -38,6 +42,18 @@ public class ResourceIndexedSearchParamToken extends BaseResourceIndexedSearchPa
 
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * Hash of the resource type, parameter name, system and value
+	 */
+	@Column(name = "HASH_SYS_AND_VALUE", nullable = true)
+	private Long myHashSystemAndValue;
+
+	/**
+	 * Hash of the resource type, parameter name and value (for searches which don't specify a system)
+	 */
+	@Column(name = "HASH_VALUE", nullable = true)
+	private Long myHashValue;
+
 	@Column(name = "SP_SYSTEM", nullable = true, length = MAX_LENGTH)
 	public String mySystem;
 
@@ -53,6 +69,23 @@ public class ResourceIndexedSearchParamToken extends BaseResourceIndexedSearchPa
 		setValue(theValue);
 	}
 
+	/**
+	 * Populates the hash columns from the current values. This must be called after {@link #setResource(ResourceTable)}
+	 * since the resource type is part of the hash.
+	 */
+	public void calculateHashes() {
+		myHashSystemAndValue = calculateHashSystemAndValue(getResourceType(), getParamName(), getSystem(), getValue());
+		myHashValue = calculateHashValue(getResourceType(), getParamName(), getValue());
+	}
+
+	public Long getHashSystemAndValue() {
+		return myHashSystemAndValue;
+	}
+
+	public Long getHashValue() {
+		return myHashValue;
+	}
+
 	public String getSystem() {
 		return mySystem;
 	}
@@ -69,4 +102,37 @@ public class ResourceIndexedSearchParamToken extends BaseResourceIndexedSearchPa
 		myValue = StringUtils.defaultIfBlank(theValue, null);
 	}
 
+	@Override
+	public boolean equals(Object theObj) {
+		if (this == theObj) {
+			return true;
+		}
+		if (!(theObj instanceof ResourceIndexedSearchParamToken)) {
+			return false;
+		}
+		ResourceIndexedSearchParamToken obj = (ResourceIndexedSearchParamToken) theObj;
+		EqualsBuilder b = new EqualsBuilder();
+		b.append(getParamName(), obj.getParamName());
+		b.append(getSystem(), obj.getSystem());
+		b.append(getValue(), obj.getValue());
+		return b.isEquals();
+	}
+
+	@Override
+	public int hashCode() {
+		HashCodeBuilder b = new HashCodeBuilder();
+		b.append(getParamName());
+		b.append(getSystem());
+		b.append(getValue());
+		return b.toHashCode();
+	}
+
+	public static long calculateHashSystemAndValue(String theResourceType, String theParamName, String theSystem, String theValue) {
+		return hash(theResourceType, theParamName, theSystem, theValue);
+	}
+
+	public static long calculateHashValue(String theResourceType, String theParamName, String theValue) {
+		return hash(theResourceType, theParamName, theValue);
+	}
+
 }
@@ -0,0 +1,108 @@
+package ca.uhn.fhir.jpa.entity;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.Table;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+/**
+ * A term in the full text index: either a trigram or the phonetic code of a word, which appears in the values of a
+ * string search parameter (or, for the <code>_text</code> parameter name, in the resource narrative). Each distinct
+ * term is stored once per resource and parameter.
+ */
+@Entity
+@Table(name = "HFJ_SPIDX_TEXT_TERM")
+@org.hibernate.annotations.Table(appliesTo = "HFJ_SPIDX_TEXT_TERM", indexes = { 
+		@org.hibernate.annotations.Index(name = "IDX_SP_TEXT_TERM", columnNames = { "RES_TYPE", "TERM_TYPE", "TERM", "SP_NAME" }) 
+})
+public class ResourceIndexedTextTerm extends BaseResourceIndexedSearchParam {
+
+	public static final int MAX_LENGTH = 10;
+
+	private static final long serialVersionUID = 1L;
+
+	@Column(name = "TERM", nullable = false, length = MAX_LENGTH)
+	private String myTerm;
+
+	@Column(name = "TERM_TYPE", nullable = false, length = 10)
+	@Enumerated(EnumType.STRING)
+	private TextTermTypeEnum myTermType;
+
+	public ResourceIndexedTextTerm() {
+	}
+
+	public ResourceIndexedTextTerm(String theName, TextTermTypeEnum theTermType, String theTerm) {
+		setParamName(theName);
+		setTermType(theTermType);
+		setTerm(theTerm);
+	}
+
+	public String getTerm() {
+		return myTerm;
+	}
+
+	public TextTermTypeEnum getTermType() {
+		return myTermType;
+	}
+
+	public void setTerm(String theTerm) {
+		if (theTerm.length() > MAX_LENGTH) {
+			throw new IllegalArgumentException("Term is too long: " + theTerm.length());
+		}
+		myTerm = theTerm;
+	}
+
+	public void setTermType(TextTermTypeEnum theTermType) {
+		myTermType = theTermType;
+	}
+
+	@Override
+	public boolean equals(Object theObj) {
+		if (this == theObj) {
+			return true;
+		}
+		if (!(theObj instanceof ResourceIndexedTextTerm)) {
+			return false;
+		}
+		ResourceIndexedTextTerm obj = (ResourceIndexedTextTerm) theObj;
+		EqualsBuilder b = new EqualsBuilder();
+		b.append(getParamName(), obj.getParamName());
+		b.append(getTermType(), obj.getTermType());
+		b.append(getTerm(), obj.getTerm());
+		return b.isEquals();
+	}
+
+	@Override
+	public int hashCode() {
+		HashCodeBuilder b = new HashCodeBuilder();
+		b.append(getParamName());
+		b.append(getTermType());
+		b.append(getTerm());
+		return b.toHashCode();
+	}
+
+}
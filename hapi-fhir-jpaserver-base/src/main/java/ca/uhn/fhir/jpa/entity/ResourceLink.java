@@ -25,13 +25,16 @@ import java.io.Serializable;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.Table;
 
 import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 
 @Entity
 @Table(name = "HFJ_RES_LINK"/*, indexes= {@Index(name="IDX_RL_TPATHRES", columnList= "SRC_PATH,TARGET_RESOURCE_ID")}*/)
@@ -41,9 +44,16 @@ public class ResourceLink implements Serializable {
 
 	private static final long serialVersionUID = 1L;
 
-	@GeneratedValue(strategy = GenerationType.AUTO)
+	//@formatter:off
 	@Id
+	@GenericGenerator(name = "SEQ_RESLINK", strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator", parameters = {
+		@Parameter(name = "sequence_name", value = "SEQ_RESLINK"),
+		@Parameter(name = "optimizer", value = "pooled"),
+		@Parameter(name = "increment_size", value = "50")
+	})
+	@GeneratedValue(generator = "SEQ_RESLINK")
 	@Column(name = "PID")
+	//@formatter:on
 	private Long myId;
 
 	@Column(name = "SRC_PATH", length = 100, nullable = false)
@@ -127,4 +137,27 @@ public class ResourceLink implements Serializable {
 		myTargetResourcePid = theTargetResourcePid;
 	}
 
+	@Override
+	public boolean equals(Object theObj) {
+		if (this == theObj) {
+			return true;
+		}
+		if (!(theObj instanceof ResourceLink)) {
+			return false;
+		}
+		ResourceLink obj = (ResourceLink) theObj;
+		EqualsBuilder b = new EqualsBuilder();
+		b.append(getSourcePath(), obj.getSourcePath());
+		b.append(getTargetResource().getId(), obj.getTargetResource().getId());
+		return b.isEquals();
+	}
+
+	@Override
+	public int hashCode() {
+		HashCodeBuilder b = new HashCodeBuilder();
+		b.append(getSourcePath());
+		b.append(getTargetResource().getId());
+		return b.toHashCode();
+	}
+
 }
@@ -53,10 +53,41 @@ import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 	indexes = { 
 		@Index(name = "IDX_RES_DATE", columnNames = { "RES_UPDATED" }), 
 		@Index(name = "IDX_RES_LANG", columnNames = { "RES_TYPE", "RES_LANGUAGE" }), 
-		@Index(name = "IDX_RES_PROFILE", columnNames = { "RES_PROFILE" }) 
+		@Index(name = "IDX_RES_PROFILE", columnNames = { "RES_PROFILE" }), 
+		@Index(name = "IDX_RES_INDEX_STATUS", columnNames = { "SP_INDEX_STATUS" }) 
 	})
 //@formatter:on
 public class ResourceTable extends BaseHasResource implements Serializable {
+
+	/**
+	 * Index status of a resource whose search parameters have been indexed. Rows which were written before the index
+	 * status was recorded have a status of <code>null</code>, which also means that they are indexed.
+	 */
+	public static final Long INDEX_STATUS_INDEXED = 1L;
+
+	/**
+	 * Index status of a resource whose search parameters could not be extracted by the deferred indexer
+	 */
+	public static final Long INDEX_STATUS_INDEXING_FAILED = 2L;
+
+	/**
+	 * Index status of a resource which was written with indexing deferred, and hasn't been indexed yet
+	 */
+	public static final Long INDEX_STATUS_PENDING = 0L;
+
+	/**
+	 * Index status of a resource which is indexed, but whose index rows have been requested to be rebuilt (e.g. using
+	 * the <code>$reindex</code> operation). Unlike {@link #INDEX_STATUS_PENDING} resources, these can still be found
+	 * using their existing index rows until they are reindexed.
+	 */
+	public static final Long INDEX_STATUS_REINDEX_REQUIRED = 3L;
+
+	/**
+	 * Index status of a resource which was marked for reindexing, but whose search parameters could not be extracted.
+	 * Its existing index rows are left in place, and it isn't retried unless it is marked for reindexing again.
+	 */
+	public static final Long INDEX_STATUS_REINDEX_FAILED = 4L;
+
 	private static final int MAX_LANGUAGE_LENGTH = 20;
 	private static final int MAX_PROFILE_LENGTH = 200;
 
@@ -67,6 +98,9 @@ public class ResourceTable extends BaseHasResource implements Serializable {
 	@Column(name = "SP_HAS_LINKS")
 	private boolean myHasLinks;
 
+	@Column(name = "SP_INDEX_STATUS", nullable = true)
+	private Long myIndexStatus;
+
 	@Id
 	@GeneratedValue(strategy = GenerationType.AUTO)
 	@Column(name = "RES_ID")
@@ -105,6 +139,9 @@ public class ResourceTable extends BaseHasResource implements Serializable {
 	@Column(name = "SP_TOKEN_PRESENT")
 	private boolean myParamsTokenPopulated;
 
+	@OneToMany(mappedBy = "myResource", cascade = {}, fetch = FetchType.LAZY, orphanRemoval = false)
+	private Collection<ResourceIndexedTextTerm> myTextTerms;
+
 	@OneToMany(mappedBy = "mySourceResource", cascade = {}, fetch = FetchType.LAZY, orphanRemoval = false)
 	private Collection<ResourceLink> myResourceLinks;
 
@@ -123,10 +160,18 @@ public class ResourceTable extends BaseHasResource implements Serializable {
 	@Column(name = "RES_PROFILE", length=MAX_PROFILE_LENGTH,nullable=true)
 	private String myProfile;
 	
+	public Long getIndexStatus() {
+		return myIndexStatus;
+	}
+
 	public String getLanguage() {
 		return myLanguage;
 	}
 
+	public void setIndexStatus(Long theIndexStatus) {
+		myIndexStatus = theIndexStatus;
+	}
+
 	public void setLanguage(String theLanguage) {
 		if (defaultString(theLanguage).length()> MAX_LANGUAGE_LENGTH) {
 			throw new UnprocessableEntityException("Language exceeds maximum length of " + MAX_LANGUAGE_LENGTH + " chars: " + theLanguage);
@@ -190,6 +235,13 @@ public class ResourceTable extends BaseHasResource implements Serializable {
 		return myParamsString;
 	}
 
+	public Collection<ResourceIndexedTextTerm> getTextTerms() {
+		if (myTextTerms == null) {
+			myTextTerms = new ArrayList<ResourceIndexedTextTerm>();
+		}
+		return myTextTerms;
+	}
+
 	public Collection<ResourceIndexedSearchParamToken> getParamsToken() {
 		if (myParamsToken == null) {
 			myParamsToken = new ArrayList<ResourceIndexedSearchParamToken>();
@@ -308,6 +360,11 @@ public class ResourceTable extends BaseHasResource implements Serializable {
 		myParamsStringPopulated = theParamsStringPopulated;
 	}
 
+	public void setTextTerms(Collection<ResourceIndexedTextTerm> theTextTerms) {
+		getTextTerms().clear();
+		getTextTerms().addAll(theTextTerms);
+	}
+
 	public void setParamsToken(Collection<ResourceIndexedSearchParamToken> theParamsToken) {
 		if (!isParamsTokenPopulated() && theParamsToken.isEmpty()) {
 			return;
@@ -0,0 +1,215 @@
+package ca.uhn.fhir.jpa.entity;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.UniqueConstraint;
+
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
+
+/**
+ * A search which has been executed, whose matching resource PIDs are stored in {@link SearchResult}
+ * so that they may be paged through without being held in memory
+ */
+//@formatter:off
+@Entity
+@Table(name = "HFJ_SEARCH", uniqueConstraints= {
+	@UniqueConstraint(name="IDX_SEARCH_UUID", columnNames="SEARCH_UUID")
+})
+@org.hibernate.annotations.Table(appliesTo="HFJ_SEARCH",indexes= {
+	@org.hibernate.annotations.Index(name="IDX_SEARCH_TYPE_HASH", columnNames= {"RESOURCE_TYPE", "SEARCH_QUERY_STRING_HASH", "CREATED"}),
+	@org.hibernate.annotations.Index(name="IDX_SEARCH_CREATED", columnNames= {"CREATED"})
+})
+//@formatter:on
+public class Search implements Serializable {
+
+	public static final int UUID_COLUMN_LENGTH = 40;
+
+	private static final long serialVersionUID = 1L;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "CREATED", nullable = false)
+	private Date myCreated;
+
+	@GeneratedValue(strategy = GenerationType.AUTO)
+	@Id
+	@Column(name = "PID")
+	private Long myId;
+
+	@Lob()
+	@Column(name = "SEARCH_INCLUDES", nullable = true, length = Integer.MAX_VALUE - 1)
+	private String myIncludes;
+
+	@Column(name = "PREFERRED_PAGE_SIZE", nullable = true)
+	private Integer myPreferredPageSize;
+
+	@Column(name = "RESOURCE_TYPE", length = ResourceTable.RESTYPE_LEN, nullable = false)
+	private String myResourceType;
+
+	@Lob()
+	@Column(name = "SEARCH_QUERY_STRING", nullable = false, length = Integer.MAX_VALUE - 1)
+	private String mySearchQueryString;
+
+	@Column(name = "SEARCH_QUERY_STRING_HASH", nullable = false)
+	private int mySearchQueryStringHash;
+
+	/**
+	 * The number of results stored so far
+	 */
+	@Column(name = "NUM_FOUND", nullable = true)
+	private Integer myNumFound;
+
+	/**
+	 * <code>null</code> for searches stored before this column existed, all of which are finished
+	 */
+	@Enumerated(EnumType.STRING)
+	@Column(name = "SEARCH_STATUS", length = 10, nullable = true)
+	private SearchStatusEnum myStatus;
+
+	/**
+	 * The total number of results, or <code>null</code> if it isn't known yet. While the search is
+	 * {@link SearchStatusEnum#LOADING loading} this may be an estimate.
+	 */
+	@Column(name = "TOTAL_COUNT", nullable = true)
+	private Integer myTotalCount;
+
+	@Enumerated(EnumType.STRING)
+	@Column(name = "TOTAL_MODE", length = 10, nullable = true)
+	private SearchTotalModeEnum myTotalMode;
+
+	@Column(name = "SEARCH_UUID", length = UUID_COLUMN_LENGTH, nullable = false)
+	private String myUuid;
+
+	public Date getCreated() {
+		return myCreated;
+	}
+
+	public Long getId() {
+		return myId;
+	}
+
+	/**
+	 * Returns the <code>_include</code> values for this search, separated by newlines
+	 */
+	public String getIncludes() {
+		return myIncludes;
+	}
+
+	public Integer getPreferredPageSize() {
+		return myPreferredPageSize;
+	}
+
+	public String getResourceType() {
+		return myResourceType;
+	}
+
+	public String getSearchQueryString() {
+		return mySearchQueryString;
+	}
+
+	public int getSearchQueryStringHash() {
+		return mySearchQueryStringHash;
+	}
+
+	/**
+	 * Returns the number of results stored so far
+	 */
+	public int getNumFound() {
+		if (myNumFound == null) {
+			return myTotalCount != null ? myTotalCount : 0;
+		}
+		return myNumFound;
+	}
+
+	public SearchStatusEnum getStatus() {
+		return myStatus != null ? myStatus : SearchStatusEnum.FINISHED;
+	}
+
+	public Integer getTotalCount() {
+		return myTotalCount;
+	}
+
+	public SearchTotalModeEnum getTotalMode() {
+		return myTotalMode;
+	}
+
+	public String getUuid() {
+		return myUuid;
+	}
+
+	public void setCreated(Date theCreated) {
+		myCreated = theCreated;
+	}
+
+	public void setIncludes(String theIncludes) {
+		myIncludes = theIncludes;
+	}
+
+	public void setPreferredPageSize(Integer thePreferredPageSize) {
+		myPreferredPageSize = thePreferredPageSize;
+	}
+
+	public void setResourceType(String theResourceType) {
+		myResourceType = theResourceType;
+	}
+
+	/**
+	 * Sets the normalized query string, and updates the hash which is used to look up identical searches
+	 */
+	public void setSearchQueryString(String theSearchQueryString) {
+		mySearchQueryString = theSearchQueryString;
+		mySearchQueryStringHash = theSearchQueryString != null ? theSearchQueryString.hashCode() : 0;
+	}
+
+	public void setNumFound(int theNumFound) {
+		myNumFound = theNumFound;
+	}
+
+	public void setStatus(SearchStatusEnum theStatus) {
+		myStatus = theStatus;
+	}
+
+	public void setTotalCount(Integer theTotalCount) {
+		myTotalCount = theTotalCount;
+	}
+
+	public void setTotalMode(SearchTotalModeEnum theTotalMode) {
+		myTotalMode = theTotalMode;
+	}
+
+	public void setUuid(String theUuid) {
+		myUuid = theUuid;
+	}
+
+}
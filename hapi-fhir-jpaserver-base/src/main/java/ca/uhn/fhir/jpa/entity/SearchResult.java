@@ -0,0 +1,105 @@
+package ca.uhn.fhir.jpa.entity;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.Serializable;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
+/**
+ * A single matching resource for a {@link Search}, at a given position in the result list
+ */
+//@formatter:off
+@Entity
+@Table(name = "HFJ_SEARCH_RESULT", uniqueConstraints= {
+	@UniqueConstraint(name="IDX_SEARCHRES_ORDER", columnNames= {"SEARCH_PID", "SEARCH_ORDER"})
+})
+//@formatter:on
+public class SearchResult implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	//@formatter:off
+	@Id
+	@GenericGenerator(name = "SEQ_SEARCH_RES", strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator", parameters = {
+		@Parameter(name = "sequence_name", value = "SEQ_SEARCH_RES"),
+		@Parameter(name = "optimizer", value = "pooled"),
+		@Parameter(name = "increment_size", value = "50")
+	})
+	@GeneratedValue(generator = "SEQ_SEARCH_RES")
+	@Column(name = "PID")
+	//@formatter:on
+	private Long myId;
+
+	@Column(name = "SEARCH_ORDER", nullable = false)
+	private int myOrder;
+
+	@Column(name = "RESOURCE_PID", nullable = false)
+	private Long myResourcePid;
+
+	@ManyToOne(optional = false)
+	@JoinColumn(name = "SEARCH_PID", referencedColumnName = "PID")
+	private Search mySearch;
+
+	@Column(name = "SEARCH_PID", insertable = false, updatable = false)
+	private Long mySearchPid;
+
+	public SearchResult() {
+		// nothing
+	}
+
+	public SearchResult(Search theSearch, int theOrder, Long theResourcePid) {
+		mySearch = theSearch;
+		myOrder = theOrder;
+		myResourcePid = theResourcePid;
+	}
+
+	public Long getId() {
+		return myId;
+	}
+
+	public int getOrder() {
+		return myOrder;
+	}
+
+	public Long getResourcePid() {
+		return myResourcePid;
+	}
+
+	public Search getSearch() {
+		return mySearch;
+	}
+
+	public Long getSearchPid() {
+		return mySearchPid;
+	}
+
+}
@@ -0,0 +1,36 @@
+package ca.uhn.fhir.jpa.entity;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+public enum TextTermTypeEnum {
+
+	/**
+	 * A sequence of three consecutive characters of a normalized value, used for <code>:contains</code> and
+	 * <code>:fuzzy</code> matching
+	 */
+	TRIGRAM,
+
+	/**
+	 * The phonetic code of a single word of a normalized value, used for <code>:phonetic</code> matching
+	 */
+	PHONETIC
+
+}
@@ -123,7 +123,8 @@ public abstract class BaseJpaResourceProvider<T extends IResource> extends BaseJ
 	public T read(HttpServletRequest theRequest, @IdParam IdDt theId) {
 		startRequest(theRequest);
 		try {
-			return myDao.read(theId);
+			// Nothing here changes the resource, so the server may return its stored JSON
+			return myDao.read(theId, true);
 		} finally {
 			endRequest(theRequest);
 		}
@@ -20,34 +20,57 @@ package ca.uhn.fhir.jpa.provider;
  * #L%
  */
 
-import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 
-import ca.uhn.fhir.jpa.dao.SearchParameterMap;
-import ca.uhn.fhir.model.api.Include;
+import org.apache.commons.lang3.StringUtils;
+
 import ca.uhn.fhir.model.dstu2.resource.Patient;
 import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.model.primitive.InstantDt;
+import ca.uhn.fhir.model.primitive.StringDt;
 import ca.uhn.fhir.rest.annotation.IdParam;
 import ca.uhn.fhir.rest.annotation.Operation;
-import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.annotation.OperationParam;
 import ca.uhn.fhir.rest.server.IBundleProvider;
 
 public class BaseJpaResourceProviderPatientDstu2 extends JpaResourceProviderDstu2<Patient> {
 
+	/**
+	 * Returns the patient and every resource in their compartment, paged from the compartment membership index
+	 * 
+	 * @param theSince
+	 *           Only return resources updated at or after this time
+	 * @param theType
+	 *           A comma separated list of the resource types to return
+	 */
+	//@formatter:off
 	@Operation(name="$everything", idempotent=true)
-	public IBundleProvider everything(HttpServletRequest theServletRequest, @IdParam IdDt theId) {
+	public IBundleProvider everything(HttpServletRequest theServletRequest, @IdParam IdDt theId, 
+			@OperationParam(name="_since") InstantDt theSince, 
+			@OperationParam(name="_type") StringDt theType) {
+	//@formatter:on
 		startRequest(theServletRequest);
 		try {
-			SearchParameterMap paramMap = new SearchParameterMap();
-			paramMap.setRevIncludes(Collections.singleton(new Include("*")));
-			paramMap.setIncludes(Collections.singleton(new Include("*")));
-			paramMap.add("_id", new StringParam(theId.getIdPart()));		
-			ca.uhn.fhir.rest.server.IBundleProvider retVal = getDao().search(paramMap);
-			return retVal;
+			Date since = theSince != null ? theSince.getValue() : null;
+
+			Set<String> types = null;
+			if (theType != null && StringUtils.isNotBlank(theType.getValue())) {
+				types = new HashSet<String>();
+				for (String next : theType.getValue().split(",")) {
+					if (StringUtils.isNotBlank(next)) {
+						types.add(next.trim());
+					}
+				}
+			}
+
+			return getDao().everything(theId, since, types);
 		} finally {
 			endRequest(theServletRequest);
 		}
 	}
-	
+
 }
@@ -0,0 +1,155 @@
+package ca.uhn.fhir.jpa.provider;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.dao.PersistedJpaBundleProvider;
+import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.rest.server.FifoMemoryPagingProvider;
+import ca.uhn.fhir.rest.server.IBundleProvider;
+
+/**
+ * Paging provider which pages through searches whose results have been stored in the database by the JPA DAOs, so that
+ * no search results need to be held in memory between requests. Any other kind of result list (e.g. history) is held
+ * in memory the same way as {@link FifoMemoryPagingProvider}.
+ * <p>
+ * This class must be created as a Spring bean in the same context as the DAOs.
+ * </p>
+ */
+public class DatabaseBackedPagingProvider extends FifoMemoryPagingProvider {
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	private FhirVersionEnum myFhirVersion;
+
+	@Autowired
+	private PlatformTransactionManager myPlatformTransactionManager;
+
+	@Autowired
+	private List<IFhirResourceDao<?>> myResourceDaos;
+
+	private Map<String, IFhirResourceDao<?>> myResourceTypeToDao;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param theSize
+	 *           The number of non-persisted result lists (e.g. history) to keep in memory
+	 */
+	public DatabaseBackedPagingProvider(int theSize) {
+		super(theSize);
+	}
+
+	private synchronized IFhirResourceDao<?> getDao(String theResourceType) {
+		if (myResourceTypeToDao == null) {
+			Map<String, IFhirResourceDao<?>> resourceTypeToDao = new HashMap<String, IFhirResourceDao<?>>();
+			for (IFhirResourceDao<?> next : myResourceDaos) {
+				if (myFhirVersion != null && next.getContext().getVersion().getVersion() != myFhirVersion) {
+					continue;
+				}
+				String name = next.getContext().getResourceDefinition(next.getResourceType()).getName();
+				resourceTypeToDao.put(name, next);
+			}
+			myResourceTypeToDao = resourceTypeToDao;
+		}
+		return myResourceTypeToDao.get(theResourceType);
+	}
+
+	/**
+	 * See {@link #setFhirVersion(FhirVersionEnum)}
+	 */
+	public FhirVersionEnum getFhirVersion() {
+		return myFhirVersion;
+	}
+
+	@Override
+	public IBundleProvider retrieveResultList(String theId) {
+		IBundleProvider retVal = super.retrieveResultList(theId);
+		if (retVal != null) {
+			return retVal;
+		}
+
+		String resourceType = lookupSearchResourceType(theId);
+		if (resourceType == null) {
+			return null;
+		}
+
+		IFhirResourceDao<?> dao = getDao(resourceType);
+		if (dao == null) {
+			return null;
+		}
+
+		return dao.retrieveSearchResults(theId);
+	}
+
+	private String lookupSearchResourceType(final String theSearchUuid) {
+		TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+		return template.execute(new TransactionCallback<String>() {
+			@Override
+			public String doInTransaction(TransactionStatus theStatus) {
+				CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+				CriteriaQuery<String> cq = builder.createQuery(String.class);
+				Root<Search> from = cq.from(Search.class);
+				cq.select(from.get("myResourceType").as(String.class));
+				cq.where(builder.equal(from.get("myUuid"), theSearchUuid));
+
+				List<String> results = myEntityManager.createQuery(cq).getResultList();
+				return results.isEmpty() ? null : results.get(0);
+			}
+		});
+	}
+
+	/**
+	 * If the Spring context contains DAOs for more than one version of FHIR, this must be set to the version served by
+	 * the server using this paging provider
+	 */
+	public void setFhirVersion(FhirVersionEnum theFhirVersion) {
+		myFhirVersion = theFhirVersion;
+	}
+
+	@Override
+	public String storeResultList(IBundleProvider theList) {
+		if (theList instanceof PersistedJpaBundleProvider) {
+			return ((PersistedJpaBundleProvider) theList).getUuid();
+		}
+		return super.storeResultList(theList);
+	}
+
+}
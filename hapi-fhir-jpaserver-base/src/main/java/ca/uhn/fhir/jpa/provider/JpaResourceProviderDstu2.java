@@ -27,6 +27,7 @@ import ca.uhn.fhir.model.api.IResource;
 import ca.uhn.fhir.model.dstu2.composite.MetaDt;
 import ca.uhn.fhir.model.dstu2.resource.Parameters;
 import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.model.primitive.IntegerDt;
 import ca.uhn.fhir.rest.annotation.ConditionalUrlParam;
 import ca.uhn.fhir.rest.annotation.Create;
 import ca.uhn.fhir.rest.annotation.Delete;
@@ -141,4 +142,24 @@ public class JpaResourceProviderDstu2<T extends IResource> extends BaseJpaResour
 		return parameters;
 	}
 
+	/**
+	 * Marks every resource of this type for reindexing. The index rows are rebuilt in the background, so this returns
+	 * as soon as the resources have been marked.
+	 */
+	//@formatter:off
+	@Operation(name="$reindex", idempotent=false, returnParameters= {
+		@OperationParam(name="resourcesMarked", type=IntegerDt.class)
+	})
+	//@formatter:on
+	public Parameters reindex(HttpServletRequest theRequest) {
+		startRequest(theRequest);
+		try {
+			Parameters parameters = new Parameters();
+			parameters.addParameter().setName("resourcesMarked").setValue(new IntegerDt(getDao().markAllResourcesForReindexing()));
+			return parameters;
+		} finally {
+			endRequest(theRequest);
+		}
+	}
+
 }
@@ -20,18 +20,156 @@ package ca.uhn.fhir.jpa.provider;
  * #L%
  */
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.List;
+
 import javax.servlet.http.HttpServletRequest;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import ca.uhn.fhir.jpa.dao.ImportOutcome;
+import ca.uhn.fhir.jpa.entity.ResourceChange;
 import ca.uhn.fhir.model.dstu2.composite.MetaDt;
 import ca.uhn.fhir.model.dstu2.resource.Bundle;
 import ca.uhn.fhir.model.dstu2.resource.Parameters;
+import ca.uhn.fhir.model.dstu2.resource.Parameters.Parameter;
+import ca.uhn.fhir.model.primitive.CodeDt;
+import ca.uhn.fhir.model.primitive.InstantDt;
+import ca.uhn.fhir.model.primitive.IntegerDt;
+import ca.uhn.fhir.model.primitive.StringDt;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
 import ca.uhn.fhir.rest.annotation.Transaction;
 import ca.uhn.fhir.rest.annotation.TransactionParam;
+import ca.uhn.fhir.rest.server.Constants;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 
 public class JpaSystemProviderDstu2 extends BaseJpaSystemProvider<Bundle> {
 
+	private File myImportDirectory;
+
+	/**
+	 * See {@link #setImportDirectory(File)}
+	 */
+	public File getImportDirectory() {
+		return myImportDirectory;
+	}
+
+	/**
+	 * Sets the directory on the server from which the <code>$import</code> operation may read NDJSON files (using
+	 * the <code>source</code> parameter). If not set (which is the default), clients may only import NDJSON which
+	 * is supplied inline in the request.
+	 */
+	public void setImportDirectory(File theImportDirectory) {
+		myImportDirectory = theImportDirectory;
+	}
+
+	/**
+	 * Change feed for replication. Returns the change log entries with a sequence number greater than
+	 * <code>after</code>, waiting up to <code>wait</code> milliseconds for one to arrive if there are none yet.
+	 * Clients pass the returned <code>last</code> value as <code>after</code> on their next call.
+	 */
+	//@formatter:off
+	@Operation(name="$changes", idempotent=true, returnParameters= {
+		@OperationParam(name="last", type=StringDt.class),
+		@OperationParam(name="change", type=StringDt.class)
+	})
+	//@formatter:on
+	public Parameters changes(HttpServletRequest theRequest, @OperationParam(name = "after") StringDt theAfter, @OperationParam(name = "count") IntegerDt theCount,
+			@OperationParam(name = "wait") IntegerDt theWait) {
+		startRequest(theRequest);
+		try {
+			long after = 0;
+			if (theAfter != null && StringUtils.isNotBlank(theAfter.getValue())) {
+				try {
+					after = Long.parseLong(theAfter.getValue().trim());
+				} catch (NumberFormatException e) {
+					throw new InvalidRequestException("Invalid value for 'after' parameter: " + theAfter.getValue());
+				}
+			}
+			int count = theCount != null && theCount.getValue() != null ? theCount.getValue() : Integer.MAX_VALUE;
+			long wait = theWait != null && theWait.getValue() != null ? theWait.getValue() : 0;
+
+			List<ResourceChange> changes = getDao().readChanges(after, count, wait);
+
+			long last = changes.isEmpty() ? after : changes.get(changes.size() - 1).getSequence();
+			Parameters parameters = new Parameters();
+			parameters.addParameter().setName("last").setValue(new StringDt(Long.toString(last)));
+			for (ResourceChange next : changes) {
+				Parameter change = parameters.addParameter().setName("change");
+				change.addPart().setName("sequence").setValue(new StringDt(next.getSequence().toString()));
+				change.addPart().setName("resource").setValue(next.getIdDt());
+				change.addPart().setName("operation").setValue(new CodeDt(next.getOperation().name().toLowerCase()));
+				change.addPart().setName("time").setValue(new InstantDt(next.getChangeTime()));
+			}
+			return parameters;
+		} finally {
+			endRequest(theRequest);
+		}
+	}
+
+	//@formatter:off
+	@Operation(name="$import", idempotent=false, returnParameters= {
+		@OperationParam(name="linesRead", type=IntegerDt.class),
+		@OperationParam(name="resourcesStored", type=IntegerDt.class),
+		@OperationParam(name="resourcesIndexed", type=IntegerDt.class),
+		@OperationParam(name="failure", type=StringDt.class)
+	})
+	//@formatter:on
+	public Parameters importNdjson(HttpServletRequest theRequest, @OperationParam(name = "source") StringDt theSource, @OperationParam(name = "ndjson") StringDt theNdjson,
+			@OperationParam(name = "batchSize") IntegerDt theBatchSize) {
+		startRequest(theRequest);
+		Reader reader = null;
+		try {
+			if (theSource != null && StringUtils.isNotBlank(theSource.getValue())) {
+				reader = new InputStreamReader(new FileInputStream(resolveImportFile(theSource.getValue())), Constants.CHARSET_UTF8);
+			} else if (theNdjson != null && StringUtils.isNotBlank(theNdjson.getValue())) {
+				reader = new StringReader(theNdjson.getValue());
+			} else {
+				throw new InvalidRequestException("$import requires either a 'source' or an 'ndjson' parameter");
+			}
+
+			int batchSize = theBatchSize != null && theBatchSize.getValue() != null ? theBatchSize.getValue() : 0;
+			ImportOutcome outcome = getDao().importNdjson(reader, batchSize);
+
+			Parameters parameters = new Parameters();
+			parameters.addParameter().setName("linesRead").setValue(new IntegerDt(outcome.getLinesRead()));
+			parameters.addParameter().setName("resourcesStored").setValue(new IntegerDt(outcome.getResourcesStored()));
+			parameters.addParameter().setName("resourcesIndexed").setValue(new IntegerDt(outcome.getResourcesIndexed()));
+			for (String next : outcome.getFailures()) {
+				parameters.addParameter().setName("failure").setValue(new StringDt(next));
+			}
+			return parameters;
+		} catch (IOException e) {
+			throw new InternalErrorException("Failed to read " + theSource.getValue() + ": " + e.getMessage(), e);
+		} finally {
+			IOUtils.closeQuietly(reader);
+			endRequest(theRequest);
+		}
+	}
+
+	private File resolveImportFile(String theSource) throws IOException {
+		if (myImportDirectory == null) {
+			throw new InvalidRequestException("This server does not permit importing from server files, NDJSON must be supplied using the 'ndjson' parameter");
+		}
+		File directory = myImportDirectory.getCanonicalFile();
+		File file = new File(directory, theSource).getCanonicalFile();
+		if (!file.getPath().startsWith(directory.getPath() + File.separator)) {
+			throw new InvalidRequestException("Import source '" + theSource + "' is not within the import directory");
+		}
+		if (!file.isFile()) {
+			throw new InvalidRequestException("Import source '" + theSource + "' does not exist");
+		}
+		return file;
+	}
+
 	//@formatter:off
 	@Operation(name="$meta", idempotent=true, returnParameters= {
 		@OperationParam(name="return", type=MetaDt.class)
@@ -43,6 +181,26 @@ public class JpaSystemProviderDstu2 extends BaseJpaSystemProvider<Bundle> {
 		return parameters;
 	}
 	
+	/**
+	 * Marks every resource on the server for reindexing, e.g. after search parameters have been added or changed. The
+	 * index rows are rebuilt in the background, so this returns as soon as the resources have been marked.
+	 */
+	//@formatter:off
+	@Operation(name="$reindex", idempotent=false, returnParameters= {
+		@OperationParam(name="resourcesMarked", type=IntegerDt.class)
+	})
+	//@formatter:on
+	public Parameters reindex(HttpServletRequest theRequest) {
+		startRequest(theRequest);
+		try {
+			Parameters parameters = new Parameters();
+			parameters.addParameter().setName("resourcesMarked").setValue(new IntegerDt(getDao().markAllResourcesForReindexing()));
+			return parameters;
+		} finally {
+			endRequest(theRequest);
+		}
+	}
+
 	@Transaction
 	public Bundle transaction(HttpServletRequest theRequest, @TransactionParam Bundle theResources) {
 		startRequest(theRequest);
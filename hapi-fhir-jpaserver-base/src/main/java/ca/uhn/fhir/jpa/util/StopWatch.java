@@ -25,6 +25,10 @@ public class StopWatch {
 
 	private long myStarted = System.currentTimeMillis();
 	
+	public long getMillis() {
+		return System.currentTimeMillis() - myStarted;
+	}
+
 	public long getMillisAndRestart() {
 		long now = System.currentTimeMillis();
 		long retVal = now - myStarted;
@@ -0,0 +1,148 @@
+package ca.uhn.fhir.jpa.util;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.text.ParseException;
+import java.text.ParsePosition;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import javax.measure.converter.UnitConverter;
+import javax.measure.unit.Unit;
+import javax.measure.unit.UnitFormat;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Converts UCUM quantities to a canonical form (the equivalent value in the standard, i.e. SI base, units of the same
+ * dimension) so that quantities which are equal but expressed in different units can be compared. For example, 1 g/L
+ * and 100 mg/dL both have the canonical form <code>1 kg/m3</code>.
+ * <p>
+ * Units are only converted when their system is UCUM ({@link #UCUM_SYSTEM}) and their code can be parsed. Quantities
+ * with any other units have no canonical form, and both methods return <code>null</code> for them.
+ * </p>
+ */
+public class UcumUtil {
+
+	public static final String UCUM_SYSTEM = "http://unitsofmeasure.org";
+
+	/**
+	 * Canonical values are calculated using double arithmetic, so they are rounded to this precision to avoid
+	 * differences in the last digits between the indexed values and the search values
+	 */
+	private static final MathContext CANONICAL_PRECISION = new MathContext(15);
+
+	private static final int MAXIMUM_CACHED_UNITS = 1000;
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(UcumUtil.class);
+
+	private static final Cache<String, Optional<CanonicalUnit>> ourUnits = CacheBuilder.newBuilder().maximumSize(MAXIMUM_CACHED_UNITS).build();
+
+	/**
+	 * Returns the canonical units (e.g. <code>mol/m3</code>) of the given units, or <code>null</code> if they can not
+	 * be converted
+	 */
+	public static String toCanonicalUnits(String theSystem, String theUnits) {
+		CanonicalUnit unit = lookup(theSystem, theUnits);
+		return unit != null ? unit.getUnits() : null;
+	}
+
+	/**
+	 * Returns the given value converted to the canonical units returned by {@link #toCanonicalUnits(String, String)},
+	 * or <code>null</code> if it can not be converted
+	 */
+	public static BigDecimal toCanonicalValue(String theSystem, String theUnits, BigDecimal theValue) {
+		if (theValue == null) {
+			return null;
+		}
+		CanonicalUnit unit = lookup(theSystem, theUnits);
+		return unit != null ? unit.convert(theValue) : null;
+	}
+
+	private static CanonicalUnit lookup(String theSystem, final String theUnits) {
+		if (!UCUM_SYSTEM.equals(theSystem) || isBlank(theUnits)) {
+			return null;
+		}
+		try {
+			return ourUnits.get(theUnits, new Callable<Optional<CanonicalUnit>>() {
+				@Override
+				public Optional<CanonicalUnit> call() {
+					return Optional.fromNullable(parse(theUnits));
+				}
+			}).orNull();
+		} catch (ExecutionException e) {
+			ourLog.warn("Failed to parse UCUM units: " + theUnits, e.getCause());
+			return null;
+		}
+	}
+
+	private static CanonicalUnit parse(String theUnits) {
+		UnitFormat format = UnitFormat.getUCUMInstance();
+		Unit<?> unit;
+		String canonicalUnits;
+		try {
+			ParsePosition pos = new ParsePosition(0);
+			unit = format.parseProductUnit(theUnits, pos);
+			if (pos.getIndex() != theUnits.length()) {
+				ourLog.debug("Ignoring trailing characters in UCUM units: {}", theUnits);
+				return null;
+			}
+			canonicalUnits = format.format(unit.getStandardUnit());
+		} catch (ParseException e) {
+			ourLog.debug("Units are not valid UCUM: {}", theUnits);
+			return null;
+		} catch (IllegalArgumentException e) {
+			ourLog.debug("Units are not valid UCUM: {}", theUnits);
+			return null;
+		}
+		return new CanonicalUnit(canonicalUnits, unit.toStandardUnit());
+	}
+
+	private static class CanonicalUnit {
+
+		private final UnitConverter myConverter;
+		private final String myUnits;
+
+		CanonicalUnit(String theUnits, UnitConverter theConverter) {
+			myUnits = theUnits;
+			myConverter = theConverter;
+		}
+
+		BigDecimal convert(BigDecimal theValue) {
+			double converted = myConverter.convert(theValue.doubleValue());
+			if (Double.isNaN(converted) || Double.isInfinite(converted)) {
+				return null;
+			}
+			return new BigDecimal(converted, CANONICAL_PRECISION).stripTrailingZeros();
+		}
+
+		String getUnits() {
+			return myUnits;
+		}
+
+	}
+
+}
@@ -1,11 +1,15 @@
 package ca.uhn.fhir.jpa.dao;
 
+import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.endsWith;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.hasItems;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -16,16 +20,27 @@ import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.commons.lang3.time.DateUtils;
 import org.hamcrest.core.StringContains;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -33,14 +48,22 @@ import org.junit.Test;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.jpa.entity.TagTypeEnum;
+import ca.uhn.fhir.jpa.provider.DatabaseBackedPagingProvider;
 import ca.uhn.fhir.model.api.IQueryParameterType;
 import ca.uhn.fhir.model.api.IResource;
 import ca.uhn.fhir.model.api.Include;
 import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.api.Tag;
 import ca.uhn.fhir.model.api.TagList;
 import ca.uhn.fhir.model.base.composite.BaseCodingDt;
+import ca.uhn.fhir.model.dstu.resource.OperationOutcome;
 import ca.uhn.fhir.model.dstu.valueset.QuantityCompararatorEnum;
 import ca.uhn.fhir.model.dstu2.composite.CodeableConceptDt;
 import ca.uhn.fhir.model.dstu2.composite.CodingDt;
@@ -68,6 +91,7 @@ import ca.uhn.fhir.model.primitive.StringDt;
 import ca.uhn.fhir.model.primitive.UriDt;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.param.CompositeParam;
 import ca.uhn.fhir.rest.param.DateParam;
@@ -75,28 +99,41 @@ import ca.uhn.fhir.rest.param.DateRangeParam;
 import ca.uhn.fhir.rest.param.NumberParam;
 import ca.uhn.fhir.rest.param.QuantityParam;
 import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringOrListParam;
 import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.param.TokenOrListParam;
 import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.Constants;
 import ca.uhn.fhir.rest.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.ILazyTotalBundleProvider;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import ca.uhn.fhir.util.FhirTerser;
 
 public class FhirResourceDaoDstu2Test {
 
 	private static ClassPathXmlApplicationContext ourCtx;
+	private static DaoConfig ourDaoConfig;
+	private static DeferredIndexingSvc ourDeferredIndexingSvc;
+	private static EntityManagerFactory ourEntityManagerFactory;
 	private static IFhirResourceDao<Device> ourDeviceDao;
 	private static IFhirResourceDao<DiagnosticReport> ourDiagnosticReportDao;
 	private static IFhirResourceDao<Encounter> ourEncounterDao;
 	private static FhirContext ourFhirCtx;
+	private static ForcedIdCache ourForcedIdCache;
 	private static IFhirResourceDao<Location> ourLocationDao;
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FhirResourceDaoDstu2Test.class);
 	private static IFhirResourceDao<Observation> ourObservationDao;
 	private static IFhirResourceDao<Organization> ourOrganizationDao;
+	private static DatabaseBackedPagingProvider ourPagingProvider;
 	private static IFhirResourceDao<Patient> ourPatientDao;
+	private static ResourceReencodingSvc ourResourceReencodingSvc;
+	private static ResourceTextCache ourResourceTextCache;
+	private static StaleSearchDeletingSvc ourStaleSearchDeletingSvc;
+	private static TagDefinitionCache ourTagDefinitionCache;
 	private static IFhirSystemDao<Bundle> ourSystemDao;
 
 	@Test
@@ -187,6 +224,23 @@ public class FhirResourceDaoDstu2Test {
 		}
 	}
 
+	@Test
+	public void testChoiceParamOnlyIndexesMatchingType() {
+		Observation o5 = new Observation();
+		o5.getCode().addCoding().setSystem("foo").setCode("testChoiceParam05");
+		o5.setValue(new QuantityDt(QuantityComparatorEnum.GREATERTHAN, 123.0, "foo", "testChoiceParam05Units"));
+		IdDt id5 = ourObservationDao.create(o5).getId();
+
+		{
+			Set<Long> found = ourObservationDao.searchForIds(Observation.SP_VALUE_STRING, new StringParam("testChoiceParam05Units"));
+			assertThat(found, not(hasItem(id5.getIdPartAsLong())));
+		}
+		{
+			Set<Long> found = ourObservationDao.searchForIds(Observation.SP_VALUE_QUANTITY, new QuantityParam(">100", "foo", "testChoiceParam05Units"));
+			assertThat(found, hasItem(id5.getIdPartAsLong()));
+		}
+	}
+
 	@Test
 	public void testCreateNumericIdFails() {
 		Patient p = new Patient();
@@ -269,6 +323,44 @@ public class FhirResourceDaoDstu2Test {
 
 	}
 
+	@Test
+	public void testCreateWithManyReferences() {
+		List<IdDt> obsIds = new ArrayList<IdDt>();
+		for (int i = 0; i < 10; i++) {
+			Observation obs = new Observation();
+			obs.getCode().addCoding().setSystem("foo").setCode("testCreateWithManyReferences");
+			if (i % 2 == 0) {
+				obs.setId("testCreateWithManyReferences" + i);
+				obsIds.add(ourObservationDao.update(obs).getId().toUnqualifiedVersionless());
+			} else {
+				obsIds.add(ourObservationDao.create(obs).getId().toUnqualifiedVersionless());
+			}
+		}
+
+		DiagnosticReport dr = new DiagnosticReport();
+		for (IdDt next : obsIds) {
+			dr.addResult().setReference(next);
+		}
+		IdDt drId = ourDiagnosticReportDao.create(dr).getId();
+
+		for (IdDt next : obsIds) {
+			Set<Long> found = ourDiagnosticReportDao.searchForIds(DiagnosticReport.SP_RESULT, new ReferenceParam(next.getIdPart()));
+			assertThat(found, hasItem(drId.getIdPartAsLong()));
+		}
+
+		dr = new DiagnosticReport();
+		for (IdDt next : obsIds) {
+			dr.addResult().setReference(next);
+		}
+		dr.addResult().setReference("Observation/testCreateWithManyReferencesMissing");
+		try {
+			ourDiagnosticReportDao.create(dr);
+			fail();
+		} catch (InvalidRequestException e) {
+			assertThat(e.getMessage(), StringContains.containsString("Observation/testCreateWithManyReferencesMissing not found"));
+		}
+	}
+
 	@Test
 	public void testDatePeriodParamEndOnly() {
 		{
@@ -407,6 +499,39 @@ public class FhirResourceDaoDstu2Test {
 
 	}
 
+	@Test
+	public void testDeferredIndexing() {
+		ourDeferredIndexingSvc.pollForPendingResources();
+		ourDaoConfig.setDeferIndexing(true);
+		ourDaoConfig.setWaitForIndexMaxWaitMillis(100);
+		try {
+			Patient patient = new Patient();
+			patient.addIdentifier().setSystem("urn:system").setValue("testDeferredIndexing");
+			ourPatientDao.create(patient);
+
+			SearchParameterMap params = new SearchParameterMap();
+			params.add(Patient.SP_IDENTIFIER, new TokenParam("urn:system", "testDeferredIndexing"));
+			assertEquals(0, ourPatientDao.search(params).size());
+			assertEquals(1, ourDeferredIndexingSvc.getBacklog());
+
+			params.setWaitForIndex(new Date());
+			try {
+				ourPatientDao.search(params);
+				fail();
+			} catch (PreconditionFailedException e) {
+				// good
+			}
+
+			assertEquals(1, ourDeferredIndexingSvc.pollForPendingResources());
+			assertEquals(0, ourDeferredIndexingSvc.getBacklog());
+			assertEquals(0, ourDeferredIndexingSvc.getLagMillis());
+			assertEquals(1, ourPatientDao.search(params).size());
+		} finally {
+			ourDaoConfig.setDeferIndexing(new DaoConfig().isDeferIndexing());
+			ourDaoConfig.setWaitForIndexMaxWaitMillis(new DaoConfig().getWaitForIndexMaxWaitMillis());
+		}
+	}
+
 	@Test
 	public void testDeleteResource() {
 		int initialHistory = ourPatientDao.history(null).size();
@@ -470,6 +595,62 @@ public class FhirResourceDaoDstu2Test {
 
 	}
 
+	@Test
+	public void testHistoryPagesWithoutHardLimit() throws InterruptedException {
+		Date since = new Date();
+		Thread.sleep(10);
+
+		Set<String> ids = new HashSet<String>();
+		for (int i = 0; i < 15; i++) {
+			Organization org = new Organization();
+			org.setName("testHistoryPagesWithoutHardLimit" + i);
+			IdDt id = ourOrganizationDao.create(org).getId();
+			ids.add(id.toUnqualified().getValue());
+			if (i % 3 == 0) {
+				org.setId(id.toVersionless());
+				org.setName("testHistoryPagesWithoutHardLimit" + i + "b");
+				ids.add(ourOrganizationDao.update(org).getId().toUnqualified().getValue());
+			}
+		}
+		assertEquals(20, ids.size());
+		Thread.sleep(10);
+
+		int hardSearchLimit = ourDaoConfig.getHardSearchLimit();
+		ourDaoConfig.setHardSearchLimit(5);
+		try {
+			IBundleProvider history = ourOrganizationDao.history(since);
+
+			// The total isn't counted until something needs it
+			ILazyTotalBundleProvider lazyHistory = (ILazyTotalBundleProvider) history;
+			assertNull(lazyHistory.getReportedTotal());
+			assertEquals(10, lazyHistory.getAvailableCount(10));
+			assertNull(lazyHistory.getReportedTotal());
+			assertEquals(20, lazyHistory.getAvailableCount(100));
+			assertEquals(Integer.valueOf(20), lazyHistory.getReportedTotal());
+
+			assertEquals(20, history.size());
+			assertEquals(20, ourOrganizationDao.history(since).size());
+
+			// Jump ahead before paging through in order
+			List<IResource> page3 = history.getResources(8, 12);
+			assertEquals(4, page3.size());
+
+			List<String> found = new ArrayList<String>();
+			for (int i = 0; i < 20; i += 4) {
+				List<IResource> page = history.getResources(i, i + 4);
+				assertEquals(4, page.size());
+				for (IResource next : page) {
+					found.add(next.getId().toUnqualified().getValue());
+				}
+			}
+			assertEquals(page3.get(0).getId().toUnqualified().getValue(), found.get(8));
+			assertEquals(20, found.size());
+			assertEquals(ids, new HashSet<String>(found));
+		} finally {
+			ourDaoConfig.setHardSearchLimit(hardSearchLimit);
+		}
+	}
+
 	@Test
 	public void testDeleteThenUndelete() {
 		Patient patient = new Patient();
@@ -540,6 +721,58 @@ public class FhirResourceDaoDstu2Test {
 
 	}
 
+	@Test
+	public void testEverythingUsesCompartmentIndex() throws Exception {
+		String methodName = "testEverythingUsesCompartmentIndex";
+
+		Patient patient = new Patient();
+		patient.addIdentifier().setSystem("urn:system").setValue(methodName);
+		IdDt patId = ourPatientDao.create(patient).getId().toUnqualifiedVersionless();
+
+		Organization org = new Organization();
+		org.setName(methodName);
+		IdDt orgId = ourOrganizationDao.create(org).getId().toUnqualifiedVersionless();
+
+		Observation obs = new Observation();
+		obs.getCode().addCoding().setSystem("urn:system").setCode(methodName);
+		obs.setSubject(new ResourceReferenceDt(patId));
+		IdDt obsId = ourObservationDao.create(obs).getId().toUnqualifiedVersionless();
+
+		Encounter enc = new Encounter();
+		enc.addIdentifier().setSystem("urn:system").setValue(methodName);
+		enc.getPatient().setReference(patId);
+		IdDt encId = ourEncounterDao.create(enc).getId().toUnqualifiedVersionless();
+
+		IBundleProvider found = ourPatientDao.everything(patId, null, null);
+		assertEquals(3, found.size());
+		List<IdDt> ids = toUnqualifiedVersionlessIds(found);
+		assertThat(ids, hasItem(patId));
+		assertThat(ids, hasItem(obsId));
+		assertThat(ids, hasItem(encId));
+		assertThat(ids, not(hasItem(orgId)));
+
+		found = ourPatientDao.everything(patId, null, Collections.singleton("Observation"));
+		assertEquals(1, found.size());
+		assertThat(toUnqualifiedVersionlessIds(found), contains(obsId));
+
+		Thread.sleep(10);
+		Date since = new Date();
+		Thread.sleep(10);
+
+		obs.setId(obsId);
+		obs.setValue(new StringDt(methodName));
+		ourObservationDao.update(obs);
+
+		found = ourPatientDao.everything(patId, since, null);
+		assertEquals(1, found.size());
+		assertThat(toUnqualifiedVersionlessIds(found), contains(obsId));
+
+		ourEncounterDao.delete(encId);
+		found = ourPatientDao.everything(patId, null, null);
+		assertEquals(2, found.size());
+		assertThat(toUnqualifiedVersionlessIds(found), not(hasItem(encId)));
+	}
+
 	@Test
 	public void testHistoryByForcedId() {
 		IdDt idv1;
@@ -862,6 +1095,188 @@ public class FhirResourceDaoDstu2Test {
 
 	}
 
+	@Test
+	public void testReadForcedIdUsesCache() {
+		Patient p1 = new Patient();
+		p1.addIdentifier().setSystem("urn:system").setValue("testReadForcedIdUsesCache");
+		p1.setId("testReadForcedIdUsesCache");
+		IdDt p1id = ourPatientDao.update(p1).getId().toUnqualifiedVersionless();
+
+		ourForcedIdCache.invalidateAll();
+		long misses = ourForcedIdCache.getForcedIdToPidStats().missCount();
+		long hits = ourForcedIdCache.getForcedIdToPidStats().hitCount();
+
+		ourPatientDao.read(p1id);
+		assertEquals(misses + 1, ourForcedIdCache.getForcedIdToPidStats().missCount());
+
+		ourPatientDao.read(p1id);
+		assertEquals(misses + 1, ourForcedIdCache.getForcedIdToPidStats().missCount());
+		assertThat(ourForcedIdCache.getForcedIdToPidStats().hitCount(), greaterThan(hits));
+
+		Observation obs = new Observation();
+		obs.getSubject().setReference(p1id);
+		IdDt obsId = ourObservationDao.create(obs).getId();
+
+		Set<Long> found = ourObservationDao.searchForIds(Observation.SP_SUBJECT, new ReferenceParam(p1id.getIdPart()));
+		assertThat(found, hasItem(obsId.getIdPartAsLong()));
+	}
+
+	@Test
+	public void testReadUsesResourceTextCache() {
+		Organization org = new Organization();
+		org.setName("testReadUsesResourceTextCache");
+		IdDt orgId = ourOrganizationDao.create(org).getId().toUnqualifiedVersionless();
+
+		ourResourceTextCache.invalidateAll();
+		long misses = ourResourceTextCache.getStats("Organization").missCount();
+		long hits = ourResourceTextCache.getStats("Organization").hitCount();
+
+		assertEquals("testReadUsesResourceTextCache", ourOrganizationDao.read(orgId).getName());
+		assertEquals(misses + 1, ourResourceTextCache.getStats("Organization").missCount());
+
+		assertEquals("testReadUsesResourceTextCache", ourOrganizationDao.read(orgId).getName());
+		assertEquals(misses + 1, ourResourceTextCache.getStats("Organization").missCount());
+		assertEquals(hits + 1, ourResourceTextCache.getStats("Organization").hitCount());
+
+		org.setId(orgId);
+		org.setName("testReadUsesResourceTextCache2");
+		ourOrganizationDao.update(org);
+
+		assertEquals("testReadUsesResourceTextCache2", ourOrganizationDao.read(orgId).getName());
+		assertEquals("testReadUsesResourceTextCache", ourOrganizationDao.read(orgId.withVersion("1")).getName());
+	}
+
+	@Test
+	public void testReindexRebuildsIndexRowsInBackground() {
+		Patient patient = new Patient();
+		patient.addIdentifier().setSystem("urn:system").setValue("testReindexRebuildsIndexRowsInBackground");
+		ourPatientDao.create(patient);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_IDENTIFIER, new TokenParam("urn:system", "testReindexRebuildsIndexRowsInBackground"));
+
+		int marked = ourPatientDao.markAllResourcesForReindexing();
+		assertThat(marked, greaterThan(0));
+		assertEquals(marked, ourDeferredIndexingSvc.getReindexBacklog());
+		assertEquals(0, ourDeferredIndexingSvc.getBacklog());
+
+		// Existing index rows are still used until the resource is reindexed
+		assertEquals(1, ourPatientDao.search(params).size());
+
+		ourDaoConfig.setReindexingMaxResourcesPerPoll(1);
+		try {
+			assertEquals(1, ourDeferredIndexingSvc.pollForPendingResources());
+			assertEquals(marked - 1, ourDeferredIndexingSvc.getReindexBacklog());
+		} finally {
+			ourDaoConfig.setReindexingMaxResourcesPerPoll(new DaoConfig().getReindexingMaxResourcesPerPoll());
+		}
+
+		for (int i = 0; i < 1000 && ourDeferredIndexingSvc.getReindexBacklog() > 0; i++) {
+			ourDeferredIndexingSvc.pollForPendingResources();
+		}
+		assertEquals(0, ourDeferredIndexingSvc.getReindexBacklog());
+		assertEquals(1, ourPatientDao.search(params).size());
+	}
+
+	/**
+	 * Resources which fail to reindex are moved out of the reindex queue, so that they don't block the resources
+	 * behind them. The batch size is set so that the failing resources fill a whole poll.
+	 */
+	@Test
+	public void testReindexFailureDoesNotBlockQueue() {
+		String methodName = "testReindexFailureDoesNotBlockQueue";
+		for (int i = 0; i < 1000 && ourDeferredIndexingSvc.getReindexBacklog() > 0; i++) {
+			ourDeferredIndexingSvc.pollForPendingResources();
+		}
+
+		List<Long> failing = new ArrayList<Long>();
+		for (int i = 0; i < 2; i++) {
+			Patient patient = new Patient();
+			patient.addIdentifier().setSystem("urn:system").setValue(methodName + "Failing" + i);
+			failing.add(ourPatientDao.create(patient).getId().getIdPartAsLong());
+		}
+		Patient patient = new Patient();
+		patient.addIdentifier().setSystem("urn:system").setValue(methodName + "Good");
+		Long good = ourPatientDao.create(patient).getId().getIdPartAsLong();
+
+		EntityManager em = ourEntityManagerFactory.createEntityManager();
+		Map<Long, ResourceTable> originals = new HashMap<Long, ResourceTable>();
+		try {
+			em.getTransaction().begin();
+			for (Long next : failing) {
+				ResourceTable entity = em.find(ResourceTable.class, next);
+				ResourceTable original = new ResourceTable();
+				original.setEncoding(entity.getEncoding());
+				original.setResource(entity.getResource());
+				originals.put(next, original);
+
+				entity.setEncoding(ResourceEncodingEnum.JSON);
+				entity.setResource("{ this is not JSON".getBytes(Constants.CHARSET_UTF8));
+				entity.setIndexStatus(ResourceTable.INDEX_STATUS_REINDEX_REQUIRED);
+				ourResourceTextCache.invalidate(next, 1);
+			}
+			em.find(ResourceTable.class, good).setIndexStatus(ResourceTable.INDEX_STATUS_REINDEX_REQUIRED);
+			em.getTransaction().commit();
+			em.clear();
+			assertEquals(3, ourDeferredIndexingSvc.getReindexBacklog());
+
+			ourDaoConfig.setDeferredIndexingBatchSize(1);
+			try {
+				// The first poll only has room for the failing resources
+				assertEquals(0, ourDeferredIndexingSvc.pollForPendingResources());
+				assertEquals(1, ourDeferredIndexingSvc.getReindexBacklog());
+				assertEquals(1, ourDeferredIndexingSvc.pollForPendingResources());
+				assertEquals(0, ourDeferredIndexingSvc.getReindexBacklog());
+			} finally {
+				ourDaoConfig.setDeferredIndexingBatchSize(new DaoConfig().getDeferredIndexingBatchSize());
+			}
+
+			for (Long next : failing) {
+				assertEquals(ResourceTable.INDEX_STATUS_REINDEX_FAILED, em.find(ResourceTable.class, next).getIndexStatus());
+			}
+		} finally {
+			if (em.getTransaction().isActive()) {
+				em.getTransaction().rollback();
+			}
+			em.clear();
+			em.getTransaction().begin();
+			for (Entry<Long, ResourceTable> next : originals.entrySet()) {
+				ResourceTable entity = em.find(ResourceTable.class, next.getKey());
+				entity.setEncoding(next.getValue().getEncoding());
+				entity.setResource(next.getValue().getResource());
+				entity.setIndexStatus(ResourceTable.INDEX_STATUS_INDEXED);
+				ourResourceTextCache.invalidate(next.getKey(), 1);
+			}
+			em.getTransaction().commit();
+			em.close();
+		}
+	}
+
+	@Test
+	public void testTagDefinitionsAreCached() {
+		long hits = ourTagDefinitionCache.getStats().hitCount();
+
+		for (int i = 0; i < 2; i++) {
+			Patient patient = new Patient();
+			patient.addIdentifier().setSystem("urn:system").setValue("testTagDefinitionsAreCached");
+			TagList tagList = new TagList();
+			tagList.addTag("http://foo", "testTagDefinitionsAreCached", "Kittens");
+			ResourceMetadataKeyEnum.TAG_LIST.put(patient, tagList);
+			ourPatientDao.create(patient);
+		}
+
+		assertThat(ourTagDefinitionCache.getStats().hitCount(), greaterThan(hits));
+
+		TagList tags = ourPatientDao.getAllResourceTags();
+		int count = 0;
+		for (Tag next : tags) {
+			if ("testTagDefinitionsAreCached".equals(next.getTerm())) {
+				count++;
+			}
+		}
+		assertEquals(1, count);
+	}
+
 	@Test
 	public void testReverseIncludes() {
 		String methodName = "testReverseIncludes";
@@ -885,6 +1300,83 @@ public class FhirResourceDaoDstu2Test {
 		assertEquals(Patient.class, results.get(1).getClass());
 	}
 	
+	@Test
+	public void testResourceEncodings() {
+		String methodName = "testResourceEncodings";
+
+		List<IdDt> ids = new ArrayList<IdDt>();
+		try {
+			for (ResourceEncodingEnum nextEncoding : ResourceEncodingEnum.values()) {
+				ourDaoConfig.setResourceEncoding(nextEncoding);
+
+				Patient patient = new Patient();
+				patient.addIdentifier().setSystem("urn:system").setValue(methodName + nextEncoding.name());
+				patient.addName().addFamily("Tester\u00e9").addGiven(methodName);
+				IdDt id = ourPatientDao.create(patient).getId().toUnqualifiedVersionless();
+				patient.setId(id);
+				patient.addName().addFamily("Tester\u00e9").addGiven(methodName + "2");
+				ourPatientDao.update(patient);
+				ids.add(id);
+
+				Patient read = ourPatientDao.read(id);
+				assertEquals(methodName + nextEncoding.name(), read.getIdentifierFirstRep().getValue());
+				assertEquals("Tester\u00e9", read.getNameFirstRep().getFamilyAsSingleString());
+				assertEquals(2, ourPatientDao.history(id, null).size());
+			}
+
+			// Existing rows are rewritten using the newly configured encoding
+			ourDaoConfig.setResourceEncoding(ResourceEncodingEnum.JSOND);
+			int count = ourResourceReencodingSvc.reencodeResources(Integer.MAX_VALUE);
+			assertThat(count, greaterThan(0));
+			assertEquals(0, ourResourceReencodingSvc.reencodeResources(Integer.MAX_VALUE));
+
+			// The scheduled poll walks the tables by PID range and stops once a pass is complete
+			ourDaoConfig.setResourceEncoding(ResourceEncodingEnum.JSONL);
+			for (int i = 0; i < 1000 && !ourResourceReencodingSvc.isPassComplete(); i++) {
+				ourResourceReencodingSvc.pollForResourcesToReencode();
+			}
+			assertTrue(ourResourceReencodingSvc.isPassComplete());
+			assertEquals(0, ourResourceReencodingSvc.reencodeResources(Integer.MAX_VALUE));
+
+			for (int i = 0; i < ids.size(); i++) {
+				Patient read = ourPatientDao.read(ids.get(i));
+				assertEquals(methodName + ResourceEncodingEnum.values()[i].name(), read.getIdentifierFirstRep().getValue());
+				assertEquals(methodName + "2", read.getName().get(1).getGivenAsSingleString());
+				assertEquals(2, ourPatientDao.history(ids.get(i), null).size());
+			}
+		} finally {
+			ourDaoConfig.setResourceEncoding(new DaoConfig().getResourceEncoding());
+		}
+	}
+
+	/**
+	 * Every encoding must give back exactly the text it was given, and the compressed ones must be smaller than plain
+	 * JSON for realistic resources
+	 */
+	@Test
+	public void testResourceEncodingRoundTrips() throws IOException {
+		for (String nextFile : new String[] { "/documentmanifest.json", "/documentreference.json", "/imagingstudy.json" }) {
+			String input = IOUtils.toString(FhirResourceDaoDstu2Test.class.getResourceAsStream(nextFile));
+			IResource resource = ourFhirCtx.newJsonParser().parseResource(input);
+			String encoded = ourFhirCtx.newJsonParser().encodeResourceToString(resource);
+			int plainLength = ResourceEncodingUtil.encode(ResourceEncodingEnum.JSON, encoded).length;
+
+			for (ResourceEncodingEnum nextEncoding : ResourceEncodingEnum.values()) {
+				byte[] stored = ResourceEncodingUtil.encode(nextEncoding, encoded);
+				assertEquals(nextFile + " as " + nextEncoding, encoded, ResourceEncodingUtil.decode(nextEncoding, stored));
+				if (nextEncoding != ResourceEncodingEnum.JSON) {
+					assertThat(nextFile + " as " + nextEncoding, stored.length, lessThan(plainLength));
+				}
+			}
+		}
+
+		for (String next : new String[] { "", "{}", "{\"name\":\"Gr\u00fcn \u4e2d\u6587 \ud83d\ude00\"}" }) {
+			for (ResourceEncodingEnum nextEncoding : ResourceEncodingEnum.values()) {
+				assertEquals(nextEncoding.name(), next, ResourceEncodingUtil.decode(nextEncoding, ResourceEncodingUtil.encode(nextEncoding, next)));
+			}
+		}
+	}
+
 	@Test
 	public void testResourceInstanceMetaOperation() {
 		deleteEverything();
@@ -1170,6 +1662,37 @@ public class FhirResourceDaoDstu2Test {
 
 	}
 
+	@Test
+	public void testSearchByIdParamWithUnknownId() {
+		Patient patient = new Patient();
+		patient.setId("testSearchByIdParamWithUnknownIdA");
+		patient.addName().addFamily("Tester_testSearchByIdParamWithUnknownId");
+		ourPatientDao.update(patient);
+
+		patient = new Patient();
+		patient.addName().addFamily("Tester_testSearchByIdParamWithUnknownId");
+		ourPatientDao.create(patient);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam("Tester_testSearchByIdParamWithUnknownId"));
+		assertEquals(2, toList(ourPatientDao.search(params)).size());
+
+		params.add("_id", new StringParam("testSearchByIdParamWithUnknownIdB"));
+		assertEquals(0, toList(ourPatientDao.search(params)).size());
+
+		params = new SearchParameterMap();
+		params.add("_id", new StringParam("testSearchByIdParamWithUnknownIdB"));
+		assertEquals(0, toList(ourPatientDao.search(params)).size());
+
+		params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam("Tester_testSearchByIdParamWithUnknownId"));
+		StringOrListParam ids = new StringOrListParam();
+		ids.add(new StringParam("testSearchByIdParamWithUnknownIdA"));
+		ids.add(new StringParam("testSearchByIdParamWithUnknownIdB"));
+		params.add("_id", ids);
+		assertEquals(1, toList(ourPatientDao.search(params)).size());
+	}
+
 	@Test
 	public void testSearchCompositeParam() {
 		Observation o1 = new Observation();
@@ -1359,6 +1882,60 @@ public class FhirResourceDaoDstu2Test {
 		}
 	}
 
+	/**
+	 * The compiled paths must find the same values as evaluating each parameter's path with {@link FhirTerser}, which
+	 * is how they were extracted before
+	 */
+	@Test
+	public void testSearchParamExtractionMatchesTerser() {
+		Observation obs = new Observation();
+		obs.addIdentifier().setSystem("urn:system").setValue("testSearchParamExtractionMatchesTerser");
+		obs.getCode().addCoding().setSystem("http://loinc.org").setCode("1234-5");
+		obs.getCode().addCoding().setSystem("urn:local").setCode("testSearchParamExtractionMatchesTerser");
+		obs.setValue(new QuantityDt(QuantityComparatorEnum.GREATERTHAN, 123.0, "http://unitsofmeasure.org", "mg"));
+		obs.getSubject().setReference("Patient/123");
+		obs.getDevice().setReference("Device/123");
+		obs.addRelated().setTarget(new ResourceReferenceDt("Observation/123"));
+
+		RuntimeResourceDefinition def = ourFhirCtx.getResourceDefinition(obs);
+		Map<RuntimeSearchParam, List<Object>> extracted = new SearchParamExtractorDstu2(ourFhirCtx).extractValues(obs);
+		FhirTerser terser = ourFhirCtx.newTerser();
+
+		int compared = 0;
+		Set<String> paramsWithValues = new HashSet<String>();
+		for (RuntimeSearchParam nextParam : def.getSearchParams()) {
+			if (isBlank(nextParam.getPath())) {
+				continue;
+			}
+			List<Object> expected = new ArrayList<Object>();
+			try {
+				for (String nextPath : nextParam.getPath().split("\\|")) {
+					expected.addAll(terser.getValues(obs, nextPath.trim()));
+				}
+			} catch (Exception e) {
+				// The terser can't evaluate every path, so there is nothing to compare against
+				continue;
+			}
+
+			List<Object> actual = CompiledSearchParamPaths.getValues(extracted, nextParam);
+			assertEquals(nextParam.getName(), expected.size(), actual.size());
+			for (Object nextExpected : expected) {
+				boolean found = false;
+				for (Object nextActual : actual) {
+					found |= nextActual == nextExpected;
+				}
+				assertTrue(nextParam.getName() + " is missing " + nextExpected, found);
+			}
+			compared++;
+			if (!expected.isEmpty()) {
+				paramsWithValues.add(nextParam.getName());
+			}
+		}
+
+		assertThat(compared, greaterThan(5));
+		assertThat(paramsWithValues, hasItems(Observation.SP_IDENTIFIER, Observation.SP_CODE, Observation.SP_VALUE_QUANTITY, Observation.SP_SUBJECT));
+	}
+
 	@Test
 	public void testSearchResourceLinkWithChain() {
 		Patient patient = new Patient();
@@ -1406,6 +1983,40 @@ public class FhirResourceDaoDstu2Test {
 
 	}
 
+	@Test
+	public void testSearchMultipleParamsWithPaging() {
+		String methodName = "testSearchMultipleParamsWithPaging";
+		List<IdDt> ids = new ArrayList<IdDt>();
+		for (int i = 0; i < 5; i++) {
+			Patient patient = new Patient();
+			patient.addIdentifier().setSystem("urn:system").setValue(methodName);
+			patient.addName().addFamily(methodName + "Family").addGiven("Given" + i);
+			ids.add(ourPatientDao.create(patient).getId().toUnqualifiedVersionless());
+		}
+		{
+			// Same family, different identifier
+			Patient patient = new Patient();
+			patient.addIdentifier().setSystem("urn:system").setValue(methodName + "Other");
+			patient.addName().addFamily(methodName + "Family");
+			ourPatientDao.create(patient);
+		}
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_IDENTIFIER, new TokenParam("urn:system", methodName));
+		params.add(Patient.SP_FAMILY, new StringDt(methodName + "Family"));
+		IBundleProvider found = ourPatientDao.search(params);
+		assertEquals(5, found.size());
+
+		List<IdDt> actual = new ArrayList<IdDt>();
+		for (IResource next : found.getResources(0, 2)) {
+			actual.add(next.getId().toUnqualifiedVersionless());
+		}
+		for (IResource next : found.getResources(2, 5)) {
+			actual.add(next.getId().toUnqualifiedVersionless());
+		}
+		assertEquals(ids, actual);
+	}
+
 	@Test
 	public void testSearchResourceLinkWithChainWithMultipleTypes() {
 		Patient patient = new Patient();
@@ -1549,6 +2160,51 @@ public class FhirResourceDaoDstu2Test {
 
 	}
 
+	@Test
+	public void testSearchSummaryCountAndTotalModes() {
+		String system = "urn:system:testSearchSummaryCountAndTotalModes";
+		int count = BaseFhirResourceDao.SEARCH_RESULT_BATCH_SIZE + 10;
+		for (int i = 0; i < count; i++) {
+			Patient patient = new Patient();
+			patient.addIdentifier().setSystem(system).setValue("001");
+			patient.addName().addFamily("Tester_testSearchSummaryCountAndTotalModes" + (i < 3 ? "_few" : "_many"));
+			ourPatientDao.create(patient);
+		}
+
+		SearchParameterMap map = new SearchParameterMap();
+		map.add(Patient.SP_IDENTIFIER, new TokenParam(system, "001"));
+		map.setSummaryCount(true);
+		IBundleProvider result = ourPatientDao.search(map);
+		assertEquals(count, result.size());
+		assertEquals(0, result.getResources(0, 10).size());
+
+		map = new SearchParameterMap();
+		map.add(Patient.SP_FAMILY, new StringParam("Tester_testSearchSummaryCountAndTotalModes_few"));
+		map.setTotalMode(SearchTotalModeEnum.NONE);
+		ILazyTotalBundleProvider lazy = (ILazyTotalBundleProvider) ourPatientDao.search(map);
+		assertNull(lazy.getReportedTotal());
+		assertEquals(3, lazy.getAvailableCount(10));
+		assertEquals(3, toList(lazy).size());
+
+		map = new SearchParameterMap();
+		map.add(Patient.SP_IDENTIFIER, new TokenParam(system, "001"));
+		map.setTotalMode(SearchTotalModeEnum.NONE);
+		lazy = (ILazyTotalBundleProvider) ourPatientDao.search(map);
+		assertNull(lazy.getReportedTotal());
+		assertThat(lazy.getAvailableCount(11), greaterThan(10));
+		assertEquals(10, lazy.getResources(0, 10).size());
+		assertEquals(count, lazy.size());
+		assertNull(lazy.getReportedTotal());
+
+		map = new SearchParameterMap();
+		map.add(Patient.SP_IDENTIFIER, new TokenParam(system, "001"));
+		map.setTotalMode(SearchTotalModeEnum.ESTIMATED);
+		lazy = (ILazyTotalBundleProvider) ourPatientDao.search(map);
+		assertEquals(count, lazy.size());
+		assertEquals(count, lazy.getReportedTotal().intValue());
+		assertEquals(count, toList(lazy).size());
+	}
+
 	@Test
 	public void testSearchTokenParam() {
 		Patient patient = new Patient();
@@ -1610,6 +2266,187 @@ public class FhirResourceDaoDstu2Test {
 		}
 	}
 
+	@Test
+	public void testSearchFullText() {
+		Patient patient = new Patient();
+		patient.addName().addFamily("Quixotrel").addGiven("Testsearchfulltext");
+		patient.getText().setDiv("<div>Lives in <b>Zanzibarium</b></div>");
+		ourPatientDao.create(patient);
+
+		StringParam contains = new StringParam();
+		contains.setValueAsQueryToken(":contains", "xotr");
+		StringParam containsShort = new StringParam();
+		containsShort.setValueAsQueryToken(":contains", "xo");
+		StringParam fuzzy = new StringParam();
+		fuzzy.setValueAsQueryToken(":fuzzy", "Quixotral");
+		StringParam phonetic = new StringParam();
+		phonetic.setValueAsQueryToken(":phonetic", "Quiksotrel");
+
+		try {
+			ourDaoConfig.setFullTextIndexing(false);
+			assertEquals(1, ourPatientDao.searchForIds(Patient.SP_FAMILY, contains).size());
+			try {
+				ourPatientDao.searchForIds(Patient.SP_FAMILY, fuzzy);
+				fail();
+			} catch (InvalidRequestException e) {
+				// good
+			}
+
+			ourDaoConfig.setFullTextIndexing(true);
+			patient = new Patient();
+			patient.addName().addFamily("Quixotrel").addGiven("Testsearchfulltext");
+			patient.getText().setDiv("<div>Lives in <b>Zanzibarium</b></div>");
+			ourPatientDao.create(patient);
+
+			/*
+			 * The first patient was stored before full text indexing was enabled, so it has no text terms and is only
+			 * found by a :contains term which is too short to use them
+			 */
+			assertEquals(2, ourPatientDao.searchForIds(Patient.SP_FAMILY, containsShort).size());
+			assertEquals(1, ourPatientDao.searchForIds(Patient.SP_FAMILY, contains).size());
+			assertEquals(1, ourPatientDao.searchForIds(Patient.SP_FAMILY, fuzzy).size());
+			assertEquals(1, ourPatientDao.searchForIds(Patient.SP_FAMILY, phonetic).size());
+			assertEquals(0, ourPatientDao.searchForIds(Patient.SP_GIVEN, phonetic).size());
+			assertEquals(1, ourPatientDao.searchForIds(Constants.PARAM_CONTENT, new StringParam("xotre zanzib")).size());
+			assertEquals(1, ourPatientDao.searchForIds(Constants.PARAM_TEXT, new StringParam("zanzibarium")).size());
+			assertEquals(0, ourPatientDao.searchForIds(Constants.PARAM_TEXT, new StringParam("quixotrel")).size());
+		} finally {
+			ourDaoConfig.setFullTextIndexing(new DaoConfig().isFullTextIndexing());
+		}
+	}
+
+	@Test
+	public void testSearchUsingHashIndexes() {
+		Patient patient = new Patient();
+		patient.addIdentifier().setSystem("urn:system").setValue("testSearchUsingHashIndexes01");
+		patient.addName().addFamily("Hashington_testSearchUsingHashIndexes").addGiven("Joe");
+		Long id1 = ourPatientDao.create(patient).getId().getIdPartAsLong();
+
+		patient = new Patient();
+		patient.addIdentifier().setValue("testSearchUsingHashIndexes02");
+		patient.addName().addFamily("Hashford_testSearchUsingHashIndexes").addGiven("Jo");
+		Long id2 = ourPatientDao.create(patient).getId().getIdPartAsLong();
+
+		patient = new Patient();
+		patient.addIdentifier().setSystem("urn:system").setValue("testSearchUsingHashIndexes03");
+		Long id3 = ourPatientDao.create(patient).getId().getIdPartAsLong();
+
+		/*
+		 * Give the third patient's identifier the hashes of the first one's, as a hash collision between two different
+		 * values would. Searches using the hashes must still only match on the value.
+		 */
+		EntityManager em = ourEntityManagerFactory.createEntityManager();
+		try {
+			em.getTransaction().begin();
+			//@formatter:off
+			Query q = em.createQuery("UPDATE ResourceIndexedSearchParamToken t SET t.myHashSystemAndValue = :hashSystemAndValue, t.myHashValue = :hashValue " + 
+					"WHERE t.myResourcePid = :pid AND t.myParamName = :name");
+			//@formatter:on
+			q.setParameter("hashSystemAndValue", ResourceIndexedSearchParamToken.calculateHashSystemAndValue("Patient", Patient.SP_IDENTIFIER, "urn:system", "testSearchUsingHashIndexes01"));
+			q.setParameter("hashValue", ResourceIndexedSearchParamToken.calculateHashValue("Patient", Patient.SP_IDENTIFIER, "testSearchUsingHashIndexes01"));
+			q.setParameter("pid", id3);
+			q.setParameter("name", Patient.SP_IDENTIFIER);
+			assertEquals(1, q.executeUpdate());
+			em.getTransaction().commit();
+		} finally {
+			em.close();
+		}
+
+		List<SearchParameterMap> maps = new ArrayList<SearchParameterMap>();
+		List<Set<Long>> expected = new ArrayList<Set<Long>>();
+
+		maps.add(new SearchParameterMap());
+		maps.get(maps.size() - 1).add(Patient.SP_IDENTIFIER, new TokenParam("urn:system", "testSearchUsingHashIndexes01"));
+		expected.add(Collections.singleton(id1));
+		maps.add(new SearchParameterMap());
+		maps.get(maps.size() - 1).add(Patient.SP_IDENTIFIER, new TokenParam(null, "testSearchUsingHashIndexes01"));
+		expected.add(Collections.singleton(id1));
+		maps.add(new SearchParameterMap());
+		maps.get(maps.size() - 1).add(Patient.SP_IDENTIFIER, new TokenParam("urn:other", "testSearchUsingHashIndexes01"));
+		expected.add(Collections.<Long> emptySet());
+		maps.add(new SearchParameterMap());
+		maps.get(maps.size() - 1).add(Patient.SP_IDENTIFIER, new TokenParam(null, "testSearchUsingHashIndexes02"));
+		expected.add(Collections.singleton(id2));
+		maps.add(new SearchParameterMap());
+		maps.get(maps.size() - 1).add(Patient.SP_IDENTIFIER, new TokenParam("", "testSearchUsingHashIndexes02"));
+		expected.add(Collections.singleton(id2));
+		// Both family names share the prefix which the string hash covers, so these rely on the value comparison too
+		maps.add(new SearchParameterMap());
+		maps.get(maps.size() - 1).add(Patient.SP_FAMILY, new StringParam("hashington_testSearchUsingHash"));
+		expected.add(Collections.singleton(id1));
+		maps.add(new SearchParameterMap());
+		maps.get(maps.size() - 1).add(Patient.SP_FAMILY, new StringParam("Hashford_testSearchUsingHashIndexes", true));
+		expected.add(Collections.singleton(id2));
+		maps.add(new SearchParameterMap());
+		maps.get(maps.size() - 1).add(Patient.SP_FAMILY, new StringParam("hashford_testSearchUsingHashIndexes", true));
+		expected.add(Collections.<Long> emptySet());
+		maps.add(new SearchParameterMap());
+		maps.get(maps.size() - 1).add(Patient.SP_FAMILY, new StringParam("Has"));
+		maps.get(maps.size() - 1).add(Patient.SP_GIVEN, new StringParam("Jo"));
+		expected.add(new HashSet<Long>(Arrays.asList(id1, id2)));
+
+		try {
+			for (boolean useHashes : new boolean[] { false, true }) {
+				ourDaoConfig.setSearchUsingHashIndexes(useHashes);
+				for (int i = 0; i < maps.size(); i++) {
+					assertEquals("Search " + i + " using hashes: " + useHashes, expected.get(i), ourPatientDao.searchForIdsWithAndOr(maps.get(i)));
+				}
+			}
+
+			// The third patient's stored hashes no longer match its value, which shows that the hashes are used
+			SearchParameterMap map = new SearchParameterMap();
+			map.add(Patient.SP_IDENTIFIER, new TokenParam("urn:system", "testSearchUsingHashIndexes03"));
+			ourDaoConfig.setSearchUsingHashIndexes(false);
+			assertEquals(Collections.singleton(id3), ourPatientDao.searchForIdsWithAndOr(map));
+			ourDaoConfig.setSearchUsingHashIndexes(true);
+			assertEquals(Collections.<Long> emptySet(), ourPatientDao.searchForIdsWithAndOr(map));
+		} finally {
+			ourDaoConfig.setSearchUsingHashIndexes(new DaoConfig().isSearchUsingHashIndexes());
+		}
+	}
+
+	@Test
+	public void testSearchValueQuantityNormalized() {
+		String methodName = "testSearchValueQuantityNormalized";
+		String ucum = "http://unitsofmeasure.org";
+
+		Observation o = new Observation();
+		o.getCode().addCoding().setSystem("urn:foo").setCode(methodName);
+		o.setValue(new QuantityDt().setSystem(ucum).setCode("mg/dL").setValue(100));
+		ourObservationDao.create(o);
+
+		List<QuantityParam> params = new ArrayList<QuantityParam>();
+		List<Integer> expected = new ArrayList<Integer>();
+		params.add(new QuantityParam(null, new BigDecimal("1"), ucum, "g/L"));
+		expected.add(1);
+		params.add(new QuantityParam(null, new BigDecimal("100"), ucum, "mg/dL"));
+		expected.add(1);
+		params.add(new QuantityParam(QuantityCompararatorEnum.GREATERTHAN, new BigDecimal("0.5"), ucum, "kg/m3"));
+		expected.add(1);
+		params.add(new QuantityParam(QuantityCompararatorEnum.LESSTHAN, new BigDecimal("500"), ucum, "mg/L"));
+		expected.add(0);
+		params.add(new QuantityParam(null, new BigDecimal("5.4"), ucum, "mmol/L"));
+		expected.add(0);
+
+		try {
+			ourDaoConfig.setSearchUsingNormalizedQuantities(true);
+			for (int i = 0; i < params.size(); i++) {
+				SearchParameterMap map = new SearchParameterMap();
+				map.add(Observation.SP_CODE, new TokenParam("urn:foo", methodName));
+				map.add(Observation.SP_VALUE_QUANTITY, params.get(i));
+				assertEquals("Search " + i, expected.get(i).intValue(), ourObservationDao.searchForIdsWithAndOr(map).size());
+			}
+
+			ourDaoConfig.setSearchUsingNormalizedQuantities(false);
+			SearchParameterMap map = new SearchParameterMap();
+			map.add(Observation.SP_CODE, new TokenParam("urn:foo", methodName));
+			map.add(Observation.SP_VALUE_QUANTITY, params.get(0));
+			assertEquals(0, ourObservationDao.searchForIdsWithAndOr(map).size());
+		} finally {
+			ourDaoConfig.setSearchUsingNormalizedQuantities(new DaoConfig().isSearchUsingNormalizedQuantities());
+		}
+	}
+
 	@Test
 	public void testSearchValueQuantity() {
 		String methodName = "testSearchValueQuantity";
@@ -1727,6 +2564,38 @@ public class FhirResourceDaoDstu2Test {
 		}
 	}
 
+	@Test
+	public void testSearchWithIncludesStopsAtIncludeLimit() {
+		String methodName = "testSearchWithIncludesStopsAtIncludeLimit";
+		IdDt parentId = null;
+		for (int i = 0; i < 4; i++) {
+			Organization org = new Organization();
+			org.getNameElement().setValue(methodName + i);
+			if (parentId != null) {
+				org.setPartOf(new ResourceReferenceDt(parentId));
+			}
+			parentId = ourOrganizationDao.create(org).getId().toUnqualifiedVersionless();
+		}
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Organization.SP_NAME, new StringDt(methodName + "3"));
+		params.addInclude(Organization.INCLUDE_PARTOF);
+		List<IResource> results = toList(ourOrganizationDao.search(params));
+		assertEquals(4, results.size());
+		assertEquals(Organization.class, results.get(3).getClass());
+
+		int includeLimit = ourDaoConfig.getIncludeLimit();
+		ourDaoConfig.setIncludeLimit(3);
+		try {
+			results = toList(ourOrganizationDao.search(params));
+			assertEquals(4, results.size());
+			assertEquals(OperationOutcome.class, results.get(0).getClass());
+			assertEquals(Organization.class, results.get(3).getClass());
+		} finally {
+			ourDaoConfig.setIncludeLimit(includeLimit);
+		}
+	}
+
 	/**
 	 * Test for #62
 	 */
@@ -1768,6 +2637,98 @@ public class FhirResourceDaoDstu2Test {
 
 	}
 
+	@Test
+	public void testSearchResultsAreStoredAndPagedFromDatabase() {
+		String methodName = "testSearchResultsAreStoredAndPagedFromDatabase";
+		List<IdDt> ids = new ArrayList<IdDt>();
+		for (int i = 0; i < 3; i++) {
+			Patient patient = new Patient();
+			patient.addName().addFamily(methodName).addGiven("Given" + i);
+			ids.add(ourPatientDao.create(patient).getId().toUnqualifiedVersionless());
+		}
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringDt(methodName));
+		IBundleProvider found = ourPatientDao.search(params);
+		assertThat(found, instanceOf(PersistedJpaBundleProvider.class));
+		assertEquals(3, found.size());
+
+		String searchId = ourPagingProvider.storeResultList(found);
+		assertEquals(((PersistedJpaBundleProvider) found).getUuid(), searchId);
+
+		IBundleProvider retrieved = ourPagingProvider.retrieveResultList(searchId);
+		assertNotNull(retrieved);
+		assertEquals(3, retrieved.size());
+		List<IdDt> actual = new ArrayList<IdDt>();
+		for (IResource next : retrieved.getResources(1, 3)) {
+			actual.add(next.getId().toUnqualifiedVersionless());
+		}
+		assertEquals(ids.subList(1, 3), actual);
+
+		// Searches are only retrievable through the DAO for their own resource type
+		assertNull(ourObservationDao.retrieveSearchResults(searchId));
+		assertNull(ourPagingProvider.retrieveResultList("FOO"));
+	}
+
+	@Test
+	public void testSearchResultsAreReusedWithinWindow() {
+		String methodName = "testSearchResultsAreReusedWithinWindow";
+		Patient patient = new Patient();
+		patient.addName().addFamily(methodName);
+		ourPatientDao.create(patient);
+
+		ourDaoConfig.setReuseCachedSearchResultsForMillis(DateUtils.MILLIS_PER_MINUTE);
+		try {
+			SearchParameterMap params = new SearchParameterMap();
+			params.add(Patient.SP_FAMILY, new StringDt(methodName));
+			PersistedJpaBundleProvider first = (PersistedJpaBundleProvider) ourPatientDao.search(params);
+			assertEquals(1, first.size());
+
+			patient = new Patient();
+			patient.addName().addFamily(methodName);
+			ourPatientDao.create(patient);
+
+			params = new SearchParameterMap();
+			params.add(Patient.SP_FAMILY, new StringDt(methodName));
+			PersistedJpaBundleProvider second = (PersistedJpaBundleProvider) ourPatientDao.search(params);
+			assertEquals(first.getUuid(), second.getUuid());
+			assertEquals(1, second.size());
+
+			// A different search isn't reused
+			params = new SearchParameterMap();
+			params.add(Patient.SP_FAMILY, new StringDt(methodName));
+			params.setCount(1);
+			PersistedJpaBundleProvider third = (PersistedJpaBundleProvider) ourPatientDao.search(params);
+			assertNotEquals(first.getUuid(), third.getUuid());
+			assertEquals(2, third.size());
+		} finally {
+			ourDaoConfig.setReuseCachedSearchResultsForMillis(new DaoConfig().getReuseCachedSearchResultsForMillis());
+		}
+	}
+
+	@Test
+	public void testStaleSearchesAreDeleted() throws InterruptedException {
+		String methodName = "testStaleSearchesAreDeleted";
+		Patient patient = new Patient();
+		patient.addName().addFamily(methodName);
+		ourPatientDao.create(patient);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringDt(methodName));
+		String searchId = ourPagingProvider.storeResultList(ourPatientDao.search(params));
+		assertNotNull(ourPagingProvider.retrieveResultList(searchId));
+
+		Thread.sleep(10);
+		ourDaoConfig.setExpireSearchResultsAfterMillis(1);
+		try {
+			ourStaleSearchDeletingSvc.pollForStaleSearches();
+		} finally {
+			ourDaoConfig.setExpireSearchResultsAfterMillis(new DaoConfig().getExpireSearchResultsAfterMillis());
+		}
+
+		assertNull(ourPagingProvider.retrieveResultList(searchId));
+	}
+
 	@Test
 	public void testSortByDate() {
 		Patient p = new Patient();
@@ -1917,6 +2878,71 @@ public class FhirResourceDaoDstu2Test {
 		assertThat(actual, contains(id3, id2, id1, id4));
 	}
 
+	@Test
+	public void testSortByQuantity() {
+		String methodName = "testSortByQuantity";
+		List<IdDt> ids = new ArrayList<IdDt>();
+		for (double next : new double[] { 300, 100, 200 }) {
+			Observation obs = new Observation();
+			obs.getCode().addCoding().setSystem("urn:system").setCode(methodName);
+			obs.setValue(new QuantityDt(next));
+			ids.add(ourObservationDao.create(obs).getId().toUnqualifiedVersionless());
+		}
+		Observation obs = new Observation();
+		obs.getCode().addCoding().setSystem("urn:system").setCode(methodName);
+		IdDt noValue = ourObservationDao.create(obs).getId().toUnqualifiedVersionless();
+
+		SearchParameterMap pm = new SearchParameterMap();
+		pm.add(Observation.SP_CODE, new TokenParam("urn:system", methodName));
+		pm.setSort(new SortSpec(Observation.SP_VALUE_QUANTITY));
+		List<IdDt> actual = toUnqualifiedVersionlessIds(ourObservationDao.search(pm));
+		assertThat(actual, contains(ids.get(1), ids.get(2), ids.get(0), noValue));
+
+		pm.setSort(new SortSpec(Observation.SP_VALUE_QUANTITY).setOrder(SortOrderEnum.DESC));
+		actual = toUnqualifiedVersionlessIds(ourObservationDao.search(pm));
+		assertThat(actual, contains(ids.get(0), ids.get(2), ids.get(1), noValue));
+	}
+
+	@Test
+	public void testSortByTokenThenString() {
+		String methodName = "testSortByTokenThenString";
+
+		Patient p = new Patient();
+		p.addIdentifier().setSystem("urn:system").setValue(methodName);
+		p.setGender(AdministrativeGenderEnum.MALE);
+		p.addName().addFamily("B");
+		IdDt maleB = ourPatientDao.create(p).getId().toUnqualifiedVersionless();
+
+		p = new Patient();
+		p.addIdentifier().setSystem("urn:system").setValue(methodName);
+		p.setGender(AdministrativeGenderEnum.FEMALE);
+		p.addName().addFamily("C");
+		IdDt femaleC = ourPatientDao.create(p).getId().toUnqualifiedVersionless();
+
+		p = new Patient();
+		p.addIdentifier().setSystem("urn:system").setValue(methodName);
+		p.setGender(AdministrativeGenderEnum.MALE);
+		p.addName().addFamily("A");
+		p.addName().addFamily("Z");
+		IdDt maleAZ = ourPatientDao.create(p).getId().toUnqualifiedVersionless();
+
+		p = new Patient();
+		p.addIdentifier().setSystem("urn:system").setValue(methodName);
+		p.setGender(AdministrativeGenderEnum.FEMALE);
+		IdDt femaleNoName = ourPatientDao.create(p).getId().toUnqualifiedVersionless();
+
+		SearchParameterMap pm = new SearchParameterMap();
+		pm.add(Patient.SP_IDENTIFIER, new TokenParam("urn:system", methodName));
+		pm.setSort(new SortSpec(Patient.SP_GENDER).setChain(new SortSpec(Patient.SP_FAMILY)));
+		List<IdDt> actual = toUnqualifiedVersionlessIds(ourPatientDao.search(pm));
+		assertThat(actual, contains(femaleC, maleAZ, maleB, femaleNoName));
+
+		// Descending uses the highest value of a repeating parameter
+		pm.setSort(new SortSpec(Patient.SP_GENDER).setChain(new SortSpec(Patient.SP_FAMILY).setOrder(SortOrderEnum.DESC)));
+		actual = toUnqualifiedVersionlessIds(ourPatientDao.search(pm));
+		assertThat(actual, contains(femaleC, maleAZ, maleB, femaleNoName));
+	}
+
 	@Test
 	public void testStoreUnversionedResources() {
 		Organization o1 = new Organization();
@@ -2265,6 +3291,91 @@ public class FhirResourceDaoDstu2Test {
 
 	}
 
+	/**
+	 * Index rows whose values haven't changed are kept (with their IDs) when a resource is updated, and only rows for
+	 * values which changed are replaced
+	 */
+	@Test
+	public void testUpdateKeepsUnchangedIndexRows() {
+		String methodName = "testUpdateKeepsUnchangedIndexRows";
+		Patient patient = newPatientWithManyIndexes(methodName, 0);
+		IdDt id = ourPatientDao.create(patient).getId().toUnqualifiedVersionless();
+		List<Long> initialIds = findStringIndexIds(id.getIdPartAsLong());
+		assertThat(initialIds.size(), greaterThan(0));
+
+		patient = newPatientWithManyIndexes(methodName, 0);
+		patient.setId(id);
+		patient.getText().setDiv("<div>Only the narrative changes</div>");
+		ourPatientDao.update(patient);
+		assertEquals(initialIds, findStringIndexIds(id.getIdPartAsLong()));
+
+		patient = newPatientWithManyIndexes(methodName, 1);
+		patient.setId(id);
+		ourPatientDao.update(patient);
+		List<Long> changedIds = findStringIndexIds(id.getIdPartAsLong());
+		assertEquals(initialIds.size(), changedIds.size());
+		for (Long next : changedIds) {
+			assertFalse(initialIds.contains(next));
+		}
+
+		SearchParameterMap map = new SearchParameterMap();
+		map.add(Patient.SP_FAMILY, new StringParam(methodName + "1_9"));
+		assertThat(toUnqualifiedVersionlessIds(ourPatientDao.search(map)), contains(id));
+	}
+
+	/**
+	 * Simulates a database which was upgraded from IDs drawn from <code>hibernate_sequence</code>: an existing index
+	 * row has an ID far ahead of the new sequence, which must be advanced past it
+	 */
+	@Test
+	public void testAdvanceIdSequences() {
+		Patient patient = new Patient();
+		patient.addName().addFamily("testAdvanceIdSequences");
+		IdDt id = ourPatientDao.create(patient).getId().toUnqualifiedVersionless();
+		long rowId = findStringIndexIds(id.getIdPartAsLong()).get(0);
+
+		EntityManager em = ourEntityManagerFactory.createEntityManager();
+		try {
+			em.getTransaction().begin();
+			long movedId = ((Number) em.createNativeQuery("SELECT MAX(SP_ID) FROM HFJ_SPIDX_STRING").getSingleResult()).longValue() + 1000 * IdSequenceMigration.INCREMENT_SIZE;
+			em.createNativeQuery("UPDATE HFJ_SPIDX_STRING SET SP_ID = " + movedId + " WHERE SP_ID = " + rowId).executeUpdate();
+
+			assertThat(IdSequenceMigration.advanceSequences(em), greaterThan(0));
+			long next = ((Number) em.createNativeQuery("VALUES NEXT VALUE FOR SEQ_SPIDX").getSingleResult()).longValue();
+			assertThat(next, greaterThan(movedId + IdSequenceMigration.INCREMENT_SIZE));
+
+			// Once the sequences are ahead, nothing else is done
+			assertEquals(0, IdSequenceMigration.advanceSequences(em));
+			em.getTransaction().commit();
+		} finally {
+			em.close();
+		}
+	}
+
+	@Test
+	public void testUpdateRemovesIndexesWhichNoLongerApply() {
+		Patient p1 = new Patient();
+		p1.addIdentifier().setSystem("urn:system").setValue("testUpdateRemovesIndexesWhichNoLongerApply");
+		p1.addName().addFamily("testUpdateRemovesIndexesWhichNoLongerApplyFamily");
+		IdDt p1id = ourPatientDao.create(p1).getId().toUnqualifiedVersionless();
+
+		Set<Long> ids = ourPatientDao.searchForIds(Patient.SP_FAMILY, new StringDt("testUpdateRemovesIndexesWhichNoLongerApplyFamily"));
+		assertThat(ids, contains(p1id.getIdPartAsLong()));
+
+		// Remove the only name, leaving no string indexes at all
+		p1 = new Patient();
+		p1.setId(p1id);
+		p1.addIdentifier().setSystem("urn:system").setValue("testUpdateRemovesIndexesWhichNoLongerApply");
+		ourPatientDao.update(p1);
+
+		ids = ourPatientDao.searchForIds(Patient.SP_FAMILY, new StringDt("testUpdateRemovesIndexesWhichNoLongerApplyFamily"));
+		assertEquals(0, ids.size());
+
+		// Unchanged indexes are still present
+		ids = ourPatientDao.searchForIds(Patient.SP_IDENTIFIER, new TokenParam("urn:system", "testUpdateRemovesIndexesWhichNoLongerApply"));
+		assertThat(ids, contains(p1id.getIdPartAsLong()));
+	}
+
 	@Test
 	public void testUpdateRejectsInvalidTypes() throws InterruptedException {
 		Patient p1 = new Patient();
@@ -2306,6 +3417,27 @@ public class FhirResourceDaoDstu2Test {
 		}
 	}
 
+	private Patient newPatientWithManyIndexes(String theMethodName, int theGeneration) {
+		Patient retVal = new Patient();
+		for (int i = 0; i < 10; i++) {
+			retVal.addIdentifier().setSystem("urn:system").setValue(theMethodName + theGeneration + "_" + i);
+			retVal.addName().addFamily(theMethodName + theGeneration + "_" + i).addGiven("Given" + theGeneration);
+			retVal.addTelecom().setValue("555-" + theGeneration + "-" + i);
+		}
+		return retVal;
+	}
+
+	private List<Long> findStringIndexIds(Long theResourcePid) {
+		EntityManager em = ourEntityManagerFactory.createEntityManager();
+		try {
+			TypedQuery<Long> q = em.createQuery("SELECT s.myId FROM ResourceIndexedSearchParamString s WHERE s.myResourcePid = :res_id ORDER BY s.myId ASC", Long.class);
+			q.setParameter("res_id", theResourcePid);
+			return q.getResultList();
+		} finally {
+			em.close();
+		}
+	}
+
 	@SuppressWarnings("unchecked")
 	private <T extends IResource> List<T> toList(IBundleProvider theSearch) {
 		return (List<T>) theSearch.getResources(0, theSearch.size());
@@ -2337,6 +3469,15 @@ public class FhirResourceDaoDstu2Test {
 		ourEncounterDao = ourCtx.getBean("myEncounterDaoDstu2", IFhirResourceDao.class);
 		ourSystemDao = ourCtx.getBean("mySystemDaoDstu2", IFhirSystemDao.class);
 		ourFhirCtx = ourCtx.getBean(FhirContext.class);
+		ourDaoConfig = ourCtx.getBean(DaoConfig.class);
+		ourDeferredIndexingSvc = ourCtx.getBean(DeferredIndexingSvc.class);
+		ourEntityManagerFactory = ourCtx.getBean(EntityManagerFactory.class);
+		ourForcedIdCache = ourCtx.getBean(ForcedIdCache.class);
+		ourPagingProvider = ourCtx.getBean(DatabaseBackedPagingProvider.class);
+		ourStaleSearchDeletingSvc = ourCtx.getBean(StaleSearchDeletingSvc.class);
+		ourResourceReencodingSvc = ourCtx.getBean(ResourceReencodingSvc.class);
+		ourResourceTextCache = ourCtx.getBean(ResourceTextCache.class);
+		ourTagDefinitionCache = ourCtx.getBean(TagDefinitionCache.class);
 	}
 
 	private static void deleteEverything() {
@@ -10,20 +10,31 @@ import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.InputStream;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.io.IOUtils;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.jpa.entity.ResourceChange;
+import ca.uhn.fhir.jpa.entity.ResourceChangeOperationEnum;
 import ca.uhn.fhir.jpa.entity.TagTypeEnum;
 import ca.uhn.fhir.jpa.provider.SystemProviderTest;
 import ca.uhn.fhir.model.api.IResource;
@@ -33,6 +44,7 @@ import ca.uhn.fhir.model.base.composite.BaseCodingDt;
 import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
 import ca.uhn.fhir.model.dstu2.composite.CodingDt;
 import ca.uhn.fhir.model.dstu2.composite.MetaDt;
+import ca.uhn.fhir.model.dstu2.composite.ResourceReferenceDt;
 import ca.uhn.fhir.model.dstu2.resource.Bundle;
 import ca.uhn.fhir.model.dstu2.resource.Bundle.Entry;
 import ca.uhn.fhir.model.dstu2.resource.Observation;
@@ -41,6 +53,8 @@ import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
 import ca.uhn.fhir.model.dstu2.valueset.HTTPVerbEnum;
 import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.model.primitive.UriDt;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.server.Constants;
 import ca.uhn.fhir.rest.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
@@ -57,6 +71,149 @@ public class FhirSystemDaoDstu2Test {
 	private static IFhirSystemDao<Bundle> ourSystemDao;
 	private static IFhirResourceDao<Observation> ourObservationDao;
 	
+	@Test
+	public void testDaoListenerNotCalledBeforeCommit() {
+		final List<ResourceChange> notified = new ArrayList<ResourceChange>();
+		ourPatientDao.registerDaoListener(new IDaoListener() {
+			@Override
+			public void writeCompleted(List<ResourceChange> theChanges) {
+				notified.addAll(theChanges);
+			}
+		});
+
+		TransactionTemplate template = new TransactionTemplate(ourCtx.getBean(PlatformTransactionManager.class));
+		template.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+				Patient p = new Patient();
+				p.addName().addFamily("testDaoListenerNotCalledBeforeCommit");
+				ourPatientDao.create(p);
+				assertEquals(0, notified.size());
+				theStatus.setRollbackOnly();
+			}
+		});
+		assertEquals(0, notified.size());
+
+		template.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+				Patient p = new Patient();
+				p.addName().addFamily("testDaoListenerNotCalledBeforeCommit");
+				ourPatientDao.create(p);
+				assertEquals(0, notified.size());
+			}
+		});
+		assertEquals(1, notified.size());
+	}
+
+	@Test
+	public void testReadChanges() {
+		List<ResourceChange> initial = ourSystemDao.readChanges(0, Integer.MAX_VALUE, 0);
+		long after = initial.isEmpty() ? 0 : initial.get(initial.size() - 1).getSequence();
+
+		final List<ResourceChange> notified = new ArrayList<ResourceChange>();
+		ourPatientDao.registerDaoListener(new IDaoListener() {
+			@Override
+			public void writeCompleted(List<ResourceChange> theChanges) {
+				notified.addAll(theChanges);
+			}
+		});
+
+		Patient p = new Patient();
+		p.addIdentifier().setSystem("urn:system").setValue("testReadChanges");
+		IdDt id = ourPatientDao.create(p).getId().toUnqualifiedVersionless();
+		p.setId(id);
+		p.addName().addFamily("testReadChanges");
+		ourPatientDao.update(p);
+		ourPatientDao.delete(id);
+
+		List<ResourceChange> changes = ourSystemDao.readChanges(after, Integer.MAX_VALUE, 0);
+		assertEquals(3, changes.size());
+		assertEquals(ResourceChangeOperationEnum.CREATE, changes.get(0).getOperation());
+		assertEquals(id.withVersion("1").getValue(), changes.get(0).getIdDt().getValue());
+		assertEquals(ResourceChangeOperationEnum.UPDATE, changes.get(1).getOperation());
+		assertEquals(id.withVersion("2").getValue(), changes.get(1).getIdDt().getValue());
+		assertEquals(ResourceChangeOperationEnum.DELETE, changes.get(2).getOperation());
+		assertEquals(id.withVersion("3").getValue(), changes.get(2).getIdDt().getValue());
+		assertTrue(changes.get(0).getSequence() < changes.get(1).getSequence());
+		assertTrue(changes.get(1).getSequence() < changes.get(2).getSequence());
+
+		assertEquals(3, notified.size());
+		assertEquals(changes.get(2).getSequence(), notified.get(2).getSequence());
+
+		changes = ourSystemDao.readChanges(after, 2, 0);
+		assertEquals(2, changes.size());
+
+		long last = ourSystemDao.readChanges(after, Integer.MAX_VALUE, 0).get(2).getSequence();
+		assertEquals(0, ourSystemDao.readChanges(last, Integer.MAX_VALUE, 100).size());
+	}
+
+	/**
+	 * Transaction A writes its change before transaction B does, but commits after it. A consumer which has already
+	 * read B's change must still see A's change when it resumes from B's sequence number.
+	 */
+	@Test
+	public void testReadChangesWithInterleavedTransactions() throws Exception {
+		List<ResourceChange> initial = ourSystemDao.readChanges(0, Integer.MAX_VALUE, 0);
+		long after = initial.isEmpty() ? 0 : initial.get(initial.size() - 1).getSequence();
+
+		final CountDownLatch aWritten = new CountDownLatch(1);
+		final CountDownLatch bCommitted = new CountDownLatch(1);
+		final AtomicReference<IdDt> aId = new AtomicReference<IdDt>();
+		final AtomicReference<Throwable> aFailure = new AtomicReference<Throwable>();
+
+		Thread a = new Thread() {
+			@Override
+			public void run() {
+				try {
+					TransactionTemplate template = new TransactionTemplate(ourCtx.getBean(PlatformTransactionManager.class));
+					template.execute(new TransactionCallbackWithoutResult() {
+						@Override
+						protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+							Patient p = new Patient();
+							p.addName().addFamily("testReadChangesWithInterleavedTransactionsA");
+							aId.set(ourPatientDao.create(p).getId().toUnqualifiedVersionless());
+							aWritten.countDown();
+							try {
+								bCommitted.await(10, TimeUnit.SECONDS);
+							} catch (InterruptedException e) {
+								throw new IllegalStateException(e);
+							}
+						}
+					});
+				} catch (Throwable e) {
+					aFailure.set(e);
+				}
+			}
+		};
+		a.start();
+		assertTrue(aWritten.await(10, TimeUnit.SECONDS));
+
+		Patient p = new Patient();
+		p.addName().addFamily("testReadChangesWithInterleavedTransactionsB");
+		IdDt bId = ourPatientDao.create(p).getId().toUnqualifiedVersionless();
+		bCommitted.countDown();
+
+		a.join(10000);
+		assertNull(aFailure.get());
+
+		List<ResourceChange> changes = ourSystemDao.readChanges(after, Integer.MAX_VALUE, 0);
+		assertEquals(2, changes.size());
+		ResourceChange bChange = changes.get(0);
+		ResourceChange aChange = changes.get(1);
+		assertEquals(bId.withVersion("1").getValue(), bChange.getIdDt().getValue());
+		assertEquals(aId.get().withVersion("1").getValue(), aChange.getIdDt().getValue());
+
+		// A's row was written first, but B committed first so B comes first in the log
+		assertTrue(aChange.getId() < bChange.getId());
+		assertTrue(bChange.getSequence() < aChange.getSequence());
+
+		// A consumer which had read up to B must still see A
+		changes = ourSystemDao.readChanges(bChange.getSequence(), Integer.MAX_VALUE, 0);
+		assertEquals(1, changes.size());
+		assertEquals(aChange.getSequence(), changes.get(0).getSequence());
+	}
+
 	@Test
 	public void testTransactionCreateMatchUrlWithOneMatch() {
 		String methodName = "testTransactionCreateMatchUrlWithOneMatch";
@@ -702,6 +859,40 @@ public class FhirSystemDaoDstu2Test {
 		ourSystemDao = ourCtx.getBean("mySystemDaoDstu2", IFhirSystemDao.class);
 	}
 
+	@Test
+	public void testImportNdjsonWithForwardReferenceAndBadLine() {
+		String methodName = "testImportNdjsonWithForwardReferenceAndBadLine";
+
+		Observation obs = new Observation();
+		obs.getCode().setText(methodName);
+		obs.setSubject(new ResourceReferenceDt("Patient/" + methodName));
+
+		Patient pat = new Patient();
+		pat.setId(methodName);
+		pat.addName().addFamily(methodName);
+
+		//@formatter:off
+		String ndjson = 
+			ourFhirContext.newJsonParser().encodeResourceToString(obs) + "\n" + 
+			"{ \"resourceType\": \"Patient\", \"this is not valid\n" + 
+			"\n" + 
+			ourFhirContext.newJsonParser().encodeResourceToString(pat) + "\n";
+		//@formatter:on
+
+		// A batch size of 1 means the reference crosses batches
+		ImportOutcome outcome = ourSystemDao.importNdjson(new StringReader(ndjson), 1);
+		ourLog.info("Import failures: {}", outcome.getFailures());
+
+		assertEquals(3, outcome.getLinesRead());
+		assertEquals(2, outcome.getResourcesStored());
+		assertEquals(2, outcome.getResourcesIndexed());
+		assertEquals(1, outcome.getFailures().size());
+		assertThat(outcome.getFailures().get(0), startsWith("Line 2: "));
+
+		assertEquals(1, ourPatientDao.search(Patient.SP_FAMILY, new StringParam(methodName)).size());
+		assertEquals(1, ourObservationDao.search(Observation.SP_SUBJECT, new ReferenceParam("Patient/" + methodName)).size());
+	}
+
 	@Test
 	public void testSystemMetaOperation() {
 		deleteEverything();
@@ -0,0 +1,60 @@
+package ca.uhn.fhir.jpa.entity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Date;
+
+import org.junit.Test;
+
+public class ResourceIndexedSearchParamTest {
+
+	@Test
+	public void testDateEqualsTimestamp() {
+		// Values loaded from the DB are Timestamps, but must still match newly extracted values
+		Date low = new Date(1000000L);
+		Date high = new Date(2000000L);
+		ResourceIndexedSearchParamDate val1 = new ResourceIndexedSearchParamDate("date", low, high);
+		ResourceIndexedSearchParamDate val2 = new ResourceIndexedSearchParamDate("date", new Timestamp(low.getTime()), new Timestamp(high.getTime()));
+		assertEquals(val1, val2);
+		assertEquals(val1.hashCode(), val2.hashCode());
+
+		ResourceIndexedSearchParamDate val3 = new ResourceIndexedSearchParamDate("date", low, null);
+		assertNotEquals(val1, val3);
+	}
+
+	@Test
+	public void testNumberIgnoresScale() {
+		ResourceIndexedSearchParamNumber val1 = new ResourceIndexedSearchParamNumber("number", new BigDecimal("1.5"));
+		ResourceIndexedSearchParamNumber val2 = new ResourceIndexedSearchParamNumber("number", new BigDecimal("1.500"));
+		assertEquals(val1, val2);
+		assertEquals(val1.hashCode(), val2.hashCode());
+
+		ResourceIndexedSearchParamNumber val3 = new ResourceIndexedSearchParamNumber("number", new BigDecimal("1.6"));
+		assertNotEquals(val1, val3);
+	}
+
+	@Test
+	public void testStringEquality() {
+		ResourceIndexedSearchParamString val1 = new ResourceIndexedSearchParamString("name", "SMITH", "Smith");
+		ResourceIndexedSearchParamString val2 = new ResourceIndexedSearchParamString("name", "SMITH", "Smith");
+		assertEquals(val1, val2);
+		assertEquals(val1.hashCode(), val2.hashCode());
+
+		assertNotEquals(val1, new ResourceIndexedSearchParamString("name", "SMITH", "SMITH"));
+		assertNotEquals(val1, new ResourceIndexedSearchParamString("family", "SMITH", "Smith"));
+	}
+
+	@Test
+	public void testTokenEquality() {
+		ResourceIndexedSearchParamToken val1 = new ResourceIndexedSearchParamToken("identifier", "urn:system", "123");
+		ResourceIndexedSearchParamToken val2 = new ResourceIndexedSearchParamToken("identifier", "urn:system", "123");
+		assertEquals(val1, val2);
+		assertEquals(val1.hashCode(), val2.hashCode());
+
+		assertNotEquals(val1, new ResourceIndexedSearchParamToken("identifier", null, "123"));
+	}
+
+}
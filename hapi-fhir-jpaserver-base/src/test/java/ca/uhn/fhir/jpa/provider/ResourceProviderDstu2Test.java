@@ -12,6 +12,9 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
 import org.apache.commons.io.IOUtils;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
@@ -34,6 +37,9 @@ import org.springframework.context.support.ClassPathXmlApplicationContext;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.dao.DaoConfig;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.dao.ResourceEncodingUtil;
+import ca.uhn.fhir.jpa.dao.ResourceTextCache;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.jpa.testutil.RandomServerPortProvider;
 import ca.uhn.fhir.model.api.Bundle;
 import ca.uhn.fhir.model.api.IResource;
@@ -86,6 +92,8 @@ public class ResourceProviderDstu2Test {
 	private static Server ourServer;
 	private static IFhirResourceDao<Organization> ourOrganizationDao;
 	private static DaoConfig ourDaoConfig;
+	private static EntityManagerFactory ourEntityManagerFactory;
+	private static ResourceTextCache ourResourceTextCache;
 	private static CloseableHttpClient ourHttpClient;
 	private static String ourServerBase;
 
@@ -247,6 +255,79 @@ public class ResourceProviderDstu2Test {
 
 	}
 
+	@Test
+	public void testReadJsonReturnsStoredJsonWithCurrentMeta() throws Exception {
+		String methodName = "testReadJsonReturnsStoredJsonWithCurrentMeta";
+
+		Patient pt = new Patient();
+		pt.addIdentifier().setSystem("urn:system").setValue(methodName);
+		IdDt id = ourClient.create().resource(pt).execute().getId().toUnqualifiedVersionless();
+
+		pt.setId(id);
+		pt.addName().addFamily(methodName);
+		ourClient.update().resource(pt).execute();
+
+		/*
+		 * Store the body pretty printed. The server never pretty prints a response which wasn't asked for, so line
+		 * breaks in the response can only have been copied from the stored JSON.
+		 */
+		Long pid = id.getIdPartAsLong();
+		EntityManager em = ourEntityManagerFactory.createEntityManager();
+		try {
+			em.getTransaction().begin();
+			ResourceTable entity = em.find(ResourceTable.class, pid);
+			String stored = ResourceEncodingUtil.decode(entity.getEncoding(), entity.getResource());
+			IResource parsed = ourFhirCtx.newJsonParser().parseResource(stored);
+			String pretty = ourFhirCtx.newJsonParser().setPrettyPrint(true).encodeResourceToString(parsed);
+			entity.setResource(ResourceEncodingUtil.encode(entity.getEncoding(), pretty));
+			em.getTransaction().commit();
+		} finally {
+			em.close();
+		}
+		ourResourceTextCache.invalidate(pid, 2);
+
+		// The stored JSON is only used when no narrative generator can change the content
+		ourFhirCtx.setNarrativeGenerator(null);
+		HttpGet read = new HttpGet(ourServerBase + "/Patient/" + id.getIdPart() + "?_format=json");
+		CloseableHttpResponse response = ourHttpClient.execute(read);
+		try {
+			String text = IOUtils.toString(response.getEntity().getContent(), "UTF-8");
+			ourLog.info(text);
+			assertEquals(Constants.STATUS_HTTP_200_OK, response.getStatusLine().getStatusCode());
+			assertThat(text, startsWith("{\"resourceType\":\"Patient\",\"id\":\"" + id.getIdPart() + "\",\"meta\":{\"versionId\":\"2\""));
+			assertThat(text, containsString("\n"));
+
+			Patient returned = ourFhirCtx.newJsonParser().parseResource(Patient.class, text);
+			assertEquals(methodName, returned.getIdentifierFirstRep().getValue());
+			assertEquals(methodName, returned.getNameFirstRep().getFamilyAsSingleString());
+		} finally {
+			response.close();
+			ourFhirCtx.setNarrativeGenerator(new DefaultThymeleafNarrativeGenerator());
+		}
+
+		// With a narrative generator the resource is encoded again
+		response = ourHttpClient.execute(read);
+		try {
+			String text = IOUtils.toString(response.getEntity().getContent(), "UTF-8");
+			assertEquals(Constants.STATUS_HTTP_200_OK, response.getStatusLine().getStatusCode());
+			assertThat(text, not(containsString("\n")));
+		} finally {
+			response.close();
+		}
+
+		read = new HttpGet(ourServerBase + "/Patient/" + id.getIdPart() + "?_format=xml");
+		response = ourHttpClient.execute(read);
+		try {
+			String text = IOUtils.toString(response.getEntity().getContent(), "UTF-8");
+			assertEquals(Constants.STATUS_HTTP_200_OK, response.getStatusLine().getStatusCode());
+			Patient returned = ourFhirCtx.newXmlParser().parseResource(Patient.class, text);
+			assertEquals(methodName, returned.getIdentifierFirstRep().getValue());
+			assertEquals("2", returned.getId().getVersionIdPart());
+		} finally {
+			response.close();
+		}
+	}
+
 	/**
 	 * Test for issue #60
 	 */
@@ -817,6 +898,8 @@ public class ResourceProviderDstu2Test {
 		ourAppCtx = new ClassPathXmlApplicationContext("hapi-fhir-server-resourceproviders-dstu2.xml", "fhir-jpabase-spring-test-config.xml");
 
 		ourDaoConfig = (DaoConfig) ourAppCtx.getBean(DaoConfig.class);
+		ourEntityManagerFactory = ourAppCtx.getBean(EntityManagerFactory.class);
+		ourResourceTextCache = ourAppCtx.getBean(ResourceTextCache.class);
 
 		ourOrganizationDao = (IFhirResourceDao<Organization>) ourAppCtx.getBean("myOrganizationDaoDstu2", IFhirResourceDao.class);
 
@@ -19,7 +19,7 @@ import ca.uhn.fhir.model.dstu2.resource.Bundle;
 import ca.uhn.fhir.narrative.DefaultThymeleafNarrativeGenerator;
 import ca.uhn.fhir.rest.server.ETagSupportEnum;
 import ca.uhn.fhir.rest.server.EncodingEnum;
-import ca.uhn.fhir.rest.server.FifoMemoryPagingProvider;
+import ca.uhn.fhir.rest.server.IPagingProvider;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor;
@@ -117,9 +117,11 @@ public class JpaServerDemo extends RestfulServer {
 		setDefaultResponseEncoding(EncodingEnum.JSON);
 
 		/*
-		 * This is a simple paging strategy that keeps the last 10 searches in memory
+		 * Search results are stored in the database, and pages are loaded from there
+		 * as clients request them (see hapi-fhir-server-config.xml)
 		 */
-		setPagingProvider(new FifoMemoryPagingProvider(10));
+		String pagingProviderBeanName = "myPagingProviderDstu" + (fhirVersion == FhirVersionEnum.DSTU1 ? "1" : "2");
+		setPagingProvider(myAppCtx.getBean(pagingProviderBeanName, IPagingProvider.class));
 
 		/*
 		 * Load interceptors for the server from Spring (these are defined in hapi-fhir-server-config.xml
@@ -20,8 +20,8 @@ import ca.uhn.fhir.jpa.provider.JpaSystemProviderDstu2;
 import ca.uhn.fhir.narrative.DefaultThymeleafNarrativeGenerator;
 import ca.uhn.fhir.rest.server.ETagSupportEnum;
 import ca.uhn.fhir.rest.server.EncodingEnum;
-import ca.uhn.fhir.rest.server.FifoMemoryPagingProvider;
 import ca.uhn.fhir.rest.server.HardcodedServerAddressStrategy;
+import ca.uhn.fhir.rest.server.IPagingProvider;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor;
@@ -58,6 +58,7 @@ public class TestRestfulServer extends RestfulServer {
 		IFhirSystemDao systemDao;
 		ETagSupportEnum etagSupport;
 		String baseUrlProperty;
+		String pagingProviderBeanName;
 		switch (fhirVersionParam.trim().toUpperCase()) {
 		case "BASE": {
 			setFhirContext(FhirContext.forDstu1());
@@ -69,6 +70,7 @@ public class TestRestfulServer extends RestfulServer {
 			confProvider.setImplementationDescription(implDesc);
 			setServerConformanceProvider(confProvider);
 			baseUrlProperty = "fhir.baseurl";
+			pagingProviderBeanName = "myPagingProviderDstu1";
 			break;
 		}
 		case "DSTU1": {
@@ -81,6 +83,7 @@ public class TestRestfulServer extends RestfulServer {
 			confProvider.setImplementationDescription(implDesc);
 			setServerConformanceProvider(confProvider);
 			baseUrlProperty = "fhir.baseurl.dstu1";
+			pagingProviderBeanName = "myPagingProviderDstu1";
 			break;
 		}
 		case "DSTU2": {
@@ -93,6 +96,7 @@ public class TestRestfulServer extends RestfulServer {
 			confProvider.setImplementationDescription(implDesc);
 			setServerConformanceProvider(confProvider);
 			baseUrlProperty = "fhir.baseurl.dstu2";
+			pagingProviderBeanName = "myPagingProviderDstu2";
 			break;
 		}
 		default:
@@ -157,10 +161,10 @@ public class TestRestfulServer extends RestfulServer {
 		setServerAddressStrategy(new MyHardcodedServerAddressStrategy(baseUrl));
 		
 		/*
-		 * This is a simple paging strategy that keeps the last 10 
-		 * searches in memory
+		 * Search results are stored in the database, and pages are loaded
+		 * from there as clients request them
 		 */
-		setPagingProvider(new FifoMemoryPagingProvider(10));
+		setPagingProvider(myAppCtx.getBean(pagingProviderBeanName, IPagingProvider.class));
 
 		/*
 		 * Load interceptors for the server from Spring (these are defined in hapi-fhir-server-config.xml
@@ -196,10 +196,12 @@ public class Dstu2BundleFactory implements IVersionSpecificBundleFactory {
 	@Override
 	public void initializeBundleFromBundleProvider(RestfulServer theServer, IBundleProvider theResult, EncodingEnum theResponseEncoding, String theServerBase, String theCompleteUrl, boolean thePrettyPrint, int theOffset, Integer theLimit, String theSearchId, BundleTypeEnum theBundleType, Set<Include> theIncludes) {
 		int numToReturn;
+		int available;
 		String searchId = null;
 		List<IResource> resourceList;
 		if (theServer.getPagingProvider() == null) {
 			numToReturn = theResult.size();
+			available = numToReturn;
 			resourceList = theResult.getResources(0, numToReturn);
 			RestfulServerUtils.validateResourceListNotNull(resourceList);
 
@@ -211,14 +213,19 @@ public class Dstu2BundleFactory implements IVersionSpecificBundleFactory {
 				numToReturn = Math.min(pagingProvider.getMaximumPageSize(), theLimit);
 			}
 
-			numToReturn = Math.min(numToReturn, theResult.size() - theOffset);
+			/*
+			 * Only as many results as are needed to fill this page (and to tell whether there is another one) need to
+			 * be available, so a provider which is still loading its results doesn't hold up the first page
+			 */
+			available = RestfulServerUtils.getAvailableCount(theResult, theOffset + numToReturn + 1);
+			numToReturn = Math.min(numToReturn, available - theOffset);
 			resourceList = theResult.getResources(theOffset, numToReturn + theOffset);
 			RestfulServerUtils.validateResourceListNotNull(resourceList);
 
 			if (theSearchId != null) {
 				searchId = theSearchId;
 			} else {
-				if (theResult.size() > numToReturn) {
+				if (available > numToReturn) {
 					searchId = pagingProvider.storeResultList(theResult);
 					Validate.notNull(searchId, "Paging provider returned null searchId");
 				}
@@ -243,7 +250,7 @@ public class Dstu2BundleFactory implements IVersionSpecificBundleFactory {
 		}
 
 		addResourcesToBundle(resourceList, theBundleType, theServerBase, theServer.getBundleInclusionRule(), theIncludes);
-		addRootPropertiesToBundle(null, theServerBase, theCompleteUrl, theResult.size(), theBundleType);
+		addRootPropertiesToBundle(null, theServerBase, theCompleteUrl, RestfulServerUtils.getReportedTotal(theResult), theBundleType);
 
 		if (theServer.getPagingProvider() != null) {
 			int limit;
@@ -251,7 +258,7 @@ public class Dstu2BundleFactory implements IVersionSpecificBundleFactory {
 			limit = Math.min(limit, theServer.getPagingProvider().getMaximumPageSize());
 
 			if (searchId != null) {
-				if (theOffset + numToReturn < theResult.size()) {
+				if (theOffset + numToReturn < available) {
 					myBundle.addLink().setRelation(Constants.LINK_NEXT).setUrl(RestfulServerUtils.createPagingLink(theIncludes, theServerBase, searchId, theOffset + numToReturn, numToReturn, theResponseEncoding, thePrettyPrint));
 				}
 				if (theOffset > 0) {
@@ -0,0 +1,180 @@
+package ca.uhn.fhir.context;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.hl7.fhir.instance.model.IBase;
+import org.junit.Test;
+
+import ca.uhn.fhir.model.api.ExtensionDt;
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.api.ISupportsUndeclaredExtensions;
+import ca.uhn.fhir.model.dstu2.composite.HumanNameDt;
+import ca.uhn.fhir.model.dstu2.composite.QuantityDt;
+import ca.uhn.fhir.model.dstu2.resource.Observation;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.AdministrativeGenderEnum;
+import ca.uhn.fhir.model.primitive.BooleanDt;
+import ca.uhn.fhir.model.primitive.DateDt;
+import ca.uhn.fhir.model.primitive.StringDt;
+import ca.uhn.fhir.parser.ReportObservation;
+
+public class GeneratedFieldAccessorTest {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(GeneratedFieldAccessorTest.class);
+
+	@Test
+	public void testGeneratedAccessorsAreUsed() {
+		FhirContext ctx = FhirContext.forDstu2();
+		assertTrue(ctx.isUseGeneratedFieldAccessors());
+
+		BaseRuntimeDeclaredChildDefinition name = (BaseRuntimeDeclaredChildDefinition) ctx.getResourceDefinition(Patient.class).getChildByName("name");
+		assertTrue(name.isUsingGeneratedFieldAccessor());
+
+		Patient patient = new Patient();
+		assertEquals(0, name.getAccessor().getValues(patient).size());
+		name.getMutator().addValue(patient, new HumanNameDt().addFamily("Family"));
+		List<IBase> values = name.getAccessor().getValues(patient);
+		assertEquals(1, values.size());
+		assertSame(patient.getNameFirstRep(), values.get(0));
+
+		BaseRuntimeDeclaredChildDefinition birthDate = (BaseRuntimeDeclaredChildDefinition) ctx.getResourceDefinition(Patient.class).getChildByName("birthDate");
+		assertTrue(birthDate.isUsingGeneratedFieldAccessor());
+		birthDate.getMutator().addValue(patient, new DateDt("2011-01-02"));
+		assertEquals("2011-01-02", patient.getBirthDateElement().getValueAsString());
+
+		// Blocks and composite datatypes provide accessors too
+		BaseRuntimeElementCompositeDefinition<?> contactDef = (BaseRuntimeElementCompositeDefinition<?>) ctx.getElementDefinition(Patient.Contact.class);
+		assertTrue(((BaseRuntimeDeclaredChildDefinition) contactDef.getChildByName("name")).isUsingGeneratedFieldAccessor());
+		BaseRuntimeElementCompositeDefinition<?> humanNameDef = (BaseRuntimeElementCompositeDefinition<?>) ctx.getElementDefinition(HumanNameDt.class);
+		assertTrue(((BaseRuntimeDeclaredChildDefinition) humanNameDef.getChildByName("family")).isUsingGeneratedFieldAccessor());
+	}
+
+	@Test
+	public void testFallsBackToReflection() {
+		FhirContext ctx = FhirContext.forDstu2();
+		RuntimeResourceDefinition def = ctx.getResourceDefinition(ReportObservation.class);
+
+		// Fields declared by a custom subclass have no generated accessors
+		RuntimeChildDeclaredExtensionDefinition mandatory = def.getDeclaredExtension("#mandatory");
+		assertFalse(mandatory.isUsingGeneratedFieldAccessor());
+		assertTrue(((BaseRuntimeDeclaredChildDefinition) def.getChildByName("identifier")).isUsingGeneratedFieldAccessor());
+
+		ctx = FhirContext.forDstu2();
+		ctx.setUseGeneratedFieldAccessors(false);
+		BaseRuntimeDeclaredChildDefinition name = (BaseRuntimeDeclaredChildDefinition) ctx.getResourceDefinition(Patient.class).getChildByName("name");
+		assertFalse(name.isUsingGeneratedFieldAccessor());
+	}
+
+	@Test
+	public void testGeneratedAndReflectionAccessorsReturnSameValues() {
+		FhirContext generatedCtx = FhirContext.forDstu2();
+		FhirContext reflectionCtx = FhirContext.forDstu2();
+		reflectionCtx.setUseGeneratedFieldAccessors(false);
+
+		Patient patient = new Patient();
+		patient.setId("Patient/1");
+		patient.addIdentifier().setSystem("urn:system").setValue("testGeneratedAndReflectionAccessorsReturnSameValues");
+		patient.addName().addFamily("Family").addGiven("Given").addGiven("Middle");
+		patient.getNameFirstRep().getGiven().get(0).addUndeclaredExtension(false, "http://foo", new HumanNameDt().addFamily("InExtension"));
+		patient.addUndeclaredExtension(true, "http://mod", new StringDt("mod"));
+		patient.setBirthDate(new DateDt("1970-01-01"));
+		patient.setGender(AdministrativeGenderEnum.FEMALE);
+		patient.setDeceased(new BooleanDt(false));
+		patient.addTelecom().setValue("555-1234");
+		patient.addContact().addTelecom().setValue("555-5678");
+
+		ReportObservation observation = new ReportObservation();
+		observation.setId("Observation/1");
+		observation.getCode().addCoding().setSystem("http://loinc.org").setCode("1234-5").setDisplay("Something");
+		observation.setValue(new QuantityDt(2.5).setUnits("mg"));
+		observation.addReferenceRange().setLow(new QuantityDt(2.2)).setHigh(new QuantityDt(2.9));
+		observation.getSubject().setReference("Patient/1");
+		observation.setMandatory(true);
+		observation.setSectionContentId("section");
+
+		assertTrue(((BaseRuntimeDeclaredChildDefinition) generatedCtx.getResourceDefinition(Patient.class).getChildByName("deceased[x]")).isUsingGeneratedFieldAccessor());
+		assertTrue(((BaseRuntimeDeclaredChildDefinition) generatedCtx.getResourceDefinition(Observation.class).getChildByName("value[x]")).isUsingGeneratedFieldAccessor());
+
+		for (IResource next : new IResource[] { patient, observation }) {
+			String name = next.getClass().getSimpleName();
+			int compared = assertSameChildValues(generatedCtx, reflectionCtx, next, generatedCtx.getResourceDefinition(next), reflectionCtx.getResourceDefinition(next), name);
+			assertTrue(name, compared > 10);
+			ourLog.info("Compared {} values in {}", compared, name);
+
+			// Copying every child with each context's mutators gives the same resource
+			IResource generatedCopy = copyChildren(generatedCtx, next);
+			IResource reflectionCopy = copyChildren(reflectionCtx, next);
+			String expected = generatedCtx.newJsonParser().encodeResourceToString(next);
+			assertEquals(expected, generatedCtx.newJsonParser().encodeResourceToString(generatedCopy));
+			assertEquals(expected, reflectionCtx.newJsonParser().encodeResourceToString(reflectionCopy));
+		}
+
+		assertEquals(observation.getValue(), generatedCtx.getResourceDefinition(Observation.class).getChildByName("value[x]").getAccessor().getValues(observation).get(0));
+		RuntimeChildDeclaredExtensionDefinition mandatory = generatedCtx.getResourceDefinition(ReportObservation.class).getDeclaredExtension("#mandatory");
+		assertEquals(Boolean.TRUE, ((BooleanDt) mandatory.getAccessor().getValues(observation).get(0)).getValue());
+	}
+
+	/**
+	 * Checks that both contexts return the same child values for the given element and everything below it (including
+	 * the values of undeclared extensions), and returns the number of values compared
+	 */
+	private static int assertSameChildValues(FhirContext theGeneratedCtx, FhirContext theReflectionCtx, IBase theElement, BaseRuntimeElementDefinition<?> theGeneratedDef,
+			BaseRuntimeElementDefinition<?> theReflectionDef, String thePath) {
+		int retVal = 0;
+		if (theGeneratedDef instanceof BaseRuntimeElementCompositeDefinition) {
+			List<BaseRuntimeChildDefinition> generatedChildren = ((BaseRuntimeElementCompositeDefinition<?>) theGeneratedDef).getChildrenAndExtension();
+			List<BaseRuntimeChildDefinition> reflectionChildren = ((BaseRuntimeElementCompositeDefinition<?>) theReflectionDef).getChildrenAndExtension();
+			assertEquals(thePath, generatedChildren.size(), reflectionChildren.size());
+
+			for (int i = 0; i < generatedChildren.size(); i++) {
+				BaseRuntimeChildDefinition generatedChild = generatedChildren.get(i);
+				BaseRuntimeChildDefinition reflectionChild = reflectionChildren.get(i);
+				String path = thePath + "." + generatedChild.getElementName();
+				assertEquals(path, generatedChild.getElementName(), reflectionChild.getElementName());
+
+				List<IBase> generatedValues = generatedChild.getAccessor().getValues(theElement);
+				List<IBase> reflectionValues = reflectionChild.getAccessor().getValues(theElement);
+				assertEquals(path, reflectionValues.size(), generatedValues.size());
+				for (int j = 0; j < generatedValues.size(); j++) {
+					IBase nextValue = generatedValues.get(j);
+					assertSame(path + "[" + j + "]", reflectionValues.get(j), nextValue);
+					retVal++;
+					if (!(nextValue instanceof IResource)) {
+						BaseRuntimeElementDefinition<?> generatedDef = generatedChild.getChildElementDefinitionByDatatype(nextValue.getClass());
+						BaseRuntimeElementDefinition<?> reflectionDef = reflectionChild.getChildElementDefinitionByDatatype(nextValue.getClass());
+						retVal += assertSameChildValues(theGeneratedCtx, theReflectionCtx, nextValue, generatedDef, reflectionDef, path + "[" + j + "]");
+					}
+				}
+			}
+		}
+
+		if (theElement instanceof ISupportsUndeclaredExtensions) {
+			for (ExtensionDt next : ((ISupportsUndeclaredExtensions) theElement).getAllUndeclaredExtensions()) {
+				IBase value = next.getValue();
+				if (value != null) {
+					BaseRuntimeElementDefinition<?> generatedDef = theGeneratedCtx.getElementDefinition(value.getClass());
+					BaseRuntimeElementDefinition<?> reflectionDef = theReflectionCtx.getElementDefinition(value.getClass());
+					retVal += assertSameChildValues(theGeneratedCtx, theReflectionCtx, value, generatedDef, reflectionDef, thePath + "(" + next.getUrl() + ")");
+				}
+			}
+		}
+		return retVal;
+	}
+
+	private static IResource copyChildren(FhirContext theCtx, IResource theSource) {
+		RuntimeResourceDefinition def = theCtx.getResourceDefinition(theSource);
+		IResource retVal = (IResource) def.newInstance();
+		retVal.setId(theSource.getId());
+		for (BaseRuntimeChildDefinition next : def.getChildrenAndExtension()) {
+			for (IBase nextValue : next.getAccessor().getValues(theSource)) {
+				next.getMutator().addValue(retVal, nextValue);
+			}
+		}
+		for (ExtensionDt next : theSource.getAllUndeclaredExtensions()) {
+			retVal.addUndeclaredExtension(next);
+		}
+		return retVal;
+	}
+
+}
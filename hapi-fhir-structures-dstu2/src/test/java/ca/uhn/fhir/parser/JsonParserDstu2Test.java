@@ -3,6 +3,7 @@ package ca.uhn.fhir.parser;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -30,12 +31,14 @@ import ca.uhn.fhir.model.api.TagList;
 import ca.uhn.fhir.model.base.composite.BaseCodingDt;
 import ca.uhn.fhir.model.dstu2.composite.CodingDt;
 import ca.uhn.fhir.model.dstu2.composite.HumanNameDt;
+import ca.uhn.fhir.model.dstu2.composite.QuantityDt;
 import ca.uhn.fhir.model.dstu2.resource.Binary;
 import ca.uhn.fhir.model.dstu2.resource.Bundle.Entry;
 import ca.uhn.fhir.model.dstu2.resource.DiagnosticReport;
 import ca.uhn.fhir.model.dstu2.resource.Medication;
 import ca.uhn.fhir.model.dstu2.resource.MedicationPrescription;
 import ca.uhn.fhir.model.dstu2.resource.Observation;
+import ca.uhn.fhir.model.dstu2.resource.Organization;
 import ca.uhn.fhir.model.dstu2.resource.Patient;
 import ca.uhn.fhir.model.dstu2.resource.QuestionnaireAnswers;
 import ca.uhn.fhir.model.dstu2.valueset.AdministrativeGenderEnum;
@@ -614,6 +617,147 @@ public class JsonParserDstu2Test {
 
 	}
 
+	@Test
+	public void testEncodeResourceToOutputStreamMatchesEncodeToString() throws Exception {
+		Patient patient = new Patient();
+		patient.setId("Patient/1/_history/2");
+		patient.addIdentifier().setSystem("urn:system").setValue("Gr\u00fcn \"q\" \\ / \ud83d\ude00\n\t\u0001");
+		patient.addName().addFamily("Gr\u00fcn").addGiven("\u00c5sa");
+		patient.addName().getFamily().add(new StringDt("Smith"));
+		patient.getNameFirstRep().getGiven().get(0).addUndeclaredExtension(false, "http://foo", new StringDt("ext"));
+		patient.addUndeclaredExtension(true, "http://mod", new StringDt("\u4e2d\u6587"));
+		patient.setBirthDate(new DateDt("1970-01-01"));
+		patient.setGender(AdministrativeGenderEnum.FEMALE);
+		Organization org = new Organization();
+		org.setName("\u00e9t\u00e9");
+		patient.getManagingOrganization().setResource(org);
+
+		for (boolean pretty : new boolean[] { false, true }) {
+			JsonParser parser = new JsonParser(ourCtx);
+			parser.setPrettyPrint(pretty);
+
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			parser.encodeResourceToOutputStream(patient, bos);
+
+			byte[] expected = parser.encodeResourceToString(patient).getBytes("UTF-8");
+			assertArrayEquals(expected, bos.toByteArray());
+		}
+	}
+
+	@Test
+	public void testStreamingParseMatchesTreeParseForBundles() throws Exception {
+		for (String next : new String[] { "/bundle-example.json", "/bundle-transaction.json" }) {
+			String content = IOUtils.toString(JsonParserDstu2Test.class.getResourceAsStream(next));
+
+			Bundle streamed = new JsonParser(ourCtx).setStreamingParse(true).parseBundle(content);
+			Bundle tree = new JsonParser(ourCtx).setStreamingParse(false).parseBundle(content);
+
+			String streamedEncoded = ourCtx.newJsonParser().encodeBundleToString(streamed);
+			String treeEncoded = ourCtx.newJsonParser().encodeBundleToString(tree);
+			ourLog.info(streamedEncoded);
+
+			assertEquals(next, treeEncoded, streamedEncoded);
+		}
+	}
+
+	@Test
+	public void testStreamingParseMatchesTreeParseForUnusualInput() {
+		//@formatter:off
+		String[] inputs = new String[] {
+			// Escapes, a surrogate pair, nulls in a primitive array, a primitive's extensions before its value and nested extensions
+			"{" + 
+				"\"resourceType\":\"Patient\"," + 
+				"\"id\":\"p1\"," + 
+				"\"_birthDate\":{\"extension\":[{\"url\":\"http://a\",\"valueString\":\"x\"}]}," + 
+				"\"birthDate\":\"1970-01-01\"," + 
+				"\"modifierExtension\":[{\"url\":\"http://mod\",\"valueBoolean\":true}]," + 
+				"\"extension\":[{\"url\":\"http://outer\",\"extension\":[{\"url\":\"http://inner\",\"valueDecimal\":1.50}]}]," + 
+				"\"name\":[{" + 
+					"\"family\":[\"Gr\\u00fcn \\\"q\\\" \\\\ \\/ \\ud83d\\ude00\\n\"]," + 
+					"\"given\":[\"A\",null,\"C\"]," + 
+					"\"_given\":[null,{\"id\":\"g2\"},{\"id\":\"g3\"}]" + 
+				"}]," + 
+				"\"active\":false," + 
+				"\"contained\":[{\"name\":\"Org\",\"resourceType\":\"Organization\",\"id\":\"o1\"}]," + 
+				"\"managingOrganization\":{\"reference\":\"#o1\"}" + 
+			"}",
+			// resourceType isn't the first property, and numbers which don't fit in a double
+			"{" + 
+				"\"id\":\"o1\"," + 
+				"\"resourceType\":\"Observation\"," + 
+				"\"status\":\"final\"," + 
+				"\"valueQuantity\":{\"value\":100000000000000000000.000001,\"units\":\"mg\"}," + 
+				"\"referenceRange\":[{\"low\":{\"value\":1E+3},\"high\":{\"value\":-0.000}}]" + 
+			"}",
+			// Bundle entries with and without resourceType as the first property
+			"{" + 
+				"\"resourceType\":\"Bundle\"," + 
+				"\"type\":\"searchset\"," + 
+				"\"total\":2," + 
+				"\"entry\":[" + 
+					"{\"resource\":{\"id\":\"1\",\"resourceType\":\"Patient\",\"active\":true}}," + 
+					"{\"resource\":{\"resourceType\":\"Patient\",\"id\":\"2\",\"name\":[{\"family\":[\"\"]}]}}" + 
+				"]" + 
+			"}"
+		};
+		//@formatter:on
+
+		for (String next : inputs) {
+			IResource streamed = new JsonParser(ourCtx).setStreamingParse(true).parseResource(next);
+			IResource tree = new JsonParser(ourCtx).setStreamingParse(false).parseResource(next);
+
+			String streamedEncoded = ourCtx.newJsonParser().encodeResourceToString(streamed);
+			ourLog.info(streamedEncoded);
+			assertEquals(next, ourCtx.newJsonParser().encodeResourceToString(tree), streamedEncoded);
+		}
+
+		Patient patient = new JsonParser(ourCtx).setStreamingParse(true).parseResource(Patient.class, inputs[0]);
+		assertEquals("Gr\u00fcn \"q\" \\ / \ud83d\ude00\n", patient.getNameFirstRep().getFamilyFirstRep().getValue());
+		assertEquals(2, patient.getNameFirstRep().getGiven().size());
+		assertEquals("g3", patient.getNameFirstRep().getGiven().get(1).getElementSpecificId());
+		assertEquals(1, patient.getBirthDateElement().getUndeclaredExtensions().size());
+		assertEquals(1, patient.getUndeclaredModifierExtensions().size());
+		assertEquals(1, patient.getUndeclaredExtensions().get(0).getUndeclaredExtensions().size());
+
+		Observation obs = new JsonParser(ourCtx).setStreamingParse(true).parseResource(Observation.class, inputs[1]);
+		assertEquals("100000000000000000000.000001", ((QuantityDt) obs.getValue()).getValueElement().getValueAsString());
+	}
+
+	@Test
+	public void testStreamingParsePrimitiveExtensionsAndContainedOutOfOrder() {
+		//@formatter:off
+		String input = "{" + 
+			"\"resourceType\":\"Patient\"," + 
+			"\"contained\":[{\"id\":\"1\",\"resourceType\":\"Organization\",\"name\":\"Org\"}]," + 
+			"\"name\":[{" + 
+				"\"_given\":[null,{\"extension\":[{\"url\":\"http://foo\",\"valueString\":\"ext\"}]}]," + 
+				"\"given\":[\"A\",\"B\"]," + 
+				"\"family\":[\"F\"]," + 
+				"\"_family\":[{\"id\":\"fid\"}]" + 
+			"}]," + 
+			"\"managingOrganization\":{\"reference\":\"#1\"}" + 
+		"}";
+		//@formatter:on
+
+		Patient streamed = new JsonParser(ourCtx).setStreamingParse(true).parseResource(Patient.class, input);
+
+		HumanNameDt name = streamed.getNameFirstRep();
+		assertEquals(2, name.getGiven().size());
+		assertEquals("A", name.getGiven().get(0).getValue());
+		assertEquals(0, name.getGiven().get(0).getUndeclaredExtensions().size());
+		assertEquals("B", name.getGiven().get(1).getValue());
+		assertEquals(1, name.getGiven().get(1).getUndeclaredExtensions().size());
+		assertEquals("http://foo", name.getGiven().get(1).getUndeclaredExtensions().get(0).getUrl());
+		assertEquals("F", name.getFamily().get(0).getValue());
+		assertEquals("fid", name.getFamily().get(0).getElementSpecificId());
+
+		assertEquals(1, streamed.getContained().getContainedResources().size());
+		assertEquals("Org", ((Organization) streamed.getContained().getContainedResources().get(0)).getName());
+
+		Patient tree = new JsonParser(ourCtx).setStreamingParse(false).parseResource(Patient.class, input);
+		assertEquals(ourCtx.newJsonParser().encodeResourceToString(tree), ourCtx.newJsonParser().encodeResourceToString(streamed));
+	}
+
 	@Test
 	public void testParseAndEncodeBundleOldStyle() throws Exception {
 		String content = IOUtils.toString(JsonParserDstu2Test.class.getResourceAsStream("/bundle-example.json"));